@@ -0,0 +1,423 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Animation Renderer Class
+ * <br>
+ * Renders an animation of a pattern whose parameters change over time, such as a sweep of
+ * the wavelength from 400 to 700 nm, to an image sequence or an animated PNG, for videos
+ * and reports. It needs no display. Run it with
+ * <br>
+ * java AnimationRenderer [animation.properties] [key=value ...]
+ * <br>
+ * where the optional properties file, and the key=value arguments which override it,
+ * describe the animation:
+ * <pre>
+ * wavelength = 400,700         nanometers
+ * slitWidth  = 0.1             millimeters
+ * separation = 0.5             millimeters
+ * distance   = 500             millimeters
+ * slits      = 2               rounded to whole slits
+ * sourceAngle = 0              blur, see SweepRunner
+ * pixelWidth = 0
+ * bandwidth  = 0
+ * mode       = auto            auto, fraunhofer or fresnel
+ * source     = laser           laser, white, lamp, led or the path of a spectrum CSV file
+ * easing     = linear          linear, or smooth to ease in and out of every keyframe
+ * frames     = 300             number of frames
+ * fps        = 30              frames per second
+ * view       = screen          screen, graph or map
+ * width      = 1920            image width in pixels
+ * height     = 1080            image height in pixels
+ * halfExtent = 1.501           half the width of the screen shown in millimeters
+ * apertureHeight = 1           height of the aperture in millimeters, for the screen view
+ * format     = png             png, tif or bmp for a numbered image sequence, apng for an animated PNG
+ * output     = animation       directory of the sequence, or the animated PNG file
+ * compression = 1              deflate level of PNG, from 0 to 9
+ * loop       = true            whether the animated PNG repeats forever
+ * threads    = 0               encoding threads, 0 for one per processor
+ * stats      = false           whether the timings of PerfStats are printed at the end
+ * </pre>
+ * The numeric parameters are one value, or keyframes: values separated by commas, spread
+ * evenly from the first frame to the last, or value@second pairs at the given times, e.g.
+ * wavelength = 400@0, 550@2, 700@10. Between keyframes the value is interpolated, and
+ * before the first and after the last it holds. Any set of parameters can be animated at
+ * once.
+ * <br>
+ * The frames go through a pipeline of three stages on their own threads, connected by
+ * bounded queues: one thread computes the pattern of the next frames with
+ * ImageExporter.prepare, one renders their pixels into a small pool of frame buffers, and
+ * a pool of threads compresses and writes them. A stage that gets ahead waits for a free
+ * slot in its queue, so memory stays at a few frames however long the animation is, and
+ * the stages overlap, so the time per frame is that of the slowest stage, usually the
+ * encoding, divided by the encoding threads. An animated PNG is compressed by the same
+ * pool and its frames are appended in order as they are done.
+ */
+public class AnimationRenderer {
+
+    /** Patterns computed ahead of the rendering */
+    private static final int COMPUTED_AHEAD = 4;
+
+    private final Track wavelength, slitWidth, separation, distance, slits, sourceAngle, pixelWidth, bandwidth;
+    private final PropagationMode mode;
+    private final String source;
+    private final SourceSpectrum fileSpectrum;
+    private final boolean smooth;
+    private final int frames, fps;
+    private final ImageExporter.View view;
+    private final int width, height;
+    private final double halfExtent, apertureHeight;
+    private final String format;
+    private final Path output;
+    private final int compression;
+    private final boolean loop;
+    private final int threads;
+
+    private final AtomicInteger done = new AtomicInteger();
+    private volatile Throwable failure;
+
+    /**
+     * Creates an animation from its description.
+     *
+     * @param spec - the animation properties, see the class description
+     * @throws IOException if a spectrum file cannot be read
+     */
+    public AnimationRenderer(Properties spec) throws IOException{
+        frames = Integer.parseInt(spec.getProperty("frames", "300").trim());
+        fps = Integer.parseInt(spec.getProperty("fps", "30").trim());
+        if(frames < 1 || fps < 1)
+            throw new IllegalArgumentException("An animation needs at least one frame and one frame per second");
+        double duration = (frames-1)/(double) fps;
+        wavelength = new Track(spec.getProperty("wavelength", "400,700"), duration);
+        slitWidth = new Track(spec.getProperty("slitWidth", "0.1"), duration);
+        separation = new Track(spec.getProperty("separation", "0.5"), duration);
+        distance = new Track(spec.getProperty("distance", "500"), duration);
+        slits = new Track(spec.getProperty("slits", "2"), duration);
+        sourceAngle = new Track(spec.getProperty("sourceAngle", "0"), duration);
+        pixelWidth = new Track(spec.getProperty("pixelWidth", "0"), duration);
+        bandwidth = new Track(spec.getProperty("bandwidth", "0"), duration);
+        mode = PropagationMode.valueOf(spec.getProperty("mode", "auto").trim().toUpperCase(Locale.ROOT));
+        source = spec.getProperty("source", "laser").trim();
+        switch (source.toLowerCase(Locale.ROOT)) {
+            case "laser": case "white": case "lamp": case "led":
+                fileSpectrum = null;
+                break;
+            default:
+                fileSpectrum = SourceSpectrum.fromCsv(Paths.get(source));
+        }
+        String easing = spec.getProperty("easing", "linear").trim().toLowerCase(Locale.ROOT);
+        if(!easing.equals("linear") && !easing.equals("smooth"))
+            throw new IllegalArgumentException("Easing is linear or smooth: " + easing);
+        smooth = easing.equals("smooth");
+        switch (spec.getProperty("view", "screen").trim().toLowerCase(Locale.ROOT)) {
+            case "graph":
+                view = ImageExporter.View.GRAPH;
+                break;
+            case "map":
+                view = ImageExporter.View.INTENSITY_MAP;
+                break;
+            case "screen":
+                view = ImageExporter.View.SCREEN;
+                break;
+            default:
+                throw new IllegalArgumentException("View is screen, graph or map: " + spec.getProperty("view"));
+        }
+        width = Integer.parseInt(spec.getProperty("width", "1920").trim());
+        height = Integer.parseInt(spec.getProperty("height", "1080").trim());
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Image size must be positive: " + width + "x" + height);
+        halfExtent = Double.parseDouble(spec.getProperty("halfExtent", "1.501").trim());
+        apertureHeight = Double.parseDouble(spec.getProperty("apertureHeight", "1").trim());
+        format = spec.getProperty("format", "png").trim().toLowerCase(Locale.ROOT);
+        switch (format) {
+            case "png": case "tif": case "bmp": case "apng":
+                break;
+            default:
+                throw new IllegalArgumentException("Format is png, tif, bmp or apng: " + format);
+        }
+        output = Paths.get(spec.getProperty("output", format.equals("apng") ? "animation.png" : "animation").trim());
+        compression = Integer.parseInt(spec.getProperty("compression", "1").trim());
+        loop = Boolean.parseBoolean(spec.getProperty("loop", "true").trim());
+        int t = Integer.parseInt(spec.getProperty("threads", "0").trim());
+        threads = (t > 0) ? t : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Values of a parameter over time, given by keyframes.
+     */
+    static final class Track {
+        private final double[] times, values;
+
+        /**
+         * Parses one value, values separated by commas or value@second pairs.
+         *
+         * @param text - the keyframes
+         * @param duration - seconds from the first frame to the last, over which values
+         *                 without times are spread
+         */
+        Track(String text, double duration){
+            String[] parts = text.split(",");
+            times = new double[parts.length];
+            values = new double[parts.length];
+            boolean timed = text.contains("@");
+            for(int k=0;k<parts.length;k++){
+                String part = parts[k].trim();
+                int at = part.indexOf('@');
+                if(timed != (at >= 0))
+                    throw new IllegalArgumentException("Either all or no keyframes have a time: " + text);
+                if(timed){
+                    values[k] = Double.parseDouble(part.substring(0, at).trim());
+                    times[k] = Double.parseDouble(part.substring(at+1).trim());
+                    if(k > 0 && !(times[k] > times[k-1]))
+                        throw new IllegalArgumentException("Keyframe times must increase: " + text);
+                }
+                else {
+                    values[k] = Double.parseDouble(part);
+                    times[k] = (parts.length == 1) ? 0 : duration*k/(parts.length-1);
+                }
+            }
+        }
+
+        /**
+         * @param time - seconds since the first frame
+         * @param smooth - whether to ease in and out of the keyframes rather than move
+         *               between them at a constant rate
+         * @return the value at that time
+         */
+        double valueAt(double time, boolean smooth){
+            int last = times.length-1;
+            if(time <= times[0])
+                return values[0];
+            if(time >= times[last])
+                return values[last];
+            int k = 0;
+            while(time >= times[k+1])
+                k++;
+            double f = (time - times[k])/(times[k+1] - times[k]);
+            if(smooth)
+                f = f*f*(3 - 2*f);
+            return values[k] + (values[k+1] - values[k])*f;
+        }
+    }
+
+    /**
+     * @param frame - index of a frame, from 0 to the number of frames - 1
+     * @return the parameters of the pattern of the frame
+     */
+    public DiffractionParameters parameters(int frame){
+        double time = frame/(double) fps;
+        double nm = wavelength.valueAt(time, smooth);
+        PatternBlur blur = new PatternBlur(sourceAngle.valueAt(time, smooth), pixelWidth.valueAt(time, smooth), bandwidth.valueAt(time, smooth));
+        DiffractionParameters p = new DiffractionParameters(slitWidth.valueAt(time, smooth), distance.valueAt(time, smooth), nm/1000000,
+                Math.max(1, Math.round(slits.valueAt(time, smooth))), separation.valueAt(time, smooth))
+                .withMode(mode).withBlur(blur.isNone() ? null : blur);
+        switch (source.toLowerCase(Locale.ROOT)) {
+            case "laser":
+                return p;
+            case "white":
+                return p.withSpectrum(SourceSpectrum.whiteLight());
+            case "lamp":
+                return p.withSpectrum(SourceSpectrum.blackBody(2800));
+            case "led":
+                return p.withSpectrum(SourceSpectrum.led(nm, 30));
+            default:
+                return p.withSpectrum(fileSpectrum);
+        }
+    }
+
+    /**
+     * Color channel of monochromatic light, like Controller.colorFor, which is not used
+     * here so that no JavaFX is needed.
+     *
+     * @param nm - wavelength in nanometers
+     * @return 0 for blue, 8 for green and 16 for red
+     */
+    static int channelShift(double nm){
+        if(nm >= 400 && nm <= 500)
+            return 0;
+        else if(nm > 500 && nm <= 600)
+            return 8;
+        return 16;
+    }
+
+    /**
+     * Renders the whole animation into the output.
+     *
+     * @throws IOException if the output cannot be written
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void run() throws IOException, InterruptedException{
+        if(!format.equals("apng"))
+            Files.createDirectories(output);
+        else if(output.toAbsolutePath().getParent() != null)
+            Files.createDirectories(output.toAbsolutePath().getParent());
+        done.set(0);
+        failure = null;
+        int buffers = threads + 2; //One per encoding thread, one being rendered and one waiting
+        BlockingQueue<ImageExporter.Rendering> computed = new ArrayBlockingQueue<>(COMPUTED_AHEAD);
+        BlockingQueue<int[]> free = new ArrayBlockingQueue<>(buffers);
+        BlockingQueue<Future<byte[]>> encoded = new ArrayBlockingQueue<>(buffers);
+        for(int b=0;b<buffers;b++){
+            free.add(new int[width*height]);
+        }
+        AtomicInteger encoderNumber = new AtomicInteger();
+        ExecutorService encoders = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "animation-encode-" + encoderNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread computer = stage("animation-compute", () -> {
+            for(int i=0;i<frames;i++){
+                long start = PerfStats.start(), allocated = PerfStats.allocatedBytes();
+                DiffractionParameters p = parameters(i);
+                ImageExporter.Rendering rendering = ImageExporter.prepare(p, view, -halfExtent, halfExtent, width, height,
+                        channelShift(p.getWavelength()*1000000), apertureHeight);
+                PerfStats.record(PerfStats.Stage.CALCULATE, start, allocated);
+                computed.put(rendering);
+            }
+        });
+        Thread renderer = stage("animation-render", () -> {
+            for(int i=0;i<frames;i++){
+                ImageExporter.Rendering rendering = computed.take();
+                int[] pixels = free.take();
+                long start = PerfStats.start();
+                rendering.renderRows(pixels, 0, 0, height);
+                PerfStats.record(PerfStats.Stage.RENDER, start);
+                int frame = i;
+                encoded.put(encoders.submit(() -> encode(frame, pixels, free)));
+            }
+        });
+        try(ApngWriter animation = format.equals("apng") ? new ApngWriter(output, width, height, frames, fps, loop) : null){
+            for(int i=0;i<frames;i++){
+                Future<byte[]> next;
+                while((next = encoded.poll(100, TimeUnit.MILLISECONDS)) == null){
+                    if(failure != null)
+                        throw new IOException("Frame " + done.get() + " failed: " + failure, failure);
+                }
+                byte[] data;
+                try {
+                    data = next.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if(cause instanceof UncheckedIOException)
+                        throw ((UncheckedIOException) cause).getCause();
+                    throw new IOException("Frame " + i + " failed: " + cause, cause);
+                }
+                if(animation != null)
+                    animation.writeFrame(data);
+                done.incrementAndGet();
+            }
+        }
+        finally {
+            computer.interrupt();
+            renderer.interrupt();
+            encoders.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts a stage of the pipeline on its own thread. A stage stops when it is
+     * interrupted, and reports any other failure to run.
+     */
+    private Thread stage(String name, Stage stage){
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (InterruptedException e) {
+                //Stopped by run
+            } catch (RuntimeException | Error e) {
+                failure = e;
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private interface Stage {
+        void run() throws InterruptedException;
+    }
+
+    /**
+     * Compresses a frame, and writes it unless it is part of an animated PNG, then gives
+     * its buffer back to the renderer.
+     *
+     * @return the compressed frame of an animated PNG, null for an image sequence
+     */
+    private byte[] encode(int frame, int[] pixels, BlockingQueue<int[]> free){
+        try {
+            long start = PerfStats.start(), allocated = PerfStats.allocatedBytes();
+            byte[] data = null;
+            if(format.equals("apng"))
+                data = ApngWriter.compress(pixels, width, height, compression);
+            else {
+                Path file = output.resolve(String.format(Locale.ROOT, "frame-%05d.%s", frame, format));
+                try(StreamingImageWriter writer = StreamingImageWriter.create(file, width, height, compression)){
+                    writer.writeRows(pixels, 0, height);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            PerfStats.record(PerfStats.Stage.ENCODE, start, allocated);
+            return data;
+        }
+        finally {
+            free.add(pixels);
+        }
+    }
+
+    /**
+     * @return the number of frames finished so far
+     */
+    public int getDone(){
+        return done.get();
+    }
+
+    /**
+     * Reads the animation description and renders it, printing the throughput.
+     *
+     * @param args - an optional properties file, followed by any key=value overrides
+     */
+    public static void main(String[] args) throws IOException, InterruptedException{
+        Properties spec = new Properties();
+        int first = 0;
+        if(args.length > 0 && args[0].indexOf('=') < 0){
+            try(Reader reader = Files.newBufferedReader(Paths.get(args[0]))){
+                spec.load(reader);
+            }
+            first = 1;
+        }
+        for(int i=first;i<args.length;i++){
+            int equals = args[i].indexOf('=');
+            if(equals <= 0){
+                System.err.println("Usage: java AnimationRenderer [animation.properties] [key=value ...]");
+                System.exit(2);
+            }
+            spec.setProperty(args[i].substring(0, equals).trim(), args[i].substring(equals+1).trim());
+        }
+        AnimationRenderer renderer = new AnimationRenderer(spec);
+        System.out.println("Rendering " + renderer.frames + " frames of " + renderer.width + "x" + renderer.height
+                + " to " + renderer.output + " on " + renderer.threads + " encoding threads");
+        long start = System.nanoTime();
+        renderer.run();
+        double seconds = (System.nanoTime()-start)/1e9;
+        System.out.printf(Locale.ROOT, "Done: %d frames in %.2f s, %.1f frames/s%n", renderer.getDone(), seconds, renderer.getDone()/seconds);
+        if(Boolean.parseBoolean(spec.getProperty("stats", "false").trim()))
+            System.out.print(PerfStats.report());
+    }
+}
@@ -0,0 +1,163 @@
+import java.util.Arrays;
+
+/**
+ * Aperture Mask Class
+ * <br>
+ * Immutable one dimensional transmission function of an aperture, centered on the optical
+ * axis. The mask is either a set of fully transparent openings, each with its own center
+ * and width, such as a regular grating or slits of unequal widths, or an arbitrary
+ * transmission profile sampled at a fixed pitch. All lengths are in millimeters.
+ * <br>
+ * Masks are turned into samples by {@link #rasterize(double[], int, double)}, which is what
+ * the FFT based FraunhoferEngine and FresnelPropagator consume.
+ */
+public final class ApertureMask {
+
+    private final double[] centers, widths;
+    private final double[] transmission;
+    private final double pitch;
+
+    private ApertureMask(double[] centers, double[] widths, double[] transmission, double pitch){
+        this.centers = centers;
+        this.widths = widths;
+        this.transmission = transmission;
+        this.pitch = pitch;
+    }
+
+    /**
+     * Creates a regular grating of equally wide slits, symmetric around the axis.
+     *
+     * @param slits - number of slits
+     * @param width - width of every slit
+     * @param separation - distance between the centers of neighbouring slits
+     * @return the grating mask
+     */
+    public static ApertureMask grating(int slits, double width, double separation){
+        double[] centers = new double[slits];
+        double[] widths = new double[slits];
+        for(int i=0;i<slits;i++){
+            centers[i] = (i-(slits-1)/2.0)*separation;
+            widths[i] = width;
+        }
+        return new ApertureMask(centers, widths, null, 0);
+    }
+
+    /**
+     * Creates a mask of fully transparent openings of any width.
+     *
+     * @param centers - center of each opening
+     * @param widths - width of each opening
+     * @return the mask
+     */
+    public static ApertureMask openings(double[] centers, double[] widths){
+        if(centers.length != widths.length || centers.length == 0)
+            throw new IllegalArgumentException("Need the same, non zero, number of centers and widths");
+        return new ApertureMask(centers.clone(), widths.clone(), null, 0);
+    }
+
+    /**
+     * Creates a mask from transmission samples spaced by pitch, the middle sample lying on
+     * the axis.
+     *
+     * @param transmission - amplitude transmission of each sample, between 0 and 1
+     * @param pitch - distance between samples
+     * @return the mask
+     */
+    public static ApertureMask sampled(double[] transmission, double pitch){
+        if(transmission.length == 0 || !(pitch > 0))
+            throw new IllegalArgumentException("Need transmission samples and a positive pitch");
+        return new ApertureMask(null, null, transmission.clone(), pitch);
+    }
+
+    /**
+     * @return the width of the region outside of which the mask is opaque
+     */
+    public double getExtent(){
+        if(transmission != null)
+            return transmission.length*pitch;
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for(int i=0;i<centers.length;i++){
+            min = Math.min(min, centers[i]-widths[i]/2);
+            max = Math.max(max, centers[i]+widths[i]/2);
+        }
+        return max-min;
+    }
+
+    /**
+     * @return the size of the smallest detail of the mask, which the sampling has to resolve
+     */
+    public double getSmallestFeature(){
+        if(transmission != null)
+            return pitch;
+        double smallest = Double.MAX_VALUE;
+        for(double width : widths){
+            smallest = Math.min(smallest, width);
+        }
+        double[] sorted = centers.clone();
+        Arrays.sort(sorted);
+        for(int i=1;i<sorted.length;i++){
+            smallest = Math.min(smallest, sorted[i]-sorted[i-1]);
+        }
+        return smallest;
+    }
+
+    /**
+     * Samples the transmission into out[0..n-1], sample j lying at (j - n/2)*samplePitch.
+     * Openings are area sampled, so a sample partly covered by an opening gets the covered
+     * fraction, which keeps the pattern smooth as widths change by less than a sample.
+     *
+     * @param out - receives the transmission samples
+     * @param n - number of samples
+     * @param samplePitch - distance between samples
+     */
+    public void rasterize(double[] out, int n, double samplePitch){
+        Arrays.fill(out, 0, n, 0);
+        int middle = n/2;
+        if(transmission != null){
+            //Linear interpolation of the sampled profile at the new pitch
+            double origin = (transmission.length-1)/2.0;
+            for(int j=0;j<n;j++){
+                double t = (j-middle)*samplePitch/pitch + origin;
+                int k = (int) Math.floor(t);
+                if(k < 0 || k >= transmission.length)
+                    continue;
+                double f = t-k;
+                double next = (k+1 < transmission.length) ? transmission[k+1] : 0;
+                out[j] = transmission[k]*(1-f) + next*f;
+            }
+            return;
+        }
+        for(int i=0;i<centers.length;i++){
+            double left = (centers[i]-widths[i]/2)/samplePitch + middle;
+            double right = (centers[i]+widths[i]/2)/samplePitch + middle;
+            //Sample j covers [j-0.5, j+0.5) in units of the pitch
+            int first = Math.max(0, (int) Math.floor(left+0.5));
+            int last = Math.min(n-1, (int) Math.floor(right+0.5));
+            for(int j=first;j<=last;j++){
+                double covered = Math.min(right, j+0.5) - Math.max(left, j-0.5);
+                if(covered > 0)
+                    out[j] = Math.min(1, out[j]+covered);
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(this == o)
+            return true;
+        if(!(o instanceof ApertureMask))
+            return false;
+        ApertureMask other = (ApertureMask) o;
+        return Double.compare(pitch, other.pitch) == 0 && Arrays.equals(centers, other.centers)
+                && Arrays.equals(widths, other.widths) && Arrays.equals(transmission, other.transmission);
+    }
+
+    @Override
+    public int hashCode(){
+        int result = Arrays.hashCode(centers);
+        result = 31*result + Arrays.hashCode(widths);
+        result = 31*result + Arrays.hashCode(transmission);
+        result = 31*result + Double.hashCode(pitch);
+        return result;
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * APNG Writer Class
+ * <br>
+ * Writes an animated PNG, which browsers play like a GIF but without its 256 color limit,
+ * so white light patterns keep their true colors. Viewers that do not know APNG show the
+ * first frame.
+ * <br>
+ * Compressing a frame is most of the work, so it is separate from writing it: compress
+ * turns the pixels of a frame into PNG image data and may be called for several frames
+ * at once on different threads, while writeFrame appends the compressed frames to the
+ * file in their order. Every frame covers the whole image and replaces the one before.
+ */
+public final class ApngWriter implements Closeable {
+
+    private final OutputStream out;
+    private final int width, height, frames, fps;
+    private int written, sequence;
+
+    /**
+     * Creates the file and writes its header.
+     *
+     * @param file - the .png file to create or replace
+     * @param width - image width in pixels
+     * @param height - image height in pixels
+     * @param frames - number of frames that will be written
+     * @param fps - frames per second, 1 to 65535
+     * @param loop - whether the animation repeats forever rather than playing once
+     * @throws IOException if the file cannot be written
+     */
+    public ApngWriter(Path file, int width, int height, int frames, int fps, boolean loop) throws IOException{
+        if(width <= 0 || height <= 0 || frames <= 0)
+            throw new IllegalArgumentException("Animation size must be positive: " + width + "x" + height + ", " + frames + " frames");
+        if(fps < 1 || fps > 0xFFFF)
+            throw new IllegalArgumentException("Frames per second must be from 1 to 65535: " + fps);
+        this.width = width;
+        this.height = height;
+        this.frames = frames;
+        this.fps = fps;
+        out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+        out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        StreamingImageWriter.writeIntBE(header, width);
+        StreamingImageWriter.writeIntBE(header, height);
+        header.write(8); //Bits per channel
+        header.write(2); //RGB
+        header.write(0); //Deflate
+        header.write(0); //Adaptive filters
+        header.write(0); //Not interlaced
+        StreamingImageWriter.writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+        ByteArrayOutputStream control = new ByteArrayOutputStream(8);
+        StreamingImageWriter.writeIntBE(control, frames);
+        StreamingImageWriter.writeIntBE(control, loop ? 0 : 1); //Plays, 0 for forever
+        StreamingImageWriter.writeChunk(out, "acTL", control.toByteArray(), 0, control.size());
+    }
+
+    /**
+     * Compresses a frame into PNG image data. Safe to call from several threads at once.
+     *
+     * @param argb - pixels of the frame, row by row
+     * @param width - image width in pixels
+     * @param height - image height in pixels
+     * @param compression - deflate level, from 0 to 9
+     * @return the image data of the frame
+     */
+    public static byte[] compress(int[] argb, int width, int height, int compression){
+        byte[] row = new byte[1 + 3*width];
+        Deflater deflater = new Deflater(compression);
+        //Leaves room in front for the sequence number of an fdAT chunk
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(1 << 16, width*height/4));
+        bytes.write(new byte[4], 0, 4);
+        try(DeflaterOutputStream data = new DeflaterOutputStream(bytes, deflater, 1 << 16)){
+            for(int r=0;r<height;r++){
+                StreamingImageWriter.filterRow(argb, r*width, width, row);
+                data.write(row);
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e); //A ByteArrayOutputStream does not throw
+        }
+        finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Appends the next frame.
+     *
+     * @param compressed - the frame as returned by compress
+     * @throws IOException if the file cannot be written
+     */
+    public void writeFrame(byte[] compressed) throws IOException{
+        if(written == frames)
+            throw new IllegalStateException("More frames than announced: " + frames);
+        ByteArrayOutputStream control = new ByteArrayOutputStream(26);
+        StreamingImageWriter.writeIntBE(control, sequence++);
+        StreamingImageWriter.writeIntBE(control, width);
+        StreamingImageWriter.writeIntBE(control, height);
+        StreamingImageWriter.writeIntBE(control, 0); //x offset
+        StreamingImageWriter.writeIntBE(control, 0); //y offset
+        control.write(0); //Delay of 1/fps seconds
+        control.write(1);
+        control.write(fps >>> 8);
+        control.write(fps);
+        control.write(0); //Dispose: leave the frame
+        control.write(0); //Blend: replace
+        StreamingImageWriter.writeChunk(out, "fcTL", control.toByteArray(), 0, control.size());
+        if(written == 0){
+            //The first frame is the default image, IDAT without the sequence number
+            StreamingImageWriter.writeChunk(out, "IDAT", compressed, 4, compressed.length-4);
+        }
+        else {
+            int number = sequence++;
+            compressed[0] = (byte) (number >>> 24);
+            compressed[1] = (byte) (number >>> 16);
+            compressed[2] = (byte) (number >>> 8);
+            compressed[3] = (byte) number;
+            StreamingImageWriter.writeChunk(out, "fdAT", compressed, 0, compressed.length);
+        }
+        written++;
+    }
+
+    /**
+     * Finishes the file. Fails if fewer frames than announced were written.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException{
+        try {
+            if(written != frames)
+                throw new IOException("Animation incomplete: " + written + " of " + frames + " frames written");
+            StreamingImageWriter.writeChunk(out, "IEND", new byte[0], 0, 0);
+        }
+        finally {
+            out.close();
+        }
+    }
+}
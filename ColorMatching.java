@@ -0,0 +1,79 @@
+/**
+ * Color Matching Class
+ * <br>
+ * Converts light spectra to colors. The CIE 1931 2 degree standard observer color matching
+ * functions are evaluated with the multi-lobe Gaussian fit of Wyman, Sloan and Shirley,
+ * "Simple Analytic Approximations to the CIE XYZ Color Matching Functions" (2013), which is
+ * within the accuracy of the tabulated data for display purposes and needs no tables.
+ * Linear sRGB values are obtained from XYZ with the standard D65 matrix and then gamma
+ * encoded.
+ */
+public final class ColorMatching {
+
+    private ColorMatching(){
+    }
+
+    /**
+     * @param wavelength - wavelength in nanometers
+     * @return the x bar color matching function
+     */
+    public static double xBar(double wavelength){
+        return 1.056*lobe(wavelength, 599.8, 0.0264, 0.0323)
+                + 0.362*lobe(wavelength, 442.0, 0.0624, 0.0374)
+                - 0.065*lobe(wavelength, 501.1, 0.0490, 0.0382);
+    }
+
+    /**
+     * @param wavelength - wavelength in nanometers
+     * @return the y bar color matching function, which is the luminous efficiency
+     */
+    public static double yBar(double wavelength){
+        return 0.821*lobe(wavelength, 568.8, 0.0213, 0.0247)
+                + 0.286*lobe(wavelength, 530.9, 0.0613, 0.0322);
+    }
+
+    /**
+     * @param wavelength - wavelength in nanometers
+     * @return the z bar color matching function
+     */
+    public static double zBar(double wavelength){
+        return 1.217*lobe(wavelength, 437.0, 0.0845, 0.0278)
+                + 0.681*lobe(wavelength, 459.0, 0.0385, 0.0725);
+    }
+
+    /**
+     * Gaussian with different widths on each side of its peak.
+     */
+    private static double lobe(double wavelength, double peak, double below, double above){
+        double t = (wavelength-peak)*(wavelength < peak ? below : above);
+        return Math.exp(-0.5*t*t);
+    }
+
+    /**
+     * Converts a color from XYZ to a packed, opaque, gamma encoded sRGB pixel. Colors
+     * outside of the sRGB gamut are clipped.
+     *
+     * @param x - X tristimulus value, 1 being the brightest displayable white
+     * @param y - Y tristimulus value
+     * @param z - Z tristimulus value
+     * @return the ARGB pixel
+     */
+    public static int toArgb(double x, double y, double z){
+        double r = 3.2406*x - 1.5372*y - 0.4986*z;
+        double g = -0.9689*x + 1.8758*y + 0.0415*z;
+        double b = 0.0557*x - 0.2040*y + 1.0570*z;
+        return 0xFF000000 | (encode(r) << 16) | (encode(g) << 8) | encode(b);
+    }
+
+    /**
+     * Applies the sRGB transfer curve to a linear value.
+     */
+    private static int encode(double linear){
+        if(linear <= 0)
+            return 0;
+        if(linear >= 1)
+            return 255;
+        double v = linear <= 0.0031308 ? 12.92*linear : 1.055*Math.pow(linear, 1/2.4) - 0.055;
+        return (int) Math.round(v*255);
+    }
+}
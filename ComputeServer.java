@@ -0,0 +1,510 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compute Server Class
+ * <br>
+ * Serves diffraction patterns over HTTP on the loopback interface, so that other programs
+ * can use the model without JavaFX. Start it with java Main --server [port=8642] [cache=64]
+ * or java ComputeServer with the same settings, the cache being the size of the shared
+ * PatternCache in megabytes.
+ * <br>
+ * GET /pattern?wavelength=632.8&slitWidth=0.1&slits=2&separation=0.4 computes a pattern.
+ * The parameters may also be sent form encoded in the body of a POST. They are those of
+ * SweepRunner, each with one value: wavelength in nanometers, slitWidth, separation,
+ * distance and halfExtent in millimeters, slits, mode (auto, fraunhofer or fresnel),
+ * source (laser, white, lamp or led), sourceAngle, pixelWidth and bandwidth for the blur,
+ * samples, at most MAX_SAMPLES, and sampling (uniform or adaptive, for which samples is the
+ * most the grid may have) with its tolerance. Parameters left out take their SweepRunner
+ * defaults.
+ * <br>
+ * The pattern is returned as JSON,
+ * {"samples":n,"firstMinimum":..,"fresnelNumber":..,"x":[..],"intensity":[..]} with
+ * "colors":[..] of packed RGB values for broadband light, and null for numbers without a
+ * finite value, such as the first minimum of slits without separation. With format=binary
+ * or an Accept header of application/octet-stream it is a little endian binary body: the
+ * bytes DFPB, the int version 1, the int n, the int flags (1 if colors follow), n float x
+ * values, n float intensities and, if flagged, n int colors. Errors are answered with
+ * status 400 and {"error":".."}. GET /health answers ok, GET /stats the PerfStats table
+ * and the counters of the server.
+ * <br>
+ * Every request is handled on a virtual thread when the JVM has them (Java 21), otherwise
+ * on a pool of platform threads. Identical requests which arrive while their pattern is
+ * being computed wait for that computation instead of starting their own, and share its
+ * encoded body, so a burst of identical requests costs one computation. Patterns already
+ * computed are found in the PatternCache.
+ */
+public class ComputeServer {
+
+    /** Default port */
+    public static final int DEFAULT_PORT = 8642;
+    /** Largest number of samples of a pattern */
+    public static final int MAX_SAMPLES = 1 << 20;
+    /** Largest request body in bytes */
+    private static final int MAX_BODY = 1 << 16;
+
+    static {
+        //Without TCP_NODELAY the separate writes of the headers and the body of a response
+        //wait for the delayed acknowledgement of the client, 40 ms per request on Linux.
+        //The JDK server reads the property once, before its first socket.
+        if(System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final PatternCache cache;
+    private final boolean virtual;
+    private final ConcurrentHashMap<Request, CompletableFuture<Pattern>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder requests = new LongAdder(), computed = new LongAdder(), coalesced = new LongAdder(), failed = new LongAdder();
+
+    /**
+     * Creates a server on the loopback interface; it does not answer before start.
+     *
+     * @param port - port to listen on, 0 for any free port
+     * @param cacheBytes - size of the pattern cache in bytes
+     * @throws IOException if the port cannot be bound
+     */
+    public ComputeServer(int port, long cacheBytes) throws IOException{
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 256);
+        cache = new PatternCache(cacheBytes);
+        ExecutorService threads = virtualThreads();
+        virtual = threads != null;
+        executor = virtual ? threads : Executors.newFixedThreadPool(Math.max(16, 4*Runtime.getRuntime().availableProcessors()), new DaemonThreads());
+        server.setExecutor(executor);
+        server.createContext("/pattern", this::handlePattern);
+        server.createContext("/health", exchange -> respond(exchange, 200, "text/plain", "ok\n".getBytes(StandardCharsets.UTF_8)));
+        server.createContext("/stats", this::handleStats);
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor is looked up rather than called, so that
+     * the server still compiles and runs before Java 21.
+     *
+     * @return an executor starting a virtual thread per task, or null without virtual threads
+     */
+    private static ExecutorService virtualThreads(){
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null; //Before Java 21, or a preview that is not enabled
+        }
+    }
+
+    /**
+     * Names the threads of the fallback pool and lets the JVM exit while they wait.
+     */
+    private static final class DaemonThreads implements java.util.concurrent.ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable){
+            Thread thread = new Thread(runnable, "compute-server-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Starts answering requests.
+     */
+    public void start(){
+        server.start();
+    }
+
+    /**
+     * Stops answering requests, waiting up to a second for those being answered.
+     */
+    public void stop(){
+        server.stop(1);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return true if requests are handled on virtual threads
+     */
+    public boolean isVirtual(){
+        return virtual;
+    }
+
+    /**
+     * @return the number of requests for patterns, the number of patterns computed, the
+     * number of requests that waited for the computation of an identical one and the
+     * number of requests that failed
+     */
+    public long[] getCounters(){
+        return new long[]{requests.sum(), computed.sum(), coalesced.sum(), failed.sum()};
+    }
+
+    private void handlePattern(HttpExchange exchange) throws IOException{
+        long start = PerfStats.start();
+        requests.increment();
+        try {
+            String method = exchange.getRequestMethod();
+            String query;
+            if("GET".equals(method))
+                query = exchange.getRequestURI().getRawQuery();
+            else if("POST".equals(method))
+                query = readBody(exchange.getRequestBody());
+            else {
+                exchange.getResponseHeaders().set("Allow", "GET, POST");
+                respondError(exchange, 405, "Only GET and POST are supported");
+                return;
+            }
+            Map<String, String> settings = parseQuery(query);
+            String format = settings.getOrDefault("format", "");
+            settings.remove("format");
+            String accept = exchange.getRequestHeaders().getFirst("Accept");
+            boolean binary = format.equals("binary") || (format.isEmpty() && accept != null && accept.contains("application/octet-stream"));
+            if(!format.isEmpty() && !format.equals("binary") && !format.equals("json"))
+                throw new IllegalArgumentException("format must be json or binary");
+            Pattern pattern = pattern(parseRequest(settings));
+            respond(exchange, 200, binary ? "application/octet-stream" : "application/json", binary ? pattern.binary() : pattern.json());
+        } catch (IllegalArgumentException e) { //NumberFormatException included
+            failed.increment();
+            respondError(exchange, 400, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.increment();
+            respondError(exchange, 503, "Server stopping");
+        } catch (RuntimeException e) {
+            failed.increment();
+            respondError(exchange, 500, String.valueOf(e));
+        } finally {
+            exchange.close();
+            PerfStats.record(PerfStats.Stage.REQUEST, start);
+        }
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException{
+        String text = PerfStats.report() + String.format(Locale.ROOT,
+                "requests %d, computed %d, coalesced %d, failed %d, %s threads%n%s%n",
+                requests.sum(), computed.sum(), coalesced.sum(), failed.sum(), virtual ? "virtual" : "platform", cache);
+        respond(exchange, 200, "text/plain", text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Computes the pattern of a request, or waits for it if an identical request is
+     * already computing it. Either way the outcome is read from the shared future, and
+     * what the computation threw is thrown again as it is, so a request and the requests
+     * coalesced with it fail with the same status.
+     */
+    private Pattern pattern(Request request) throws InterruptedException{
+        CompletableFuture<Pattern> mine = new CompletableFuture<>();
+        CompletableFuture<Pattern> running = inFlight.putIfAbsent(request, mine);
+        if(running != null)
+            coalesced.increment();
+        else {
+            running = mine;
+            try {
+                DiffractionCalculator calculator = new DiffractionCalculator(request.parameters,
+                        SamplingStrategy.named(request.sampling, request.samples, request.halfExtent, request.tolerance));
+                calculator.setCache(cache);
+                calculator.CalculateOutput();
+                computed.increment();
+                mine.complete(new Pattern(calculator));
+            } catch (RuntimeException | Error e) {
+                mine.completeExceptionally(e);
+            } finally {
+                inFlight.remove(request, mine);
+            }
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if(cause instanceof Error)
+                throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException{
+        byte[] body = in.readNBytes(MAX_BODY + 1);
+        if(body.length > MAX_BODY)
+            throw new IllegalArgumentException("Request body larger than " + MAX_BODY + " bytes");
+        return new String(body, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param query - key=value pairs joined by &amp;, URL encoded, or null
+     * @return the decoded pairs
+     */
+    static Map<String, String> parseQuery(String query){
+        Map<String, String> settings = new HashMap<>();
+        if(query == null || query.trim().isEmpty())
+            return settings;
+        for(String pair : query.trim().split("&")){
+            if(pair.isEmpty())
+                continue;
+            int equals = pair.indexOf('=');
+            if(equals <= 0)
+                throw new IllegalArgumentException("Expected key=value: " + pair);
+            settings.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8).trim(),
+                    URLDecoder.decode(pair.substring(equals+1), StandardCharsets.UTF_8).trim());
+        }
+        return settings;
+    }
+
+    /**
+     * Reads the parameters of a pattern like SweepRunner does, with one value per key.
+     *
+     * @param settings - decoded parameters, which are consumed
+     * @return the request
+     * @throws IllegalArgumentException if a value is missing, malformed or out of range,
+     * or a key is unknown
+     */
+    static Request parseRequest(Map<String, String> settings){
+        double nm = positive(settings, "wavelength", 500);
+        double slitWidth = positive(settings, "slitWidth", 0.1);
+        double separation = number(settings, "separation", 0.5);
+        double distance = positive(settings, "distance", 500);
+        double slits = number(settings, "slits", 1);
+        double halfExtent = positive(settings, "halfExtent", 1.501);
+        double samples = number(settings, "samples", 1501);
+        String sampling = text(settings, "sampling", "uniform").toLowerCase(Locale.ROOT);
+        double tolerance = positive(settings, "tolerance", 0.001);
+        if(separation < 0)
+            throw new IllegalArgumentException("separation must not be negative");
+        if(slits < 1 || slits != Math.rint(slits) || slits > 10000)
+            throw new IllegalArgumentException("slits must be a whole number from 1 to 10000");
+        if(samples < 2 || samples > MAX_SAMPLES || samples != Math.rint(samples))
+            throw new IllegalArgumentException("samples must be a whole number from 2 to " + MAX_SAMPLES);
+        if(!sampling.equals("uniform") && !sampling.equals("adaptive"))
+            throw new IllegalArgumentException("sampling must be uniform or adaptive");
+        if(sampling.equals("adaptive") && samples < 3)
+            throw new IllegalArgumentException("samples must be at least 3 for an adaptive grid");
+        PropagationMode mode = PropagationMode.valueOf(text(settings, "mode", "fraunhofer").toUpperCase(Locale.ROOT));
+        PatternBlur blur = new PatternBlur(number(settings, "sourceAngle", 0), number(settings, "pixelWidth", 0), number(settings, "bandwidth", 0));
+        DiffractionParameters p = new DiffractionParameters(slitWidth, distance, nm/1000000, slits, separation)
+                .withMode(mode).withBlur(blur.isNone() ? null : blur);
+        switch (text(settings, "source", "laser").toLowerCase(Locale.ROOT)) {
+            case "laser":
+                break;
+            case "white":
+                p = p.withSpectrum(SourceSpectrum.whiteLight());
+                break;
+            case "lamp":
+                p = p.withSpectrum(SourceSpectrum.blackBody(2800));
+                break;
+            case "led":
+                p = p.withSpectrum(SourceSpectrum.led(nm, 30));
+                break;
+            default:
+                throw new IllegalArgumentException("source must be laser, white, lamp or led");
+        }
+        if(!settings.isEmpty())
+            throw new IllegalArgumentException("Unknown parameter " + settings.keySet().iterator().next());
+        return new Request(p, (int) samples, halfExtent, sampling, tolerance);
+    }
+
+    private static String text(Map<String, String> settings, String key, String fallback){
+        String value = settings.remove(key);
+        return (value == null) ? fallback : value;
+    }
+
+    private static double number(Map<String, String> settings, String key, double fallback){
+        String value = settings.remove(key);
+        if(value == null)
+            return fallback;
+        double number;
+        try {
+            number = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " is not a number: " + value);
+        }
+        if(!Double.isFinite(number))
+            throw new IllegalArgumentException(key + " must be finite");
+        return number;
+    }
+
+    private static double positive(Map<String, String> settings, String key, double fallback){
+        double number = number(settings, key, fallback);
+        if(number <= 0)
+            throw new IllegalArgumentException(key + " must be positive");
+        return number;
+    }
+
+    private static void respondError(HttpExchange exchange, int status, String message) throws IOException{
+        String text = String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"");
+        respond(exchange, status, "application/json", ("{\"error\":\"" + text + "\"}").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String type, byte[] body) throws IOException{
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        try(OutputStream out = exchange.getResponseBody()){
+            out.write(body);
+        }
+    }
+
+    /**
+     * The parameters and grid of a pattern; identical requests are equal.
+     */
+    static final class Request {
+        final DiffractionParameters parameters;
+        final int samples;
+        final double halfExtent;
+        final String sampling;
+        final double tolerance;
+
+        Request(DiffractionParameters parameters, int samples, double halfExtent, String sampling, double tolerance){
+            this.parameters = parameters;
+            this.samples = samples;
+            this.halfExtent = halfExtent;
+            this.sampling = sampling;
+            this.tolerance = tolerance;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof Request))
+                return false;
+            Request other = (Request) o;
+            return samples == other.samples && Double.compare(halfExtent, other.halfExtent) == 0
+                    && sampling.equals(other.sampling) && Double.compare(tolerance, other.tolerance) == 0
+                    && parameters.equals(other.parameters);
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(parameters, samples, halfExtent, sampling, tolerance);
+        }
+    }
+
+    /**
+     * A computed pattern. Its bodies are encoded when first asked for and shared by the
+     * requests waiting for it; two requests may both encode one, which does no harm.
+     */
+    static final class Pattern {
+        private final DiffractionParameters parameters;
+        private final double[] x, values;
+        private final int[] colors;
+        private volatile byte[] json, binary;
+
+        Pattern(DiffractionCalculator calculator){
+            parameters = calculator.getParameters();
+            x = calculator.getInputValues();
+            values = calculator.getOutputValues();
+            colors = calculator.getColorValues();
+        }
+
+        byte[] json(){
+            byte[] body = json;
+            if(body == null){
+                StringBuilder text = new StringBuilder(32*x.length + 128);
+                text.append("{\"samples\":").append(x.length).append(",\"firstMinimum\":");
+                appendNumber(text, parameters.getFirstDiffractionDistance()).append(",\"fresnelNumber\":");
+                appendNumber(text, parameters.getFresnelNumber());
+                text.append(",\"x\":[");
+                for(int i=0;i<x.length;i++){
+                    appendNumber(text.append(i == 0 ? "" : ","), (float) x[i]);
+                }
+                text.append("],\"intensity\":[");
+                for(int i=0;i<values.length;i++){
+                    appendNumber(text.append(i == 0 ? "" : ","), (float) values[i]);
+                }
+                text.append(']');
+                if(colors != null){
+                    text.append(",\"colors\":[");
+                    for(int i=0;i<colors.length;i++){
+                        text.append(i == 0 ? "" : ",").append(colors[i] & 0xFFFFFF);
+                    }
+                    text.append(']');
+                }
+                text.append("}\n");
+                json = body = text.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            return body;
+        }
+
+        /**
+         * Appends a number to JSON, which has no literal for infinite values or NaN, so
+         * those are written as null.
+         */
+        private static StringBuilder appendNumber(StringBuilder text, double value){
+            return Double.isFinite(value) ? text.append(value) : text.append("null");
+        }
+
+        private static StringBuilder appendNumber(StringBuilder text, float value){
+            return Float.isFinite(value) ? text.append(value) : text.append("null");
+        }
+
+        byte[] binary(){
+            byte[] body = binary;
+            if(body == null){
+                int n = x.length;
+                ByteBuffer buffer = ByteBuffer.allocate(16 + 8*n + (colors != null ? 4*n : 0)).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.put(new byte[]{'D', 'F', 'P', 'B'}).putInt(1).putInt(n).putInt(colors != null ? 1 : 0);
+                for(int i=0;i<n;i++){
+                    buffer.putFloat((float) x[i]);
+                }
+                for(int i=0;i<n;i++){
+                    buffer.putFloat((float) values[i]);
+                }
+                if(colors != null){
+                    for(int i=0;i<n;i++){
+                        buffer.putInt(colors[i] & 0xFFFFFF);
+                    }
+                }
+                binary = body = buffer.array();
+            }
+            return body;
+        }
+    }
+
+    /**
+     * Starts a server and keeps it running until the JVM is stopped.
+     *
+     * @param args - key=value settings: port and cache in megabytes
+     */
+    public static void main(String[] args) throws IOException{
+        Properties settings = new Properties();
+        for(String arg : args){
+            int equals = arg.indexOf('=');
+            if(equals <= 0){
+                System.err.println("Usage: java ComputeServer [port=" + DEFAULT_PORT + "] [cache=64]");
+                System.exit(2);
+            }
+            settings.setProperty(arg.substring(0, equals).trim(), arg.substring(equals+1).trim());
+        }
+        int port = Integer.parseInt(settings.getProperty("port", String.valueOf(DEFAULT_PORT)));
+        long cacheBytes = Long.parseLong(settings.getProperty("cache", "64")) << 20;
+        ComputeServer server = new ComputeServer(port, cacheBytes);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        System.out.println("Serving patterns at http://127.0.0.1:" + server.getPort() + "/pattern on "
+                + (server.isVirtual() ? "virtual" : "platform") + " threads");
+    }
+}
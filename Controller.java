@@ -1,29 +1,41 @@
+import javafx.application.Platform;
 import javafx.embed.swing.SwingFXUtils;
 import javafx.fxml.Initializable;
+import javafx.geometry.Bounds;
 import javafx.print.PrinterJob;
+import javafx.scene.Node;
 import javafx.scene.SnapshotParameters;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.WritableImage;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseButton;
 import javafx.scene.layout.Pane;
 import javafx.scene.paint.Color;
-import javafx.scene.shape.Line;
 import javafx.scene.text.Text;
 import javafx.stage.FileChooser;
 
 import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.net.URL;
+import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Optional;
 import java.util.ResourceBundle;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 
 /**
  * Controller of the fxml form objects and handles the model and view
@@ -33,17 +45,72 @@ import java.util.ResourceBundle;
 public class Controller implements Initializable{
 
     DiffractionCalculator calculator;
+    PatternRenderer renderer;
+    UpdateScheduler<DiffractionParameters, Frame> scheduler;
+    //Live two dimensional image of the screen, computed off the FX thread and copied into screenImage
+    final ScreenImage screen = new ScreenImage(400, 300, DiffractionCalculator.DEFAULT_SAMPLING.getHalfExtent());
+    final WritableImage screenImage = new WritableImage(screen.getWidth(), screen.getHeight());
+    boolean showSetup;
 
     public Pane graph,intensityMap,apertureGraph;
-    public TextField wavelengthTextArea, separationTextArea, widthTextArea, distanceTextArea;
+    public TextField wavelengthTextArea, separationTextArea, widthTextArea, distanceTextArea, slitCountTextArea;
     public Slider wavelengthSlider, separationSlider, widthSlider, distanceSlider;
     public Button separationBtn;
-    public RadioButton singleBtn, doubleBtn;
+    public RadioButton singleBtn, doubleBtn, gratingBtn;
     public Text diffractionDifferenceText;
+    public ChoiceBox<PropagationMode> propagationChoice;
+    public ChoiceBox<String> sourceChoice;
+    public ChoiceBox<String> blurChoice;
+    SourceSpectrum fileSpectrum; //Last spectrum loaded from a file
+    Frame lastFrame; //Pattern currently shown
+    PerfOverlay overlay; //Statistics of the pipeline, toggled with F3
+    long changed; //Time of the last change not yet shown completely, 0 if none
+    Consumer<Frame> frameListener; //Told of every frame shown, by InteractionReplayer
+    PatternArchive archive; //Archive the shown pattern was opened from, if any
+    //Samples of patterns exported to an archive, and most samples shown of an opened archive
+    static final long EXPORT_SAMPLES = 1000001;
+    static final int OPEN_SAMPLES = 4001;
+    static final NumberFormat FORMATTER = new DecimalFormat("#.000000"); //Only used on the FX thread
+    double labelledMinimum = -1; //Position of first minimum in the label, NaN in the near field, -1 before any
+    //Recently shown patterns, so going back to earlier values does not compute them again
+    final PatternCache cache = new PatternCache(32L << 20);
+    final MappedPattern mapped = new MappedPattern(); //Only used on the FX thread
+    final ImageAssets assets = new ImageAssets(); //Overhead images of the experiment setup
+    //Zoomed part of the graph in millimeters, NaN when the whole screen is shown
+    double viewMin = Double.NaN, viewMax = Double.NaN;
+    double dragX, dragViewMin, dragViewMax;
+    //Full resolution pattern of the zoomed part, computed in the background
+    UpdateScheduler<Detail, Detail> detailScheduler;
+    Detail detail;
+    Label zoomNote; //Shown when the zoomed graph could not be computed at full resolution
+    static final int DETAIL_SAMPLES = 16385;
+    static final int FIRST_PASS_SAMPLES = 200; //Values of the coarse preview shown first while computing
     public Color c = Color.BLUE;
     public ImageView img;
     public Image i;
+    //Pulses and thread of the scheduler, given by InteractionReplayer to drive the program off screen
+    private final UpdateScheduler.Pulse pulse;
+    private final ExecutorService updateThread;
 
+    /**
+     * Creates a controller whose patterns are computed on a thread of its own, started on
+     * the pulses of the display.
+     */
+    public Controller(){
+        this(UpdateScheduler.displayPulse(), UpdateScheduler.backgroundThread("diffraction-update"));
+    }
+
+    /**
+     * Creates a controller whose patterns are started on the given pulses and computed by
+     * the given executor.
+     *
+     * @param pulse - pulses on which a changed pattern is started
+     * @param updateThread - computes the patterns, one at a time
+     */
+    Controller(UpdateScheduler.Pulse pulse, ExecutorService updateThread){
+        this.pulse = pulse;
+        this.updateThread = updateThread;
+    }
 
     /**
      * Override function that allows the controller to be initialized
@@ -63,7 +130,9 @@ public class Controller implements Initializable{
         ContextMenu contextMenu = new ContextMenu();
         MenuItem print = new MenuItem("Print");
         MenuItem save = new MenuItem("Save");
-        contextMenu.getItems().addAll(print, save);
+        MenuItem export = new MenuItem("Export High Resolution...");
+        contextMenu.getItems().addAll(print, save, export);
+        contextMenu.setOnShowing((event) -> export.setDisable(contextMenu.getOwnerNode() == apertureGraph || lastFrame == null));
         //Sets up the file chooser and printer settings for the save and print functionality
         save.setOnAction((event)->{
             FileChooser fileChooser = new FileChooser();
@@ -74,22 +143,62 @@ public class Controller implements Initializable{
             File file = fileChooser.showSaveDialog(graph.getScene().getWindow());
             if (file != null) {
                 WritableImage image = contextMenu.getOwnerNode().snapshot(new SnapshotParameters(), null);
+                String format = StreamingImageWriter.formatOf(file.toPath());
+                if(!format.equals("bmp") && !format.equals("jpg"))
+                    format = "png";
+                BufferedImage pixels = SwingFXUtils.fromFXImage(image, null);
+                if(!format.equals("png")){ //BMP and JPEG have no alpha, so the image is put on white
+                    BufferedImage opaque = new BufferedImage(pixels.getWidth(), pixels.getHeight(), BufferedImage.TYPE_INT_RGB);
+                    Graphics2D g = opaque.createGraphics();
+                    g.setColor(java.awt.Color.WHITE);
+                    g.fillRect(0, 0, pixels.getWidth(), pixels.getHeight());
+                    g.drawImage(pixels, 0, 0, null);
+                    g.dispose();
+                    pixels = opaque;
+                }
                 try {
-                    ImageIO.write(SwingFXUtils.fromFXImage(image, null), "png", file);
+                    ImageIO.write(pixels, format, file);
                 } catch (IOException ex) {
                     System.out.println(ex.getMessage());
                 }
             }
         });
+        export.setOnAction((event)->{
+            OnExportHighResolution(contextMenu.getOwnerNode());
+        });
         print.setOnAction((event)->{
             PrinterJob printerJob = PrinterJob.createPrinterJob();
             if(printerJob.showPrintDialog(graph.getScene().getWindow()) && printerJob.printPage(contextMenu.getOwnerNode()))
                 printerJob.endJob();
         });
         //Listeners on each graph for right clicks
-        graph.setOnMouseClicked((event) -> { //Allows for right click to save and print graphs
+        graph.setOnMouseClicked((event) -> { //Allows for right click to save and print graphs, double click resets the zoom
             if(event.getButton()== MouseButton.SECONDARY || event.isControlDown())
                 contextMenu.show(graph,event.getScreenX(),event.getScreenY());
+            else if(event.getButton()== MouseButton.PRIMARY && event.getClickCount() == 2)
+                setView(Double.NaN, Double.NaN);
+        });
+        //Scrolling zooms the graph around the mouse, dragging pans it
+        graph.setOnScroll((event) -> {
+            if(lastFrame == null || event.getDeltaY() == 0)
+                return;
+            double min = viewStart(), max = viewEnd();
+            double anchor = min + (max-min)*event.getX()/graph.getWidth();
+            double factor = (event.getDeltaY() > 0) ? 1/1.25 : 1.25;
+            setView(anchor - (anchor-min)*factor, anchor + (max-anchor)*factor);
+        });
+        graph.setOnMousePressed((event) -> {
+            if(lastFrame == null)
+                return;
+            dragX = event.getX();
+            dragViewMin = viewStart();
+            dragViewMax = viewEnd();
+        });
+        graph.setOnMouseDragged((event) -> {
+            if(lastFrame == null || event.getButton() != MouseButton.PRIMARY || Double.isNaN(viewMin))
+                return;
+            double shift = -(event.getX()-dragX)*(dragViewMax-dragViewMin)/graph.getWidth();
+            setView(dragViewMin+shift, dragViewMax+shift);
         });
         intensityMap.setOnMouseClicked((event) -> {
             if(event.getButton()== MouseButton.SECONDARY || event.isControlDown())
@@ -105,109 +214,425 @@ public class Controller implements Initializable{
         widthSlider.valueProperty().addListener((observable, oldValue, newValue) -> {OnSlitWidthChanged();});
         distanceSlider.valueProperty().addListener((observable, oldValue, newValue) -> {OnDistanceSliderChanged();});
 
+        //Starts decoding the overhead images in the background
+        assets.loadDefaults();
+        //Reusable drawing surfaces for the graph, intensity map and aperture
+        renderer = new PatternRenderer(graph, intensityMap, apertureGraph);
+        //Timings of every stage over the graph, shown and hidden with F3
+        overlay = new PerfOverlay(graph);
+        zoomNote = new Label();
+        zoomNote.setStyle("-fx-background-color: rgba(255, 255, 255, 0.8); -fx-padding: 2;");
+        zoomNote.setMouseTransparent(true);
+        zoomNote.setVisible(false);
+        zoomNote.setManaged(false);
+        zoomNote.layoutYProperty().bind(graph.heightProperty().subtract(zoomNote.heightProperty())); //Bottom left corner
+        graph.getChildren().add(zoomNote);
+        graph.sceneProperty().addListener((observable, oldValue, newValue) -> {
+            if(newValue != null)
+                newValue.addEventFilter(KeyEvent.KEY_PRESSED, (event) -> {
+                    if(event.getCode() == KeyCode.F3)
+                        overlay.toggle();
+                });
+        });
         //Custom class instance that holds and calculates the data
         calculator = new DiffractionCalculator(widthSlider.getValue(),distanceSlider.getValue(),wavelengthSlider.getValue()/1000000,1,separationSlider.getValue());
+        //Fraunhofer or Fresnel propagation, chosen from the Fresnel number unless forced by the user
+        propagationChoice.getItems().addAll(PropagationMode.values());
+        propagationChoice.setValue(PropagationMode.AUTO);
+        propagationChoice.valueProperty().addListener((observable, oldValue, newValue) -> {OnPropagationModeChanged();});
+        calculator.setMode(PropagationMode.AUTO);
+        //Laser light of the chosen wavelength, or a broadband source
+        sourceChoice.getItems().addAll("Laser", "White light", "Lamp", "LED", "File...");
+        sourceChoice.setValue("Laser");
+        sourceChoice.valueProperty().addListener((observable, oldValue, newValue) -> {OnSourceChanged();});
+        //Ideal point source, or the blur of a real source or camera
+        blurChoice.getItems().addAll("Ideal", "Small source", "Large source", "Camera");
+        blurChoice.setValue("Ideal");
+        blurChoice.valueProperty().addListener((observable, oldValue, newValue) -> {OnBlurChanged();});
+        //Computes patterns off the FX thread and shows only the newest one, coarse passes first
+        scheduler = new UpdateScheduler<>((parameters, progress) -> computeFrame(parameters, screen, cache, progress),
+                this::showPattern, pulse, updateThread);
+        //Computes the zoomed part of the graph at full resolution
+        detailScheduler = new UpdateScheduler<>("diffraction-detail", Controller::computeDetail, (result) -> {
+            detail = result;
+            if(result.frame == lastFrame && !Double.isNaN(viewMin))
+                showZoomNote(result.pyramid == null ? unrefinedZoom(result.frame) : null);
+            drawGraph();
+        });
+        //Clicking the overhead image switches between the live screen image and the experiment setup
+        img.setOnMouseClicked((event) -> {
+            if(event.getButton()== MouseButton.SECONDARY || event.isControlDown())
+                contextMenu.show(img,event.getScreenX(),event.getScreenY());
+            else if(event.getButton()== MouseButton.PRIMARY){
+                showSetup = !showSetup;
+                img.setImage(showSetup ? i : screenImage);
+            }
+        });
+        //Records the changes of the controls into a trace, for InteractionReplayer
+        String trace = System.getProperty("diffraction.record");
+        if(trace != null){
+            try {
+                InteractionRecorder.attach(this, Paths.get(trace));
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+            }
+        }
     }
+    /**
+     * Exports the graph, the intensity map or the screen image at a resolution chosen by
+     * the user, keeping the proportions of its pane. The pattern is computed again for
+     * the image and streamed to the file in bands by an ImageExporter on a background
+     * thread, see {@link #export(File, ExportJob)}, so exports far larger than the screen
+     * neither block the interface nor need the whole image in memory. The graph and map show the zoomed part of the
+     * screen, the screen image the whole screen.
+     *
+     * @param owner - the pane or image that was right clicked
+     */
+    private void OnExportHighResolution(Node owner){
+        if(lastFrame == null)
+            return;
+        TextInputDialog dialog = new TextInputDialog("8192");
+        dialog.setTitle("Export High Resolution");
+        dialog.setHeaderText(null);
+        dialog.setContentText("Width in pixels:");
+        Optional<String> answer = dialog.showAndWait();
+        if(!answer.isPresent())
+            return;
+        int width;
+        try {
+            width = Integer.parseInt(answer.get().trim());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if(width <= 0)
+            return;
+        Bounds bounds = owner.getLayoutBounds();
+        int height = (int) Math.max(1, Math.round(width*bounds.getHeight()/bounds.getWidth()));
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Export Image");
+        fileChooser.getExtensionFilters().addAll(new FileChooser.ExtensionFilter("PNG files (*.png)", "*.png"),
+                new FileChooser.ExtensionFilter("TIFF files (*.tif)", "*.tif", "*.tiff"),
+                new FileChooser.ExtensionFilter("BMP files (*.bmp)", "*.bmp"));
+        File file = fileChooser.showSaveDialog(graph.getScene().getWindow());
+        if(file == null)
+            return;
+        DiffractionParameters parameters = lastFrame.calculator.getParameters();
+        int channelShift = PatternRenderer.channelShift(c);
+        ImageExporter.View view;
+        double min, max;
+        if(owner == img){
+            view = ImageExporter.View.SCREEN;
+            min = -screen.getHalfWidth();
+            max = screen.getHalfWidth();
+        }
+        else {
+            view = (owner == graph) ? ImageExporter.View.GRAPH : ImageExporter.View.INTENSITY_MAP;
+            min = viewStart();
+            max = viewEnd();
+        }
+        double apertureHeight = screen.getApertureHeight();
+        export(file, () -> ImageExporter.export(file.toPath(), parameters, view, min, max, width, height, channelShift, apertureHeight));
+    }
+
     //Draws all graphs including diffraction pattern, intensity map, aperture, and visualization
 
+    /**
+     * Requests that all the graphs be redrawn for the current values of the
+     * calculator.
+     * <br>
+     * The immutable parameters are handed to a new DiffractionCalculator which is
+     * computed on the background thread of the update scheduler, so the sliders stay
+     * responsive. Rapid changes are coalesced and only the newest pattern is
+     * shown, see {@link #showPattern(Frame)}. A coarse preview of the pattern is
+     * shown as soon as it is known and refined in passes until it is complete;
+     * the passes are abandoned when the parameters change again.
+     */
+    public void drawGraphs(){
+        changed = PerfStats.start();
+        scheduler.submit(calculator.getParameters());
+    }
+
+    /**
+     * Computes everything shown for a set of parameters: the screen image, then the
+     * pattern in passes of increasing resolution. This is the work of the update
+     * scheduler.
+     *
+     * @param parameters - the parameters to compute
+     * @param screen - computes the screen image
+     * @param cache - cache of the calculator, or null
+     * @param progress - receives the coarse frames of the passes before the last
+     * @return the complete frame, or null if the thread was interrupted
+     */
+    static Frame computeFrame(DiffractionParameters parameters, ScreenImage screen, PatternCache cache, Consumer<Frame> progress){
+        int[] screenPixels = screen.render(parameters, PatternRenderer.channelShift(colorFor(parameters.getWavelength()*1000000)));
+        DiffractionCalculator result = new DiffractionCalculator(parameters);
+        result.setCache(cache);
+        if(!result.CalculateOutput(FIRST_PASS_SAMPLES, preview -> progress.accept(new Frame(preview, screenPixels, null, false))))
+            return null; //Abandoned for newer parameters, nothing is published
+        return new Frame(result, screenPixels);
+    }
+
     /**
      * Draws all the graphs in their respective panes, sets the overhead image
      * of the simulation, and sets the text of the difference between the peaks
      * of the wave.
+     * <br>
+     * The overhead image shows the live image of the screen unless the user
+     * clicked it to see the experiment setup instead.
+     * <br>
+     * The redraw is timed in PerfStats and emitted as a Flight Recorder event while a
+     * recording wants it. The text of the label is only built when the position of the
+     * first minimum changes, so the passes of one pattern do not build it again.
+     *
+     * @param frame - calculator whose output has already been calculated, and the screen image
      */
-    public void drawGraphs(){
-        //Clears old graphs before drawing graphs
-        graph.getChildren().clear();
-        intensityMap.getChildren().clear();
-        apertureGraph.getChildren().clear();
-        //Calculates outputs for graphs based on slider values
-        calculator.CalculateOutput();
-        //Array of mapped values - mappedValues[0] = x coordinates, mappedValues[1] = y coordinates, and mappedValues[2]=r,g,b values
-        double[][] mappedValues = calculator.MapValues(graph.widthProperty().get(),graph.heightProperty().get());
-
-        double lineWidth = intensityMap.widthProperty().get()/mappedValues[0].length;
-        double xPos = 0;
-
-        Line intensityLine;
-        Line graphLine;
-        //Generates both the intensity map and the graph at through the same for loop
-        for(int i=0;i<mappedValues[0].length-1;i++){
-            intensityLine= new Line(xPos,intensityMap.getHeight(),xPos+lineWidth,0);
-            graphLine = new Line(mappedValues[0][i],mappedValues[1][i],mappedValues[0][i+1],mappedValues[1][i+1]);
-            graphLine.setStrokeWidth(1);
-
-            if(c == Color.BLUE) {
-                intensityLine.setStroke(Color.rgb(0,0,((int) (mappedValues[2][i]))));
-                graphLine.setStroke(Color.BLUE);
-            } else if(c == Color.GREEN){
-                intensityLine.setStroke(Color.rgb(0,((int) (mappedValues[2][i])),0));
-                graphLine.setStroke(Color.GREEN);
-            }else {
-                intensityLine.setStroke(Color.rgb(((int) (mappedValues[2][i])), 0, 0));
-                graphLine.setStroke(Color.RED);
-            }
-            xPos+=lineWidth;
-            intensityMap.getChildren().add(intensityLine);
-
-            graph.getChildren().add(graphLine);
-        }
-        //Sets up the aperture representation
-        double _middle = (apertureGraph.widthProperty().get()/2.0); //Puts the line the in the middle of the screen
-        double _width = apertureGraph.widthProperty().get()/30.0; //Arbitrary proportion of the pane
-        double _distance = apertureGraph.widthProperty().get()/20.0;
-
-        if(calculator.getNumberSlits()==1){ //Generates aperture visualization
-            Line line = new Line(_middle,apertureGraph.heightProperty().get(),_middle,0);
-            line.setStroke(c);
-            line.setStrokeWidth(_width*calculator.getSlitWidth());
-            apertureGraph.getChildren().add(line);
-        }else{
-            double distanceFromMiddle = _distance*calculator.getDistanceBetweenSlits()/2;
-            Line line1 = new Line(_middle-distanceFromMiddle,apertureGraph.heightProperty().get(),_middle-distanceFromMiddle,0);
-            line1.setStroke(c);
-            line1.setStrokeWidth(_width*calculator.getSlitWidth());
-            Line line2 = new Line(_middle+distanceFromMiddle,apertureGraph.heightProperty().get(),_middle+distanceFromMiddle,0);
-            line2.setStroke(c);
-            line2.setStrokeWidth(_width*calculator.getSlitWidth());
-            apertureGraph.getChildren().addAll(line1,line2);
-        }
-        //Set the Diffraction overhead image based on wavelength and slit amount
-        if(c == Color.BLUE){
-            if(singleBtn.isSelected())
-                i = new Image("res/BlueSingle.jpg");
+    private void showPattern(Frame frame){
+        PerfStats.RedrawEvent event = PerfStats.beginRedraw();
+        long start = PerfStats.start(), allocated = PerfStats.allocatedBytes();
+        lastFrame = frame;
+        DiffractionCalculator result = frame.calculator;
+        screenImage.getPixelWriter().setPixels(0, 0, screen.getWidth(), screen.getHeight(),
+                PixelFormat.getIntArgbInstance(), frame.screenPixels, 0, screen.getWidth());
+        //Draws the graph, intensity map and aperture into the reused canvases and image
+        setView(viewMin, viewMax);
+        renderer.drawAperture(result, graphColor(result));
+        //Set the Diffraction overhead image based on wavelength and slit amount, decoded once at startup
+        long images = PerfStats.start();
+        i = assets.get(c, singleBtn.isSelected());
+        img.setImage(showSetup ? i : screenImage);
+        PerfStats.record(PerfStats.Stage.IMAGES, images);
+        //Sets the distance between peaks to a label; the far field formula does not hold in the near field
+        double minimum = result.getParameters().usesFresnel() ? Double.NaN : result.getFirstDiffractionDistance();
+        if(Double.compare(minimum, labelledMinimum) != 0){ //Only a new position builds a new text
+            labelledMinimum = minimum;
+            if(Double.isNaN(minimum))
+                diffractionDifferenceText.setText("Position of First Minimum: not defined in the near field");
             else
-                i = new Image("res/BlueDouble.jpg");
+                diffractionDifferenceText.setText("Position of First Minimum: "+ FORMATTER.format(minimum));
         }
-        else if(c == Color.RED) {
-            if(singleBtn.isSelected())
-                i = new Image("res/RedSingle.jpg");
-            else
-                i = new Image("res/RedDouble.jpg");
+        PerfStats.record(PerfStats.Stage.REDRAW, start, allocated);
+        PerfStats.frame();
+        if(frame.complete && changed != 0){
+            PerfStats.record(PerfStats.Stage.LATENCY, changed);
+            changed = 0;
         }
-        else{
-            if(singleBtn.isSelected())
-                i = new Image("res/GreenSingle.jpg");
+        if(event != null)
+            event.finish(result.getInputValues().length, frame.complete, result.getParameters());
+        if(frameListener != null)
+            frameListener.accept(frame);
+    }
+
+    /**
+     * Draws the graph and the intensity map of the shown pattern over the zoomed
+     * part of the screen, one column per pixel. The full resolution pattern of the
+     * zoomed part is used once it has been computed, otherwise the pattern of the
+     * whole screen; either way the cost does not depend on the number of samples.
+     */
+    private void drawGraph(){
+        if(lastFrame == null)
+            return;
+        double min = viewStart(), max = viewEnd();
+        MinMaxPyramid pyramid = lastFrame.pyramid;
+        if(detail != null && detail.frame == lastFrame && detail.pyramid != null
+                && detail.viewMin <= min && detail.viewMax >= max)
+            pyramid = detail.pyramid;
+        pyramid.decimate(min, max, graph.getWidth(), graph.getHeight(), mapped, MappedPattern.lookupTable(PatternRenderer.channelShift(c)));
+        long start = PerfStats.start();
+        renderer.drawPattern(mapped, graphColor(lastFrame.calculator));
+        PerfStats.record(PerfStats.Stage.DRAW, start);
+    }
+
+    /**
+     * Broadband light colors the intensity map itself, so its graph is drawn in black.
+     */
+    private Color graphColor(DiffractionCalculator result){
+        return (result.getColorValues() != null) ? Color.BLACK : c;
+    }
+
+    /**
+     * Zooms the graph to a part of the screen, or back to the whole screen, and
+     * requests the full resolution pattern of that part.
+     *
+     * @param min - x coordinate at the left edge in millimeters, NaN for the whole screen
+     * @param max - x coordinate at the right edge in millimeters, NaN for the whole screen
+     */
+    private void setView(double min, double max){
+        if(lastFrame == null)
+            return;
+        double first = lastFrame.pyramid.getFirstX(), last = lastFrame.pyramid.getLastX();
+        double width = max-min;
+        if(Double.isNaN(width) || width >= last-first){
+            viewMin = Double.NaN;
+            viewMax = Double.NaN;
+            showZoomNote(null);
+        }
+        else {
+            width = Math.max(width, (last-first)*1e-6); //Limits the zoom far below one sample per pixel
+            min = Math.max(first, Math.min(min, last-width)); //Keeps the view on the screen
+            viewMin = min;
+            viewMax = min+width;
+            //Computes twice the visible width so that panning stays sharp
+            detailScheduler.submit(new Detail(lastFrame, viewMin-width/2, viewMax+width/2, null));
+        }
+        drawGraph();
+    }
+
+    private double viewStart(){
+        return Double.isNaN(viewMin) ? lastFrame.pyramid.getFirstX() : viewMin;
+    }
+
+    private double viewEnd(){
+        return Double.isNaN(viewMax) ? lastFrame.pyramid.getLastX() : viewMax;
+    }
+
+    /**
+     * Shows a note over the bottom of the graph, or hides it.
+     *
+     * @param text - the note, or null to hide it
+     */
+    private void showZoomNote(String text){
+        zoomNote.setVisible(text != null);
+        if(text != null){
+            zoomNote.setText(text);
+            zoomNote.autosize();
+        }
+    }
+
+    /**
+     * Tells why the zoomed part of a frame is drawn from the samples of the whole screen.
+     */
+    private static String unrefinedZoom(Frame frame){
+        DiffractionParameters parameters = frame.calculator.getParameters();
+        if(frame.source != null)
+            return "Zoom not refined: the archive could not be read";
+        if(parameters.isPolychromatic())
+            return "Zoom not refined: broadband light is only computed over the whole screen";
+        if(parameters.getBlur() != null)
+            return "Zoom not refined: the blur is only computed over the whole screen";
+        return "Zoom not refined: the samples would be too close to compute";
+    }
+
+    /**
+     * Computes the pattern of a part of the screen with DETAIL_SAMPLES samples, on
+     * the background thread of the detail scheduler. Patterns read from an archive
+     * are read again from it over that part; other patterns are computed again unless
+     * they are broadband, since the spectrum is normalized over the whole screen, or
+     * blurred, since the blur needs the whole screen too. Near field patterns are
+     * computed with fewer samples when the part is too narrow for FresnelPropagator
+     * to resolve with DETAIL_SAMPLES, see {@link #nearField}.
+     *
+     * @param request - the frame and part of the screen
+     * @return the request with the pyramid of the part, or without one if the part
+     * cannot be computed
+     */
+    private static Detail computeDetail(Detail request){
+        Frame frame = request.frame;
+        double min = Math.max(request.viewMin, frame.pyramid.getFirstX());
+        double max = Math.min(request.viewMax, frame.pyramid.getLastX());
+        DiffractionParameters parameters = frame.calculator.getParameters();
+        try {
+            if(frame.source != null){
+                PatternArchive source = frame.source;
+                long first = archiveIndex(source, min), last = archiveIndex(source, max);
+                long stride = Math.max(1, (last-first+DETAIL_SAMPLES-1)/DETAIL_SAMPLES);
+                int count = (int) ((last-first)/stride + 1);
+                double[] x = new double[count];
+                double[] values = new double[count];
+                for(int k=0;k<count;k++){
+                    x[k] = source.getX(first + k*stride);
+                }
+                source.read(0, first, stride, values, 0, count);
+                return new Detail(frame, min, max, new MinMaxPyramid(x, values, null));
+            }
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+            return request;
+        }
+        if(parameters.isPolychromatic() || parameters.getBlur() != null)
+            return request;
+        for(int samples=DETAIL_SAMPLES;samples>=3;samples=samples/2+1){
+            double[] x = new double[samples];
+            double[] values = new double[samples];
+            for(int k=0;k<samples;k++){
+                x[k] = min + k*(max-min)/(samples-1);
+            }
+            if(!parameters.usesFresnel())
+                IntensityKernel.compute(parameters, x, values);
+            else if(!nearField(parameters, frame.calculator.getInputValues(), x, values))
+                continue; //Samples too close for the propagator, tries half as many
+            return new Detail(frame, min, max, new MinMaxPyramid(x, values, null));
+        }
+        return request;
+    }
+
+    /**
+     * Computes the near field pattern of a part of the screen on the scale of the shown
+     * pattern. FresnelPropagator scales a pattern to its brightest sample, so the samples
+     * of the whole screen are propagated along with the part, and the part is divided by
+     * the brightest of them as the shown pattern was.
+     *
+     * @param p - diffraction parameters of a near field pattern
+     * @param screen - x coordinates of the shown pattern
+     * @param x - x coordinates of the part
+     * @param values - receives the intensity of each x coordinate of the part
+     * @return false if the samples of the part are too close for the propagator
+     */
+    private static boolean nearField(DiffractionParameters p, double[] screen, double[] x, double[] values){
+        double[] all = Arrays.copyOf(x, x.length + screen.length);
+        System.arraycopy(screen, 0, all, x.length, screen.length);
+        double[] intensity = new double[all.length];
+        try {
+            FresnelPropagator.compute(p, all, intensity);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        double brightest = 0;
+        for(int i=x.length;i<all.length;i++){
+            brightest = Math.max(brightest, intensity[i]);
+        }
+        for(int i=0;i<x.length;i++){
+            values[i] = (brightest > 0) ? intensity[i]/brightest : 0;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the first sample of an archived pattern at or after a position.
+     */
+    private static long archiveIndex(PatternArchive source, double position){
+        long lo = 0, hi = source.getSamplesPerPattern()-1;
+        while(lo < hi){
+            long middle = (lo+hi) >>> 1;
+            if(source.getX(middle) < position)
+                lo = middle+1;
             else
-                i = new Image("res/GreenDouble.jpg");
+                hi = middle;
         }
-        img.setImage(i);
-        //Sets the distance between peaks to a label
-        NumberFormat formatter = new DecimalFormat("#.000000");
-        diffractionDifferenceText.setText("Position of First Minimum: "+ formatter.format(calculator.getFirstDiffractionDistance()));
+        return lo;
     }
 
     /**
      * Sets the color of the graphs based on the wavelength.
      */
     public void setColor() {
-        if(wavelengthSlider.getValue() >= 400 && wavelengthSlider.getValue() <= 500) {
-            c = Color.BLUE;
+        c = colorFor(wavelengthSlider.getValue());
+    }
+
+    /**
+     * Returns the color the graphs use for a wavelength.
+     *
+     * @param wavelength - wavelength in nanometers
+     * @return blue up to 500 nm, green up to 600 nm and red above
+     */
+    static Color colorFor(double wavelength) {
+        if(wavelength >= 400 && wavelength <= 500) {
+            return Color.BLUE;
         }
-        else if (wavelengthSlider.getValue() > 500 && wavelengthSlider.getValue() <= 600){
-            c = Color.GREEN;
+        else if (wavelength > 500 && wavelength <= 600){
+            return Color.GREEN;
         }
         else{
-            c = Color.RED;
+            return Color.RED;
         }
     }
     //Event Handlers
@@ -232,6 +657,7 @@ public class Controller implements Initializable{
             wavelengthTextArea.setText("400");
         }
         calculator.setWavelength(wavelengthSlider.getValue()/1000000.0); //These 3 calls set changes to graphs based on wavelength changes
+        updateSource();
         drawGraphs();
         setColor();
     }
@@ -240,6 +666,7 @@ public class Controller implements Initializable{
         String slideValTxt = Double.toString(slideVal);
         wavelengthTextArea.setText(slideValTxt); //Updates text field based on slider
         calculator.setWavelength(slideVal/1000000); //Change graphs based on wavelength change
+        updateSource();
         drawGraphs();
         setColor();
     }
@@ -248,6 +675,7 @@ public class Controller implements Initializable{
         separationSlider.setDisable(true);
         separationTextArea.setDisable(true);
         separationBtn.setDisable(true);
+        slitCountTextArea.setDisable(true);
         calculator.setNumberSlits(1);
         drawGraphs();
     }
@@ -256,9 +684,40 @@ public class Controller implements Initializable{
         separationSlider.setDisable(false);
         separationTextArea.setDisable(false);
         separationBtn.setDisable(false);
+        slitCountTextArea.setDisable(true);
         calculator.setNumberSlits(2);
         drawGraphs();
     }
+
+    public void onGratingBtn() {//Grating button selected, enables slit separation and slit count and changes graphs
+        separationSlider.setDisable(false);
+        separationTextArea.setDisable(false);
+        separationBtn.setDisable(false);
+        slitCountTextArea.setDisable(false);
+        onSlitCountEntered();
+    }
+
+    public void onSlitCountEntered() {//Enter pressed in the slit count field, error checking and update graphs
+        int slits = slitCountFor(slitCountTextArea.getText());
+        slitCountTextArea.setText(Integer.toString(slits));
+        calculator.setNumberSlits(slits);
+        drawGraphs();
+    }
+    /**
+     * @param text - text of the slit count field
+     * @return the number of slits of a grating it gives, 3 to 5000, 3 if it is not a number
+     */
+    static int slitCountFor(String text){
+        int slits;
+        try {
+            slits = Integer.parseInt(text.trim());
+        }
+        catch (NumberFormatException e) {
+            slits = 3;
+        }
+        return Math.max(3, Math.min(5000, slits));
+    }
+
     public void OnSeparationSliderChanged(){//When slider for slit separation changed
         double slideVal = separationSlider.getValue();
         String slideValTxt = Double.toString(slideVal);
@@ -345,33 +804,252 @@ public class Controller implements Initializable{
         drawGraphs();
     }
 
+    public void OnPropagationModeChanged(){//When Auto, Fraunhofer or Fresnel is chosen, update graphs
+        calculator.setMode(propagationChoice.getValue());
+        drawGraphs();
+    }
+
+    public void OnSourceChanged(){//When the light source is chosen, loads a spectrum file if needed and update graphs
+        if("File...".equals(sourceChoice.getValue())){
+            FileChooser fileChooser = new FileChooser();
+            fileChooser.setTitle("Open Spectrum");
+            fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("CSV files (*.csv, *.txt)", "*.csv", "*.txt"));
+            File file = fileChooser.showOpenDialog(graph.getScene().getWindow());
+            try {
+                fileSpectrum = (file != null) ? SourceSpectrum.fromCsv(file.toPath()) : null;
+            } catch (IOException ex) {
+                System.out.println(ex.getMessage());
+                fileSpectrum = null;
+            }
+            if(fileSpectrum == null){ //Cancelled or unreadable, goes back to the laser
+                sourceChoice.setValue("Laser");
+                return;
+            }
+        }
+        updateSource();
+        drawGraphs();
+    }
+
+    public void OnBlurChanged(){//When the blur is chosen, update graphs
+        calculator.setBlur(blurFor(blurChoice.getValue()));
+        drawGraphs();
+    }
+
+    /**
+     * @param blur - a choice of the blur choice box
+     * @return the blur of that choice, null for the ideal point source
+     */
+    static PatternBlur blurFor(String blur){
+        if("Small source".equals(blur))
+            return new PatternBlur(2e-4, 0, 0); //0.2 mrad, a pinhole in front of a lamp
+        else if("Large source".equals(blur))
+            return new PatternBlur(1e-3, 0, 0);
+        else if("Camera".equals(blur))
+            return new PatternBlur(0, 0.02, 0.002); //20 micrometer pixels and a 1 nm wide laser diode
+        else
+            return null;
+    }
+
+    /**
+     * Sets the spectrum of the calculator from the chosen light source. The LED is
+     * centered on the wavelength of the slider.
+     */
+    private void updateSource(){
+        calculator.setSpectrum(spectrumFor(sourceChoice.getValue(), wavelengthSlider.getValue(), fileSpectrum));
+    }
+
+    /**
+     * @param source - a choice of the source choice box
+     * @param wavelength - wavelength of the slider in nanometers, the center of the LED
+     * @param fileSpectrum - spectrum of the File... choice
+     * @return the spectrum of that source, null for the laser
+     */
+    static SourceSpectrum spectrumFor(String source, double wavelength, SourceSpectrum fileSpectrum){
+        if("White light".equals(source))
+            return SourceSpectrum.whiteLight();
+        else if("Lamp".equals(source))
+            return SourceSpectrum.blackBody(2800);
+        else if("LED".equals(source))
+            return SourceSpectrum.led(wavelength, 30);
+        else if("File...".equals(source))
+            return fileSpectrum;
+        else
+            return null;
+    }
+
     /**
-     * Exports the diffraction variable inputs to a text file
-     * at the user chosen location.
+     * Exports the diffraction variable inputs to a text file, or the pattern
+     * itself to a binary .dfp archive, at the user chosen location.
+     * <br>
+     * Unblurred closed form patterns are archived at EXPORT_SAMPLES samples, computed
+     * and written one chunk at a time; other patterns are archived as shown. The archive
+     * is written on a background thread, see {@link #export(File, ExportJob)}.
      */
-    public void OnExportButtonClicked(){//When export button clicked, prompts for file save location, saves as TXT file
+    public void OnExportButtonClicked(){//When export button clicked, prompts for file save location, saves as TXT or DFP file
         FileChooser fileChooser = new FileChooser();
-        fileChooser.setTitle("TextFile");
-        FileChooser.ExtensionFilter extFilter = new FileChooser.ExtensionFilter("Txt files (*.txt)", "*.text");
-        fileChooser.getExtensionFilters().add(extFilter);
+        fileChooser.setTitle("Export");
+        FileChooser.ExtensionFilter txtFilter = new FileChooser.ExtensionFilter("Txt files (*.txt)", "*.txt");
+        FileChooser.ExtensionFilter dfpFilter = new FileChooser.ExtensionFilter("Diffraction patterns (*.dfp)", "*.dfp");
+        fileChooser.getExtensionFilters().addAll(txtFilter, dfpFilter);
         File file = fileChooser.showSaveDialog(graph.getScene().getWindow());
-        if (file != null) {
-            BufferedWriter writer = null;
+        if (file == null)
+            return;
+        if (file.getName().endsWith(".dfp") || fileChooser.getSelectedExtensionFilter() == dfpFilter) {
+            DiffractionParameters parameters = calculator.getParameters();
+            if (parameters.isClosedForm() && !parameters.isPolychromatic() && parameters.getBlur() == null)
+                export(file, () -> PatternArchive.export(file.toPath(), parameters, EXPORT_SAMPLES,
+                        DiffractionCalculator.DEFAULT_SAMPLING.getHalfExtent()));
+            else if (lastFrame != null) {
+                DiffractionCalculator shown = lastFrame.calculator;
+                export(file, () -> {
+                    try (PatternArchive.Writer writer = PatternArchive.create(file.toPath(), PatternArchive.FLOAT32,
+                            shown.getInputValues(), PatternArchive.DEFAULT_CHUNK)) {
+                        writer.append(shown.getParameters(), shown.getOutputValues());
+                    }
+                });
+            }
+            return;
+        }
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new FileWriter(file));
+            writer.write("Wavelength: " + calculator.getWavelength() + "\n" +
+                            "Slit Width: " + calculator.getSlitWidth() + "\n"+
+                            "Distance to Screen: " + calculator.getDistanceFromScreen() + "\n"+
+                            "Number of Slits: " + calculator.getNumberSlits() + "\n" +
+                            "Slit Separation: " + calculator.getDistanceBetweenSlits());
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
             try {
-                writer = new BufferedWriter(new FileWriter(file));
-                writer.write("Wavelength: " + calculator.getWavelength() + "\n" +
-                                "Slit Width: " + calculator.getSlitWidth() + "\n"+
-                                "Distance to Screen: " + calculator.getDistanceFromScreen() + "\n"+
-                                "Number of Slits: " + calculator.getNumberSlits() + "\n" +
-                                "Slit Separation: " + calculator.getDistanceBetweenSlits());
+                writer.close();
             } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                try {
-                    writer.close();
-                } catch (Exception e) {
-                }
             }
         }
     }
+
+    /**
+     * Work of an export, which writes a file.
+     */
+    private interface ExportJob {
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs an export on a thread of its own, so the interface stays responsive while a
+     * large file is written, and tells the user when the file is complete or why it could
+     * not be written. The thread is not a daemon, so closing the window does not cut the
+     * file short.
+     *
+     * @param file - the file the job writes, named in the message
+     * @param job - writes the file
+     */
+    private void export(File file, ExportJob job){
+        Thread exporter = new Thread(() -> {
+            String failure = null;
+            try {
+                job.run();
+            } catch (IOException | RuntimeException ex) {
+                System.out.println(ex.getMessage());
+                failure = String.valueOf(ex.getMessage());
+            }
+            String message = (failure == null) ? "Exported " + file.getName() : "Could not export " + file.getName() + ": " + failure;
+            Alert.AlertType type = (failure == null) ? Alert.AlertType.INFORMATION : Alert.AlertType.ERROR;
+            try {
+                Platform.runLater(() -> {
+                    Alert alert = new Alert(type, message);
+                    alert.setHeaderText(null);
+                    alert.show();
+                });
+            } catch (IllegalStateException ex) { //The window was closed, there is nobody to tell
+            }
+        }, "export");
+        exporter.start();
+    }
+
+    /**
+     * Opens a .dfp archive and shows its first pattern. The archive stays mapped
+     * rather than loaded, and long patterns are shown with at most OPEN_SAMPLES of
+     * their samples, so even very large archives open immediately.
+     */
+    public void OnOpenButtonClicked(){//When open button clicked, prompts for an archive and shows its first pattern
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Open Pattern");
+        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Diffraction patterns (*.dfp)", "*.dfp"));
+        File file = fileChooser.showOpenDialog(graph.getScene().getWindow());
+        if (file == null)
+            return;
+        try {
+            PatternArchive opened = PatternArchive.open(file.toPath());
+            if (opened.getPatternCount() == 0) {
+                opened.close();
+                return;
+            }
+            if (archive != null)
+                archive.close();
+            archive = opened;
+            long samples = archive.getSamplesPerPattern();
+            long stride = Math.max(1, (samples-1+OPEN_SAMPLES-2)/(OPEN_SAMPLES-1));
+            int count = (int) ((samples-1)/stride + 1);
+            double[] x = new double[count];
+            double[] values = new double[count];
+            for (int k = 0; k < count; k++) {
+                x[k] = archive.getX(k*stride);
+            }
+            archive.read(0, 0, stride, values, 0, count);
+            DiffractionParameters parameters = archive.getParameters(0);
+            DiffractionCalculator archived = new DiffractionCalculator(parameters);
+            archived.LoadValues(x, values);
+            PatternArchive source = archive;
+            //The screen image is only ever rendered on the thread of the scheduler
+            scheduler.submitJob(progress -> new Frame(archived,
+                    screen.render(parameters, PatternRenderer.channelShift(colorFor(parameters.getWavelength()*1000000))), source));
+        } catch (IOException ex) {
+            System.out.println(ex.getMessage());
+        }
+    }
+
+    /**
+     * Result of one background update: the calculated pattern, its min/max pyramid
+     * for drawing it at any zoom, and the pixels of the screen image.
+     */
+    static final class Frame {
+        final DiffractionCalculator calculator;
+        final int[] screenPixels;
+        final MinMaxPyramid pyramid;
+        final PatternArchive source; //Archive the pattern was read from, if any
+        final boolean complete; //False for the coarse previews of a pattern
+
+        Frame(DiffractionCalculator calculator, int[] screenPixels) {
+            this(calculator, screenPixels, null, true);
+        }
+
+        Frame(DiffractionCalculator calculator, int[] screenPixels, PatternArchive source) {
+            this(calculator, screenPixels, source, true);
+        }
+
+        Frame(DiffractionCalculator calculator, int[] screenPixels, PatternArchive source, boolean complete) {
+            this.calculator = calculator;
+            this.screenPixels = screenPixels;
+            this.source = source;
+            this.complete = complete;
+            pyramid = new MinMaxPyramid(calculator.getInputValues(), calculator.getOutputValues(), calculator.getColorValues());
+        }
+    }
+
+    /**
+     * A part of the screen of a frame and, once computed, its full resolution pattern.
+     */
+    static final class Detail {
+        final Frame frame;
+        final double viewMin, viewMax;
+        final MinMaxPyramid pyramid;
+
+        Detail(Frame frame, double viewMin, double viewMax, MinMaxPyramid pyramid) {
+            this.frame = frame;
+            this.viewMin = viewMin;
+            this.viewMax = viewMax;
+            this.pyramid = pyramid;
+        }
+    }
 }
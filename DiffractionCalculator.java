@@ -1,3 +1,5 @@
+import java.util.function.Consumer;
+
 /**
  * Diffraction Calculator Class
  * <br>
@@ -7,33 +9,36 @@
  * This class stores all the data variable required for a light diffraction
  * experiment including wavelength, the width of the slits, distance from the slit to the screen it
  * is being projected on, whether there are one or two slits, and what the separation between two
- * slits would be. It allows for accessing and mutating all of these fields.
+ * slits would be. It allows for accessing and mutating all of these fields. The values are kept in
+ * an immutable DiffractionParameters, and mutating a field replaces it with an updated copy.
  * <br>
  * The class also calculates the relative intensity pattern based on the values of these
- * diffraction input fields based on the formulas of Fraunhofer Diffraction. It also maps the
+ * diffraction input fields using the stateless IntensityKernel. It also maps the
  * intensity values to the desired height to make a 2 dimensional graph and maps r,g,b values
  * which help dictate bright and dark spots in an intensity color map.
  */
 
 public class DiffractionCalculator {
 
-    private double slitWidth;
-    private double distanceFromScreen;
-    private double wavelength;
-    private double numberSlits;
-    private double distanceBetweenSlits;
+    /** Sampling used unless another strategy is given: 1501 evenly spaced values over 3.002 mm of screen */
+    public static final SamplingStrategy DEFAULT_SAMPLING = SamplingStrategy.uniform(1501, 1.501);
+
+    private DiffractionParameters parameters;
 
+    private SamplingStrategy sampling;
     private double[] inputValues;
     private double[] outputValues;
-    private final int inputLength = 1501;
+    private int[] colorValues;
+    private PatternCache cache;
+    private int inputLength;
 
     /**
      * The Constructor for this custom class which initializes the slitWidth,
      * distance to the screen, wavelength, the amount of slits and the separation
      * between slits if there are more than one
      * <br>
-     * This function also initializes an array which holds 1501 x-coordinate values
-     * ranging from -1.501 to 1.501 and increment by .001
+     * This function also initializes an array which holds 1501 evenly spaced
+     * x-coordinate values ranging from -1.501 to 1.501, see {@link #DEFAULT_SAMPLING}
      * @param _sWidth - width of the slit or slits
      * @param _distanceToScreen - distance from the slit to the screen
      * @param _wl - wavelength of the light
@@ -42,49 +47,220 @@ public class DiffractionCalculator {
      */
 
     public DiffractionCalculator(double _sWidth, double _distanceToScreen, double _wl, double _slitNum, double _slitsDistance){
-        slitWidth = _sWidth;
-        distanceFromScreen = _distanceToScreen;
-        wavelength = _wl;
-        numberSlits = _slitNum;
-        distanceBetweenSlits = _slitsDistance;
-        inputValues = new double[inputLength];
-        outputValues = new double[inputLength];
-
-        for(int i=0;i<inputLength/2;i++){
-            inputValues[i] = (((-inputLength+(2*(double)i))/1000));
-            inputValues[inputValues.length-i-1]=(((inputLength+(2*(double)-i)))/1000);
-        }
-        inputValues[inputValues.length/2] = 0;
+        this(new DiffractionParameters(_sWidth, _distanceToScreen, _wl, _slitNum, _slitsDistance));
+    }
+
+    /**
+     * Creates a calculator for an existing set of parameters, with the same
+     * x-coordinate values as the constructor above.
+     * @param _parameters - the diffraction parameters to start from
+     */
+    public DiffractionCalculator(DiffractionParameters _parameters){
+        this(_parameters, DEFAULT_SAMPLING);
+    }
+
+    /**
+     * Creates a calculator for an existing set of parameters whose x-coordinate
+     * values are chosen by the given sampling strategy.
+     * @param _parameters - the diffraction parameters to start from
+     * @param _sampling - decides where the screen is sampled
+     */
+    public DiffractionCalculator(DiffractionParameters _parameters, SamplingStrategy _sampling){
+        parameters = _parameters;
+        setSamplingStrategy(_sampling);
     }
 
     /**
      * Takes the private field outputValues and initializes its values to the result
      * of the calculation preformed in the follow function with the the corresponding
      * input as the variable of the function.
+     * <br>
+     * Strategies that depend on the parameters, such as the adaptive one, choose
+     * their x-coordinate values again before the output is calculated.
+     * <br>
+     * For broadband light the output is the relative luminance summed over the
+     * spectrum, and the color of every value is calculated as well, see
+     * {@link #getColorValues()}.
+     * <br>
+     * When a PatternCache is set, patterns found in it are copied instead of
+     * being calculated, and calculated patterns are added to it.
+     * <br>
+     * The PatternBlur of the parameters, if any, is applied last.
+     * <br>
+     * The time taken is recorded in PerfStats as the CALCULATE stage.
      */
     public void CalculateOutput(){
-        for(int i=0;i<inputValues.length;i++){
-            outputValues[i]=CalculateIntensity(inputValues[i]);
+        long start = PerfStats.start(), allocated = PerfStats.allocatedBytes();
+        calculate();
+        PerfStats.record(PerfStats.Stage.CALCULATE, start, allocated);
+    }
+
+    private void calculate(){
+        if(!sampling.isUniform())
+            resample();
+        calculateSampled();
+    }
+
+    /**
+     * Calculates the output for the x-coordinate values already chosen.
+     */
+    private void calculateSampled(){
+        if(parameters.isPolychromatic()){
+            if(colorValues == null || colorValues.length != inputLength)
+                colorValues = new int[inputLength];
+        }
+        else
+            colorValues = null;
+        if(cache == null || !cache.get(parameters, inputValues, outputValues, colorValues)){
+            if(colorValues != null)
+                SpectralAccumulator.compute(parameters, inputValues, outputValues, colorValues);
+            else
+                IntensityKernel.compute(parameters, inputValues, outputValues);
+            if(cache != null)
+                cache.put(parameters, inputValues, outputValues, colorValues);
         }
+        applyBlur();
+    }
 
+    /**
+     * Applies the blur of the parameters, if any, to the output. The cache holds the
+     * patterns before the blur, so changing only the blur finds them again.
+     */
+    private void applyBlur(){
+        if(parameters.getBlur() != null)
+            parameters.getBlur().apply(parameters, inputValues, outputValues, colorValues);
     }
 
     /**
-     * Takes an x-value as input for this mathematical trigonometric function and computes
-     * the corresponding intensity using the data fields necessary for the diffraction
-     * experiment.
-     * @param xVal - x coordinate which is the variable in the function.
-     * @return the computed intensity value for the given input x-value
+     * Calculates the output like {@link #CalculateOutput()}, but in passes of increasing
+     * resolution so that a coarse pattern can be shown right away.
+     * <br>
+     * The first pass evaluates about firstPassSamples evenly spread values, every
+     * stride-th one and the last one. Each following pass halves the stride by
+     * evaluating the values halfway between those already known, so the last pass
+     * completes the full pattern with every value evaluated exactly once. After every
+     * pass but the last, a new calculator holding only the values known so far is
+     * handed to onPass; it can be drawn like any other calculator and is not modified
+     * afterwards.
+     * <br>
+     * The passes stop as soon as the calling thread is interrupted, leaving the output
+     * incomplete. Patterns found in the cache are calculated in a single pass. Patterns
+     * which are not closed form, broadband patterns and patterns of a non uniform sampling
+     * are only computed as a whole, so they get two passes: the whole pattern on about
+     * firstPassSamples evenly spread values of the same screen, then the whole pattern on
+     * the values of the sampling strategy.
+     * <br>
+     * The time taken by all passes of a complete output is recorded in PerfStats as the
+     * CALCULATE stage.
+     *
+     * @param firstPassSamples - approximate number of values of the first pass
+     * @param onPass - receives the coarse pattern of every pass before the last
+     * @return true if the output is complete, false if the thread was interrupted
      */
-    private double CalculateIntensity(double xVal){
-        double betaVal = (Math.PI*xVal*slitWidth)/(wavelength*distanceFromScreen);
-        double val = (Math.sin(betaVal))/betaVal; //Can't divide by 0: handled in next line
-        val = (Double.isNaN(val))?1:val*val;
-        if(this.numberSlits==2){
-            double twoSlitVal = Math.cos((Math.PI*distanceBetweenSlits*xVal)/(wavelength*distanceFromScreen));
-            val*= twoSlitVal *twoSlitVal;
+    public boolean CalculateOutput(int firstPassSamples, Consumer<DiffractionCalculator> onPass){
+        long start = PerfStats.start(), allocated = PerfStats.allocatedBytes();
+        if(!sampling.isUniform() || !parameters.isClosedForm() || parameters.isPolychromatic()){
+            if(!sampling.isUniform())
+                resample();
+            if(cache == null || !cache.contains(parameters, inputValues, parameters.isPolychromatic())){
+                //The cost of a transform or a spectrum falls with the number of values, so the coarse pattern comes quickly
+                DiffractionCalculator preview = new DiffractionCalculator(parameters,
+                        SamplingStrategy.uniform(Math.max(2, firstPassSamples), sampling.getHalfExtent()));
+                preview.calculate();
+                onPass.accept(preview);
+                if(Thread.currentThread().isInterrupted())
+                    return false;
+            }
+            calculateSampled();
+            PerfStats.record(PerfStats.Stage.CALCULATE, start, allocated);
+            return true;
+        }
+        colorValues = null;
+        if(cache != null && cache.get(parameters, inputValues, outputValues, null)){
+            applyBlur();
+            PerfStats.record(PerfStats.Stage.CALCULATE, start, allocated);
+            return true;
         }
-        return  val;
+        int stride = 1;
+        while(2*stride*Math.max(1, firstPassSamples-1) <= inputLength-1)
+            stride *= 2;
+        int[] indices = new int[Math.max(inputLength/stride + 2, inputLength/2 + 1)];
+        double[] x = new double[indices.length];
+        double[] values = new double[indices.length];
+        for(int s=stride;s >= 1;s/=2){
+            if(Thread.currentThread().isInterrupted())
+                return false;
+            //The first pass takes every s-th value, the others only the new ones in between
+            int count = 0;
+            for(int k=(s == stride) ? 0 : s;k < inputLength;k+=(s == stride) ? s : 2*s){
+                indices[count++] = k;
+            }
+            if(s == stride && (inputLength-1) % s != 0)
+                indices[count++] = inputLength-1;
+            for(int k=0;k<count;k++){
+                x[k] = inputValues[indices[k]];
+            }
+            IntensityKernel.compute(parameters, x, values, 0, count);
+            for(int k=0;k<count;k++){
+                outputValues[indices[k]] = values[k];
+            }
+            if(s > 1)
+                onPass.accept(preview(s));
+        }
+        if(cache != null)
+            cache.put(parameters, inputValues, outputValues, null);
+        applyBlur();
+        PerfStats.record(PerfStats.Stage.CALCULATE, start, allocated);
+        return true;
+    }
+
+    /**
+     * Copies every stride-th value and the last one into a new calculator.
+     */
+    private DiffractionCalculator preview(int stride){
+        int count = (inputLength-1)/stride + 1;
+        boolean last = (inputLength-1) % stride != 0;
+        double[] x = new double[count + (last ? 1 : 0)];
+        double[] values = new double[x.length];
+        for(int k=0;k<count;k++){
+            x[k] = inputValues[k*stride];
+            values[k] = outputValues[k*stride];
+        }
+        if(last){
+            x[count] = inputValues[inputLength-1];
+            values[count] = outputValues[inputLength-1];
+        }
+        DiffractionCalculator preview = new DiffractionCalculator(parameters, sampling);
+        preview.LoadValues(x, values);
+        preview.applyBlur();
+        return preview;
+    }
+
+    /**
+     * Replaces the calculated output with values computed elsewhere, such as a pattern
+     * read from a PatternArchive. The screen is taken to span the largest x coordinate
+     * on either side of the center.
+     *
+     * @param x - x-coordinate values in millimeters, in increasing order
+     * @param intensities - intensity value for each x-coordinate value
+     */
+    public void LoadValues(double[] x, double[] intensities){
+        double halfExtent = Math.max(Math.abs(x[0]), Math.abs(x[x.length-1]));
+        sampling = SamplingStrategy.uniform(Math.max(2, x.length), halfExtent);
+        inputValues = x;
+        outputValues = intensities;
+        inputLength = x.length;
+        colorValues = null;
+    }
+
+    /**
+     * Rebuilds the input and output arrays from the sampling strategy.
+     */
+    private void resample(){
+        inputValues = sampling.sample(parameters);
+        inputLength = inputValues.length;
+        if(outputValues == null || outputValues.length != inputLength)
+            outputValues = new double[inputLength];
     }
 
     /**
@@ -115,7 +291,7 @@ public class DiffractionCalculator {
 
     public double[][] MapValues(double width,double height){
         double[][] mappedValues = new double[3][inputLength];
-        double xMax = inputLength/1000.0;
+        double xMax = sampling.getHalfExtent();
         double xMin = -xMax;
 
         for(int i=0;i<inputLength;i++){
@@ -126,6 +302,42 @@ public class DiffractionCalculator {
         return  mappedValues;
     }
 
+    /**
+     * Maps the output values like {@link #MapValues(double, double)} but into
+     * reusable buffers, so that redrawing allocates nothing.
+     * <br>
+     * The x and y coordinates are stored as floats. Instead of an r,g,b level each
+     * point gets a packed ARGB color: the level 0-255 is looked up in the given
+     * table, or for broadband light the color of the value is used as it is.
+     * The time taken is recorded in PerfStats as the MAP stage.
+     *
+     * @param width - maximum width of the area the graph will be displayed in
+     * @param height - maximum height of the area the graph will be displayed in
+     * @param out - buffers receiving the mapped coordinates and colors
+     * @param colorTable - 256 ARGB colors indexed by the intensity level, see MappedPattern.lookupTable
+     */
+    public void MapValues(double width, double height, MappedPattern out, int[] colorTable){
+        long start = PerfStats.start();
+        out.resize(inputLength);
+        float[] xs = out.getX();
+        float[] ys = out.getY();
+        int[] colors = out.getColors();
+        double xMax = sampling.getHalfExtent();
+        double xMin = -xMax;
+
+        for(int i=0;i<inputLength;i++){
+            xs[i] = (float) (((inputValues[i]-xMin)* width)/(xMax-xMin));
+            ys[i] = (float) (height-(outputValues[i] * height));
+            if(colorValues != null)
+                colors[i] = colorValues[i];
+            else {
+                int level = (int) (outputValues[i] * 255);
+                colors[i] = colorTable[Math.max(0, Math.min(255, level))];
+            }
+        }
+        PerfStats.record(PerfStats.Stage.MAP, start);
+    }
+
     /**
      * Calculates the distance between the first and second peaks in the diffraction
      * using formulas contingent on the number of slits
@@ -134,19 +346,35 @@ public class DiffractionCalculator {
      */
 
     public double getFirstDiffractionDistance(){
-        if (numberSlits == 1) {
-            return (distanceFromScreen * wavelength) / slitWidth;
-        } else {
-            return (0.5 * distanceFromScreen * wavelength) / distanceBetweenSlits;
-        }
+        return parameters.getFirstDiffractionDistance();
     }
+
+    /**
+     * Returns the current parameters as an immutable value which can safely be
+     * handed to other threads
+     *
+     * @return the diffraction parameters
+     */
+    public DiffractionParameters getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Replaces all the diffraction parameters at once
+     *
+     * @param parameters - the new parameters
+     */
+    public void setParameters(DiffractionParameters parameters) {
+        this.parameters = parameters;
+    }
+
     /**
      * Returns the calculators slit width
      *
      * @return slit width
      */
     public double getSlitWidth() {
-        return slitWidth;
+        return parameters.getSlitWidth();
     }
 
     /**
@@ -155,7 +383,7 @@ public class DiffractionCalculator {
      * @param slitWidth - value for the width to be set too
      */
     public void setSlitWidth(double slitWidth) {
-        this.slitWidth = slitWidth;
+        parameters = parameters.withSlitWidth(slitWidth);
     }
 
     /**
@@ -164,7 +392,7 @@ public class DiffractionCalculator {
      * @return double value in millimeters of slit to screen
      */
     public double getDistanceFromScreen() {
-        return distanceFromScreen;
+        return parameters.getDistanceFromScreen();
     }
 
     /**
@@ -173,7 +401,7 @@ public class DiffractionCalculator {
      * @param distanceFromScreen - distance value in mm
      */
     public void setDistanceFromScreen(double distanceFromScreen) {
-        this.distanceFromScreen = distanceFromScreen;
+        parameters = parameters.withDistanceFromScreen(distanceFromScreen);
     }
 
     /**
@@ -181,7 +409,7 @@ public class DiffractionCalculator {
      * @return - wavelength value
      */
     public double getWavelength() {
-        return wavelength;
+        return parameters.getWavelength();
     }
 
     /**
@@ -189,7 +417,7 @@ public class DiffractionCalculator {
      * @param wavelength - wavelength value
      */
     public void setWavelength(double wavelength) {
-        this.wavelength = wavelength;
+        parameters = parameters.withWavelength(wavelength);
     }
 
     /**
@@ -197,16 +425,16 @@ public class DiffractionCalculator {
      * @return - slit number value
      */
     public double getNumberSlits() {
-        return numberSlits;
+        return parameters.getNumberSlits();
     }
 
     /**
      * Sets the amount of slits
      *
-     * @param numberSlits - either a 1 or 2 for the number of slits being used
+     * @param numberSlits - the number of slits being used, 1, 2 or more for a grating
      */
     public void setNumberSlits(double numberSlits) {
-        this.numberSlits = numberSlits;
+        parameters = parameters.withNumberSlits(numberSlits);
     }
 
     /**
@@ -214,7 +442,7 @@ public class DiffractionCalculator {
      * @return separation vale
      */
     public double getDistanceBetweenSlits() {
-        return distanceBetweenSlits;
+        return parameters.getDistanceBetweenSlits();
     }
 
     /**
@@ -223,7 +451,43 @@ public class DiffractionCalculator {
      * @param distanceBetweenSlits - separation value
      */
     public void setDistanceBetweenSlits(double distanceBetweenSlits) {
-        this.distanceBetweenSlits = distanceBetweenSlits;
+        parameters = parameters.withDistanceBetweenSlits(distanceBetweenSlits);
+    }
+
+    /**
+     * Returns the aperture mask used instead of the slit values, if any
+     * @return aperture mask or null
+     */
+    public ApertureMask getAperture() {
+        return parameters.getAperture();
+    }
+
+    /**
+     * Sets an aperture mask, such as slits of unequal widths, whose pattern is
+     * computed with the FFT based FraunhoferEngine
+     *
+     * @param aperture - aperture mask, or null to use the slit values again
+     */
+    public void setAperture(ApertureMask aperture) {
+        parameters = parameters.withAperture(aperture);
+    }
+
+    /**
+     * Returns the propagation mode, AUTO meaning it is chosen from the Fresnel number
+     * @return propagation mode
+     */
+    public PropagationMode getMode() {
+        return parameters.getMode();
+    }
+
+    /**
+     * Sets whether the pattern is computed with the Fraunhofer formulas, with Fresnel
+     * propagation, or with whichever suits the Fresnel number of the setup
+     *
+     * @param mode - the propagation mode
+     */
+    public void setMode(PropagationMode mode) {
+        parameters = parameters.withMode(mode);
     }
 
     /**
@@ -235,6 +499,98 @@ public class DiffractionCalculator {
         return outputValues;
     }
 
+    /**
+     * Returns the sRGB color of each output value when the light has a spectrum
+     *
+     * @return array of opaque ARGB colors, or null for monochromatic light
+     */
+    public int[] getColorValues() {
+        return colorValues;
+    }
+
+    /**
+     * Returns the source spectrum of the light, if any
+     * @return source spectrum or null for monochromatic light
+     */
+    public SourceSpectrum getSpectrum() {
+        return parameters.getSpectrum();
+    }
+
+    /**
+     * Sets the spectrum of a broadband source such as white light or an LED, whose
+     * pattern is summed over all of its wavelengths
+     *
+     * @param spectrum - source spectrum, or null for monochromatic light of the wavelength
+     */
+    public void setSpectrum(SourceSpectrum spectrum) {
+        parameters = parameters.withSpectrum(spectrum);
+    }
+
+    /**
+     * Returns the blur applied to the output
+     *
+     * @return the blur, or null for an ideal experiment
+     */
+    public PatternBlur getBlur() {
+        return parameters.getBlur();
+    }
+
+    /**
+     * Sets the blur for the finite source size, pixel width and bandwidth of a real
+     * experiment
+     *
+     * @param blur - the new blur, or null for an ideal experiment
+     */
+    public void setBlur(PatternBlur blur) {
+        parameters = parameters.withBlur(blur);
+    }
+
+    /**
+     * Returns the cache the output values are looked up in, if any
+     * @return pattern cache or null
+     */
+    public PatternCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets a cache of patterns, which may be shared between calculators
+     *
+     * @param cache - pattern cache, or null to always calculate
+     */
+    public void setCache(PatternCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the x-coordinate values the output values were calculated for
+     *
+     * @return array of x-coordinate values in millimeters
+     */
+    public double[] getInputValues() {
+        return inputValues;
+    }
+
+    /**
+     * Returns the strategy deciding where the screen is sampled
+     *
+     * @return the sampling strategy
+     */
+    public SamplingStrategy getSamplingStrategy() {
+        return sampling;
+    }
+
+    /**
+     * Sets the strategy deciding where the screen is sampled. The output values
+     * must be calculated again afterwards.
+     *
+     * @param sampling - the new sampling strategy
+     */
+    public void setSamplingStrategy(SamplingStrategy sampling) {
+        this.sampling = sampling;
+        resample();
+    }
+
     /**
      * Returns the length of the input/output arrays
      *
@@ -0,0 +1,303 @@
+import java.util.Objects;
+
+/**
+ * Diffraction Parameters Class
+ * <br>
+ * Immutable set of the values that describe a light diffraction experiment: the width of
+ * the slits, the distance from the slits to the screen, the wavelength of the light, the
+ * number of slits and the separation between the slits. All lengths are in millimeters.
+ * <br>
+ * An ApertureMask may be given to describe apertures the five values cannot, such as slits
+ * of unequal widths or an arbitrary transmission profile. When present it replaces the slit
+ * width, number of slits and separation in the calculation of the pattern.
+ * <br>
+ * The propagation mode decides between the far field (Fraunhofer) formulas and near field
+ * (Fresnel) propagation; it is FRAUNHOFER unless set otherwise.
+ * <br>
+ * A SourceSpectrum may be given for broadband light such as white light or an LED. The
+ * pattern is then the sum of the patterns of all its wavelengths, see SpectralAccumulator,
+ * and the wavelength value is only used where a single wavelength is needed.
+ * <br>
+ * A PatternBlur may be given for the finite source size, detector pixel width and spectral
+ * bandwidth of a real experiment; it is applied to the computed pattern.
+ * <br>
+ * Since an instance can never change, it can be shared between threads and used as the
+ * input of any number of concurrent calculations without locking or copying. Changing a
+ * value is done with the with... methods, which return a new instance.
+ */
+public final class DiffractionParameters {
+
+    private final double slitWidth;
+    private final double distanceFromScreen;
+    private final double wavelength;
+    private final double numberSlits;
+    private final double distanceBetweenSlits;
+    private final ApertureMask aperture;
+    private final PropagationMode mode;
+    private final SourceSpectrum spectrum;
+    private final PatternBlur blur;
+
+    /** Fresnel number from which AUTO mode switches to Fresnel propagation */
+    public static final double FRESNEL_THRESHOLD = 1;
+
+    /**
+     * Creates a new set of diffraction parameters.
+     *
+     * @param _sWidth - width of the slit or slits
+     * @param _distanceToScreen - distance from the slit to the screen
+     * @param _wl - wavelength of the light
+     * @param _slitNum - defines whether there are one or two slits in the diffraction
+     * @param _slitsDistance - defines the distance between the slits if two slits exist
+     */
+    public DiffractionParameters(double _sWidth, double _distanceToScreen, double _wl, double _slitNum, double _slitsDistance){
+        this(_sWidth, _distanceToScreen, _wl, _slitNum, _slitsDistance, null, PropagationMode.FRAUNHOFER, null, null);
+    }
+
+    private DiffractionParameters(double _sWidth, double _distanceToScreen, double _wl, double _slitNum, double _slitsDistance,
+                                  ApertureMask _aperture, PropagationMode _mode, SourceSpectrum _spectrum, PatternBlur _blur){
+        aperture = _aperture;
+        blur = _blur;
+        mode = _mode;
+        spectrum = _spectrum;
+        slitWidth = _sWidth;
+        distanceFromScreen = _distanceToScreen;
+        wavelength = _wl;
+        numberSlits = _slitNum;
+        distanceBetweenSlits = _slitsDistance;
+    }
+
+    /**
+     * Calculates the distance between the first and second peaks in the diffraction
+     * using formulas contingent on the number of slits. For N slits the first minimum
+     * lies at distance*wavelength/(N*separation).
+     *
+     * @return - the value of the 1st to 2nd order peak difference
+     */
+    public double getFirstDiffractionDistance(){
+        if (numberSlits == 1) {
+            return (distanceFromScreen * wavelength) / slitWidth;
+        } else {
+            return (distanceFromScreen * wavelength) / (numberSlits * distanceBetweenSlits);
+        }
+    }
+
+    /**
+     * @return slit width
+     */
+    public double getSlitWidth() {
+        return slitWidth;
+    }
+
+    /**
+     * @return distance from the slit to the screen
+     */
+    public double getDistanceFromScreen() {
+        return distanceFromScreen;
+    }
+
+    /**
+     * @return wavelength of the light
+     */
+    public double getWavelength() {
+        return wavelength;
+    }
+
+    /**
+     * @return number of slits
+     */
+    public double getNumberSlits() {
+        return numberSlits;
+    }
+
+    /**
+     * @return separation between the slits
+     */
+    public double getDistanceBetweenSlits() {
+        return distanceBetweenSlits;
+    }
+
+    /**
+     * @param slitWidth - new slit width
+     * @return a copy of these parameters with the given slit width
+     */
+    public DiffractionParameters withSlitWidth(double slitWidth) {
+        return new DiffractionParameters(slitWidth, distanceFromScreen, wavelength, numberSlits, distanceBetweenSlits, aperture, mode, spectrum, blur);
+    }
+
+    /**
+     * @param distanceFromScreen - new distance from the slit to the screen
+     * @return a copy of these parameters with the given distance to the screen
+     */
+    public DiffractionParameters withDistanceFromScreen(double distanceFromScreen) {
+        return new DiffractionParameters(slitWidth, distanceFromScreen, wavelength, numberSlits, distanceBetweenSlits, aperture, mode, spectrum, blur);
+    }
+
+    /**
+     * @param wavelength - new wavelength
+     * @return a copy of these parameters with the given wavelength
+     */
+    public DiffractionParameters withWavelength(double wavelength) {
+        return new DiffractionParameters(slitWidth, distanceFromScreen, wavelength, numberSlits, distanceBetweenSlits, aperture, mode, spectrum, blur);
+    }
+
+    /**
+     * @param numberSlits - new number of slits
+     * @return a copy of these parameters with the given number of slits
+     */
+    public DiffractionParameters withNumberSlits(double numberSlits) {
+        return new DiffractionParameters(slitWidth, distanceFromScreen, wavelength, numberSlits, distanceBetweenSlits, aperture, mode, spectrum, blur);
+    }
+
+    /**
+     * @param distanceBetweenSlits - new separation between the slits
+     * @return a copy of these parameters with the given slit separation
+     */
+    public DiffractionParameters withDistanceBetweenSlits(double distanceBetweenSlits) {
+        return new DiffractionParameters(slitWidth, distanceFromScreen, wavelength, numberSlits, distanceBetweenSlits, aperture, mode, spectrum, blur);
+    }
+
+    /**
+     * @return the aperture mask, or null when the aperture is described by the slit values
+     */
+    public ApertureMask getAperture() {
+        return aperture;
+    }
+
+    /**
+     * @param aperture - new aperture mask, or null to use the slit values again
+     * @return a copy of these parameters with the given aperture mask
+     */
+    public DiffractionParameters withAperture(ApertureMask aperture) {
+        return new DiffractionParameters(slitWidth, distanceFromScreen, wavelength, numberSlits, distanceBetweenSlits, aperture, mode, spectrum, blur);
+    }
+
+    /**
+     * @return the propagation mode as chosen, possibly AUTO
+     */
+    public PropagationMode getMode() {
+        return mode;
+    }
+
+    /**
+     * @param mode - new propagation mode
+     * @return a copy of these parameters with the given propagation mode
+     */
+    public DiffractionParameters withMode(PropagationMode mode) {
+        return new DiffractionParameters(slitWidth, distanceFromScreen, wavelength, numberSlits, distanceBetweenSlits, aperture, mode, spectrum, blur);
+    }
+
+    /**
+     * @return the spectrum of the light, or null for monochromatic light of the wavelength
+     */
+    public SourceSpectrum getSpectrum() {
+        return spectrum;
+    }
+
+    /**
+     * @param spectrum - new source spectrum, or null for monochromatic light
+     * @return a copy of these parameters with the given source spectrum
+     */
+    public DiffractionParameters withSpectrum(SourceSpectrum spectrum) {
+        return new DiffractionParameters(slitWidth, distanceFromScreen, wavelength, numberSlits, distanceBetweenSlits, aperture, mode, spectrum, blur);
+    }
+
+    /**
+     * @return the blur applied to the computed pattern, or null for an ideal experiment
+     */
+    public PatternBlur getBlur() {
+        return blur;
+    }
+
+    /**
+     * @param blur - new blur, or null for an ideal experiment
+     * @return a copy of these parameters with the given blur
+     */
+    public DiffractionParameters withBlur(PatternBlur blur) {
+        return new DiffractionParameters(slitWidth, distanceFromScreen, wavelength, numberSlits, distanceBetweenSlits, aperture, mode, spectrum, blur);
+    }
+
+    /**
+     * @return true if the light has a spectrum rather than a single wavelength
+     */
+    public boolean isPolychromatic() {
+        return spectrum != null;
+    }
+
+    /**
+     * Calculates the Fresnel number a^2/(wavelength*distance), a being half the width of
+     * the whole aperture. Far field formulas are only valid when it is well below 1.
+     *
+     * @return the Fresnel number
+     */
+    public double getFresnelNumber() {
+        double halfWidth;
+        if (aperture != null)
+            halfWidth = aperture.getExtent() / 2;
+        else if (numberSlits == 1)
+            halfWidth = slitWidth / 2;
+        else
+            halfWidth = ((numberSlits - 1) * distanceBetweenSlits + slitWidth) / 2;
+        return halfWidth * halfWidth / (wavelength * distanceFromScreen);
+    }
+
+    /**
+     * Resolves AUTO mode using the Fresnel number. Apertures too large for the
+     * FresnelPropagator to sample without aliasing keep the far field formulas.
+     *
+     * @return true if the pattern is computed with Fresnel propagation
+     */
+    public boolean usesFresnel() {
+        if (mode == PropagationMode.AUTO)
+            return getFresnelNumber() >= FRESNEL_THRESHOLD && FresnelPropagator.canPropagate(this);
+        return mode == PropagationMode.FRESNEL;
+    }
+
+    /**
+     * @return true if the pattern is given by the closed form formulas of IntensityKernel,
+     * false if it needs a transform of the whole aperture
+     */
+    public boolean isClosedForm() {
+        return aperture == null && !usesFresnel();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof DiffractionParameters))
+            return false;
+        DiffractionParameters other = (DiffractionParameters) o;
+        return Double.compare(slitWidth, other.slitWidth) == 0
+                && Double.compare(distanceFromScreen, other.distanceFromScreen) == 0
+                && Double.compare(wavelength, other.wavelength) == 0
+                && Double.compare(numberSlits, other.numberSlits) == 0
+                && Double.compare(distanceBetweenSlits, other.distanceBetweenSlits) == 0
+                && Objects.equals(aperture, other.aperture)
+                && mode == other.mode
+                && Objects.equals(spectrum, other.spectrum)
+                && Objects.equals(blur, other.blur);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Double.hashCode(slitWidth);
+        result = 31 * result + Double.hashCode(distanceFromScreen);
+        result = 31 * result + Double.hashCode(wavelength);
+        result = 31 * result + Double.hashCode(numberSlits);
+        result = 31 * result + Double.hashCode(distanceBetweenSlits);
+        result = 31 * result + Objects.hashCode(aperture);
+        result = 31 * result + mode.hashCode();
+        result = 31 * result + Objects.hashCode(spectrum);
+        result = 31 * result + Objects.hashCode(blur);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "Wavelength: " + wavelength + ", Slit Width: " + slitWidth + ", Distance to Screen: " + distanceFromScreen
+                + ", Number of Slits: " + numberSlits + ", Slit Separation: " + distanceBetweenSlits
+                + (aperture != null ? ", Custom Aperture" : "") + ", Mode: " + mode
+                + (spectrum != null ? ", Spectrum: " + spectrum : "")
+                + (blur != null ? ", Blur: " + blur : "");
+    }
+}
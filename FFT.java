@@ -0,0 +1,187 @@
+/**
+ * FFT Class
+ * <br>
+ * Plan for a complex discrete Fourier transform of a fixed length working on primitive
+ * arrays of real and imaginary parts. Lengths that are a power of two use an iterative
+ * radix-2 transform with precomputed twiddle factors and bit reversal table. Any other
+ * length is handled with Bluestein's algorithm, which rewrites the transform as a circular
+ * convolution computed by a power of two transform, so every length runs in O(n log n).
+ * <br>
+ * Creating a plan allocates all the tables and scratch buffers it will ever need, so a
+ * plan can be reused for any number of transforms without allocating. A plan is not safe
+ * to share between threads that transform at the same time.
+ */
+public final class FFT {
+
+    private final int n;
+    private final boolean powerOfTwo;
+
+    //Radix-2 tables for length n, or for the convolution length when using Bluestein
+    private final int size;
+    private final double[] cosTable, sinTable;
+    private final int[] reversed;
+
+    //Bluestein chirp, transformed chirp filter and scratch buffers
+    private final double[] chirpRe, chirpIm, filterRe, filterIm, workRe, workIm;
+
+    /**
+     * Creates a plan for transforms of the given length.
+     *
+     * @param n - number of complex values per transform
+     */
+    public FFT(int n){
+        if(n < 1)
+            throw new IllegalArgumentException("Transform length must be positive: " + n);
+        this.n = n;
+        powerOfTwo = Integer.bitCount(n) == 1;
+        size = powerOfTwo ? n : nextPowerOfTwo(2*n-1);
+
+        cosTable = new double[size/2];
+        sinTable = new double[size/2];
+        for(int i=0;i<size/2;i++){
+            double angle = 2*Math.PI*i/size;
+            cosTable[i] = Math.cos(angle);
+            sinTable[i] = Math.sin(angle);
+        }
+        reversed = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for(int i=0;i<size;i++){
+            reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32-bits);
+        }
+
+        if(powerOfTwo){
+            chirpRe = chirpIm = filterRe = filterIm = workRe = workIm = null;
+        }else{
+            chirpRe = new double[n];
+            chirpIm = new double[n];
+            for(int i=0;i<n;i++){
+                //i*i is reduced modulo 2n first so the angle stays accurate for large n
+                long square = ((long) i*i) % (2L*n);
+                double angle = Math.PI*square/n;
+                chirpRe[i] = Math.cos(angle);
+                chirpIm[i] = -Math.sin(angle);
+            }
+            filterRe = new double[size];
+            filterIm = new double[size];
+            filterRe[0] = chirpRe[0];
+            filterIm[0] = -chirpIm[0];
+            for(int i=1;i<n;i++){
+                filterRe[i] = filterRe[size-i] = chirpRe[i];
+                filterIm[i] = filterIm[size-i] = -chirpIm[i];
+            }
+            radix2(filterRe, filterIm, false);
+            workRe = new double[size];
+            workIm = new double[size];
+        }
+    }
+
+    /**
+     * @return the number of complex values per transform
+     */
+    public int length(){
+        return n;
+    }
+
+    /**
+     * Replaces the values with their forward transform X[k] = sum x[j]*exp(-2*pi*i*j*k/n).
+     *
+     * @param re - real parts, at least length() long
+     * @param im - imaginary parts, at least length() long
+     */
+    public void forward(double[] re, double[] im){
+        transform(re, im, false);
+    }
+
+    /**
+     * Replaces the values with their inverse transform, including the 1/n scaling, so
+     * that inverse(forward(x)) returns x.
+     *
+     * @param re - real parts, at least length() long
+     * @param im - imaginary parts, at least length() long
+     */
+    public void inverse(double[] re, double[] im){
+        transform(re, im, true);
+        double scale = 1.0/n;
+        for(int i=0;i<n;i++){
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    private void transform(double[] re, double[] im, boolean inverse){
+        if(powerOfTwo)
+            radix2(re, im, inverse);
+        else
+            bluestein(re, im, inverse);
+    }
+
+    /**
+     * In place iterative radix-2 transform of length size.
+     */
+    private void radix2(double[] re, double[] im, boolean inverse){
+        for(int i=0;i<size;i++){
+            int j = reversed[i];
+            if(j > i){
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+        double sign = inverse ? 1 : -1;
+        for(int half=1;half<size;half*=2){
+            int stride = size/(2*half);
+            for(int start=0;start<size;start+=2*half){
+                for(int k=0;k<half;k++){
+                    double wr = cosTable[k*stride];
+                    double wi = sign*sinTable[k*stride];
+                    int a = start+k;
+                    int b = a+half;
+                    double tr = re[b]*wr - im[b]*wi;
+                    double ti = re[b]*wi + im[b]*wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Bluestein transform: multiply by the chirp, convolve with the conjugate chirp and
+     * multiply by the chirp again. The inverse transform conjugates input and output.
+     */
+    private void bluestein(double[] re, double[] im, boolean inverse){
+        double conj = inverse ? -1 : 1;
+        for(int i=0;i<n;i++){
+            double xr = re[i], xi = conj*im[i];
+            workRe[i] = xr*chirpRe[i] - xi*chirpIm[i];
+            workIm[i] = xr*chirpIm[i] + xi*chirpRe[i];
+        }
+        for(int i=n;i<size;i++){
+            workRe[i] = 0;
+            workIm[i] = 0;
+        }
+        radix2(workRe, workIm, false);
+        for(int i=0;i<size;i++){
+            double r = workRe[i]*filterRe[i] - workIm[i]*filterIm[i];
+            workIm[i] = workRe[i]*filterIm[i] + workIm[i]*filterRe[i];
+            workRe[i] = r;
+        }
+        radix2(workRe, workIm, true);
+        double scale = 1.0/size;
+        for(int i=0;i<n;i++){
+            double yr = workRe[i]*scale, yi = workIm[i]*scale;
+            re[i] = yr*chirpRe[i] - yi*chirpIm[i];
+            im[i] = conj*(yr*chirpIm[i] + yi*chirpRe[i]);
+        }
+    }
+
+    /**
+     * @param value - a positive number
+     * @return the smallest power of two greater than or equal to value
+     */
+    public static int nextPowerOfTwo(int value){
+        int highest = Integer.highestOneBit(Math.max(1, value));
+        return highest == value ? value : highest << 1;
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.Arrays;
+
+/**
+ * Fraunhofer Engine Class
+ * <br>
+ * Computes the far field diffraction pattern of any ApertureMask. In the Fraunhofer regime
+ * the field on the screen at position x is the Fourier transform of the aperture
+ * transmission evaluated at the spatial frequency u = x/(wavelength*distance), so the
+ * whole pattern is obtained from one FFT of the sampled mask, in O(n log n) no matter how
+ * many slits the mask has.
+ * <br>
+ * The mask is sampled finely enough to resolve its smallest feature and to reach the
+ * highest spatial frequency on the screen, and zero padded so the frequency spacing is
+ * finer than the spacing of the screen grid. Openings are area sampled, which multiplies
+ * the spectrum by the transform of one sample, so that factor is divided out again. The
+ * complex spectrum is then interpolated at the frequency of every screen position and the
+ * intensity is normalized so that the central maximum is 1, like the closed form formulas
+ * of IntensityKernel.
+ * <br>
+ * Each thread keeps two engines, one per transform length, with their FFT plans and
+ * buffers, so the coarse preview and the full pattern of DiffractionCalculator each reuse
+ * theirs.
+ */
+public final class FraunhoferEngine {
+
+    /** Samples across the smallest feature of the mask */
+    private static final int OVERSAMPLING = 16;
+    /** Largest transform length used, to bound memory */
+    private static final int MAX_LENGTH = 1 << 22;
+
+    //The engine used last comes first
+    private static final ThreadLocal<FraunhoferEngine[]> ENGINES = ThreadLocal.withInitial(
+            () -> new FraunhoferEngine[]{new FraunhoferEngine(), new FraunhoferEngine()});
+
+    private FFT plan;
+    private double[] re, im;
+
+    private FraunhoferEngine(){
+    }
+
+    /**
+     * Computes the relative intensity of the far field pattern of the mask at every
+     * x coordinate.
+     *
+     * @param mask - aperture transmission
+     * @param wavelength - wavelength of the light
+     * @param distance - distance from the aperture to the screen
+     * @param x - x coordinates on the screen
+     * @param out - receives the intensity for each x coordinate
+     */
+    public static void compute(ApertureMask mask, double wavelength, double distance, double[] x, double[] out){
+        double scale = wavelength*distance;
+        double maxX = 0, minStep = Double.MAX_VALUE;
+        for(int i=0;i<x.length;i++){
+            maxX = Math.max(maxX, Math.abs(x[i]));
+            if(i > 0 && x[i] > x[i-1])
+                minStep = Math.min(minStep, x[i]-x[i-1]);
+        }
+        double maxFrequency = Math.max(maxX/scale, 1e-12);
+        double frequencyStep = (minStep == Double.MAX_VALUE) ? maxFrequency : minStep/scale;
+
+        double pitch = Math.min(mask.getSmallestFeature()/OVERSAMPLING, 1/(2.5*maxFrequency));
+        double window = Math.max(4*mask.getExtent(), 4/frequencyStep);
+        long wanted = (long) Math.ceil(window/pitch);
+        if(wanted > MAX_LENGTH){ //Coarser samples rather than a window too small for the mask
+            pitch = Math.max(pitch, 2*mask.getExtent()/MAX_LENGTH);
+            wanted = (long) Math.ceil(window/pitch);
+        }
+        int n = FFT.nextPowerOfTwo((int) Math.min(MAX_LENGTH, Math.max(wanted, 64)));
+
+        FraunhoferEngine[] engines = ENGINES.get();
+        if(engines[0].plan == null || engines[0].plan.length() != n){ //The other one has this length, or was used less recently
+            FraunhoferEngine other = engines[1];
+            engines[1] = engines[0];
+            engines[0] = other;
+        }
+        engines[0].evaluate(mask, scale, n, pitch, x, out);
+    }
+
+    /**
+     * Transforms the mask sampled at the given pitch over n samples and reads the pattern
+     * from its spectrum.
+     */
+    private void evaluate(ApertureMask mask, double scale, int n, double pitch, double[] x, double[] out){
+        ensureLength(n);
+
+        mask.rasterize(re, n, pitch);
+        Arrays.fill(im, 0, n, 0);
+        double total = 0;
+        for(int j=0;j<n;j++){
+            total += re[j];
+        }
+        if(total == 0){
+            Arrays.fill(out, 0, x.length, 0);
+            return;
+        }
+        plan.forward(re, im);
+        //Sample j lies at (j - n/2)*pitch, which multiplies bin k by (-1)^k; undone below
+        double norm = 1/(total*total);
+        for(int i=0;i<x.length;i++){
+            double f = x[i]/scale*n*pitch;
+            f -= n*Math.floor(f/n);
+            int k0 = (int) f;
+            double t = f-k0;
+            int k1 = (k0+1) % n;
+            double s0 = (k0 & 1) == 0 ? 1 : -1;
+            double s1 = (k1 & 1) == 0 ? 1 : -1;
+            double fr = s0*re[k0]*(1-t) + s1*re[k1]*t;
+            double fi = s0*im[k0]*(1-t) + s1*im[k1]*t;
+            //Area sampling multiplied the spectrum by sinc(pi*u*pitch), divided out here
+            double box = Math.PI*x[i]/scale*pitch;
+            double sinc = (box == 0) ? 1 : Math.sin(box)/box;
+            out[i] = (fr*fr + fi*fi)*norm/(sinc*sinc);
+        }
+    }
+
+    private void ensureLength(int n){
+        if(plan == null || plan.length() != n){
+            plan = new FFT(n);
+            re = new double[n];
+            im = new double[n];
+        }
+    }
+}
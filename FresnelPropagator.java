@@ -0,0 +1,205 @@
+import java.util.Arrays;
+
+/**
+ * Fresnel Propagator Class
+ * <br>
+ * Computes near field diffraction patterns with the angular spectrum method. The aperture
+ * transmission, lit by a plane wave, is transformed into its spectrum of plane waves, each
+ * plane wave of spatial frequency f is advanced to the screen by multiplying it with the
+ * transfer function
+ * <br>
+ * H(f) = exp(2*pi*i*z*(sqrt(1/wavelength^2 - f^2) - 1/wavelength))
+ * <br>
+ * and the field on the screen is the inverse transform of the result. Unlike the
+ * Fraunhofer formulas this stays valid when the Fresnel number of the setup is large.
+ * <br>
+ * The transfer function is band limited to the frequencies it can be sampled at on the
+ * computational window (Matsushima and Shimobaba, 2009), which avoids aliasing at the
+ * long distances of the experiment. The window is wide enough for the aperture, the
+ * screen and the spreading of the light, and the pitch resolves both the aperture and
+ * the screen grid. An aperture and screen which would need more than MAX_LENGTH samples
+ * are rejected rather than sampled at a coarser pitch, which would alias; AUTO mode does
+ * not choose Fresnel propagation for such apertures, see {@link #canPropagate}.
+ * <br>
+ * Each thread keeps two propagators, one per transform length, so the coarse preview and
+ * the full pattern of DiffractionCalculator each keep theirs. The FFT plan, the spectrum of
+ * the aperture and all the complex buffers are kept between calls. The window is sized for
+ * the distance rounded up to a power of two, so when only the distance changes within such
+ * an octave the aperture is not transformed again and nothing is allocated or planned: one
+ * multiply and one inverse transform produce the new pattern.
+ */
+public final class FresnelPropagator {
+
+    /** Samples across the smallest feature of the aperture */
+    private static final int OVERSAMPLING = 8;
+    /** Largest transform length used, to bound memory */
+    private static final int MAX_LENGTH = 1 << 20;
+
+    //The propagator used last comes first
+    private static final ThreadLocal<FresnelPropagator[]> PROPAGATORS = ThreadLocal.withInitial(
+            () -> new FresnelPropagator[]{new FresnelPropagator(), new FresnelPropagator()});
+
+    private FFT plan;
+    private double[] spectrumRe, spectrumIm, fieldRe, fieldIm;
+
+    //Aperture whose spectrum is held in spectrumRe/spectrumIm
+    private ApertureMask cachedMask;
+    private double cachedWindow;
+
+    private FresnelPropagator(){
+    }
+
+    /**
+     * Computes the relative intensity of the near field pattern at every x coordinate,
+     * normalized so that the brightest sample is 1.
+     *
+     * @param p - diffraction parameters
+     * @param x - x coordinates on the screen
+     * @param out - receives the intensity for each x coordinate
+     */
+    public static void compute(DiffractionParameters p, double[] x, double[] out){
+        double screenHalf = 0, minStep = Double.MAX_VALUE;
+        for(int i=0;i<x.length;i++){
+            screenHalf = Math.max(screenHalf, Math.abs(x[i]));
+            if(i > 0 && x[i] > x[i-1])
+                minStep = Math.min(minStep, x[i]-x[i-1]);
+        }
+        //The same for every distance of an octave, so a change of distance keeps the window and pitch
+        double window = window(p, screenHalf);
+        double targetPitch = Math.min(smallestFeature(p)/OVERSAMPLING, minStep);
+        double wanted = Math.ceil(window/targetPitch);
+        if(!(wanted <= MAX_LENGTH)) //A coarser pitch would alias
+            throw new IllegalArgumentException("Fresnel propagation would need " + wanted + " samples, more than "
+                    + MAX_LENGTH + "; use the Fraunhofer mode or a smaller aperture");
+        int n = FFT.nextPowerOfTwo((int) Math.max(64, wanted));
+
+        FresnelPropagator[] propagators = PROPAGATORS.get();
+        if(propagators[0].length() != n){ //The other one has this length, or was used less recently
+            FresnelPropagator other = propagators[1];
+            propagators[1] = propagators[0];
+            propagators[0] = other;
+        }
+        propagators[0].propagate(p, window, n, x, out);
+    }
+
+    /**
+     * Describes the aperture of the parameters as a mask, building a grating from the
+     * slit values when no mask is given.
+     *
+     * @param p - diffraction parameters
+     * @return the aperture mask
+     */
+    static ApertureMask apertureOf(DiffractionParameters p){
+        if(p.getAperture() != null)
+            return p.getAperture();
+        int slits = Math.max(1, (int) p.getNumberSlits());
+        return ApertureMask.grating(slits, p.getSlitWidth(), p.getDistanceBetweenSlits());
+    }
+
+    /**
+     * Tells whether the aperture of the parameters can be propagated without aliasing, that
+     * is whether a window wide enough for it and the spreading of its light fits into
+     * MAX_LENGTH samples at a pitch that resolves it. A screen grid finer than that pitch
+     * needs more samples still.
+     *
+     * @param p - diffraction parameters
+     * @return true if the aperture fits
+     */
+    public static boolean canPropagate(DiffractionParameters p){
+        return window(p, 0)/(smallestFeature(p)/OVERSAMPLING) <= MAX_LENGTH;
+    }
+
+    /**
+     * Width of the computational window: the aperture or the screen, whichever is wider,
+     * plus on both sides eight times the width the light spreads to at the distance rounded
+     * up to a power of two; a wider window gives the transfer function a finer frequency
+     * step. The grating of the slit values is not built, since gratings of
+     * many slits are large.
+     *
+     * @param screenHalf - half the width of the screen grid
+     */
+    private static double window(DiffractionParameters p, double screenHalf){
+        double extent = (p.getAperture() != null) ? p.getAperture().getExtent()
+                : (Math.max(1, (int) p.getNumberSlits())-1)*p.getDistanceBetweenSlits() + p.getSlitWidth();
+        double z = p.getDistanceFromScreen();
+        double octave = Math.scalb(1.0, Math.getExponent(z));
+        double spread = 8*p.getWavelength()*((octave == z) ? z : 2*octave)/smallestFeature(p);
+        return 2*(Math.max(screenHalf, extent/2) + spread);
+    }
+
+    private static double smallestFeature(DiffractionParameters p){
+        if(p.getAperture() != null)
+            return p.getAperture().getSmallestFeature();
+        return (p.getNumberSlits() > 1) ? Math.min(p.getSlitWidth(), p.getDistanceBetweenSlits()) : p.getSlitWidth();
+    }
+
+    private int length(){
+        return (plan == null) ? 0 : plan.length();
+    }
+
+    /**
+     * Propagates the aperture of the parameters over a window of n samples.
+     */
+    private void propagate(DiffractionParameters p, double window, int n, double[] x, double[] out){
+        ApertureMask mask = apertureOf(p);
+        double wavelength = p.getWavelength();
+        double z = p.getDistanceFromScreen();
+        double pitch = window/n;
+
+        if(plan == null || plan.length() != n){
+            plan = new FFT(n);
+            spectrumRe = new double[n];
+            spectrumIm = new double[n];
+            fieldRe = new double[n];
+            fieldIm = new double[n];
+            cachedMask = null;
+        }
+        if(!mask.equals(cachedMask) || window != cachedWindow){ //Only transforms the aperture when it changed
+            mask.rasterize(spectrumRe, n, pitch);
+            Arrays.fill(spectrumIm, 0);
+            plan.forward(spectrumRe, spectrumIm);
+            cachedMask = mask;
+            cachedWindow = window;
+        }
+
+        //Band limit of the transfer function for this window and distance
+        double frequencyStep = 1/window;
+        double limit = 1/(wavelength*Math.sqrt(4*frequencyStep*frequencyStep*z*z + 1));
+        for(int k=0;k<n;k++){
+            double f = ((k < n/2) ? k : k-n)*frequencyStep;
+            double lf2 = wavelength*wavelength*f*f;
+            if(Math.abs(f) > limit || lf2 >= 1){
+                fieldRe[k] = 0;
+                fieldIm[k] = 0;
+                continue;
+            }
+            //sqrt(1/wl^2 - f^2) - 1/wl, rearranged to avoid cancellation
+            double phase = -2*Math.PI*z*wavelength*f*f/(1+Math.sqrt(1-lf2));
+            double c = Math.cos(phase), s = Math.sin(phase);
+            fieldRe[k] = spectrumRe[k]*c - spectrumIm[k]*s;
+            fieldIm[k] = spectrumRe[k]*s + spectrumIm[k]*c;
+        }
+        plan.inverse(fieldRe, fieldIm);
+
+        //Sample j lies at (j - n/2)*pitch on the screen as it did in the aperture
+        double max = 0;
+        for(int i=0;i<x.length;i++){
+            double position = x[i]/pitch + n/2;
+            int j = (int) Math.floor(position);
+            double t = position-j;
+            double value = 0;
+            if(j >= 0 && j+1 < n){
+                double i0 = fieldRe[j]*fieldRe[j] + fieldIm[j]*fieldIm[j];
+                double i1 = fieldRe[j+1]*fieldRe[j+1] + fieldIm[j+1]*fieldIm[j+1];
+                value = i0*(1-t) + i1*t;
+            }
+            out[i] = value;
+            max = Math.max(max, value);
+        }
+        if(max > 0){
+            for(int i=0;i<x.length;i++){
+                out[i] /= max;
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+import javafx.scene.image.Image;
+import javafx.scene.paint.Color;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Image Assets Class
+ * <br>
+ * Holds the decoded overhead images of the experiment, one per light color and slit mode.
+ * Every image is decoded once, in the background, by JavaFX's background image loading,
+ * so registering images never blocks the caller; an image that is still loading can
+ * already be given to an ImageView and shows up as soon as it is decoded.
+ * <br>
+ * The images are kept in an immutable map which is replaced as a whole whenever an image
+ * is registered, so looking one up is a plain read without locking and any thread may
+ * register new images at any time.
+ */
+public final class ImageAssets {
+
+    private volatile Map<Key, Image> images = Collections.emptyMap();
+
+    /**
+     * Starts loading the six built in images: blue, green and red light through a single
+     * and a double slit.
+     */
+    public void loadDefaults(){
+        String[] names = {"Blue", "Green", "Red"};
+        Color[] colors = {Color.BLUE, Color.GREEN, Color.RED};
+        for(int k=0;k<colors.length;k++){
+            register(colors[k], true, "res/" + names[k] + "Single.jpg");
+            register(colors[k], false, "res/" + names[k] + "Double.jpg");
+        }
+    }
+
+    /**
+     * Starts loading an image in the background and makes it available for the given
+     * color and slit mode, replacing any image registered for them before.
+     *
+     * @param c - color of the light
+     * @param singleSlit - true for the single slit image, false for two or more slits
+     * @param url - location of the image, relative to the class path unless it has a scheme
+     */
+    public void register(Color c, boolean singleSlit, String url){
+        Image image = new Image(url, true);
+        synchronized (this){
+            Map<Key, Image> copy = new HashMap<>(images);
+            copy.put(new Key(c, singleSlit), image);
+            images = Collections.unmodifiableMap(copy);
+        }
+    }
+
+    /**
+     * Returns the image for a color and slit mode.
+     *
+     * @param c - color of the light
+     * @param singleSlit - true for a single slit, false for two or more slits
+     * @return the image, possibly still loading, or null if none was registered
+     */
+    public Image get(Color c, boolean singleSlit){
+        return images.get(new Key(c, singleSlit));
+    }
+
+    /**
+     * Tells whether every registered image has finished loading, successfully or not.
+     *
+     * @return true when no image is loading anymore
+     */
+    public boolean isLoaded(){
+        for(Image image : images.values()){
+            if(image.getProgress() < 1 && !image.isError())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Light color and slit mode of an image.
+     */
+    private static final class Key {
+        final Color color;
+        final boolean singleSlit;
+
+        Key(Color color, boolean singleSlit){
+            this.color = color;
+            this.singleSlit = singleSlit;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return color.equals(other.color) && singleSlit == other.singleSlit;
+        }
+
+        @Override
+        public int hashCode(){
+            return 31*color.hashCode() + (singleSlit ? 1 : 0);
+        }
+    }
+}
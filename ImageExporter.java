@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Image Exporter Class
+ * <br>
+ * Renders the graph, the intensity map or the screen image of a pattern at any resolution
+ * straight from the diffraction parameters, and streams it to a PNG, TIFF or BMP file with
+ * a StreamingImageWriter. The pattern is computed again for the columns of the image
+ * rather than scaled up from the samples shown, so an export of 16000 pixels is as sharp
+ * as its pixels allow.
+ * <br>
+ * The image is rendered in bands of BAND_ROWS rows which are encoded as soon as they are
+ * filled. Only per column and per row arrays and one band are held in memory, so the heap
+ * used grows with the width and height of the image but not with its area. The
+ * computation of the pattern, prepare, is separate from the rendering of its pixels, so
+ * that AnimationRenderer can run them on different threads.
+ * <br>
+ * The graph is drawn like on screen, but on a white background: for each pixel column
+ * the line covers everything between the lowest and highest intensity of OVERSAMPLING
+ * samples across the column, widened to a line as thick as one pixel of an 800 pixel
+ * wide graph, and its edges are anti-aliased by their coverage of the pixel.
+ */
+public final class ImageExporter {
+
+    /** Rows rendered and encoded at a time */
+    public static final int BAND_ROWS = 64;
+    /** Samples of the pattern per column of the graph */
+    public static final int OVERSAMPLING = 4;
+
+    /**
+     * What to export.
+     */
+    public enum View {
+        /** The intensity graph */
+        GRAPH,
+        /** The intensity color map */
+        INTENSITY_MAP,
+        /** The two dimensional image on the screen */
+        SCREEN
+    }
+
+    private ImageExporter(){
+    }
+
+    /**
+     * Renders a view of a pattern and writes it to a file, in the format of its extension.
+     *
+     * @param file - a .png, .tif or .bmp file to create or replace
+     * @param p - parameters of the pattern
+     * @param view - what to render
+     * @param xMin - screen position at the left edge of the image in millimeters
+     * @param xMax - screen position at the right edge in millimeters
+     * @param width - image width in pixels
+     * @param height - image height in pixels
+     * @param channelShift - color channel of monochromatic light, 0 for blue, 8 for green and 16 for red
+     * @param apertureHeight - height of the aperture in millimeters, for the screen image
+     * @throws IOException if the file cannot be written
+     */
+    public static void export(Path file, DiffractionParameters p, View view, double xMin, double xMax,
+                              int width, int height, int channelShift, double apertureHeight) throws IOException{
+        Rendering rendering = prepare(p, view, xMin, xMax, width, height, channelShift, apertureHeight);
+        try(StreamingImageWriter writer = StreamingImageWriter.create(file, width, height)){
+            int[] band = new int[width*Math.min(BAND_ROWS, height)];
+            for(int first=0;first<height;first+=BAND_ROWS){
+                int rows = Math.min(BAND_ROWS, height-first);
+                rendering.renderRows(band, 0, first, rows);
+                writer.writeRows(band, 0, rows);
+            }
+        }
+    }
+
+    /**
+     * Computes the pattern of a view, which can then be rendered to pixels in any order of
+     * bands. Splitting the two lets AnimationRenderer compute the next frame while the
+     * last one is still being rendered.
+     *
+     * @param p - parameters of the pattern
+     * @param view - what to render
+     * @param xMin - screen position at the left edge of the image in millimeters
+     * @param xMax - screen position at the right edge in millimeters
+     * @param width - image width in pixels
+     * @param height - image height in pixels
+     * @param channelShift - color channel of monochromatic light, 0 for blue, 8 for green and 16 for red
+     * @param apertureHeight - height of the aperture in millimeters, for the screen image
+     * @return the computed view
+     */
+    public static Rendering prepare(DiffractionParameters p, View view, double xMin, double xMax,
+                                    int width, int height, int channelShift, double apertureHeight){
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Image size must be positive: " + width + "x" + height);
+        switch (view) {
+            case GRAPH:
+                return new Graph(p, xMin, xMax, width, height, channelShift);
+            case INTENSITY_MAP:
+                return new IntensityMap(p, xMin, xMax, width, height, channelShift);
+            default:
+                return new Screen(p, xMin, xMax, width, height, channelShift, apertureHeight);
+        }
+    }
+
+    /**
+     * Computes the pattern with its colors and blur, like DiffractionCalculator.
+     */
+    private static void compute(DiffractionParameters p, double[] x, double[] values, int[] colors){
+        if(p.isPolychromatic())
+            SpectralAccumulator.compute(p, x, values, colors);
+        else
+            IntensityKernel.compute(p, x, values);
+        if(p.getBlur() != null)
+            p.getBlur().apply(p, x, values, colors);
+    }
+
+    private static double[] grid(double xMin, double xMax, int n, boolean centers){
+        double[] x = new double[n];
+        for(int i=0;i<n;i++){
+            x[i] = centers ? xMin + (i+0.5)*(xMax-xMin)/n : xMin + i*(xMax-xMin)/(n-1);
+        }
+        return x;
+    }
+
+    /**
+     * A computed view, holding only per column and per row arrays, which renders any rows
+     * of its image. Rendering does not change it, so several threads may render bands
+     * of the same view at once.
+     */
+    public abstract static class Rendering {
+        protected final int width, height;
+
+        private Rendering(int width, int height){
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Renders rows of the image.
+         *
+         * @param argb - receives the pixels, row by row, width values per row
+         * @param offset - index in argb of the first pixel of the first row
+         * @param first - index of the first row in the image
+         * @param rows - number of rows to render
+         */
+        public abstract void renderRows(int[] argb, int offset, int first, int rows);
+
+        /**
+         * @return image width in pixels
+         */
+        public int getWidth(){
+            return width;
+        }
+
+        /**
+         * @return image height in pixels
+         */
+        public int getHeight(){
+            return height;
+        }
+    }
+
+    private static final class Graph extends Rendering {
+        private final float[] wideTop, wideBottom;
+        private final int line;
+
+        Graph(DiffractionParameters p, double xMin, double xMax, int width, int height, int channelShift){
+            super(width, height);
+            int n = OVERSAMPLING*width + 1;
+            double[] x = grid(xMin, xMax, n, false);
+            double[] values = new double[n];
+            compute(p, x, values, null);
+            //Broadband patterns are drawn in black, like on screen
+            line = p.isPolychromatic() ? 0xFF000000 : 0xFF000000 | (0xFF << channelShift);
+            double thickness = Math.max(1, width/800.0);
+            //Span of the curve in every column, between the samples at its edges
+            float[] top = new float[width], bottom = new float[width];
+            for(int c=0;c<width;c++){
+                double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE;
+                for(int k=c*OVERSAMPLING;k<=(c+1)*OVERSAMPLING;k++){
+                    lo = Math.min(lo, values[k]);
+                    hi = Math.max(hi, values[k]);
+                }
+                top[c] = (float) (height - hi*height);
+                bottom[c] = (float) (height - lo*height);
+            }
+            //Widens the line sideways, then up and down
+            int reach = (int) Math.ceil(thickness/2 - 0.5);
+            wideTop = new float[width];
+            wideBottom = new float[width];
+            for(int c=0;c<width;c++){
+                float t = top[c], b = bottom[c];
+                for(int d=Math.max(0, c-reach);d<=Math.min(width-1, c+reach);d++){
+                    t = Math.min(t, top[d]);
+                    b = Math.max(b, bottom[d]);
+                }
+                wideTop[c] = (float) (t - thickness/2);
+                wideBottom[c] = (float) (b + thickness/2);
+            }
+        }
+
+        @Override
+        public void renderRows(int[] argb, int offset, int first, int rows){
+            for(int r=0;r<rows;r++){
+                int row = first+r, start = offset + r*width;
+                for(int c=0;c<width;c++){
+                    double coverage = Math.min(row+1, wideBottom[c]) - Math.max(row, wideTop[c]);
+                    argb[start+c] = blend(0xFFFFFFFF, line, Math.max(0, Math.min(1, coverage)));
+                }
+            }
+        }
+    }
+
+    private static final class IntensityMap extends Rendering {
+        private final int[] row;
+
+        IntensityMap(DiffractionParameters p, double xMin, double xMax, int width, int height, int channelShift){
+            super(width, height);
+            double[] x = grid(xMin, xMax, width, true);
+            double[] values = new double[width];
+            int[] colors = p.isPolychromatic() ? new int[width] : null;
+            compute(p, x, values, colors);
+            int[] table = MappedPattern.lookupTable(channelShift);
+            row = new int[width];
+            for(int c=0;c<width;c++){
+                row[c] = (colors != null) ? colors[c] : table[Math.max(0, Math.min(255, (int) (values[c]*255)))];
+            }
+        }
+
+        @Override
+        public void renderRows(int[] argb, int offset, int first, int rows){
+            //Every row of the map is the same
+            for(int r=0;r<rows;r++){
+                System.arraycopy(row, 0, argb, offset + r*width, width);
+            }
+        }
+    }
+
+    private static final class Screen extends Rendering {
+        private final double[] xPattern, yPattern;
+        private final int[] xColors;
+        private final int channelShift;
+
+        Screen(DiffractionParameters p, double xMin, double xMax, int width, int height, int channelShift, double apertureHeight){
+            super(width, height);
+            this.channelShift = channelShift;
+            double[] xs = grid(xMin, xMax, width, true);
+            xPattern = new double[width];
+            xColors = p.isPolychromatic() ? new int[width] : null;
+            compute(p, xs, xPattern, xColors);
+            //Along y the aperture is a single slit as high as the aperture, see ScreenImage
+            DiffractionParameters vertical = new DiffractionParameters(apertureHeight, p.getDistanceFromScreen(), p.getWavelength(), 1, 0)
+                    .withMode(p.getMode()).withSpectrum(p.getSpectrum());
+            double halfHeight = (xMax-xMin)/2*height/width;
+            double[] ys = grid(halfHeight, -halfHeight, height, true);
+            yPattern = new double[height];
+            if(vertical.isPolychromatic())
+                SpectralAccumulator.compute(vertical, ys, yPattern, null);
+            else
+                IntensityKernel.compute(vertical, ys, yPattern);
+        }
+
+        @Override
+        public void renderRows(int[] argb, int offset, int first, int rows){
+            for(int r=0;r<rows;r++){
+                ScreenImage.fillRow(argb, offset + r*width, xPattern, xColors, yPattern[first+r], channelShift, width);
+            }
+        }
+    }
+
+    private static int blend(int background, int color, double alpha){
+        if(alpha <= 0)
+            return background;
+        if(alpha >= 1)
+            return color;
+        int r = (int) Math.round(((background >> 16) & 0xFF)*(1-alpha) + ((color >> 16) & 0xFF)*alpha);
+        int g = (int) Math.round(((background >> 8) & 0xFF)*(1-alpha) + ((color >> 8) & 0xFF)*alpha);
+        int b = (int) Math.round((background & 0xFF)*(1-alpha) + (color & 0xFF)*alpha);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+}
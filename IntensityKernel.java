@@ -0,0 +1,251 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * Intensity Kernel Class
+ * <br>
+ * Stateless implementation of the Fraunhofer Diffraction formulas. The relative intensity
+ * at a screen position x is
+ * <br>
+ * I(x) = (sin(b)/b)^2 with b = pi*x*slitWidth/(wavelength*distance)
+ * <br>
+ * multiplied by cos(g)^2 with g = pi*x*separation/(wavelength*distance) when there are two
+ * slits, and by the grating factor (sin(N*g)/(N*sin(g)))^2 for a regular grating of N slits.
+ * Apertures described by an ApertureMask are handed to the FFT based FraunhoferEngine, and
+ * patterns in the Fresnel regime to the FresnelPropagator.
+ * <br>
+ * The kernel keeps no state of its own: every method reads an immutable
+ * DiffractionParameters and writes into an array or buffer owned by the caller, so any
+ * number of threads may evaluate different configurations at the same time.
+ * <br>
+ * The diffraction.kernel system property selects how arrays are evaluated. With vector
+ * they go through the SIMD VectorIntensityKernel if the JDK Vector API is available, with
+ * recurrence the evenly spaced runs of the grid go through the trig-free
+ * RecurrenceIntensityKernel. Otherwise, or if the Vector API module is missing at run time,
+ * the scalar loop below is used.
+ * <br>
+ * VectorIntensityKernel lives in the vector folder and is compiled on its own with
+ * --add-modules jdk.incubator.vector, so that the rest of the sources compile without the
+ * incubating module. It is therefore looked up by name at run time, and a build without
+ * it behaves like a run without the module.
+ */
+public final class IntensityKernel {
+
+    private static final String MODE = System.getProperty("diffraction.kernel", "scalar");
+    private static final MethodHandle VECTOR = "vector".equals(MODE) ? vectorKernel() : null;
+    private static final boolean VECTORIZED = VECTOR != null;
+    private static final boolean RECURRENCE = "recurrence".equals(MODE);
+
+    private IntensityKernel(){
+    }
+
+    /**
+     * Tells whether arrays are being evaluated by the vectorized kernel.
+     *
+     * @return true if the Vector API kernel is in use
+     */
+    public static boolean isVectorized(){
+        return VECTORIZED;
+    }
+
+    /**
+     * Computes the relative intensity at one screen position.
+     *
+     * @param p - diffraction parameters
+     * @param xVal - x coordinate on the screen
+     * @return the computed intensity value for the given input x-value
+     */
+    public static double intensity(DiffractionParameters p, double xVal){
+        if(!p.isClosedForm()){
+            double[] out = new double[1];
+            computeTransformed(p, new double[]{xVal}, out, 0, 1);
+            return out[0];
+        }
+        double scale = Math.PI/(p.getWavelength()*p.getDistanceFromScreen());
+        return intensity(xVal*p.getSlitWidth()*scale, xVal*p.getDistanceBetweenSlits()*scale, (int) p.getNumberSlits());
+    }
+
+    /**
+     * Computes the relative intensity for every x coordinate of a grid.
+     *
+     * @param p - diffraction parameters
+     * @param x - x coordinates on the screen
+     * @param out - receives the intensity for each x coordinate, at least as long as x
+     */
+    public static void compute(DiffractionParameters p, double[] x, double[] out){
+        compute(p, x, out, 0, x.length);
+    }
+
+    /**
+     * Computes the relative intensity for the x coordinates from index from (inclusive)
+     * to index to (exclusive), writing the result at the same indices of out.
+     *
+     * @param p - diffraction parameters
+     * @param x - x coordinates on the screen
+     * @param out - receives the intensity for each x coordinate
+     * @param from - first index to compute
+     * @param to - index after the last one to compute
+     */
+    public static void compute(DiffractionParameters p, double[] x, double[] out, int from, int to){
+        if(!p.isClosedForm())
+            computeTransformed(p, x, out, from, to);
+        else if(p.getNumberSlits() > 2) //Only the scalar path handles gratings
+            computeScalar(p, x, out, from, to);
+        else if(VECTORIZED)
+            computeVector(p, x, out, from, to);
+        else if(RECURRENCE)
+            RecurrenceIntensityKernel.compute(p, x, out, from, to);
+        else
+            computeScalar(p, x, out, from, to);
+    }
+
+    /**
+     * Same as {@link #compute(DiffractionParameters, double[], double[], int, int)} but
+     * always evaluates one sample at a time.
+     *
+     * @param p - diffraction parameters
+     * @param x - x coordinates on the screen
+     * @param out - receives the intensity for each x coordinate
+     * @param from - first index to compute
+     * @param to - index after the last one to compute
+     */
+    public static void computeScalar(DiffractionParameters p, double[] x, double[] out, int from, int to){
+        if(!p.isClosedForm()){
+            computeTransformed(p, x, out, from, to);
+            return;
+        }
+        double scale = Math.PI/(p.getWavelength()*p.getDistanceFromScreen());
+        double betaScale = p.getSlitWidth()*scale;
+        double gammaScale = p.getDistanceBetweenSlits()*scale;
+        int slits = (int) p.getNumberSlits();
+        for(int i=from;i<to;i++){
+            out[i] = intensity(x[i]*betaScale, x[i]*gammaScale, slits);
+        }
+    }
+
+    /**
+     * Computes a pattern that needs a transform of the whole aperture: the far field of
+     * an aperture mask with the FraunhoferEngine, or the near field with the
+     * FresnelPropagator.
+     */
+    private static void computeTransformed(DiffractionParameters p, double[] x, double[] out, int from, int to){
+        double[] window = (from == 0 && to == x.length) ? x : Arrays.copyOfRange(x, from, to);
+        double[] result = (from == 0 && to == x.length) ? out : new double[to-from];
+        if(p.usesFresnel())
+            FresnelPropagator.compute(p, window, result);
+        else
+            FraunhoferEngine.compute(p.getAperture(), p.getWavelength(), p.getDistanceFromScreen(), window, result);
+        if(result != out)
+            System.arraycopy(result, 0, out, from, to-from);
+    }
+
+    /**
+     * Computes the relative intensity for the x coordinates remaining in buffer x and
+     * writes them to buffer out starting at its position. The positions and limits of
+     * both buffers are left unchanged, which allows direct or memory mapped buffers to be
+     * filled in place. Only closed form patterns are supported here.
+     *
+     * @param p - diffraction parameters
+     * @param x - x coordinates on the screen
+     * @param out - receives the intensity for each x coordinate
+     */
+    public static void compute(DiffractionParameters p, DoubleBuffer x, DoubleBuffer out){
+        if(!p.isClosedForm())
+            throw new IllegalArgumentException("Aperture masks and Fresnel propagation need array input");
+        double scale = Math.PI/(p.getWavelength()*p.getDistanceFromScreen());
+        double betaScale = p.getSlitWidth()*scale;
+        double gammaScale = p.getDistanceBetweenSlits()*scale;
+        int slits = (int) p.getNumberSlits();
+        int inStart = x.position();
+        int outStart = out.position();
+        int n = x.remaining();
+        if(out.remaining() < n)
+            throw new IllegalArgumentException("Output buffer holds " + out.remaining() + " values, " + n + " needed");
+        for(int i=0;i<n;i++){
+            double xVal = x.get(inStart+i);
+            out.put(outStart+i, intensity(xVal*betaScale, xVal*gammaScale, slits));
+        }
+    }
+
+    /**
+     * Evaluates the formula for already scaled arguments.
+     *
+     * @param betaVal - single slit phase
+     * @param gammaVal - two slit phase
+     * @param twoSlits - whether the two slit term is applied
+     * @return the relative intensity
+     */
+    static double intensity(double betaVal, double gammaVal, boolean twoSlits){
+        return intensity(betaVal, gammaVal, twoSlits ? 2 : 1);
+    }
+
+    /**
+     * Evaluates the formula for already scaled arguments and any number of slits.
+     *
+     * @param betaVal - single slit phase
+     * @param gammaVal - phase between neighbouring slits
+     * @param slits - number of slits
+     * @return the relative intensity
+     */
+    static double intensity(double betaVal, double gammaVal, int slits){
+        double val = (Math.sin(betaVal))/betaVal; //Can't divide by 0: handled in next line
+        val = (Double.isNaN(val))?1:val*val;
+        if(slits==2){
+            double twoSlitVal = Math.cos(gammaVal);
+            val*= twoSlitVal *twoSlitVal;
+        }else if(slits>2){
+            val*= gratingFactor(gammaVal, slits);
+        }
+        return val;
+    }
+
+    /**
+     * Computes (sin(N*g)/(N*sin(g)))^2, which is 1 at the principal maxima where sin(g) = 0.
+     *
+     * @param gammaVal - phase between neighbouring slits
+     * @param slits - number of slits
+     * @return the grating factor
+     */
+    static double gratingFactor(double gammaVal, int slits){
+        double denominator = slits*Math.sin(gammaVal);
+        if(Math.abs(denominator) < 1e-12)
+            return 1;
+        double val = Math.sin(slits*gammaVal)/denominator;
+        return val*val;
+    }
+
+    private static void computeVector(DiffractionParameters p, double[] x, double[] out, int from, int to){
+        try {
+            VECTOR.invokeExact(p, x, out, from, to);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) { //compute declares no checked exception
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Looks up VectorIntensityKernel.compute, if the class was compiled, the
+     * jdk.incubator.vector module can be loaded and vectors are worth using.
+     *
+     * @return the compute method of the vectorized kernel, or null to use the scalar loop
+     */
+    private static MethodHandle vectorKernel(){
+        try {
+            Class<?> kernel = Class.forName("VectorIntensityKernel");
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            boolean supported = (boolean) lookup.findStatic(kernel, "isSupported", MethodType.methodType(boolean.class)).invoke();
+            if(!supported)
+                return null;
+            return lookup.findStatic(kernel, "compute", MethodType.methodType(void.class,
+                    DiffractionParameters.class, double[].class, double[].class, int.class, int.class));
+        } catch (ReflectiveOperationException | LinkageError e) { //Not compiled, or module not present at run time
+            return null;
+        } catch (Throwable e) { //isSupported declares no checked exception
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,287 @@
+import javafx.event.ActionEvent;
+import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.RadioButton;
+import javafx.scene.control.Slider;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Interaction Recorder Class
+ * <br>
+ * Records how the user changes the controls of the program into a trace file, so that
+ * the same session can be replayed by InteractionReplayer to measure the latency from
+ * each change to the frame that shows it. Start the program with
+ * -Ddiffraction.record=trace.tsv to record a session.
+ * <br>
+ * The trace is a text file with one event per line: the milliseconds since the
+ * recording started, the control and its new value, separated by tabs. Lines starting
+ * with # are comments. The recording starts with the state of every control, with init
+ * instead of a time. The controls are the four sliders by their names in Controller,
+ * with their values; slits, with single, double or grating when a radio button is
+ * chosen; slitCount, with the text of the slit count field when Enter is pressed in it
+ * or the grating is chosen; and the three choice boxes by their names, with the chosen
+ * item. Entering a value in the text field of a slider moves the slider, so it is
+ * recorded as a slider event.
+ * <br>
+ * The events are written to a buffer on the FX thread, which only goes to the file when it
+ * is full or the recording is stopped, at the latest when the program exits.
+ */
+public class InteractionRecorder {
+
+    /** Control names, as in Controller */
+    public static final String WAVELENGTH = "wavelengthSlider", SEPARATION = "separationSlider",
+            WIDTH = "widthSlider", DISTANCE = "distanceSlider", SLITS = "slits", SLIT_COUNT = "slitCount",
+            SOURCE = "sourceChoice", PROPAGATION = "propagationChoice", BLUR = "blurChoice";
+    /** First line of a trace */
+    static final String HEADER = "# Diffraction interaction trace 1: milliseconds, control, value";
+    private static final String INITIAL = "init";
+    /** Characters buffered before they are written, some thousand events */
+    private static final int BUFFER = 1 << 16;
+
+    private final BufferedWriter writer;
+    private final long start = System.nanoTime();
+    private boolean closed;
+
+    private InteractionRecorder(Path trace) throws IOException{
+        writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(trace), StandardCharsets.UTF_8), BUFFER);
+        writer.write(HEADER);
+        writer.newLine();
+    }
+
+    /**
+     * Starts recording the controls of a controller into a trace file, replacing it.
+     * Must be called on the FX thread, once the controls are set up.
+     *
+     * @param controller - the controller whose controls are recorded
+     * @param trace - the file to write
+     * @return the recorder
+     * @throws IOException if the file cannot be written
+     */
+    public static InteractionRecorder attach(Controller controller, Path trace) throws IOException{
+        InteractionRecorder recorder = new InteractionRecorder(trace);
+        for(Event event : snapshot(controller)){
+            recorder.write(event);
+        }
+        recorder.listen(controller.wavelengthSlider, WAVELENGTH);
+        recorder.listen(controller.separationSlider, SEPARATION);
+        recorder.listen(controller.widthSlider, WIDTH);
+        recorder.listen(controller.distanceSlider, DISTANCE);
+        recorder.listen(controller.singleBtn, "single", null);
+        recorder.listen(controller.doubleBtn, "double", null);
+        recorder.listen(controller.gratingBtn, "grating", controller);
+        //Added handlers run before the onAction handler of the field, so the text is still as typed
+        controller.slitCountTextArea.addEventHandler(ActionEvent.ACTION,
+                (event) -> recorder.record(SLIT_COUNT, controller.slitCountTextArea.getText()));
+        recorder.listen(controller.sourceChoice, SOURCE);
+        recorder.listen(controller.propagationChoice, PROPAGATION);
+        recorder.listen(controller.blurChoice, BLUR);
+        Runtime.getRuntime().addShutdownHook(new Thread(recorder::close));
+        return recorder;
+    }
+
+    /**
+     * @param controller - a controller
+     * @return the state of all its controls, as initial events
+     */
+    static List<Event> snapshot(Controller controller){
+        List<Event> events = new ArrayList<>();
+        events.add(new Event(Double.NaN, WAVELENGTH, Double.toString(controller.wavelengthSlider.getValue())));
+        events.add(new Event(Double.NaN, SEPARATION, Double.toString(controller.separationSlider.getValue())));
+        events.add(new Event(Double.NaN, WIDTH, Double.toString(controller.widthSlider.getValue())));
+        events.add(new Event(Double.NaN, DISTANCE, Double.toString(controller.distanceSlider.getValue())));
+        events.add(new Event(Double.NaN, SLIT_COUNT, controller.slitCountTextArea.getText()));
+        events.add(new Event(Double.NaN, SLITS, controller.gratingBtn.isSelected() ? "grating" : controller.doubleBtn.isSelected() ? "double" : "single"));
+        events.add(new Event(Double.NaN, SOURCE, controller.sourceChoice.getValue()));
+        events.add(new Event(Double.NaN, PROPAGATION, controller.propagationChoice.getValue().name()));
+        events.add(new Event(Double.NaN, BLUR, controller.blurChoice.getValue()));
+        return events;
+    }
+
+    private void listen(Slider slider, String name){
+        slider.valueProperty().addListener((observable, oldValue, newValue) -> record(name, Double.toString(newValue.doubleValue())));
+    }
+
+    private void listen(RadioButton button, String value, Controller grating){
+        button.selectedProperty().addListener((observable, oldValue, newValue) -> {
+            if(newValue){
+                if(grating != null) //The grating takes the slit count of the field
+                    record(SLIT_COUNT, grating.slitCountTextArea.getText());
+                record(SLITS, value);
+            }
+        });
+    }
+
+    private void listen(ChoiceBox<?> choice, String name){
+        choice.valueProperty().addListener((observable, oldValue, newValue) -> {
+            if(newValue != null)
+                record(name, (newValue instanceof Enum) ? ((Enum<?>) newValue).name() : newValue.toString());
+        });
+    }
+
+    private void record(String control, String value){
+        write(new Event((System.nanoTime()-start)/1e6, control, value));
+    }
+
+    private synchronized void write(Event event){
+        if(closed)
+            return;
+        try {
+            writer.write(event.toString());
+            writer.newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stops recording, writes the buffered events and closes the trace.
+     */
+    public synchronized void close(){
+        if(closed)
+            return;
+        closed = true;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a trace.
+     *
+     * @param trace - a file written by a recorder
+     * @return its events, the initial ones first
+     * @throws IOException if the file cannot be read or is not a trace
+     */
+    public static List<Event> read(Path trace) throws IOException{
+        List<Event> events = new ArrayList<>();
+        try(BufferedReader reader = Files.newBufferedReader(trace)){
+            String line;
+            int number = 0;
+            while((line = reader.readLine()) != null){
+                number++;
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] parts = line.split("\t", 3);
+                if(parts.length != 3)
+                    throw new IOException(trace + ":" + number + ": expected time, control and value");
+                try {
+                    events.add(new Event(parts[0].equals(INITIAL) ? Double.NaN : Double.parseDouble(parts[0]), parts[1], parts[2]));
+                } catch (NumberFormatException e) {
+                    throw new IOException(trace + ":" + number + ": bad time " + parts[0]);
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Changes a control of a controller as the recorded event did, which calls the same
+     * handlers as the user did. Must be called on the FX thread. Choosing a spectrum file
+     * opens a dialog, so it is not replayed.
+     *
+     * @param controller - the controller to change
+     * @param event - the event
+     */
+    public static void apply(Controller controller, Event event){
+        String value = event.getValue();
+        switch (event.getControl()) {
+            case WAVELENGTH:
+                controller.wavelengthSlider.setValue(Double.parseDouble(value));
+                break;
+            case SEPARATION:
+                controller.separationSlider.setValue(Double.parseDouble(value));
+                break;
+            case WIDTH:
+                controller.widthSlider.setValue(Double.parseDouble(value));
+                break;
+            case DISTANCE:
+                controller.distanceSlider.setValue(Double.parseDouble(value));
+                break;
+            case SLITS:
+                RadioButton button = value.equals("grating") ? controller.gratingBtn : value.equals("double") ? controller.doubleBtn : controller.singleBtn;
+                button.fire();
+                break;
+            case SLIT_COUNT:
+                controller.slitCountTextArea.setText(value);
+                if(controller.gratingBtn.isSelected())
+                    controller.slitCountTextArea.fireEvent(new ActionEvent());
+                break;
+            case SOURCE:
+                if(!value.equals("File..."))
+                    controller.sourceChoice.setValue(value);
+                break;
+            case PROPAGATION:
+                controller.propagationChoice.setValue(PropagationMode.valueOf(value));
+                break;
+            case BLUR:
+                controller.blurChoice.setValue(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown control " + event.getControl());
+        }
+    }
+
+    /**
+     * A change of a control.
+     */
+    public static final class Event {
+        private final double time;
+        private final String control, value;
+
+        /**
+         * @param time - milliseconds since the recording started, NaN for the initial state
+         * @param control - name of the control
+         * @param value - its new value
+         */
+        public Event(double time, String control, String value){
+            this.time = time;
+            this.control = control;
+            this.value = value;
+        }
+
+        /**
+         * @return milliseconds since the recording started, NaN for the initial state
+         */
+        public double getTime(){
+            return time;
+        }
+
+        /**
+         * @return true if the event is part of the initial state
+         */
+        public boolean isInitial(){
+            return Double.isNaN(time);
+        }
+
+        /**
+         * @return name of the control
+         */
+        public String getControl(){
+            return control;
+        }
+
+        /**
+         * @return new value of the control
+         */
+        public String getValue(){
+            return value;
+        }
+
+        @Override
+        public String toString(){
+            return (isInitial() ? INITIAL : String.format(Locale.ROOT, "%.3f", time)) + "\t" + control + "\t" + value;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency Histogram Class
+ * <br>
+ * Counts durations in nanoseconds in buckets of logarithmic width, like HdrHistogram: every
+ * power of two is split into SUB_BUCKETS linear buckets, so any recorded value is known to
+ * within about 3% over the whole range from one nanosecond to centuries, with a fixed array
+ * of counters.
+ * <br>
+ * Recording is lock-free and never allocates, so any number of threads may record into the
+ * same histogram while another one reads percentiles from it. A reader sees every recorded
+ * value eventually, but not necessarily the ones recorded while it is reading.
+ */
+public final class LatencyHistogram {
+
+    /** Linear buckets per power of two, a power of two itself */
+    public static final int SUB_BUCKETS = 32;
+    private static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+    private static final int BUCKETS = (64 - SUB_BITS)*SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Adds a duration.
+     *
+     * @param nanos - the duration in nanoseconds, negative values being counted as 0
+     */
+    public void record(long nanos){
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while(value > (current = max.get()) && !max.compareAndSet(current, value)){
+            //Lost the race against a larger or concurrent maximum, look again
+        }
+    }
+
+    /**
+     * Values below 2*SUB_BUCKETS have a bucket each; above, the bucket is given by the
+     * position of the highest bit and the SUB_BITS bits after it.
+     */
+    private static int bucket(long value){
+        if(value < 2*SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift*SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the smallest value counted in a bucket
+     */
+    private static long lowest(int bucket){
+        if(bucket < 2*SUB_BUCKETS)
+            return bucket;
+        int shift = bucket/SUB_BUCKETS - 1;
+        return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * @return the largest value counted in a bucket
+     */
+    private static long highest(int bucket){
+        return (bucket + 1 < BUCKETS) ? lowest(bucket+1) - 1 : Long.MAX_VALUE;
+    }
+
+    /**
+     * @param quantile - between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return the value that quantile of the recorded durations do not exceed, in
+     * nanoseconds, to within the width of its bucket, or 0 if nothing was recorded
+     */
+    public long getValueAtQuantile(double quantile){
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for(int b=0;b<BUCKETS;b++){
+            snapshot[b] = counts.get(b);
+            total += snapshot[b];
+        }
+        if(total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(Math.min(1, Math.max(0, quantile))*total));
+        long seen = 0;
+        for(int b=0;b<BUCKETS;b++){
+            seen += snapshot[b];
+            if(seen >= rank)
+                return Math.min(max.get(), lowest(b) + (highest(b) - lowest(b))/2);
+        }
+        return max.get();
+    }
+
+    /**
+     * @return number of recorded durations
+     */
+    public long getCount(){
+        return count.sum();
+    }
+
+    /**
+     * @return mean of the recorded durations in nanoseconds, 0 if nothing was recorded
+     */
+    public double getMean(){
+        long n = count.sum();
+        return (n == 0) ? 0 : (double) sum.sum()/n;
+    }
+
+    /**
+     * @return the longest recorded duration in nanoseconds
+     */
+    public long getMax(){
+        return max.get();
+    }
+
+    /**
+     * Forgets every recorded duration. Durations recorded at the same time may be kept
+     * in part.
+     */
+    public void reset(){
+        for(int b=0;b<BUCKETS;b++){
+            counts.set(b, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+}
@@ -1,22 +1,27 @@
 import javafx.application.Application;
-import javafx.fxml.FXMLLoader;
-import javafx.scene.Parent;
-import javafx.scene.Scene;
-import javafx.stage.Stage;
 
-public class Main extends Application {
-
-    @Override
-    public void start(Stage primaryStage) throws Exception{
-        Parent root = FXMLLoader.load(getClass().getResource("sample.fxml"));
-        primaryStage.setTitle("Single and Double Slit Diffraction");
-        primaryStage.setScene(new Scene(root, 800, 600));
-        primaryStage.setResizable(false);
-        primaryStage.show();
-    }
+import java.io.IOException;
+import java.util.Arrays;
 
+/**
+ * Main Class
+ * <br>
+ * Starts the program, or the ComputeServer without any window. Main does not extend
+ * Application itself, because the java launcher starts the JavaFX toolkit, which needs a
+ * display, before the main method of an Application is called.
+ */
+public class Main {
 
-    public static void main(String[] args) {
-        launch(args);
+    /**
+     * Starts the program, or with --server the ComputeServer without any window.
+     *
+     * @param args - --server followed by the settings of ComputeServer, or nothing
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--server")) {
+            ComputeServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        Application.launch(DiffractionApplication.class, args);
     }
 }
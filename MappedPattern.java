@@ -0,0 +1,85 @@
+/**
+ * Mapped Pattern Class
+ * <br>
+ * Reusable buffers for a pattern mapped to the screen by
+ * {@link DiffractionCalculator#MapValues(double, double, MappedPattern, int[])}: the x and y
+ * coordinate of every point of the graph as floats, and the packed ARGB color of every
+ * point for the intensity map. The arrays only grow, so once they are large enough mapping
+ * a pattern allocates nothing.
+ * <br>
+ * The arrays may be longer than the pattern; only the first {@link #size()} values are set.
+ */
+public final class MappedPattern {
+
+    //Color lookup tables of the three channels, indexed by the level 0-255
+    private static final int[] BLUE = channelTable(0), GREEN = channelTable(8), RED = channelTable(16);
+
+    private float[] x = new float[0], y = new float[0];
+    private int[] colors = new int[0];
+    private int size;
+
+    /**
+     * Makes room for the given number of points.
+     *
+     * @param n - number of points of the next pattern
+     */
+    void resize(int n){
+        if(x.length < n){
+            x = new float[n];
+            y = new float[n];
+            colors = new int[n];
+        }
+        size = n;
+    }
+
+    /**
+     * @return number of points of the mapped pattern
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @return x coordinate of every point in pixels
+     */
+    public float[] getX(){
+        return x;
+    }
+
+    /**
+     * @return y coordinate of every point in pixels, 0 being the top
+     */
+    public float[] getY(){
+        return y;
+    }
+
+    /**
+     * @return opaque ARGB color of every point
+     */
+    public int[] getColors(){
+        return colors;
+    }
+
+    /**
+     * Returns the shared 256 entry lookup table from an intensity level to an ARGB color
+     * with that level in one channel.
+     *
+     * @param shift - bit position of the channel, 0 for blue, 8 for green and 16 for red
+     * @return the lookup table, which must not be modified
+     */
+    public static int[] lookupTable(int shift){
+        if(shift == 0)
+            return BLUE;
+        if(shift == 8)
+            return GREEN;
+        return RED;
+    }
+
+    private static int[] channelTable(int shift){
+        int[] table = new int[256];
+        for(int level=0;level<256;level++){
+            table[level] = 0xFF000000 | (level << shift);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.Arrays;
+
+/**
+ * Min Max Pyramid Class
+ * <br>
+ * Multi-resolution summary of a sampled pattern for drawing it at any zoom level in a time
+ * that depends on the number of pixel columns rather than on the number of samples.
+ * <br>
+ * Level 0 is the pattern itself. Each level above holds, for every pair of neighbouring
+ * blocks of the level below, the smallest and the largest value of both, so a block of
+ * level k summarizes 2^k samples. To draw a range of x coordinates into a number of
+ * columns, the samples falling into each column are found by a binary search on x and
+ * covered with the largest blocks that fit, at most two per level, so each column costs a
+ * number of lookups that only grows with the logarithm of the number of samples. Drawing a
+ * vertical line from the minimum to the maximum of every column shows every peak and
+ * every minimum of the pattern, unlike drawing every n-th sample.
+ * <br>
+ * A pyramid is immutable once built, can be handed from the thread that built it to the
+ * FX thread and can be drawn from several threads at once. It takes about as much memory
+ * as the pattern itself.
+ */
+public final class MinMaxPyramid {
+
+    private final double[] x, values;
+    private final int[] colors;
+    //mins[k] and maxs[k] summarize blocks of 2^(k+1) samples
+    private final float[][] mins, maxs;
+
+    /**
+     * Builds the pyramid of a pattern. The arrays are kept, not copied, and must not be
+     * modified afterwards.
+     *
+     * @param x - x coordinates of the samples, in increasing order
+     * @param values - value of each sample
+     * @param colors - ARGB color of each sample for broadband light, or null
+     */
+    public MinMaxPyramid(double[] x, double[] values, int[] colors){
+        this.x = x;
+        this.values = values;
+        this.colors = colors;
+        int levels = 0;
+        for(int n=x.length;n > 1;n=(n+1)/2){
+            levels++;
+        }
+        mins = new float[levels][];
+        maxs = new float[levels][];
+        int n = x.length;
+        for(int k=0;k<levels;k++){
+            int m = (n+1)/2;
+            float[] mn = new float[m], mx = new float[m];
+            if(k == 0){
+                for(int b=0;b<m;b++){
+                    double v0 = values[2*b], v1 = values[Math.min(2*b+1, n-1)];
+                    mn[b] = (float) (v0 < v1 ? v0 : v1);
+                    mx[b] = (float) (v0 < v1 ? v1 : v0);
+                }
+            }
+            else {
+                float[] belowMin = mins[k-1], belowMax = maxs[k-1];
+                for(int b=0;b<m;b++){
+                    int j = Math.min(2*b+1, n-1);
+                    mn[b] = Math.min(belowMin[2*b], belowMin[j]);
+                    mx[b] = Math.max(belowMax[2*b], belowMax[j]);
+                }
+            }
+            mins[k] = mn;
+            maxs[k] = mx;
+            n = m;
+        }
+    }
+
+    /**
+     * Maps the x range from xMin to xMax onto the given number of pixel columns, writing two
+     * points per column, at the minimum and the maximum of the column, in the order that
+     * continues the line from the previous column. Columns without samples take the value
+     * of the nearest sample. The time taken is recorded in PerfStats as the MAP stage.
+     *
+     * @param xMin - x coordinate at the left edge
+     * @param xMax - x coordinate at the right edge
+     * @param width - width of the graph in pixels, one column per pixel
+     * @param height - height of the graph in pixels
+     * @param out - receives the points and their colors
+     * @param colorTable - 256 ARGB colors indexed by the intensity level, used when the
+     *                   pattern has no colors of its own
+     */
+    public void decimate(double xMin, double xMax, double width, double height, MappedPattern out, int[] colorTable){
+        long began = PerfStats.start();
+        int columns = Math.max(1, (int) Math.ceil(width));
+        out.resize(2*columns);
+        float[] xs = out.getX();
+        float[] ys = out.getY();
+        int[] cs = out.getColors();
+        double columnWidth = (xMax-xMin)/columns;
+        double previous = Double.NaN;
+        int start = firstIndexAtOrAfter(xMin);
+        for(int c=0;c<columns;c++){
+            int end = firstIndexAtOrAfter(xMin + (c+1)*columnWidth);
+            double lo, hi;
+            int representative;
+            if(end > start){
+                //Going up one level at a time, takes the blocks at the ends of the range
+                //that do not pair up, which needs at most two blocks per level
+                lo = Double.MAX_VALUE;
+                hi = -Double.MAX_VALUE;
+                int first = start, last = end;
+                for(int k=0;first < last;k++){
+                    if((first & 1) == 1){
+                        lo = Math.min(lo, blockMin(k, first));
+                        hi = Math.max(hi, blockMax(k, first));
+                        first++;
+                    }
+                    if((last & 1) == 1){
+                        last--;
+                        lo = Math.min(lo, blockMin(k, last));
+                        hi = Math.max(hi, blockMax(k, last));
+                    }
+                    first >>= 1;
+                    last >>= 1;
+                }
+                representative = (start+end-1) >>> 1;
+            }
+            else { //No sample in this column, the line crosses it
+                representative = nearest(xMin + (c+0.5)*columnWidth);
+                lo = hi = values[representative];
+            }
+            //Continues from whichever end is closer to the previous column
+            boolean rising = Double.isNaN(previous) || Math.abs(previous-lo) <= Math.abs(previous-hi);
+            double entry = rising ? lo : hi, second = rising ? hi : lo;
+            float px = (float) (c + 0.5);
+            xs[2*c] = px;
+            ys[2*c] = (float) (height - entry*height);
+            xs[2*c+1] = px;
+            ys[2*c+1] = (float) (height - second*height);
+            int color;
+            if(colors != null)
+                color = colors[representative];
+            else {
+                int level = (int) (hi*255);
+                color = colorTable[Math.max(0, Math.min(255, level))];
+            }
+            cs[2*c] = color;
+            cs[2*c+1] = color;
+            previous = second;
+            start = end;
+        }
+        PerfStats.record(PerfStats.Stage.MAP, began);
+    }
+
+    private double blockMin(int level, int block){
+        return (level == 0) ? values[block] : mins[level-1][block];
+    }
+
+    private double blockMax(int level, int block){
+        return (level == 0) ? values[block] : maxs[level-1][block];
+    }
+
+    private int firstIndexAtOrAfter(double position){
+        int i = Arrays.binarySearch(x, position);
+        return (i >= 0) ? i : -i-1;
+    }
+
+    private int nearest(double position){
+        int i = firstIndexAtOrAfter(position);
+        if(i >= x.length)
+            return x.length-1;
+        if(i > 0 && position-x[i-1] < x[i]-position)
+            return i-1;
+        return i;
+    }
+
+    /**
+     * @return number of samples of the pattern
+     */
+    public int size(){
+        return x.length;
+    }
+
+    /**
+     * @return x coordinate of the first sample
+     */
+    public double getFirstX(){
+        return x[0];
+    }
+
+    /**
+     * @return x coordinate of the last sample
+     */
+    public double getLastX(){
+        return x[x.length-1];
+    }
+}
@@ -0,0 +1,539 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pattern Archive Class
+ * <br>
+ * Reads diffraction patterns stored in the binary .dfp format, which holds any number of
+ * patterns sampled on the same grid, each of any length up to billions of samples. Files
+ * are written with {@link #create(Path, int, double[], int)} or
+ * {@link #create(Path, int, double, double, long, int)}.
+ * <br>
+ * All values are little endian. The file is laid out as:
+ * <pre>
+ * header      64 bytes  magic "DFPA", version, data type, samples per chunk, samples per
+ *                       pattern, number of patterns and the offsets of the sections below
+ * grid                  0 followed by the first x and the step for an even grid, or 1
+ *                       followed by every x coordinate as float64
+ * data                  the samples of every pattern, one after the other, as float32 or
+ *                       float64, cut into chunks of samples per chunk values
+ * parameters  64 bytes per pattern: slit width, distance, wavelength, number of slits,
+ *                       separation and propagation mode, as float64, and two unused values
+ * index       24 bytes per chunk: file offset, number of samples, smallest and largest
+ *                       value of the chunk as float32, and 4 unused bytes
+ * </pre>
+ * The header is written last, so a file whose writer did not finish is recognized by its
+ * zero magic number. The parameters of a pattern that used an aperture mask or a source
+ * spectrum are stored without them.
+ * <br>
+ * An open archive keeps the header, grid, parameters and index in memory and maps the data
+ * section on demand, one window of at most 1 GB at a time, so opening is immediate and
+ * reading a range of samples only touches the pages of that range. The samples are copied
+ * straight out of the mapping into the caller's array; nothing is ever converted to text.
+ * Reading is safe from several threads at once.
+ */
+public final class PatternArchive implements Closeable {
+
+    /** Data type of 32 bit floating point samples */
+    public static final int FLOAT32 = 0;
+    /** Data type of 64 bit floating point samples */
+    public static final int FLOAT64 = 1;
+
+    /** Samples per chunk used unless another value is given */
+    public static final int DEFAULT_CHUNK = 1 << 16;
+
+    static final int MAGIC = 0x41504644; //"DFPA" in little endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int PARAMETERS_SIZE = 64;
+    static final int INDEX_ENTRY_SIZE = 24;
+
+    /** Largest part of the data section mapped at once */
+    private static final long MAP_WINDOW = 1L << 30;
+
+    private final FileChannel channel;
+    private final int dataType, elementSize, chunkSamples;
+    private final long samplesPerPattern, patternCount, dataOffset, mapWindow;
+    private final boolean uniform;
+    private final double x0, dx;
+    private final double[] grid;
+    private final DiffractionParameters[] parameters;
+    private final ByteBuffer index;
+    //Mapped on first use; the array publishes each mapping safely to the other reading threads
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+
+    private PatternArchive(FileChannel channel) throws IOException{
+        this.channel = channel;
+        ByteBuffer header = read(channel, 0, HEADER_SIZE);
+        if(header.getInt(0) != MAGIC)
+            throw new IOException("Not a diffraction pattern archive, or not completely written");
+        int version = header.getInt(4);
+        if(version > VERSION)
+            throw new IOException("Archive version " + version + " is newer than the supported version " + VERSION);
+        dataType = header.getInt(8);
+        if(dataType != FLOAT32 && dataType != FLOAT64)
+            throw new IOException("Unknown data type " + dataType);
+        elementSize = elementSize(dataType);
+        chunkSamples = header.getInt(12);
+        samplesPerPattern = header.getLong(16);
+        patternCount = header.getLong(24);
+        long gridOffset = header.getLong(32);
+        dataOffset = header.getLong(40);
+        long parametersOffset = header.getLong(48);
+        long indexOffset = header.getLong(56);
+
+        ByteBuffer gridKind = read(channel, gridOffset, 24);
+        uniform = gridKind.getLong(0) == 0;
+        if(uniform){
+            x0 = gridKind.getDouble(8);
+            dx = gridKind.getDouble(16);
+            grid = null;
+        }
+        else {
+            x0 = 0;
+            dx = 0;
+            grid = new double[(int) samplesPerPattern];
+            read(channel, gridOffset+8, 8L*samplesPerPattern).asDoubleBuffer().get(grid);
+        }
+
+        ByteBuffer table = read(channel, parametersOffset, patternCount*PARAMETERS_SIZE);
+        parameters = new DiffractionParameters[(int) patternCount];
+        for(int i=0;i<patternCount;i++){
+            int base = i*PARAMETERS_SIZE;
+            parameters[i] = new DiffractionParameters(table.getDouble(base), table.getDouble(base+8), table.getDouble(base+16),
+                    table.getDouble(base+24), table.getDouble(base+32))
+                    .withMode(PropagationMode.values()[(int) table.getDouble(base+40)]);
+        }
+        index = read(channel, indexOffset, patternCount*chunksPerPattern()*INDEX_ENTRY_SIZE);
+
+        //Windows hold a whole number of samples
+        mapWindow = MAP_WINDOW - MAP_WINDOW % elementSize;
+        long dataSize = patternCount*samplesPerPattern*elementSize;
+        windows = new AtomicReferenceArray<>((int) Math.max(1, (dataSize+mapWindow-1)/mapWindow));
+    }
+
+    /**
+     * Opens an archive for reading.
+     *
+     * @param file - the .dfp file
+     * @return the open archive, which must be closed
+     * @throws IOException if the file cannot be read or is not an archive
+     */
+    public static PatternArchive open(Path file) throws IOException{
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return new PatternArchive(channel);
+        }
+        catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a new archive of patterns sampled at the given x coordinates.
+     *
+     * @param file - the file to create or replace
+     * @param dataType - FLOAT32 or FLOAT64
+     * @param grid - x coordinate of every sample in millimeters
+     * @param chunkSamples - samples per chunk
+     * @return the writer, which must be closed to complete the file
+     * @throws IOException if the file cannot be created
+     */
+    public static Writer create(Path file, int dataType, double[] grid, int chunkSamples) throws IOException{
+        return new Writer(file, dataType, grid, 0, 0, grid.length, chunkSamples);
+    }
+
+    /**
+     * Creates a new archive of patterns sampled on an evenly spaced grid, which may be
+     * longer than any array.
+     *
+     * @param file - the file to create or replace
+     * @param dataType - FLOAT32 or FLOAT64
+     * @param x0 - x coordinate of the first sample in millimeters
+     * @param dx - distance between samples in millimeters
+     * @param samples - samples per pattern
+     * @param chunkSamples - samples per chunk
+     * @return the writer, which must be closed to complete the file
+     * @throws IOException if the file cannot be created
+     */
+    public static Writer create(Path file, int dataType, double x0, double dx, long samples, int chunkSamples) throws IOException{
+        return new Writer(file, dataType, null, x0, dx, samples, chunkSamples);
+    }
+
+    /**
+     * Computes a pattern with closed form intensities at any resolution, one chunk at a
+     * time, and writes it as an archive holding that one pattern on an even grid.
+     *
+     * @param file - the file to create or replace
+     * @param p - diffraction parameters whose pattern is closed form
+     * @param samples - number of samples, odd to have one at the center
+     * @param halfExtent - half the width of the screen in millimeters
+     * @throws IOException if the file cannot be written
+     */
+    public static void export(Path file, DiffractionParameters p, long samples, double halfExtent) throws IOException{
+        if(!p.isClosedForm() || p.isPolychromatic())
+            throw new IllegalArgumentException("Only closed form monochromatic patterns can be computed chunk by chunk");
+        double dx = 2*halfExtent/(samples-1);
+        int chunk = (int) Math.min(DEFAULT_CHUNK, samples);
+        double[] x = new double[chunk];
+        double[] values = new double[chunk];
+        try(Writer writer = create(file, FLOAT32, -halfExtent, dx, samples, DEFAULT_CHUNK)){
+            writer.beginPattern(p);
+            for(long first=0;first<samples;first+=chunk){
+                int count = (int) Math.min(chunk, samples-first);
+                for(int i=0;i<count;i++){
+                    x[i] = -halfExtent + (first+i)*dx;
+                }
+                IntensityKernel.compute(p, x, values, 0, count);
+                writer.write(values, 0, count);
+            }
+            writer.endPattern();
+        }
+    }
+
+    private static int elementSize(int dataType){
+        return dataType == FLOAT32 ? 4 : 8;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, long size) throws IOException{
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Section of " + size + " bytes is too large");
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, position+buffer.position()) < 0)
+                throw new IOException("Archive is truncated");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Copies samples of a pattern into an array.
+     *
+     * @param pattern - number of the pattern
+     * @param first - first sample to copy
+     * @param out - receives the samples
+     * @param offset - position in out of the first sample
+     * @param count - number of samples to copy
+     * @throws IOException if the data cannot be mapped
+     */
+    public void read(int pattern, long first, double[] out, int offset, int count) throws IOException{
+        read(pattern, first, 1, out, offset, count);
+    }
+
+    /**
+     * Copies every stride-th sample of a pattern into an array, which gives a quick
+     * overview of a long pattern while only touching the pages of the copied samples.
+     *
+     * @param pattern - number of the pattern
+     * @param first - first sample to copy
+     * @param stride - distance between the copied samples
+     * @param out - receives the samples
+     * @param offset - position in out of the first sample
+     * @param count - number of samples to copy
+     * @throws IOException if the data cannot be mapped
+     */
+    public void read(int pattern, long first, long stride, double[] out, int offset, int count) throws IOException{
+        if(pattern < 0 || pattern >= patternCount || first < 0 || stride < 1 || first+(count-1)*stride >= samplesPerPattern)
+            throw new IndexOutOfBoundsException("Samples " + first + " to " + (first+(count-1)*stride) + " of pattern " + pattern);
+        long base = (pattern*samplesPerPattern + first)*elementSize;
+        for(int i=0;i<count;i++){
+            long position = base + i*stride*elementSize;
+            MappedByteBuffer window = window((int) (position/mapWindow));
+            int at = (int) (position%mapWindow);
+            out[offset+i] = (dataType == FLOAT32) ? window.getFloat(at) : window.getDouble(at);
+        }
+    }
+
+    private MappedByteBuffer window(int number) throws IOException{
+        MappedByteBuffer window = windows.get(number);
+        if(window == null){
+            synchronized (windows){
+                window = windows.get(number);
+                if(window == null){
+                    long start = number*mapWindow;
+                    long size = Math.min(mapWindow, patternCount*samplesPerPattern*elementSize - start);
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset+start, size);
+                    window.order(ByteOrder.LITTLE_ENDIAN);
+                    windows.set(number, window);
+                }
+            }
+        }
+        return window;
+    }
+
+    /**
+     * @param sample - number of a sample
+     * @return its x coordinate in millimeters
+     */
+    public double getX(long sample){
+        return uniform ? x0 + sample*dx : grid[(int) sample];
+    }
+
+    /**
+     * @param pattern - number of the pattern
+     * @return the parameters the pattern was calculated for
+     */
+    public DiffractionParameters getParameters(int pattern){
+        return parameters[pattern];
+    }
+
+    /**
+     * @return number of chunks of each pattern
+     */
+    public int chunksPerPattern(){
+        return (int) ((samplesPerPattern+chunkSamples-1)/chunkSamples);
+    }
+
+    /**
+     * @param pattern - number of the pattern
+     * @param chunk - number of the chunk within the pattern
+     * @return smallest value of the chunk, from the index
+     */
+    public float getChunkMin(int pattern, int chunk){
+        return index.getFloat(indexPosition(pattern, chunk)+12);
+    }
+
+    /**
+     * @param pattern - number of the pattern
+     * @param chunk - number of the chunk within the pattern
+     * @return largest value of the chunk, from the index
+     */
+    public float getChunkMax(int pattern, int chunk){
+        return index.getFloat(indexPosition(pattern, chunk)+16);
+    }
+
+    private int indexPosition(int pattern, int chunk){
+        return (int) (((long) pattern*chunksPerPattern()+chunk)*INDEX_ENTRY_SIZE);
+    }
+
+    /**
+     * @return FLOAT32 or FLOAT64
+     */
+    public int getDataType(){
+        return dataType;
+    }
+
+    /**
+     * @return samples per chunk
+     */
+    public int getChunkSamples(){
+        return chunkSamples;
+    }
+
+    /**
+     * @return number of samples of every pattern
+     */
+    public long getSamplesPerPattern(){
+        return samplesPerPattern;
+    }
+
+    /**
+     * @return number of patterns in the archive
+     */
+    public int getPatternCount(){
+        return (int) patternCount;
+    }
+
+    @Override
+    public void close() throws IOException{
+        channel.close();
+    }
+
+    /**
+     * Writer Class
+     * <br>
+     * Appends patterns to a new archive. A pattern is started with
+     * {@link #beginPattern(DiffractionParameters)}, its samples are given in order in any
+     * number of {@link #write(double[], int, int)} calls, and it is finished with
+     * {@link #endPattern()}, so patterns longer than any array can be written piece by
+     * piece. Samples are converted into a reused direct buffer and written a chunk at a
+     * time. A writer is used by one thread at a time.
+     */
+    public static final class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final int dataType, elementSize, chunkSamples;
+        private final long samples, gridOffset, dataOffset;
+        private final ByteBuffer chunk;
+
+        //Parameters and index entries, kept until close since their number is not known before
+        private ByteBuffer parameters, index;
+        private long patterns, written, position;
+        private boolean inPattern;
+        private float chunkMin, chunkMax;
+
+        private Writer(Path file, int dataType, double[] grid, double x0, double dx, long samples, int chunkSamples) throws IOException{
+            if(dataType != FLOAT32 && dataType != FLOAT64)
+                throw new IllegalArgumentException("Unknown data type " + dataType);
+            if(samples < 1 || chunkSamples < 1)
+                throw new IllegalArgumentException("Patterns and chunks need at least one sample");
+            this.dataType = dataType;
+            this.elementSize = elementSize(dataType);
+            this.chunkSamples = chunkSamples;
+            this.samples = samples;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+            chunk = ByteBuffer.allocateDirect(chunkSamples*elementSize).order(ByteOrder.LITTLE_ENDIAN);
+            parameters = ByteBuffer.allocate(16*PARAMETERS_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            index = ByteBuffer.allocate(16*INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            //The header stays zero until close
+            gridOffset = HEADER_SIZE;
+            ByteBuffer gridBytes;
+            if(grid == null){
+                gridBytes = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+                gridBytes.putLong(0).putDouble(x0).putDouble(dx);
+            }
+            else {
+                gridBytes = ByteBuffer.allocate(8+8*grid.length).order(ByteOrder.LITTLE_ENDIAN);
+                gridBytes.putLong(1);
+                gridBytes.asDoubleBuffer().put(grid);
+                gridBytes.position(gridBytes.capacity());
+            }
+            gridBytes.flip();
+            writeFully(gridBytes, gridOffset);
+            dataOffset = gridOffset + gridBytes.capacity();
+            position = dataOffset;
+        }
+
+        /**
+         * Starts a new pattern.
+         *
+         * @param p - the parameters the pattern was calculated for
+         */
+        public void beginPattern(DiffractionParameters p){
+            if(inPattern)
+                throw new IllegalStateException("The previous pattern is not finished");
+            parameters = ensure(parameters, PARAMETERS_SIZE);
+            parameters.putDouble(p.getSlitWidth()).putDouble(p.getDistanceFromScreen()).putDouble(p.getWavelength())
+                    .putDouble(p.getNumberSlits()).putDouble(p.getDistanceBetweenSlits()).putDouble(p.getMode().ordinal())
+                    .putDouble(0).putDouble(0);
+            inPattern = true;
+            written = 0;
+            resetChunk();
+        }
+
+        /**
+         * Appends samples to the current pattern.
+         *
+         * @param values - the samples
+         * @param from - first sample to write (inclusive)
+         * @param to - last sample to write (exclusive)
+         * @throws IOException if the file cannot be written
+         */
+        public void write(double[] values, int from, int to) throws IOException{
+            if(!inPattern)
+                throw new IllegalStateException("No pattern was begun");
+            if(written + (to-from) > samples)
+                throw new IllegalArgumentException("A pattern holds " + samples + " samples");
+            for(int i=from;i<to;i++){
+                double v = values[i];
+                if(dataType == FLOAT32)
+                    chunk.putFloat((float) v);
+                else
+                    chunk.putDouble(v);
+                chunkMin = Math.min(chunkMin, (float) v);
+                chunkMax = Math.max(chunkMax, (float) v);
+                written++;
+                if(!chunk.hasRemaining())
+                    flushChunk();
+            }
+        }
+
+        /**
+         * Finishes the current pattern, which must have all its samples.
+         *
+         * @throws IOException if the file cannot be written
+         */
+        public void endPattern() throws IOException{
+            if(written != samples)
+                throw new IllegalStateException("Pattern has " + written + " of " + samples + " samples");
+            if(chunk.position() > 0)
+                flushChunk();
+            inPattern = false;
+            patterns++;
+        }
+
+        /**
+         * Writes a whole pattern.
+         *
+         * @param p - the parameters the pattern was calculated for
+         * @param values - all the samples of the pattern
+         * @throws IOException if the file cannot be written
+         */
+        public void append(DiffractionParameters p, double[] values) throws IOException{
+            beginPattern(p);
+            write(values, 0, values.length);
+            endPattern();
+        }
+
+        private void flushChunk() throws IOException{
+            index = ensure(index, INDEX_ENTRY_SIZE);
+            index.putLong(position).putInt(chunk.position()/elementSize).putFloat(chunkMin).putFloat(chunkMax).putInt(0);
+            chunk.flip();
+            position += writeFully(chunk, position);
+            chunk.clear();
+            resetChunk();
+        }
+
+        private void resetChunk(){
+            chunkMin = Float.POSITIVE_INFINITY;
+            chunkMax = Float.NEGATIVE_INFINITY;
+        }
+
+        private static ByteBuffer ensure(ByteBuffer buffer, int needed){
+            if(buffer.remaining() >= needed)
+                return buffer;
+            ByteBuffer larger = ByteBuffer.allocate(2*buffer.capacity()+needed).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+            larger.put(buffer);
+            return larger;
+        }
+
+        private int writeFully(ByteBuffer buffer, long at) throws IOException{
+            int size = buffer.remaining();
+            while(buffer.hasRemaining()){
+                at += channel.write(buffer, at);
+            }
+            return size;
+        }
+
+        /**
+         * Writes the parameters, the index and finally the header, completing the file.
+         *
+         * @throws IOException if the file cannot be written
+         */
+        @Override
+        public void close() throws IOException{
+            try {
+                if(inPattern)
+                    throw new IllegalStateException("The last pattern is not finished");
+                long parametersOffset = position;
+                parameters.flip();
+                position += writeFully(parameters, position);
+                long indexOffset = position;
+                index.flip();
+                position += writeFully(index, position);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC).putInt(VERSION).putInt(dataType).putInt(chunkSamples).putLong(samples).putLong(patterns)
+                        .putLong(gridOffset).putLong(dataOffset).putLong(parametersOffset).putLong(indexOffset);
+                header.flip();
+                writeFully(header, 0);
+                channel.force(true);
+            }
+            finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+import java.util.Arrays;
+
+/**
+ * Pattern Blur Class
+ * <br>
+ * Immutable description of the effects that wash out the fringes of a real experiment
+ * compared to the ideal pattern of a coherent point source of a single wavelength:
+ * <br>
+ * The source size: every point of an incoherent source of angular width sourceAngle, seen
+ * from the slits, casts its own pattern shifted on the screen, so the pattern is convolved
+ * with a box sourceAngle*distance wide.
+ * <br>
+ * The pixel width: a detector pixel averages the light falling on it, which is a
+ * convolution with a box as wide as the pixel.
+ * <br>
+ * The spectral bandwidth: light with a Gaussian spectrum of relative full width at half
+ * maximum bandwidth = FWHM/wavelength is the average of the patterns of its wavelengths.
+ * Far field patterns scale with the wavelength, so each one is the computed pattern
+ * stretched by wavelength/center wavelength; this is not a convolution, since the blur
+ * grows away from the center, and is done by interpolation over BANDWIDTH_NODES
+ * wavelengths. It is skipped for broadband light, whose spectrum is already summed, and for
+ * Fresnel patterns, which do not scale with the wavelength.
+ * <br>
+ * The two boxes are combined into one kernel, which is applied by direct convolution or by
+ * FFT convolution, whichever the cost model of {@link #usesFft(int, int)} predicts to be
+ * faster. The edge values of the pattern are taken to continue beyond the screen. The
+ * convolution needs evenly spaced samples, so other grids are interpolated to an even grid
+ * of the same size and back. Each thread keeps its own buffers, FFT plan and transformed
+ * kernel, which are reused as long as the grid and the kernel stay the same, so blurring
+ * frame after frame only allocates the few taps of the kernel.
+ */
+public final class PatternBlur {
+
+    /** Wavelengths the bandwidth is averaged over */
+    public static final int BANDWIDTH_NODES = 15;
+    /** Cost of a forward and an inverse FFT per value and stage, relative to one multiply-add of the direct convolution, as measured */
+    static final double FFT_COST = 6;
+
+    private static final ThreadLocal<Workspace> WORKSPACES = ThreadLocal.withInitial(Workspace::new);
+
+    private final double sourceAngle, pixelWidth, bandwidth;
+
+    /**
+     * @param sourceAngle - angular width of the source seen from the slits, in radians
+     * @param pixelWidth - width of a detector pixel on the screen in millimeters
+     * @param bandwidth - full width at half maximum of the spectrum divided by the wavelength
+     */
+    public PatternBlur(double sourceAngle, double pixelWidth, double bandwidth){
+        if(!(sourceAngle >= 0) || !(pixelWidth >= 0) || !(bandwidth >= 0) || bandwidth >= 1)
+            throw new IllegalArgumentException("Blur widths must be positive and the bandwidth below 1");
+        this.sourceAngle = sourceAngle;
+        this.pixelWidth = pixelWidth;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * @return angular width of the source seen from the slits, in radians
+     */
+    public double getSourceAngle(){
+        return sourceAngle;
+    }
+
+    /**
+     * @return width of a detector pixel on the screen in millimeters
+     */
+    public double getPixelWidth(){
+        return pixelWidth;
+    }
+
+    /**
+     * @return full width at half maximum of the spectrum divided by the wavelength
+     */
+    public double getBandwidth(){
+        return bandwidth;
+    }
+
+    /**
+     * @return true if applying this blur leaves every pattern unchanged
+     */
+    public boolean isNone(){
+        return sourceAngle == 0 && pixelWidth == 0 && bandwidth == 0;
+    }
+
+    /**
+     * Blurs a computed pattern in place.
+     *
+     * @param p - parameters the pattern was computed for
+     * @param x - x coordinates of the samples in millimeters, in increasing order
+     * @param values - intensity of each sample, replaced by the blurred intensity
+     * @param colors - ARGB color of each sample for broadband light, blurred as well, or null
+     */
+    public void apply(DiffractionParameters p, double[] x, double[] values, int[] colors){
+        int n = x.length;
+        if(n < 2 || isNone())
+            return;
+        Workspace w = WORKSPACES.get();
+        if(bandwidth > 0 && !p.isPolychromatic() && !p.usesFresnel())
+            w.averageBandwidth(bandwidth, x, values);
+        //The source box and the pixel box, combined into one kernel
+        double step = (x[n-1]-x[0])/(n-1);
+        double[] kernel = convolve(box(sourceAngle*p.getDistanceFromScreen(), step), box(pixelWidth, step));
+        if(kernel.length == 1)
+            return;
+        boolean uniform = isUniform(x, step);
+        w.convolve(values, n, kernel, uniform ? null : x);
+        if(colors != null){
+            double[] channel = w.channel(n);
+            for(int shift=0;shift<=16;shift+=8){
+                for(int i=0;i<n;i++){
+                    channel[i] = (colors[i] >> shift) & 0xFF;
+                }
+                w.convolve(channel, n, kernel, uniform ? null : x);
+                for(int i=0;i<n;i++){
+                    int level = (int) Math.round(Math.max(0, Math.min(255, channel[i])));
+                    colors[i] = (colors[i] & ~(0xFF << shift)) | (level << shift);
+                }
+            }
+        }
+    }
+
+    /**
+     * Predicts whether FFT convolution is faster than direct convolution.
+     *
+     * @param n - number of samples
+     * @param k - number of kernel taps
+     * @return true if the FFT is predicted to be faster
+     */
+    static boolean usesFft(int n, int k){
+        int size = FFT.nextPowerOfTwo(n+k-1);
+        double log = 31-Integer.numberOfLeadingZeros(size);
+        //Forward transform of the pattern and inverse of the product, the kernel being cached
+        double fft = FFT_COST*size*log + 4.0*size;
+        return fft < (double) n*k;
+    }
+
+    /**
+     * Samples a box of the given width centered on 0 with the given spacing, each tap
+     * weighted by the part of the box within its sample, normalized to a sum of 1.
+     */
+    private static double[] box(double width, double step){
+        int half = (int) Math.ceil(width/(2*step) - 0.5);
+        if(half <= 0 || width <= 0)
+            return new double[]{1};
+        double[] taps = new double[2*half+1];
+        double sum = 0;
+        for(int j=-half;j<=half;j++){
+            double from = Math.max(-width/2, (j-0.5)*step), to = Math.min(width/2, (j+0.5)*step);
+            taps[j+half] = Math.max(0, to-from);
+            sum += taps[j+half];
+        }
+        for(int j=0;j<taps.length;j++){
+            taps[j] /= sum;
+        }
+        return taps;
+    }
+
+    private static double[] convolve(double[] a, double[] b){
+        if(a.length == 1)
+            return b;
+        if(b.length == 1)
+            return a;
+        double[] c = new double[a.length+b.length-1];
+        for(int i=0;i<a.length;i++){
+            for(int j=0;j<b.length;j++){
+                c[i+j] += a[i]*b[j];
+            }
+        }
+        return c;
+    }
+
+    private static boolean isUniform(double[] x, double step){
+        double tolerance = 1e-9*Math.abs(step);
+        for(int i=1;i<x.length;i++){
+            if(Math.abs(x[i]-x[i-1]-step) > tolerance)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(!(o instanceof PatternBlur))
+            return false;
+        PatternBlur other = (PatternBlur) o;
+        return Double.compare(sourceAngle, other.sourceAngle) == 0 && Double.compare(pixelWidth, other.pixelWidth) == 0
+                && Double.compare(bandwidth, other.bandwidth) == 0;
+    }
+
+    @Override
+    public int hashCode(){
+        return 31*(31*Double.hashCode(sourceAngle) + Double.hashCode(pixelWidth)) + Double.hashCode(bandwidth);
+    }
+
+    @Override
+    public String toString(){
+        return "Source: " + sourceAngle + " rad, Pixel: " + pixelWidth + " mm, Bandwidth: " + bandwidth;
+    }
+
+    /**
+     * Buffers of one thread, grown as needed and never shrunk.
+     */
+    private static final class Workspace {
+        private double[] original = new double[0], padded = new double[0], even = new double[0], channel = new double[0];
+        private FFT plan;
+        private double[] re, im;
+        //Kernel whose transform is in kernelRe and kernelIm
+        private double[] kernel;
+        private double[] kernelRe, kernelIm;
+
+        double[] channel(int n){
+            if(channel.length < n)
+                channel = new double[n];
+            return channel;
+        }
+
+        /**
+         * Replaces the values with their average over a Gaussian spectrum, each wavelength
+         * being the pattern stretched by its ratio to the center wavelength.
+         */
+        void averageBandwidth(double bandwidth, double[] x, double[] values){
+            int n = x.length;
+            if(original.length < n)
+                original = new double[n];
+            System.arraycopy(values, 0, original, 0, n);
+            Arrays.fill(values, 0, n, 0);
+            double sigma = bandwidth/(2*Math.sqrt(2*Math.log(2)));
+            double total = 0;
+            for(int k=0;k<BANDWIDTH_NODES;k++){
+                //Nodes spread over two standard deviations on either side
+                double z = 4.0*k/(BANDWIDTH_NODES-1) - 2;
+                double r = sigma*z;
+                double weight = Math.exp(-z*z/2);
+                total += weight;
+                double s = 1/(1+r);
+                int j = 0;
+                for(int i=0;i<n;i++){
+                    double at = s*x[i];
+                    while(j < n-2 && x[j+1] < at)
+                        j++;
+                    double span = x[j+1]-x[j];
+                    double t = (span > 0) ? (at-x[j])/span : 0;
+                    t = Math.max(0, Math.min(1, t));
+                    values[i] += weight*(original[j] + t*(original[j+1]-original[j]));
+                }
+            }
+            for(int i=0;i<n;i++){
+                values[i] /= total;
+            }
+        }
+
+        /**
+         * Convolves the first n values with a symmetric kernel of odd length, in place. The
+         * values are first interpolated to an even grid if x is given, and back afterwards.
+         */
+        void convolve(double[] values, int n, double[] kernel, double[] x){
+            int half = kernel.length/2;
+            int length = n + 2*half;
+            if(padded.length < length)
+                padded = new double[length];
+            if(x != null)
+                toEven(x, values, n);
+            double[] source = (x != null) ? even : values;
+            //Edge values continue beyond the screen
+            Arrays.fill(padded, 0, half, source[0]);
+            System.arraycopy(source, 0, padded, half, n);
+            Arrays.fill(padded, half+n, length, source[n-1]);
+            if(usesFft(n, kernel.length)){
+                int size = FFT.nextPowerOfTwo(length);
+                prepare(size, kernel);
+                System.arraycopy(padded, 0, re, 0, length);
+                Arrays.fill(re, length, size, 0);
+                Arrays.fill(im, 0, size, 0);
+                plan.forward(re, im);
+                for(int k=0;k<size;k++){
+                    double r = re[k]*kernelRe[k] - im[k]*kernelIm[k];
+                    im[k] = re[k]*kernelIm[k] + im[k]*kernelRe[k];
+                    re[k] = r;
+                }
+                plan.inverse(re, im);
+                //Circular wrap only reaches the first 2*half values, which are not used
+                System.arraycopy(re, 2*half, source, 0, n);
+            }
+            else {
+                for(int i=0;i<n;i++){
+                    double sum = 0;
+                    for(int j=0;j<kernel.length;j++){
+                        sum += kernel[j]*padded[i+j];
+                    }
+                    source[i] = sum;
+                }
+            }
+            if(x != null)
+                fromEven(x, values, n);
+        }
+
+        /**
+         * Makes sure the plan has the given size and the kernel transform is current.
+         */
+        private void prepare(int size, double[] taps){
+            if(plan == null || plan.length() != size){
+                plan = new FFT(size);
+                re = new double[size];
+                im = new double[size];
+                kernelRe = new double[size];
+                kernelIm = new double[size];
+                kernel = null;
+            }
+            if(!Arrays.equals(kernel, taps)){
+                Arrays.fill(kernelRe, 0);
+                Arrays.fill(kernelIm, 0);
+                System.arraycopy(taps, 0, kernelRe, 0, taps.length);
+                plan.forward(kernelRe, kernelIm);
+                kernel = taps.clone();
+            }
+        }
+
+        private void toEven(double[] x, double[] values, int n){
+            if(even.length < n)
+                even = new double[n];
+            double step = (x[n-1]-x[0])/(n-1);
+            int j = 0;
+            for(int i=0;i<n;i++){
+                double at = x[0] + i*step;
+                while(j < n-2 && x[j+1] < at)
+                    j++;
+                double span = x[j+1]-x[j];
+                double t = (span > 0) ? Math.max(0, Math.min(1, (at-x[j])/span)) : 0;
+                even[i] = values[j] + t*(values[j+1]-values[j]);
+            }
+        }
+
+        private void fromEven(double[] x, double[] values, int n){
+            double step = (x[n-1]-x[0])/(n-1);
+            for(int i=0;i<n;i++){
+                double position = (x[i]-x[0])/step;
+                int j = Math.min(n-2, (int) position);
+                double t = position-j;
+                values[i] = even[j] + t*(even[j+1]-even[j]);
+            }
+        }
+    }
+}
@@ -0,0 +1,332 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Pattern Cache Class
+ * <br>
+ * Keeps recently computed patterns so that going back to parameters that were already
+ * shown, such as switching between single and double slit or dragging a slider back and
+ * forth, does not compute the pattern again. The cache holds patterns up to a budget of
+ * bytes and evicts the least recently used ones beyond it.
+ * <br>
+ * Patterns are keyed by their parameters and their grid. Every length in the key is
+ * quantized to a relative step of QUANTUM, so values closer than that share an entry.
+ * <br>
+ * Far field patterns of the slit formulas only depend on x/(wavelength*distance) for a given
+ * slit width, separation and number of slits, so a cached pattern also serves any other
+ * wavelength and distance: the pattern for a product wavelength*distance larger by a factor
+ * k is the cached one stretched by k, and is read from it by interpolation. This is only
+ * done when the stretched screen lies within the cached one and the cached pattern has at
+ * least MIN_SAMPLES_PER_FRINGE samples across its narrowest fringe, which keeps the error of
+ * the interpolation below about 1e-3. When the product is the same the samples coincide and
+ * the pattern is reused exactly.
+ * <br>
+ * All methods are synchronized, so a cache can be shared by the threads computing patterns.
+ */
+public class PatternCache {
+
+    /** Relative step the lengths of the key are quantized to */
+    public static final double QUANTUM = 1e-5;
+    /** Samples across the narrowest fringe a pattern needs to be stretched */
+    public static final double MIN_SAMPLES_PER_FRINGE = 64;
+
+    /** Approximate memory used by an entry besides its arrays */
+    private static final long ENTRY_OVERHEAD = 200;
+
+    private final long budget;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    //Entries that can be stretched, grouped by their slit geometry
+    private final Map<Shape, List<Entry>> shapes = new HashMap<>();
+    private long bytes, hits, scaledHits, misses, evictions;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param budget - largest number of bytes the cached patterns may use
+     */
+    public PatternCache(long budget){
+        this.budget = budget;
+    }
+
+    /**
+     * Looks up the pattern for the given parameters and grid.
+     *
+     * @param p - diffraction parameters
+     * @param x - x coordinates of the samples
+     * @param out - receives the intensity of each sample if the pattern is found
+     * @param colors - receives the color of each sample for broadband light, may be null
+     * @return true if the pattern was found, false if it must be computed
+     */
+    public synchronized boolean get(DiffractionParameters p, double[] x, double[] out, int[] colors){
+        Entry entry = entries.get(new Key(p, x));
+        if(entry != null && (colors == null || entry.colors != null)){
+            System.arraycopy(entry.values, 0, out, 0, x.length);
+            if(colors != null)
+                System.arraycopy(entry.colors, 0, colors, 0, x.length);
+            hits++;
+            return true;
+        }
+        if(colors == null && isScalable(p)){
+            List<Entry> candidates = shapes.get(new Shape(p));
+            if(candidates != null){
+                double product = p.getWavelength()*p.getDistanceFromScreen();
+                double first = x[0], last = x[x.length-1];
+                for(Entry candidate : candidates){
+                    //The cached pattern at s*x is the new pattern at x
+                    double s = candidate.product/product;
+                    if(s > 1+QUANTUM || s*first < candidate.x[0]-1e-12 || s*last > candidate.x[candidate.x.length-1]+1e-12)
+                        continue;
+                    if(candidate.period/candidate.maxStep < MIN_SAMPLES_PER_FRINGE && Math.abs(s-1) > QUANTUM)
+                        continue;
+                    stretch(candidate, s, x, out);
+                    entries.get(candidate.key); //Counts as a use for the eviction order
+                    scaledHits++;
+                    return true;
+                }
+            }
+        }
+        misses++;
+        return false;
+    }
+
+    /**
+     * Tells whether get would find the exact pattern for the given parameters and grid,
+     * without counting a lookup.
+     *
+     * @param p - diffraction parameters
+     * @param x - x coordinates of the samples
+     * @param colors - whether the colors of the samples are needed too
+     * @return true if the pattern is cached
+     */
+    public synchronized boolean contains(DiffractionParameters p, double[] x, boolean colors){
+        Entry entry = entries.get(new Key(p, x));
+        return entry != null && (!colors || entry.colors != null);
+    }
+
+    /**
+     * Stores a computed pattern. The arrays are copied.
+     *
+     * @param p - diffraction parameters
+     * @param x - x coordinates of the samples
+     * @param values - intensity of each sample
+     * @param colors - color of each sample for broadband light, or null
+     */
+    public synchronized void put(DiffractionParameters p, double[] x, double[] values, int[] colors){
+        Key key = new Key(p, x);
+        Entry entry = new Entry(key, p, x.clone(), Arrays.copyOf(values, x.length), colors != null ? Arrays.copyOf(colors, x.length) : null);
+        if(entry.size > budget)
+            return;
+        Entry previous = entries.put(key, entry);
+        if(previous != null)
+            forget(previous);
+        bytes += entry.size;
+        if(isScalable(p))
+            shapes.computeIfAbsent(key.shape, k -> new ArrayList<>()).add(entry);
+        Iterator<Entry> eldest = entries.values().iterator();
+        while(bytes > budget && eldest.hasNext()){
+            Entry evicted = eldest.next();
+            eldest.remove();
+            forget(evicted);
+            evictions++;
+        }
+    }
+
+    /**
+     * Removes every pattern, keeping the counters.
+     */
+    public synchronized void clear(){
+        entries.clear();
+        shapes.clear();
+        bytes = 0;
+    }
+
+    private void forget(Entry entry){
+        bytes -= entry.size;
+        List<Entry> group = shapes.get(entry.key.shape);
+        if(group != null){
+            group.remove(entry);
+            if(group.isEmpty())
+                shapes.remove(entry.key.shape);
+        }
+    }
+
+    private static boolean isScalable(DiffractionParameters p){
+        return p.isClosedForm() && !p.isPolychromatic();
+    }
+
+    /**
+     * Reads the cached pattern at s times the given x coordinates, interpolating linearly.
+     */
+    private static void stretch(Entry entry, double s, double[] x, double[] out){
+        double[] cx = entry.x;
+        double[] cv = entry.values;
+        int j = 0;
+        for(int i=0;i<x.length;i++){
+            double at = s*x[i];
+            while(j < cx.length-2 && cx[j+1] < at)
+                j++;
+            double span = cx[j+1]-cx[j];
+            double t = (span > 0) ? (at-cx[j])/span : 0;
+            t = Math.max(0, Math.min(1, t));
+            out[i] = cv[j] + t*(cv[j+1]-cv[j]);
+        }
+    }
+
+    private static long quantize(double value){
+        if(value == 0)
+            return Long.MIN_VALUE;
+        //Logarithmic steps, with the sign in the lowest bit
+        return (Math.round(Math.log(Math.abs(value))/QUANTUM) << 1) | (value < 0 ? 1 : 0);
+    }
+
+    /**
+     * @return lookups answered with an exact entry
+     */
+    public synchronized long getHits(){
+        return hits;
+    }
+
+    /**
+     * @return lookups answered by stretching a pattern of another wavelength or distance
+     */
+    public synchronized long getScaledHits(){
+        return scaledHits;
+    }
+
+    /**
+     * @return lookups that found nothing
+     */
+    public synchronized long getMisses(){
+        return misses;
+    }
+
+    /**
+     * @return patterns removed to stay within the budget
+     */
+    public synchronized long getEvictions(){
+        return evictions;
+    }
+
+    /**
+     * @return bytes used by the cached patterns
+     */
+    public synchronized long getBytes(){
+        return bytes;
+    }
+
+    /**
+     * @return number of cached patterns
+     */
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "Pattern cache: " + entries.size() + " patterns, " + bytes/1024 + " kB, " + hits + " hits, "
+                + scaledHits + " scaled hits, " + misses + " misses, " + evictions + " evictions";
+    }
+
+    /**
+     * Slit geometry of a far field pattern, which is everything but the wavelength and the
+     * distance.
+     */
+    private static final class Shape {
+        final long slitWidth, separation, slits;
+
+        Shape(DiffractionParameters p){
+            slitWidth = quantize(p.getSlitWidth());
+            slits = (long) p.getNumberSlits();
+            //The separation does not matter for a single slit
+            separation = (slits == 1) ? 0 : quantize(p.getDistanceBetweenSlits());
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof Shape))
+                return false;
+            Shape other = (Shape) o;
+            return slitWidth == other.slitWidth && separation == other.separation && slits == other.slits;
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(slitWidth, separation, slits);
+        }
+    }
+
+    /**
+     * Quantized parameters and grid of a pattern.
+     */
+    private static final class Key {
+        final Shape shape;
+        final long wavelength, distance, first, last;
+        final int samples;
+        final PropagationMode mode;
+        final ApertureMask aperture;
+        final SourceSpectrum spectrum;
+
+        Key(DiffractionParameters p, double[] x){
+            samples = x.length;
+            shape = new Shape(p);
+            wavelength = quantize(p.getWavelength());
+            distance = quantize(p.getDistanceFromScreen());
+            first = quantize(x[0]);
+            last = quantize(x[x.length-1]);
+            mode = p.getMode();
+            aperture = p.getAperture();
+            spectrum = p.getSpectrum();
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return shape.equals(other.shape) && wavelength == other.wavelength && distance == other.distance
+                    && first == other.first && last == other.last && samples == other.samples && mode == other.mode
+                    && Objects.equals(aperture, other.aperture) && Objects.equals(spectrum, other.spectrum);
+        }
+
+        @Override
+        public int hashCode(){
+            return Objects.hash(shape, wavelength, distance, first, last, samples, mode, aperture, spectrum);
+        }
+    }
+
+    /**
+     * A cached pattern.
+     */
+    private static final class Entry {
+        final Key key;
+        final double[] x, values;
+        final int[] colors;
+        final long size;
+        //Product wavelength*distance, narrowest fringe and widest sample spacing, for stretching
+        final double product, period, maxStep;
+
+        Entry(Key key, DiffractionParameters p, double[] x, double[] values, int[] colors){
+            this.key = key;
+            this.x = x;
+            this.values = values;
+            this.colors = colors;
+            size = ENTRY_OVERHEAD + 16L*x.length + (colors != null ? 4L*colors.length : 0);
+            product = p.getWavelength()*p.getDistanceFromScreen();
+            double feature = p.getSlitWidth();
+            if(p.getNumberSlits() != 1)
+                feature = Math.max(feature, (p.getNumberSlits()-1)*p.getDistanceBetweenSlits());
+            period = product/feature;
+            double step = 0;
+            for(int i=1;i<x.length;i++){
+                step = Math.max(step, x[i]-x[i-1]);
+            }
+            maxStep = step;
+        }
+    }
+}
@@ -0,0 +1,731 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Pattern Fitter Class
+ * <br>
+ * Solves the inverse problem: finds the slit geometry that best explains a measured
+ * intensity profile, such as a line across a camera image of the fringes. The profile is
+ * fitted with the Fraunhofer model of IntensityKernel,
+ * <br>
+ * I(x) = A*(sin(b)/b)^2*G(g) + B with b = u*(x-x0) and g = v*(x-x0)
+ * <br>
+ * where G is 1 for one slit, cos(g)^2 for two and the grating factor for more, A and B are
+ * the brightness and background of the camera and x0 the center of the pattern. Since
+ * u = pi*slitWidth/(wavelength*distance) and v = pi*separation/(wavelength*distance), a
+ * profile only determines the slit width and separation relative to wavelength*distance:
+ * with the wavelength known, either the distance is known and the slit width and
+ * separation are fitted, or the slit width is known and the distance and separation are
+ * fitted, see {@link #withDistance(double, int, double)} and
+ * {@link #withSlitWidth(double, int, double)}.
+ * <br>
+ * The fit is a Levenberg-Marquardt least squares fit using the analytic derivatives of the
+ * model. Fringe patterns have many local minima, since a fit started at the wrong fringe
+ * spacing locks onto a harmonic, so the fit starts from several points: a logarithmic grid
+ * of spacings covering everything the sampling can resolve is first screened with the
+ * brightness and background solved exactly, and the STARTS best points of the grid are then
+ * refined in parallel. The fit with the smallest residual wins. Its covariance, scaled by
+ * the residual variance, gives the standard uncertainty of every parameter.
+ * <br>
+ * A fitter keeps no state between fits, so one fitter can fit any number of profiles from
+ * any number of threads. Run it without a user interface with
+ * <br>
+ * java PatternFitter wavelength=650 slits=2 distance=500 [key=value ...] files or directories
+ * <br>
+ * which fits every .csv and .png profile given, in parallel, and writes one line of results
+ * per profile, see {@link #main(String[])}.
+ */
+public final class PatternFitter {
+
+    /** Points of the screening grid refined by Levenberg-Marquardt */
+    public static final int STARTS = 4;
+    /** Spacings of the screening grid for each of u and v */
+    public static final int GRID = 24;
+    /** Iterations after which a fit gives up */
+    public static final int MAX_ITERATIONS = 200;
+    /** Relative decrease of the squared residual below which a fit has converged */
+    public static final double TOLERANCE = 1e-10;
+
+    private final double wavelength;
+    private final int slits;
+    private final double distance, slitWidth; //Exactly one of them is known, the other is NaN
+
+    private PatternFitter(double wavelength, int slits, double distance, double slitWidth){
+        if(!(wavelength > 0) || slits < 1)
+            throw new IllegalArgumentException("Wavelength must be positive and there must be at least one slit");
+        this.wavelength = wavelength;
+        this.slits = slits;
+        this.distance = distance;
+        this.slitWidth = slitWidth;
+    }
+
+    /**
+     * Creates a fitter for a known distance to the screen, which fits the slit width and,
+     * for two or more slits, the separation.
+     *
+     * @param wavelength - wavelength of the light in millimeters
+     * @param slits - number of slits
+     * @param distance - distance from the slits to the screen in millimeters
+     * @return the fitter
+     */
+    public static PatternFitter withDistance(double wavelength, int slits, double distance){
+        if(!(distance > 0))
+            throw new IllegalArgumentException("Distance must be positive: " + distance);
+        return new PatternFitter(wavelength, slits, distance, Double.NaN);
+    }
+
+    /**
+     * Creates a fitter for a known slit width, which fits the distance to the screen and,
+     * for two or more slits, the separation.
+     *
+     * @param wavelength - wavelength of the light in millimeters
+     * @param slits - number of slits
+     * @param slitWidth - width of each slit in millimeters
+     * @return the fitter
+     */
+    public static PatternFitter withSlitWidth(double wavelength, int slits, double slitWidth){
+        if(!(slitWidth > 0))
+            throw new IllegalArgumentException("Slit width must be positive: " + slitWidth);
+        return new PatternFitter(wavelength, slits, Double.NaN, slitWidth);
+    }
+
+    /**
+     * Fits a measured profile.
+     *
+     * @param profile - the measured profile, at least 8 samples in increasing order of x
+     * @return the best fit
+     */
+    public Fit fit(Profile profile){
+        double[] x = profile.x, y = profile.y;
+        int n = x.length;
+        if(n < 8)
+            throw new IllegalArgumentException("A profile needs at least 8 samples: " + profile.name);
+        double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+        for(double value : y){
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        //The center starts at the centroid of the bright part of the pattern
+        double weights = 0, moment = 0;
+        for(int i=0;i<n;i++){
+            double w = (y[i]-min)*(y[i]-min);
+            weights += w;
+            moment += w*x[i];
+        }
+        double center = (weights > 0) ? moment/weights : (x[0]+x[n-1])/2;
+        //Coarsest spacing: the central lobe reaches twice past the screen; finest: four samples per fringe
+        double range = Math.max(center-x[0], x[n-1]-center);
+        double step = (x[n-1]-x[0])/(n-1);
+        double coarsest = Math.PI/(2*range), finest = Math.PI/(4*step);
+        double[] spacings = new double[GRID];
+        for(int k=0;k<GRID;k++){
+            spacings[k] = coarsest*Math.pow(finest/coarsest, k/(GRID-1.0));
+        }
+        List<double[]> starts = screen(x, y, center, spacings);
+        //Refines the best starting points in parallel and keeps the best fit
+        return starts.parallelStream()
+                .map(start -> refine(profile, start))
+                .min((a, b) -> Double.compare(a.chiSquare, b.chiSquare))
+                .orElseThrow(IllegalStateException::new);
+    }
+
+    /**
+     * Finds the STARTS points of the grid of spacings with the smallest residual, solving
+     * the brightness and background of each exactly.
+     *
+     * @return parameter vectors {A, B, x0, u} or {A, B, x0, u, v}
+     */
+    private List<double[]> screen(double[] x, double[] y, double center, double[] spacings){
+        List<double[]> candidates = new ArrayList<>();
+        List<Double> residuals = new ArrayList<>();
+        for(double u : spacings){
+            for(int j=0;j<spacings.length;j++){
+                double v = (slits == 1) ? 0 : spacings[j];
+                if(slits != 1 && v < u) //Slits are never wider than their separation
+                    continue;
+                //Linear least squares for I = A*shape + B
+                double s = 0, ss = 0, sy = 0, shy = 0, yy = 0;
+                for(int i=0;i<x.length;i++){
+                    double t = x[i]-center;
+                    double shape = sinc2(u*t)*factor(v*t);
+                    s += shape;
+                    ss += shape*shape;
+                    sy += y[i];
+                    shy += shape*y[i];
+                    yy += y[i]*y[i];
+                }
+                int n = x.length;
+                double determinant = n*ss - s*s;
+                if(Math.abs(determinant) < 1e-300)
+                    continue;
+                double a = (n*shy - s*sy)/determinant;
+                double b = (sy - a*s)/n;
+                double residual = yy - a*shy - b*sy;
+                if(a <= 0)
+                    continue;
+                candidates.add((slits == 1) ? new double[]{a, b, center, u} : new double[]{a, b, center, u, v});
+                residuals.add(residual);
+                if(slits == 1)
+                    break;
+            }
+        }
+        Integer[] order = new Integer[candidates.size()];
+        for(int k=0;k<order.length;k++){
+            order[k] = k;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(residuals.get(a), residuals.get(b)));
+        List<double[]> best = new ArrayList<>();
+        for(int k=0;k<Math.min(STARTS, order.length);k++){
+            best.add(candidates.get(order[k]));
+        }
+        if(best.isEmpty())
+            best.add((slits == 1) ? new double[]{1, 0, center, spacings[0]} : new double[]{1, 0, center, spacings[0], spacings[0]});
+        return best;
+    }
+
+    /**
+     * Runs Levenberg-Marquardt from a starting point.
+     */
+    private Fit refine(Profile profile, double[] start){
+        double[] x = profile.x, y = profile.y;
+        int m = start.length;
+        double[] p = start.clone();
+        double[][] jtj = new double[m][m];
+        double[] jtr = new double[m];
+        double[][] system = new double[m][m];
+        double[] delta = new double[m];
+        double[] trial = new double[m];
+        double chi = accumulate(x, y, p, jtj, jtr);
+        double lambda = 1e-3;
+        int iterations = 0;
+        boolean converged = false;
+        while(iterations < MAX_ITERATIONS && !converged){
+            iterations++;
+            for(int a=0;a<m;a++){
+                System.arraycopy(jtj[a], 0, system[a], 0, m);
+                system[a][a] += lambda*Math.max(jtj[a][a], 1e-30);
+                delta[a] = jtr[a];
+            }
+            if(!solve(system, delta)){
+                lambda *= 10;
+                continue;
+            }
+            for(int a=0;a<m;a++){
+                trial[a] = p[a] + delta[a];
+            }
+            double chiTrial = chiSquare(x, y, trial);
+            if(chiTrial < chi){
+                converged = (chi-chiTrial) <= TOLERANCE*chi;
+                System.arraycopy(trial, 0, p, 0, m);
+                chi = accumulate(x, y, p, jtj, jtr);
+                lambda = Math.max(lambda/10, 1e-12);
+            }
+            else {
+                lambda *= 10;
+                converged = lambda > 1e12; //No step improves the fit anymore
+            }
+        }
+        //Covariance of the parameters, scaled by the variance of the residuals
+        double[][] covariance = invert(jtj);
+        double variance = chi/Math.max(1, x.length-m);
+        double[] errors = new double[m];
+        for(int a=0;a<m;a++){
+            errors[a] = (covariance != null) ? Math.sqrt(Math.max(0, covariance[a][a]*variance)) : Double.NaN;
+        }
+        double covarianceUV = (covariance != null && m == 5) ? covariance[3][4]*variance : 0;
+        return new Fit(profile.name, p, errors, covarianceUV, chi, iterations, converged);
+    }
+
+    /**
+     * Computes the squared residual and accumulates the normal equations J^T*J and J^T*r of
+     * the model at p, without storing the Jacobian.
+     */
+    private double accumulate(double[] x, double[] y, double[] p, double[][] jtj, double[] jtr){
+        int m = p.length;
+        for(int a=0;a<m;a++){
+            Arrays.fill(jtj[a], 0);
+        }
+        Arrays.fill(jtr, 0);
+        double[] row = new double[m];
+        double amplitude = p[0], background = p[1], center = p[2], u = p[3], v = (m == 5) ? p[4] : 0;
+        double chi = 0;
+        for(int i=0;i<x.length;i++){
+            double t = x[i]-center;
+            double b = u*t, g = v*t;
+            double s = sinc2(b), ds = sinc2Derivative(b);
+            double f = factor(g), df = factorDerivative(g);
+            double r = y[i] - (amplitude*s*f + background);
+            row[0] = s*f;
+            row[1] = 1;
+            row[2] = -amplitude*(ds*u*f + s*df*v);
+            row[3] = amplitude*ds*t*f;
+            if(m == 5)
+                row[4] = amplitude*s*df*t;
+            for(int a=0;a<m;a++){
+                jtr[a] += row[a]*r;
+                for(int c=0;c<=a;c++){
+                    jtj[a][c] += row[a]*row[c];
+                }
+            }
+            chi += r*r;
+        }
+        for(int a=0;a<m;a++){
+            for(int c=a+1;c<m;c++){
+                jtj[a][c] = jtj[c][a];
+            }
+        }
+        return chi;
+    }
+
+    private double chiSquare(double[] x, double[] y, double[] p){
+        double amplitude = p[0], background = p[1], center = p[2], u = p[3], v = (p.length == 5) ? p[4] : 0;
+        double chi = 0;
+        for(int i=0;i<x.length;i++){
+            double t = x[i]-center;
+            double r = y[i] - (amplitude*sinc2(u*t)*factor(v*t) + background);
+            chi += r*r;
+        }
+        return chi;
+    }
+
+    private static double sinc2(double b){
+        if(Math.abs(b) < 1e-4)
+            return 1 - b*b/3;
+        double s = Math.sin(b)/b;
+        return s*s;
+    }
+
+    private static double sinc2Derivative(double b){
+        if(Math.abs(b) < 1e-4)
+            return -2*b/3;
+        double s = Math.sin(b)/b;
+        return 2*s*(Math.cos(b)-s)/b;
+    }
+
+    /**
+     * Interference factor of the slits, see IntensityKernel.
+     */
+    private double factor(double g){
+        if(slits == 1)
+            return 1;
+        if(slits == 2){
+            double c = Math.cos(g);
+            return c*c;
+        }
+        return IntensityKernel.gratingFactor(g, slits);
+    }
+
+    private double factorDerivative(double g){
+        if(slits == 1)
+            return 0;
+        if(slits == 2)
+            return -Math.sin(2*g);
+        double denominator = slits*Math.sin(g);
+        if(Math.abs(denominator) < 1e-9) //Principal maximum
+            return 0;
+        double r = Math.sin(slits*g)/denominator;
+        return 2*r*(slits*Math.cos(slits*g) - r*slits*Math.cos(g))/denominator;
+    }
+
+    /**
+     * Solves a small linear system in place by Gaussian elimination with partial pivoting.
+     *
+     * @return false if the matrix is singular
+     */
+    private static boolean solve(double[][] a, double[] b){
+        int m = b.length;
+        for(int col=0;col<m;col++){
+            int pivot = col;
+            for(int row=col+1;row<m;row++){
+                if(Math.abs(a[row][col]) > Math.abs(a[pivot][col]))
+                    pivot = row;
+            }
+            if(Math.abs(a[pivot][col]) < 1e-300)
+                return false;
+            double[] swap = a[col]; a[col] = a[pivot]; a[pivot] = swap;
+            double t = b[col]; b[col] = b[pivot]; b[pivot] = t;
+            for(int row=col+1;row<m;row++){
+                double f = a[row][col]/a[col][col];
+                for(int k=col;k<m;k++){
+                    a[row][k] -= f*a[col][k];
+                }
+                b[row] -= f*b[col];
+            }
+        }
+        for(int row=m-1;row>=0;row--){
+            double sum = b[row];
+            for(int k=row+1;k<m;k++){
+                sum -= a[row][k]*b[k];
+            }
+            b[row] = sum/a[row][row];
+        }
+        return true;
+    }
+
+    /**
+     * @return the inverse of a small matrix, or null if it is singular
+     */
+    private static double[][] invert(double[][] matrix){
+        int m = matrix.length;
+        double[][] inverse = new double[m][m];
+        for(int col=0;col<m;col++){
+            double[][] a = new double[m][];
+            for(int row=0;row<m;row++){
+                a[row] = matrix[row].clone();
+            }
+            double[] e = new double[m];
+            e[col] = 1;
+            if(!solve(a, e))
+                return null;
+            for(int row=0;row<m;row++){
+                inverse[row][col] = e[row];
+            }
+        }
+        return inverse;
+    }
+
+    /**
+     * Reads a profile from a CSV file with one "x (mm),intensity" pair per line. Lines that
+     * do not start with a number, such as a header, are skipped.
+     *
+     * @param file - the CSV file
+     * @return the profile, sorted by x
+     * @throws IOException if the file cannot be read
+     */
+    public static Profile readCsv(Path file) throws IOException{
+        List<double[]> points = new ArrayList<>();
+        try(BufferedReader reader = Files.newBufferedReader(file)){
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] parts = line.split("[,;\\t]");
+                if(parts.length < 2)
+                    continue;
+                try {
+                    points.add(new double[]{Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim())});
+                } catch (NumberFormatException e) { //Header or comment
+                }
+            }
+        }
+        points.sort((a, b) -> Double.compare(a[0], b[0]));
+        double[] x = new double[points.size()], y = new double[points.size()];
+        for(int i=0;i<x.length;i++){
+            x[i] = points.get(i)[0];
+            y[i] = points.get(i)[1];
+        }
+        return new Profile(file.getFileName().toString(), x, y);
+    }
+
+    /**
+     * Reads a profile from a horizontal line of an image, averaging the luminance of a band
+     * of rows. The x coordinates are measured from the middle column.
+     *
+     * @param file - the image, in any format ImageIO reads
+     * @param pixelSize - width of one pixel on the screen in millimeters
+     * @param row - middle row of the band, or -1 for the middle of the image
+     * @param rows - height of the band in rows
+     * @return the profile
+     * @throws IOException if the image cannot be read
+     */
+    public static Profile readImage(Path file, double pixelSize, int row, int rows) throws IOException{
+        BufferedImage image = ImageIO.read(file.toFile());
+        if(image == null)
+            throw new IOException("Not a readable image: " + file);
+        int width = image.getWidth(), height = image.getHeight();
+        int middle = (row < 0) ? height/2 : Math.min(row, height-1);
+        int top = Math.max(0, middle - rows/2), bottom = Math.min(height, top + Math.max(1, rows));
+        int[] line = new int[width];
+        double[] x = new double[width], y = new double[width];
+        for(int r=top;r<bottom;r++){
+            image.getRGB(0, r, width, 1, line, 0, width);
+            for(int i=0;i<width;i++){
+                int argb = line[i];
+                y[i] += 0.2126*((argb >> 16) & 0xFF) + 0.7152*((argb >> 8) & 0xFF) + 0.0722*(argb & 0xFF);
+            }
+        }
+        for(int i=0;i<width;i++){
+            x[i] = (i - (width-1)/2.0)*pixelSize;
+            y[i] /= 255.0*(bottom-top);
+        }
+        return new Profile(file.getFileName().toString(), x, y);
+    }
+
+    /**
+     * A measured intensity profile.
+     */
+    public static final class Profile {
+        final String name;
+        final double[] x, y;
+
+        /**
+         * @param name - name shown with the results
+         * @param x - x coordinates in millimeters, in increasing order
+         * @param y - measured intensity at each x coordinate, in any unit
+         */
+        public Profile(String name, double[] x, double[] y){
+            if(x.length != y.length)
+                throw new IllegalArgumentException("Every x coordinate needs an intensity");
+            this.name = name;
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * @return name shown with the results
+         */
+        public String getName(){
+            return name;
+        }
+
+        /**
+         * @return x coordinates in millimeters
+         */
+        public double[] getX(){
+            return x;
+        }
+
+        /**
+         * @return measured intensity at each x coordinate
+         */
+        public double[] getY(){
+            return y;
+        }
+    }
+
+    /**
+     * Result of a fit: the fitted parameters and their standard uncertainties.
+     */
+    public final class Fit {
+        final String name;
+        final double amplitude, background, center, u, v;
+        final double amplitudeError, backgroundError, centerError, uError, vError, covarianceUV;
+        final double chiSquare;
+        final int iterations;
+        final boolean converged;
+
+        Fit(String name, double[] p, double[] errors, double covarianceUV, double chiSquare, int iterations, boolean converged){
+            this.name = name;
+            amplitude = p[0];
+            background = p[1];
+            center = p[2];
+            u = Math.abs(p[3]);
+            v = (p.length == 5) ? Math.abs(p[4]) : 0;
+            amplitudeError = errors[0];
+            backgroundError = errors[1];
+            centerError = errors[2];
+            uError = errors[3];
+            vError = (p.length == 5) ? errors[4] : 0;
+            //The signs of u and v do not change the model
+            this.covarianceUV = covarianceUV*Math.signum(p[3])*((p.length == 5) ? Math.signum(p[4]) : 1);
+            this.chiSquare = chiSquare;
+            this.iterations = iterations;
+            this.converged = converged;
+        }
+
+        /**
+         * @return the fitted, or the known, slit width in millimeters
+         */
+        public double getSlitWidth(){
+            return Double.isNaN(slitWidth) ? u*wavelength*distance/Math.PI : slitWidth;
+        }
+
+        /**
+         * @return standard uncertainty of the slit width, 0 if it was known
+         */
+        public double getSlitWidthError(){
+            return Double.isNaN(slitWidth) ? uError*wavelength*distance/Math.PI : 0;
+        }
+
+        /**
+         * @return the fitted, or the known, distance to the screen in millimeters
+         */
+        public double getDistance(){
+            return Double.isNaN(distance) ? Math.PI*slitWidth/(wavelength*u) : distance;
+        }
+
+        /**
+         * @return standard uncertainty of the distance, 0 if it was known
+         */
+        public double getDistanceError(){
+            return Double.isNaN(distance) ? getDistance()*uError/u : 0;
+        }
+
+        /**
+         * @return the fitted separation between slits in millimeters, 0 for one slit
+         */
+        public double getSeparation(){
+            return v*wavelength*getDistance()/Math.PI;
+        }
+
+        /**
+         * @return standard uncertainty of the separation
+         */
+        public double getSeparationError(){
+            if(slits == 1)
+                return 0;
+            if(!Double.isNaN(distance))
+                return vError*wavelength*distance/Math.PI;
+            //separation = slitWidth*v/u, with correlated u and v
+            double relative = vError*vError/(v*v) + uError*uError/(u*u) - 2*covarianceUV/(u*v);
+            return getSeparation()*Math.sqrt(Math.max(0, relative));
+        }
+
+        /**
+         * @return center of the pattern in millimeters and its standard uncertainty
+         */
+        public double[] getCenter(){
+            return new double[]{center, centerError};
+        }
+
+        /**
+         * @return brightness of the central maximum above the background, and its standard uncertainty
+         */
+        public double[] getAmplitude(){
+            return new double[]{amplitude, amplitudeError};
+        }
+
+        /**
+         * @return background intensity and its standard uncertainty
+         */
+        public double[] getBackground(){
+            return new double[]{background, backgroundError};
+        }
+
+        /**
+         * @return sum of the squared residuals
+         */
+        public double getChiSquare(){
+            return chiSquare;
+        }
+
+        /**
+         * @return Levenberg-Marquardt iterations of the winning start
+         */
+        public int getIterations(){
+            return iterations;
+        }
+
+        /**
+         * @return whether the winning start converged within MAX_ITERATIONS
+         */
+        public boolean isConverged(){
+            return converged;
+        }
+
+        /**
+         * @return parameters of the fitted pattern, for showing or exporting it
+         */
+        public DiffractionParameters getParameters(){
+            return new DiffractionParameters(getSlitWidth(), getDistance(), wavelength, slits, getSeparation());
+        }
+
+        @Override
+        public String toString(){
+            return String.format(Locale.ROOT, "%s: slit width %.6g +- %.2g mm, separation %.6g +- %.2g mm, distance %.6g +- %.2g mm",
+                    name, getSlitWidth(), getSlitWidthError(), getSeparation(), getSeparationError(), getDistance(), getDistanceError());
+        }
+    }
+
+    /**
+     * Fits every profile given, in parallel, and writes one CSV line per profile in the order
+     * given. Arguments are key=value settings followed by files or directories, whose .csv,
+     * .png, .jpg and .bmp files are all fitted:
+     * <pre>
+     * wavelength = 650      nanometers
+     * slits      = 2        number of slits
+     * distance   = 500      known distance in millimeters, or
+     * slitWidth  = 0.1      known slit width in millimeters, which fits the distance instead
+     * pixelSize  = 0.005    millimeters per pixel of images
+     * row        = -1       middle row of the line scan of images, -1 for the middle
+     * rows       = 5        rows averaged for the line scan
+     * output     = -        results file, - for the standard output
+     * </pre>
+     *
+     * @param args - settings and files
+     */
+    public static void main(String[] args) throws IOException{
+        Properties settings = new Properties();
+        List<Path> inputs = new ArrayList<>();
+        for(String arg : args){
+            int equals = arg.indexOf('=');
+            if(equals > 0)
+                settings.setProperty(arg.substring(0, equals).trim(), arg.substring(equals+1).trim());
+            else
+                inputs.add(Paths.get(arg));
+        }
+        if(inputs.isEmpty() || !settings.containsKey("wavelength")){
+            System.err.println("Usage: java PatternFitter wavelength=650 slits=2 distance=500 [key=value ...] files or directories");
+            System.exit(2);
+        }
+        double wavelength = Double.parseDouble(settings.getProperty("wavelength"))/1000000;
+        int slits = Integer.parseInt(settings.getProperty("slits", "1"));
+        PatternFitter fitter = settings.containsKey("slitWidth")
+                ? withSlitWidth(wavelength, slits, Double.parseDouble(settings.getProperty("slitWidth")))
+                : withDistance(wavelength, slits, Double.parseDouble(settings.getProperty("distance", "500")));
+        double pixelSize = Double.parseDouble(settings.getProperty("pixelSize", "0.005"));
+        int row = Integer.parseInt(settings.getProperty("row", "-1"));
+        int rows = Integer.parseInt(settings.getProperty("rows", "5"));
+        List<Path> files = new ArrayList<>();
+        for(Path input : inputs){
+            if(Files.isDirectory(input)){
+                try(Stream<Path> listing = Files.list(input)){
+                    files.addAll(listing.filter(PatternFitter::isProfile).sorted().collect(Collectors.toList()));
+                }
+            }
+            else
+                files.add(input);
+        }
+        long start = System.nanoTime();
+        //Profiles are fitted in parallel, each one's starts in parallel as well
+        String[] lines = IntStream.range(0, files.size()).parallel().mapToObj(i -> {
+            Path file = files.get(i);
+            try {
+                String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+                Profile profile = name.endsWith(".csv") ? readCsv(file) : readImage(file, pixelSize, row, rows);
+                Fit fit = fitter.fit(profile);
+                return String.format(Locale.ROOT, "%s,%.9g,%.3g,%.9g,%.3g,%.9g,%.3g,%.9g,%.3g,%.6g,%d,%b",
+                        file, fit.getSlitWidth(), fit.getSlitWidthError(), fit.getSeparation(), fit.getSeparationError(),
+                        fit.getDistance(), fit.getDistanceError(), fit.center, fit.centerError, fit.chiSquare, fit.iterations, fit.converged);
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println(file + ": " + e.getMessage());
+                return file + ",NaN,NaN,NaN,NaN,NaN,NaN,NaN,NaN,NaN,0,false";
+            }
+        }).toArray(String[]::new);
+        String output = settings.getProperty("output", "-");
+        Writer writer = output.equals("-") ? new BufferedWriter(new OutputStreamWriter(System.out))
+                : Files.newBufferedWriter(Paths.get(output));
+        try {
+            writer.write("file,slitWidth,slitWidthError,separation,separationError,distance,distanceError,center,centerError,chiSquare,iterations,converged\n");
+            for(String line : lines){
+                writer.write(line + "\n");
+            }
+        }
+        finally {
+            writer.flush();
+            if(!output.equals("-"))
+                writer.close();
+        }
+        double seconds = (System.nanoTime()-start)/1e9;
+        System.err.printf(Locale.ROOT, "Fitted %d profiles in %.2f s, %.0f profiles/minute%n", files.size(), seconds, 60*files.size()/seconds);
+    }
+
+    private static boolean isProfile(Path file){
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        return name.endsWith(".csv") || name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".bmp");
+    }
+}
@@ -0,0 +1,159 @@
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.layout.Pane;
+import javafx.scene.paint.Color;
+
+/**
+ * Pattern Renderer Class
+ * <br>
+ * Draws the intensity graph, the intensity color map and the aperture
+ * representation into nodes that are created once and reused for every redraw.
+ * <br>
+ * The graph and the aperture are painted on a Canvas, the graph as a single
+ * polyline. The color map is one row of pixels written through a PixelWriter
+ * into a WritableImage which is drawn stretched over a Canvas of its own; the
+ * image is not shown by an ImageView, which would ask for a layout pass every
+ * time its pixels change. No scene graph nodes are created after construction,
+ * so redrawing does not trigger any layout or CSS passes.
+ */
+public class PatternRenderer {
+
+    private final Pane graphPane, mapPane, aperturePane;
+    private final Canvas graphCanvas, mapCanvas, apertureCanvas;
+
+    private WritableImage mapImage;
+    private int[] mapPixels;
+    //Coordinates of the graph as strokePolyline takes them, grown to the longest pattern
+    private double[] lineX = new double[0], lineY = new double[0];
+
+    /**
+     * Creates the reusable drawing surfaces and adds them to the given panes.
+     * The canvases and the color map follow the size of their pane.
+     *
+     * @param graph - pane that shows the intensity graph
+     * @param intensityMap - pane that shows the intensity color map
+     * @param apertureGraph - pane that shows the aperture
+     */
+    public PatternRenderer(Pane graph, Pane intensityMap, Pane apertureGraph){
+        graphPane = graph;
+        mapPane = intensityMap;
+        aperturePane = apertureGraph;
+
+        graphCanvas = new Canvas();
+        graphCanvas.widthProperty().bind(graph.widthProperty());
+        graphCanvas.heightProperty().bind(graph.heightProperty());
+        apertureCanvas = new Canvas();
+        apertureCanvas.widthProperty().bind(apertureGraph.widthProperty());
+        apertureCanvas.heightProperty().bind(apertureGraph.heightProperty());
+        mapCanvas = new Canvas();
+        mapCanvas.widthProperty().bind(intensityMap.widthProperty());
+        mapCanvas.heightProperty().bind(intensityMap.heightProperty());
+
+        graph.getChildren().add(graphCanvas);
+        intensityMap.getChildren().add(mapCanvas);
+        apertureGraph.getChildren().add(apertureCanvas);
+    }
+
+    /**
+     * Draws the intensity graph and the intensity color map from the mapped values
+     * of a DiffractionCalculator.
+     * <br>
+     * The graph is stroked as one polyline through all the mapped points. Each pixel
+     * column of the color map takes the color of the sample nearest to the same
+     * relative position, so the map stays correct when the samples are not evenly
+     * spaced. Neither allocates once the color map has its size.
+     *
+     * @param pattern - coordinates and colors as mapped by MapValues
+     * @param c - color of the graph
+     */
+    public void drawPattern(MappedPattern pattern, Color c){
+        float[] xs = pattern.getX();
+        float[] ys = pattern.getY();
+        int[] colors = pattern.getColors();
+        int n = pattern.size();
+
+        GraphicsContext gc = graphCanvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, graphCanvas.getWidth(), graphCanvas.getHeight());
+        gc.setStroke(c);
+        gc.setLineWidth(1);
+        if(n > 0){
+            //strokePolyline writes the points straight to the canvas, where stroking a path allocates an iterator
+            if(lineX.length < n){
+                lineX = new double[n];
+                lineY = new double[n];
+            }
+            for(int i=0;i<n;i++){
+                lineX[i] = xs[i];
+                lineY[i] = ys[i];
+            }
+            gc.strokePolyline(lineX, lineY, n);
+        }
+
+        int mapWidth = (int) Math.ceil(mapPane.getWidth());
+        if(mapWidth <= 0 || n < 2)
+            return;
+        if(mapImage == null || (int) mapImage.getWidth() != mapWidth){ //Only reallocated when the pane is resized
+            mapImage = new WritableImage(mapWidth, 1);
+            mapPixels = new int[mapWidth];
+        }
+        double graphWidth = graphPane.getWidth();
+        int j = 0;
+        for(int px=0;px<mapWidth;px++){
+            double x = (px + 0.5) * graphWidth / mapWidth;
+            while(j < n-2 && xs[j+1] < x)
+                j++;
+            mapPixels[px] = colors[(x - xs[j] < xs[j+1] - x) ? j : j+1];
+        }
+        mapImage.getPixelWriter().setPixels(0, 0, mapWidth, 1, PixelFormat.getIntArgbInstance(), mapPixels, 0, mapWidth);
+        GraphicsContext map = mapCanvas.getGraphicsContext2D();
+        map.clearRect(0, 0, mapCanvas.getWidth(), mapCanvas.getHeight()); //Covers the canvas, so the commands of earlier redraws are dropped
+        map.setImageSmoothing(false);
+        map.drawImage(mapImage, 0, 0, mapCanvas.getWidth(), mapCanvas.getHeight());
+    }
+
+    /**
+     * Draws the aperture representation, one bar per slit, the bars being separated
+     * proportionally to the slit separation. Bars of a grating that fall outside
+     * the pane are skipped.
+     *
+     * @param calculator - calculator holding the slit geometry
+     * @param c - color of the light
+     */
+    public void drawAperture(DiffractionCalculator calculator, Color c){
+        GraphicsContext gc = apertureCanvas.getGraphicsContext2D();
+        double width = aperturePane.getWidth();
+        double height = aperturePane.getHeight();
+        gc.clearRect(0, 0, width, height);
+        gc.setFill(c);
+
+        double _middle = width/2.0; //Puts the line the in the middle of the screen
+        double _width = width/30.0; //Arbitrary proportion of the pane
+        double _distance = width/20.0;
+        double barWidth = _width*calculator.getSlitWidth();
+        double spacing = _distance*calculator.getDistanceBetweenSlits();
+
+        int slits = (int) calculator.getNumberSlits();
+        for(int i=0;i<slits;i++){
+            double center = _middle + (i-(slits-1)/2.0)*spacing;
+            if(center+barWidth/2 < 0 || center-barWidth/2 > width)
+                continue;
+            gc.fillRect(center-barWidth/2, 0, barWidth, height);
+        }
+    }
+
+    /**
+     * Returns the bit shift of the ARGB channel used for the given light color.
+     *
+     * @param c - color of the light
+     * @return 0 for blue, 8 for green and 16 for red
+     */
+    static int channelShift(Color c){
+        if(c == Color.BLUE)
+            return 0;
+        else if(c == Color.GREEN)
+            return 8;
+        return 16;
+    }
+}
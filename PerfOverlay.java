@@ -0,0 +1,57 @@
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.scene.control.Label;
+import javafx.scene.layout.Pane;
+import javafx.scene.text.Font;
+import javafx.util.Duration;
+
+/**
+ * Performance Overlay Class
+ * <br>
+ * Shows the statistics of PerfStats over a pane: the median and 99th percentile of every
+ * stage of the pipeline, the allocation per run and the frame rate. It is hidden until it
+ * is toggled, and refreshes twice a second only while it is shown, so it costs nothing the
+ * rest of the time. It ignores the mouse, so the pane below it can still be zoomed and
+ * dragged.
+ */
+public class PerfOverlay {
+
+    private final Label label = new Label();
+    private final Timeline refresh;
+
+    /**
+     * Adds the hidden overlay to the top left corner of a pane.
+     *
+     * @param pane - pane to show the statistics over
+     */
+    public PerfOverlay(Pane pane){
+        label.setFont(Font.font("Monospaced", 10));
+        label.setStyle("-fx-background-color: rgba(255, 255, 255, 0.8); -fx-padding: 2;");
+        label.setMouseTransparent(true);
+        label.setVisible(false);
+        label.setManaged(false);
+        pane.getChildren().add(label);
+        refresh = new Timeline(new KeyFrame(Duration.millis(500), event -> update()));
+        refresh.setCycleCount(Timeline.INDEFINITE);
+    }
+
+    /**
+     * Shows the overlay if it is hidden, hides it otherwise.
+     */
+    public void toggle(){
+        boolean show = !label.isVisible();
+        label.setVisible(show);
+        if(show){
+            update();
+            refresh.play();
+        }
+        else
+            refresh.stop();
+    }
+
+    private void update(){
+        label.setText(PerfStats.ENABLED ? PerfStats.report().trim() : "Statistics are off (-Ddiffraction.stats=false)");
+        label.autosize();
+        label.toFront();
+    }
+}
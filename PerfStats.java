@@ -0,0 +1,307 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Performance Statistics Class
+ * <br>
+ * Collects how long every stage of the diffraction pipeline takes, from the calculation of
+ * the pattern to the drawing of the graph, so that a stutter can be traced to its stage. It
+ * does not depend on JavaFX, so the headless tools collect the same statistics as the
+ * program.
+ * <br>
+ * A stage is measured with
+ * <br>
+ * long start = PerfStats.start(), allocated = PerfStats.allocatedBytes();
+ * <br>
+ * ... work ...
+ * <br>
+ * PerfStats.record(PerfStats.Stage.CALCULATE, start, allocated);
+ * <br>
+ * which adds the duration to a LatencyHistogram of the stage and the bytes allocated by
+ * the calling thread to its allocation count. Recording is lock-free, so the worker
+ * threads of SweepRunner do not wait for each other. Every recorded stage is also
+ * emitted as a Flight Recorder event, diffraction.Stage, and every redraw of the program
+ * as diffraction.Redraw, so a recording started with -XX:StartFlightRecording shows them
+ * next to the garbage collections and safepoints of the same moment. While no recording
+ * is running no event is created, so recording a stage or a redraw allocates nothing.
+ * <br>
+ * Starting with -Ddiffraction.stats=false turns the statistics off.
+ */
+public final class PerfStats {
+
+    /**
+     * Stages of the pipeline.
+     */
+    public enum Stage {
+        /** Calculating the pattern, DiffractionCalculator.CalculateOutput */
+        CALCULATE("calculate"),
+        /** Mapping the pattern to pixels, MapValues and the decimation of the zoomed graph */
+        MAP("map"),
+        /** Computing the live image of the screen */
+        SCREEN("screen"),
+        /** Drawing the graph and intensity map on the FX thread */
+        DRAW("draw"),
+        /** Choosing and setting the overhead image at the end of a redraw */
+        IMAGES("images"),
+        /** A whole redraw on the FX thread, DRAW and IMAGES included */
+        REDRAW("redraw"),
+        /** From the last change of a parameter until its complete pattern is shown */
+        LATENCY("latency"),
+        /** Answering a request of ComputeServer, from its parameters to its encoded body */
+        REQUEST("request"),
+        /** Rendering the pixels of a frame of AnimationRenderer */
+        RENDER("render"),
+        /** Compressing and writing a frame of AnimationRenderer */
+        ENCODE("encode");
+
+        private final String label;
+
+        Stage(String label){
+            this.label = label;
+        }
+
+        @Override
+        public String toString(){
+            return label;
+        }
+    }
+
+    /** False when started with -Ddiffraction.stats=false */
+    public static final boolean ENABLED = !"false".equals(System.getProperty("diffraction.stats"));
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[STAGES.length];
+    private static final LongAdder[] ALLOCATED = new LongAdder[STAGES.length];
+    private static final LongAdder[] MEASURED = new LongAdder[STAGES.length];
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION = ENABLED && allocationSupported();
+    //Registers StageEvent once, so record can tell whether any recording wants it before creating one
+    private static final EventType STAGE_EVENT = EventType.getEventType(StageEvent.class);
+    private static final EventType REDRAW_EVENT = EventType.getEventType(RedrawEvent.class);
+
+    //Times of the last FRAME_WINDOW frames, written in turn
+    private static final int FRAME_WINDOW = 256;
+    private static final AtomicLongArray FRAME_TIMES = new AtomicLongArray(FRAME_WINDOW);
+    private static final AtomicLong FRAMES = new AtomicLong();
+
+    static {
+        for(int s=0;s<STAGES.length;s++){
+            HISTOGRAMS[s] = new LatencyHistogram();
+            ALLOCATED[s] = new LongAdder();
+            MEASURED[s] = new LongAdder();
+        }
+    }
+
+    private PerfStats(){
+    }
+
+    private static boolean allocationSupported(){
+        if(!(THREADS instanceof com.sun.management.ThreadMXBean))
+            return false;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+        return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * @return the current time to pass to record
+     */
+    public static long start(){
+        return System.nanoTime();
+    }
+
+    /**
+     * @return bytes allocated by the calling thread so far, to pass to record, or -1 if
+     * the JVM does not count them
+     */
+    public static long allocatedBytes(){
+        return ALLOCATION ? ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    /**
+     * Records a stage which started at the given time, without its allocation.
+     *
+     * @param stage - the stage
+     * @param start - value of start() when the stage began
+     */
+    public static void record(Stage stage, long start){
+        record(stage, start, -1);
+    }
+
+    /**
+     * Records a stage which started at the given time on the calling thread.
+     *
+     * @param stage - the stage
+     * @param start - value of start() when the stage began
+     * @param allocated - value of allocatedBytes() when the stage began, or -1
+     */
+    public static void record(Stage stage, long start, long allocated){
+        if(!ENABLED)
+            return;
+        long nanos = System.nanoTime() - start;
+        HISTOGRAMS[stage.ordinal()].record(nanos);
+        if(allocated >= 0 && ALLOCATION){
+            ALLOCATED[stage.ordinal()].add(allocatedBytes() - allocated);
+            MEASURED[stage.ordinal()].increment();
+        }
+        if(!STAGE_EVENT.isEnabled()) //Allocates nothing while no recording is running
+            return;
+        StageEvent event = new StageEvent();
+        if(event.shouldCommit()){
+            event.stage = stage.toString();
+            event.elapsed = nanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * Starts timing a redraw of the program as a Flight Recorder event.
+     *
+     * @return the event to finish at the end of the redraw, or null while no recording wants it
+     */
+    public static RedrawEvent beginRedraw(){
+        return REDRAW_EVENT.isEnabled() ? new RedrawEvent() : null;
+    }
+
+    /**
+     * Counts a frame shown, for framesPerSecond.
+     */
+    public static void frame(){
+        if(!ENABLED)
+            return;
+        FRAME_TIMES.set((int) (FRAMES.getAndIncrement() % FRAME_WINDOW), System.nanoTime());
+    }
+
+    /**
+     * @return frames counted in the last second, up to the last 256 frames
+     */
+    public static double framesPerSecond(){
+        long now = System.nanoTime(), frames = Math.min(FRAMES.get(), FRAME_WINDOW);
+        int recent = 0;
+        for(int f=0;f<frames;f++){
+            if(now - FRAME_TIMES.get(f) <= 1_000_000_000L)
+                recent++;
+        }
+        return recent;
+    }
+
+    /**
+     * @param stage - a stage
+     * @return the histogram of its durations
+     */
+    public static LatencyHistogram getHistogram(Stage stage){
+        return HISTOGRAMS[stage.ordinal()];
+    }
+
+    /**
+     * @param stage - a stage
+     * @return mean bytes allocated per measured run of the stage, 0 if none was measured
+     */
+    public static double getAllocatedBytesPerRun(Stage stage){
+        long runs = MEASURED[stage.ordinal()].sum();
+        return (runs == 0) ? 0 : (double) ALLOCATED[stage.ordinal()].sum()/runs;
+    }
+
+    /**
+     * Forgets all statistics.
+     */
+    public static void reset(){
+        for(int s=0;s<STAGES.length;s++){
+            HISTOGRAMS[s].reset();
+            ALLOCATED[s].reset();
+            MEASURED[s].reset();
+        }
+        FRAMES.set(0);
+    }
+
+    /**
+     * @return a table of the count, median, 99th percentile, maximum and allocation per
+     * run of every stage that was recorded, in milliseconds and kilobytes, followed by
+     * the frame rate if frames were counted
+     */
+    public static String report(){
+        StringBuilder text = new StringBuilder(String.format(Locale.ROOT, "%-10s %7s %8s %8s %8s %9s%n", "stage", "count", "p50 ms", "p99 ms", "max ms", "kB/run"));
+        for(Stage stage : STAGES){
+            LatencyHistogram histogram = getHistogram(stage);
+            if(histogram.getCount() == 0)
+                continue;
+            text.append(String.format(Locale.ROOT, "%-10s %7d %8.2f %8.2f %8.2f %9.1f%n", stage, histogram.getCount(),
+                    histogram.getValueAtQuantile(0.5)/1e6, histogram.getValueAtQuantile(0.99)/1e6,
+                    histogram.getMax()/1e6, getAllocatedBytesPerRun(stage)/1024));
+        }
+        if(FRAMES.get() > 0)
+            text.append(String.format(Locale.ROOT, "%.0f frames/s%n", framesPerSecond()));
+        return text.toString();
+    }
+
+    /**
+     * Flight Recorder event of one recorded stage.
+     */
+    @Name("diffraction.Stage")
+    @Label("Pipeline Stage")
+    @Category("Diffraction")
+    @Description("One stage of the diffraction pipeline, as recorded by PerfStats")
+    @StackTrace(false)
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+        @Label("Elapsed")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    /**
+     * Flight Recorder event of one redraw of the program, created by beginRedraw. Begins
+     * when it is created and ends when it is committed.
+     */
+    @Name("diffraction.Redraw")
+    @Label("Redraw")
+    @Category("Diffraction")
+    @Description("Drawing of a computed pattern on the FX thread")
+    @StackTrace(false)
+    public static final class RedrawEvent extends Event {
+        @Label("Samples")
+        int samples;
+        @Label("Complete")
+        @Description("False for the coarse previews of a pattern")
+        boolean complete;
+        @Label("Parameters")
+        String parameters;
+
+        /**
+         * Starts timing a redraw.
+         */
+        public RedrawEvent(){
+            begin();
+        }
+
+        /**
+         * Ends the redraw and emits it if a recording wants it.
+         *
+         * @param samples - number of values of the drawn pattern
+         * @param complete - false for a coarse preview
+         * @param parameters - parameters of the pattern
+         */
+        public void finish(int samples, boolean complete, DiffractionParameters parameters){
+            end();
+            if(shouldCommit()){
+                this.samples = samples;
+                this.complete = complete;
+                this.parameters = String.valueOf(parameters);
+                commit();
+            }
+        }
+    }
+}
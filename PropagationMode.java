@@ -0,0 +1,24 @@
+/**
+ * Propagation Mode Enum
+ * <br>
+ * Chooses which diffraction regime is used to compute a pattern. FRAUNHOFER uses the far
+ * field formulas, FRESNEL propagates the aperture field to the screen with the angular
+ * spectrum method, and AUTO picks one of the two from the Fresnel number of the setup.
+ */
+public enum PropagationMode {
+    AUTO("Auto"), FRAUNHOFER("Fraunhofer"), FRESNEL("Fresnel");
+
+    private final String label;
+
+    PropagationMode(String label){
+        this.label = label;
+    }
+
+    /**
+     * @return the name shown in the user interface
+     */
+    @Override
+    public String toString(){
+        return label;
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Recurrence Intensity Kernel Class
+ * <br>
+ * Evaluates the Fraunhofer Diffraction formulas on evenly spaced x coordinates without
+ * calling Math.sin and Math.cos for every sample. On a uniform grid the phases
+ * b = pi*x*slitWidth/(wavelength*distance) and g = pi*x*separation/(wavelength*distance)
+ * grow by a constant step, so their sine and cosine can be advanced with the angle addition
+ * formulas, which amounts to rotating the vector (cos, sin) by the step:
+ * <br>
+ * sin(a+d) = sin(a)*cos(d) + cos(a)*sin(d)
+ * <br>
+ * cos(a+d) = cos(a)*cos(d) - sin(a)*sin(d)
+ * <br>
+ * Each rotation adds a rounding error of a few ulps, and these errors would otherwise grow
+ * linearly along the grid, so the recurrence is re-seeded with exact values every
+ * {@link #RESEED_INTERVAL} samples. Between seeds the sine and cosine stay within
+ * {@link #TRIG_ERROR_BOUND} of the direct values, which keeps the absolute error of the
+ * relative intensity below {@link #INTENSITY_ERROR_BOUND}. Phases smaller than
+ * {@link #SMALL_PHASE} use the direct formula since the division by b would magnify the
+ * error of the sine.
+ */
+public final class RecurrenceIntensityKernel {
+
+    /** Number of samples advanced by rotation before the sine and cosine are recomputed exactly */
+    public static final int RESEED_INTERVAL = 32;
+
+    /** Bound on the absolute error of the sine and cosine produced by the recurrence, beyond the rounding of the phase itself */
+    public static final double TRIG_ERROR_BOUND = 4 * RESEED_INTERVAL * Math.ulp(1.0);
+
+    /** Phases below this magnitude are evaluated with the direct formula */
+    public static final double SMALL_PHASE = 1e-3;
+
+    /** Bound on the absolute error of the relative intensity compared to IntensityKernel */
+    public static final double INTENSITY_ERROR_BOUND = 4 * TRIG_ERROR_BOUND / SMALL_PHASE;
+
+    private RecurrenceIntensityKernel(){
+    }
+
+    /**
+     * Computes the relative intensity for the evenly spaced x coordinates
+     * x0 + k*dx, k = 0 .. to-from-1, writing them to out from index from (inclusive)
+     * to index to (exclusive).
+     *
+     * @param p - diffraction parameters
+     * @param x0 - x coordinate of the first sample
+     * @param dx - spacing between samples
+     * @param out - receives the intensity values
+     * @param from - index of out receiving the first sample
+     * @param to - index after the last sample
+     */
+    public static void computeUniform(DiffractionParameters p, double x0, double dx, double[] out, int from, int to){
+        double scale = Math.PI/(p.getWavelength()*p.getDistanceFromScreen());
+        double betaScale = p.getSlitWidth()*scale;
+        double gammaScale = p.getDistanceBetweenSlits()*scale;
+        boolean twoSlits = p.getNumberSlits()==2;
+
+        double betaStep = dx*betaScale;
+        double cosBetaStep = Math.cos(betaStep), sinBetaStep = Math.sin(betaStep);
+        double gammaStep = dx*gammaScale;
+        double cosGammaStep = Math.cos(gammaStep), sinGammaStep = Math.sin(gammaStep);
+
+        double sinBeta = 0, cosBeta = 1, sinGamma = 0, cosGamma = 1;
+        int untilReseed = 0;
+        for(int i=from;i<to;i++){
+            double xVal = x0 + (i-from)*dx;
+            double betaVal = xVal*betaScale;
+            double gammaVal = xVal*gammaScale;
+            if(untilReseed-- == 0){ //Re-seeds the recurrence with exact values
+                untilReseed = RESEED_INTERVAL-1;
+                sinBeta = Math.sin(betaVal);
+                cosBeta = Math.cos(betaVal);
+                if(twoSlits){
+                    sinGamma = Math.sin(gammaVal);
+                    cosGamma = Math.cos(gammaVal);
+                }
+            }else{
+                double s = sinBeta*cosBetaStep + cosBeta*sinBetaStep;
+                cosBeta = cosBeta*cosBetaStep - sinBeta*sinBetaStep;
+                sinBeta = s;
+                if(twoSlits){
+                    s = sinGamma*cosGammaStep + cosGamma*sinGammaStep;
+                    cosGamma = cosGamma*cosGammaStep - sinGamma*sinGammaStep;
+                    sinGamma = s;
+                }
+            }
+
+            double val;
+            if(Math.abs(betaVal) < SMALL_PHASE){
+                val = IntensityKernel.intensity(betaVal, gammaVal, false);
+            }else{
+                val = sinBeta/betaVal;
+                val *= val;
+            }
+            if(twoSlits)
+                val *= cosGamma*cosGamma;
+            out[i] = val;
+        }
+    }
+
+    /**
+     * Computes the relative intensity for an arbitrary grid, applying the recurrence
+     * to every run of evenly spaced x coordinates it contains and the direct formula to
+     * runs too short to benefit from it.
+     *
+     * @param p - diffraction parameters
+     * @param x - x coordinates on the screen, in increasing order
+     * @param out - receives the intensity for each x coordinate
+     * @param from - first index to compute
+     * @param to - index after the last one to compute
+     */
+    public static void compute(DiffractionParameters p, double[] x, double[] out, int from, int to){
+        int start = from;
+        while(start < to){
+            int end = start+1;
+            if(end < to){
+                double step = x[end]-x[start];
+                double tolerance = 1e-9*Math.abs(step);
+                while(end+1 < to && Math.abs((x[end+1]-x[end])-step) <= tolerance)
+                    end++;
+                end++;
+            }
+            if(end-start >= 4)
+                computeUniform(p, x[start], (x[end-1]-x[start])/(end-1-start), out, start, end);
+            else
+                IntensityKernel.computeScalar(p, x, out, start, end);
+            start = end;
+        }
+    }
+}
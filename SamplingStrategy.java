@@ -0,0 +1,242 @@
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Sampling Strategy Class
+ * <br>
+ * Decides at which x coordinates of the screen the intensity pattern is evaluated. The
+ * screen always spans from -halfExtent to +halfExtent millimeters; how the samples are
+ * spread over it is up to the strategy.
+ * <br>
+ * {@link #uniform(int, double)} spreads any number of samples evenly over the screen.
+ * {@link #adaptive(double, double, int)} starts from a grid fine enough to catch every fringe
+ * and then keeps adding samples wherever a straight line between two neighbouring samples
+ * misses the pattern at the midpoint or the quarter points by more than a tolerance, which
+ * places the samples around maxima and minima and leaves flat regions sparse. Patterns of
+ * an ApertureMask and Fresnel patterns are only available as a whole, so for them the
+ * adaptive strategy stops at the fringe resolving grid.
+ * <br>
+ * The grids returned are always sorted in increasing order, start at -halfExtent and end at
+ * +halfExtent.
+ */
+public abstract class SamplingStrategy {
+
+    private final double halfExtent;
+
+    /**
+     * @param halfExtent - half the width of the screen in millimeters
+     */
+    protected SamplingStrategy(double halfExtent){
+        if(!(halfExtent > 0))
+            throw new IllegalArgumentException("Screen extent must be positive: " + halfExtent);
+        this.halfExtent = halfExtent;
+    }
+
+    /**
+     * Returns the x coordinates at which the pattern for the given parameters should be
+     * evaluated.
+     *
+     * @param p - diffraction parameters
+     * @return sorted x coordinates
+     */
+    public abstract double[] sample(DiffractionParameters p);
+
+    /**
+     * Tells whether the grid is evenly spaced and independent of the parameters.
+     *
+     * @return true for uniform grids
+     */
+    public abstract boolean isUniform();
+
+    /**
+     * @return half the width of the screen in millimeters
+     */
+    public double getHalfExtent(){
+        return halfExtent;
+    }
+
+    /**
+     * Creates a strategy with a fixed number of evenly spaced samples.
+     *
+     * @param samples - number of samples, at least 2
+     * @param halfExtent - half the width of the screen in millimeters
+     * @return the uniform strategy
+     */
+    public static SamplingStrategy uniform(int samples, double halfExtent){
+        return new Uniform(samples, halfExtent);
+    }
+
+    /**
+     * Creates a strategy which refines the grid until linear interpolation between samples
+     * is within the tolerance of the pattern.
+     *
+     * @param halfExtent - half the width of the screen in millimeters
+     * @param tolerance - largest allowed interpolation error of the relative intensity
+     * @param maxSamples - upper limit on the number of samples
+     * @return the adaptive strategy
+     */
+    public static SamplingStrategy adaptive(double halfExtent, double tolerance, int maxSamples){
+        return new Adaptive(halfExtent, tolerance, maxSamples);
+    }
+
+    /**
+     * Creates a strategy from the sampling setting of SweepRunner and ComputeServer.
+     *
+     * @param name - uniform or adaptive
+     * @param samples - number of samples of a uniform grid, upper limit on an adaptive one
+     * @param halfExtent - half the width of the screen in millimeters
+     * @param tolerance - largest allowed interpolation error of an adaptive grid
+     * @return the strategy
+     * @throws IllegalArgumentException if the name is unknown or a value out of range
+     */
+    public static SamplingStrategy named(String name, int samples, double halfExtent, double tolerance){
+        switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case "uniform":
+                return uniform(samples, halfExtent);
+            case "adaptive":
+                if(samples < 3)
+                    throw new IllegalArgumentException("At least 3 samples are needed: " + samples);
+                return adaptive(halfExtent, tolerance, samples);
+            default:
+                throw new IllegalArgumentException("sampling must be uniform or adaptive: " + name);
+        }
+    }
+
+    /**
+     * Evenly spaced samples. The grid does not depend on the parameters, so it is built
+     * once and a copy is returned each time.
+     */
+    private static final class Uniform extends SamplingStrategy {
+
+        private final double[] grid;
+
+        Uniform(int samples, double halfExtent){
+            super(halfExtent);
+            if(samples < 2)
+                throw new IllegalArgumentException("At least 2 samples are needed: " + samples);
+            grid = new double[samples];
+            double step = 2*halfExtent/(samples-1);
+            for(int i=0;i<samples;i++){
+                grid[i] = -halfExtent + i*step;
+            }
+            grid[samples-1] = halfExtent;
+            if(samples % 2 == 1)
+                grid[samples/2] = 0; //Keeps the central maximum exactly on the grid
+        }
+
+        @Override
+        public double[] sample(DiffractionParameters p){
+            return grid.clone();
+        }
+
+        @Override
+        public boolean isUniform(){
+            return true;
+        }
+    }
+
+    /**
+     * Samples refined around the features of the pattern.
+     */
+    private static final class Adaptive extends SamplingStrategy {
+
+        private static final int SAMPLES_PER_FRINGE = 4;
+        private static final int MAX_DEPTH = 20;
+        //The probes only see the error at three points, which can be up to a tenth below its maximum
+        private static final double PROBE_MARGIN = 0.8;
+
+        private final double tolerance;
+        private final int maxSamples;
+
+        Adaptive(double halfExtent, double tolerance, int maxSamples){
+            super(halfExtent);
+            if(!(tolerance > 0))
+                throw new IllegalArgumentException("Tolerance must be positive: " + tolerance);
+            this.tolerance = tolerance;
+            this.maxSamples = maxSamples;
+        }
+
+        @Override
+        public double[] sample(DiffractionParameters p){
+            double halfExtent = getHalfExtent();
+            //The narrowest fringe comes from the widest feature of the aperture
+            double feature = p.getSlitWidth();
+            if(p.getAperture() != null)
+                feature = p.getAperture().getExtent();
+            else if(p.getNumberSlits() != 1)
+                feature = Math.max(feature, (p.getNumberSlits()-1)*p.getDistanceBetweenSlits());
+            double period = p.getWavelength()*p.getDistanceFromScreen()/feature;
+            int coarse = (int) Math.min(maxSamples/2, Math.ceil(2*halfExtent*SAMPLES_PER_FRINGE/period));
+            coarse = Math.max(coarse, 2);
+
+            Grid grid = new Grid(2*coarse+1);
+            double step = 2*halfExtent/coarse;
+            double x0 = -halfExtent;
+            boolean closedForm = p.isClosedForm();
+            double i0 = closedForm ? IntensityKernel.intensity(p, x0) : 0;
+            grid.add(x0);
+            for(int k=1;k<=coarse;k++){
+                double x1 = (k == coarse) ? halfExtent : -halfExtent + k*step;
+                double i1 = closedForm ? IntensityKernel.intensity(p, x1) : 0;
+                if(closedForm) //Other patterns are only known through a transform of the whole aperture
+                    refine(p, x0, i0, IntensityKernel.intensity(p, 0.5*(x0+x1)), x1, i1, 0,
+                            maxSamples - grid.size - (coarse - k) - 1, grid);
+                grid.add(x1);
+                x0 = x1;
+                i0 = i1;
+            }
+            return Arrays.copyOf(grid.values, grid.size);
+        }
+
+        /**
+         * Adds samples strictly between x0 and x1, in increasing order, while the pattern
+         * at the midpoint or the quarter points of the interval is further from the
+         * straight line between its ends than PROBE_MARGIN times the tolerance. The quarter
+         * points are the midpoints of the two halves, so their values are handed down rather
+         * than evaluated again.
+         *
+         * @param im - intensity at the midpoint of the interval
+         * @param budget - number of samples that may still be added to this interval
+         */
+        private void refine(DiffractionParameters p, double x0, double i0, double im, double x1, double i1, int depth, int budget, Grid grid){
+            if(depth >= MAX_DEPTH || budget <= 0)
+                return;
+            double xm = 0.5*(x0+x1);
+            //The quarter points catch intervals whose midpoint happens to lie on the line
+            double q1 = IntensityKernel.intensity(p, 0.5*(x0+xm));
+            double q3 = IntensityKernel.intensity(p, 0.5*(xm+x1));
+            double error = Math.max(Math.abs(im - 0.5*(i0+i1)),
+                    Math.max(Math.abs(q1 - (0.75*i0+0.25*i1)), Math.abs(q3 - (0.25*i0+0.75*i1))));
+            if(error <= PROBE_MARGIN*tolerance)
+                return;
+            int before = grid.size;
+            refine(p, x0, i0, q1, xm, im, depth+1, (budget-1)/2, grid);
+            grid.add(xm);
+            refine(p, xm, im, q3, x1, i1, depth+1, budget-(grid.size-before), grid);
+        }
+
+        @Override
+        public boolean isUniform(){
+            return false;
+        }
+    }
+
+    /**
+     * Growable array of x coordinates used while an adaptive grid is built.
+     */
+    private static final class Grid {
+
+        double[] values;
+        int size;
+
+        Grid(int capacity){
+            values = new double[capacity];
+        }
+
+        void add(double x){
+            if(size == values.length)
+                values = Arrays.copyOf(values, 2*values.length);
+            values[size++] = x;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Screen Image Class
+ * <br>
+ * Computes the two dimensional diffraction image seen on the screen for a slit or
+ * rectangular aperture. The far field of a rectangular opening is separable: the intensity
+ * at (x, y) is the product of the pattern along x, which is the usual slit pattern of the
+ * DiffractionParameters, and the pattern along y, which is the single slit pattern of the
+ * aperture height. Each of the two is computed once per image, and the pixels are filled
+ * with their products in parallel row bands on the common fork-join pool.
+ * <br>
+ * For broadband light both patterns are summed over the spectrum with the
+ * SpectralAccumulator, and every pixel takes the color of its column dimmed by the
+ * luminance of its row. This keeps the image separable, which is exact for the colors
+ * along x and an approximation along y, where in reality each wavelength spreads
+ * differently too.
+ * <br>
+ * Pixels are packed ARGB values written into one of two buffers owned by the instance. The
+ * buffers are swapped on every call to {@link #render(DiffractionParameters, int)}, so the
+ * image returned by one call can still be copied to the screen while the next one is being
+ * computed. The pixel loop itself does not allocate.
+ */
+public class ScreenImage {
+
+    /** Rows below which a band is filled directly instead of being split further */
+    private static final int BAND_ROWS = 16;
+
+    private final int width, height;
+    private final double halfWidth, halfHeight;
+    private double apertureHeight = 1.0;
+
+    private final double[] xs, ys, xPattern, yPattern;
+    private final int[] xColors;
+    private final int[][] buffers;
+    private int current;
+
+    /**
+     * Creates an image of the given size covering a screen area centered on the axis.
+     *
+     * @param width - image width in pixels
+     * @param height - image height in pixels
+     * @param halfWidth - half the width of the screen area in millimeters
+     */
+    public ScreenImage(int width, int height, double halfWidth){
+        this.width = width;
+        this.height = height;
+        this.halfWidth = halfWidth;
+        this.halfHeight = halfWidth*height/width;
+        xs = new double[width];
+        ys = new double[height];
+        for(int i=0;i<width;i++){
+            xs[i] = -halfWidth + (i+0.5)*2*halfWidth/width;
+        }
+        for(int j=0;j<height;j++){
+            ys[j] = halfHeight - (j+0.5)*2*halfHeight/height;
+        }
+        xPattern = new double[width];
+        yPattern = new double[height];
+        xColors = new int[width];
+        buffers = new int[][]{new int[width*height], new int[width*height]};
+    }
+
+    /**
+     * Computes the image for the given parameters. The time taken is recorded in PerfStats
+     * as the SCREEN stage.
+     *
+     * @param p - diffraction parameters, giving the pattern along x
+     * @param channelShift - bit position of the color channel the intensity is written to,
+     *                     0 for blue, 8 for green and 16 for red; ignored for broadband light
+     * @return the ARGB pixels, row by row from the top, width*height values
+     */
+    public int[] render(DiffractionParameters p, int channelShift){
+        long start = PerfStats.start();
+        //Along y the aperture is a single slit as high as the aperture
+        DiffractionParameters vertical = new DiffractionParameters(apertureHeight, p.getDistanceFromScreen(), p.getWavelength(), 1, 0)
+                .withMode(p.getMode()).withSpectrum(p.getSpectrum());
+        boolean colored = p.isPolychromatic();
+        if(colored){
+            SpectralAccumulator.compute(p, xs, xPattern, xColors);
+            SpectralAccumulator.compute(vertical, ys, yPattern, null);
+        }
+        else {
+            IntensityKernel.compute(p, xs, xPattern);
+            IntensityKernel.compute(vertical, ys, yPattern);
+        }
+        //The blur of a real experiment washes out the fringes across the slits
+        if(p.getBlur() != null)
+            p.getBlur().apply(p, xs, xPattern, colored ? xColors : null);
+
+        current ^= 1;
+        int[] pixels = buffers[current];
+        ForkJoinPool.commonPool().invoke(new Band(pixels, colored, channelShift, 0, height));
+        PerfStats.record(PerfStats.Stage.SCREEN, start);
+        return pixels;
+    }
+
+    /**
+     * Fills the rows from first (inclusive) to last (exclusive), splitting the range in two
+     * until it is small enough.
+     */
+    @SuppressWarnings("serial") //Tasks of a pool are never serialized
+    private final class Band extends RecursiveAction {
+
+        private final int[] pixels;
+        private final boolean colored;
+        private final int shift, first, last;
+
+        Band(int[] pixels, boolean colored, int shift, int first, int last){
+            this.pixels = pixels;
+            this.colored = colored;
+            this.shift = shift;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute(){
+            if(last-first <= BAND_ROWS){
+                for(int j=first;j<last;j++){
+                    fillRow(pixels, j*width, xPattern, colored ? xColors : null, yPattern[j], shift, width);
+                }
+                return;
+            }
+            int middle = (first+last) >>> 1;
+            invokeAll(new Band(pixels, colored, shift, first, middle), new Band(pixels, colored, shift, middle, last));
+        }
+    }
+
+    /**
+     * Fills one row of a separable image: each pixel is the pattern of its column scaled by
+     * the pattern of the row, written to one color channel, or for broadband light the
+     * color of its column dimmed by the luminance of the row.
+     *
+     * @param pixels - receives the ARGB pixels
+     * @param offset - index of the first pixel of the row
+     * @param xPattern - intensity of every column
+     * @param xColors - color of every column for broadband light, or null
+     * @param row - intensity of the row
+     * @param shift - bit position of the color channel, ignored for broadband light
+     * @param width - number of columns
+     */
+    static void fillRow(int[] pixels, int offset, double[] xPattern, int[] xColors, double row, int shift, int width){
+        if(xColors == null){
+            double scale = row*255;
+            for(int i=0;i<width;i++){
+                int level = (int) (xPattern[i]*scale);
+                if(level > 255)
+                    level = 255;
+                pixels[offset+i] = 0xFF000000 | (level << shift);
+            }
+            return;
+        }
+        int scale = (int) (row*256);
+        if(scale > 256)
+            scale = 256;
+        for(int i=0;i<width;i++){
+            int color = xColors[i];
+            int r = (((color >> 16) & 0xFF)*scale) >> 8;
+            int g = (((color >> 8) & 0xFF)*scale) >> 8;
+            int b = ((color & 0xFF)*scale) >> 8;
+            pixels[offset+i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+        }
+    }
+
+    /**
+     * @return image width in pixels
+     */
+    public int getWidth(){
+        return width;
+    }
+
+    /**
+     * @return image height in pixels
+     */
+    public int getHeight(){
+        return height;
+    }
+
+    /**
+     * @return half the width of the screen area in millimeters
+     */
+    public double getHalfWidth(){
+        return halfWidth;
+    }
+
+    /**
+     * @return height of the aperture in millimeters
+     */
+    public double getApertureHeight(){
+        return apertureHeight;
+    }
+
+    /**
+     * Sets the height of the aperture; a long slit gives a thin line of fringes, a
+     * square opening a cross shaped pattern.
+     *
+     * @param apertureHeight - height of the aperture in millimeters
+     */
+    public void setApertureHeight(double apertureHeight){
+        this.apertureHeight = apertureHeight;
+    }
+}
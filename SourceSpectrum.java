@@ -0,0 +1,208 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Source Spectrum Class
+ * <br>
+ * Immutable spectral power distribution of a light source, given as a table of wavelengths
+ * in nanometers, in increasing order, and the relative power at each of them. Between the
+ * table entries the power is interpolated linearly, outside of them it is zero.
+ * <br>
+ * Ready made spectra exist for white light (a 6500 K black body, close to daylight) and for
+ * LEDs (a Gaussian peak), and any measured spectrum can be read from a CSV file.
+ */
+public final class SourceSpectrum {
+
+    /** Shortest wavelength, in nanometers, the eye responds to */
+    public static final double VISIBLE_MIN = 380;
+    /** Longest wavelength, in nanometers, the eye responds to */
+    public static final double VISIBLE_MAX = 780;
+
+    private final String name;
+    private final double[] wavelengths, power;
+
+    /**
+     * Creates a spectrum from a table.
+     *
+     * @param name - name shown to the user
+     * @param wavelengths - wavelengths in nanometers, in increasing order
+     * @param power - relative power at each wavelength
+     */
+    public SourceSpectrum(String name, double[] wavelengths, double[] power){
+        if(wavelengths.length != power.length || wavelengths.length < 2)
+            throw new IllegalArgumentException("Need at least two wavelengths, each with a power value");
+        for(int i=1;i<wavelengths.length;i++){
+            if(!(wavelengths[i] > wavelengths[i-1]))
+                throw new IllegalArgumentException("Wavelengths must be increasing: " + wavelengths[i]);
+        }
+        this.name = name;
+        this.wavelengths = wavelengths.clone();
+        this.power = power.clone();
+    }
+
+    /**
+     * @return a 6500 K black body over the visible range
+     */
+    public static SourceSpectrum whiteLight(){
+        return blackBody(6500);
+    }
+
+    /**
+     * Creates the spectrum of a black body, such as an incandescent lamp at around 2800 K.
+     *
+     * @param temperature - temperature in kelvin
+     * @return the black body spectrum over the visible range
+     */
+    public static SourceSpectrum blackBody(double temperature){
+        int n = 81;
+        double[] wl = new double[n];
+        double[] pw = new double[n];
+        for(int i=0;i<n;i++){
+            wl[i] = VISIBLE_MIN + i*(VISIBLE_MAX-VISIBLE_MIN)/(n-1);
+            double meters = wl[i]*1e-9;
+            //Planck's law without its constant factor, 0.014388 m K = h*c/k
+            pw[i] = 1/(Math.pow(meters, 5)*(Math.exp(0.014388/(meters*temperature))-1));
+        }
+        double max = Arrays.stream(pw).max().orElse(1);
+        for(int i=0;i<n;i++){
+            pw[i] /= max;
+        }
+        return new SourceSpectrum("Black body " + (int) temperature + " K", wl, pw);
+    }
+
+    /**
+     * Creates the spectrum of an LED as a Gaussian peak.
+     *
+     * @param peak - peak wavelength in nanometers
+     * @param fullWidth - full width at half maximum in nanometers
+     * @return the LED spectrum
+     */
+    public static SourceSpectrum led(double peak, double fullWidth){
+        int n = 61;
+        double sigma = fullWidth/(2*Math.sqrt(2*Math.log(2)));
+        double[] wl = new double[n];
+        double[] pw = new double[n];
+        for(int i=0;i<n;i++){
+            wl[i] = peak - 3*sigma + i*6*sigma/(n-1);
+            double d = (wl[i]-peak)/sigma;
+            pw[i] = Math.exp(-0.5*d*d);
+        }
+        return new SourceSpectrum("LED " + (int) peak + " nm", wl, pw);
+    }
+
+    /**
+     * Reads a spectrum from a text file with one "wavelength,power" pair per line, the
+     * wavelength in nanometers. Blank lines, lines starting with # and a header line that is
+     * not numeric are skipped. Values may also be separated by semicolons, tabs or spaces.
+     *
+     * @param file - the file to read
+     * @return the spectrum, sorted by wavelength
+     * @throws IOException if the file cannot be read or holds fewer than two values
+     */
+    public static SourceSpectrum fromCsv(Path file) throws IOException{
+        double[] wl = new double[64];
+        double[] pw = new double[64];
+        int n = 0;
+        try(BufferedReader reader = Files.newBufferedReader(file)){
+            String line;
+            while((line = reader.readLine()) != null){
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#"))
+                    continue;
+                String[] parts = line.split("[,;\\s]+");
+                if(parts.length < 2)
+                    continue;
+                try {
+                    double w = Double.parseDouble(parts[0]);
+                    double p = Double.parseDouble(parts[1]);
+                    if(n == wl.length){
+                        wl = Arrays.copyOf(wl, 2*n);
+                        pw = Arrays.copyOf(pw, 2*n);
+                    }
+                    wl[n] = w;
+                    pw[n] = p;
+                    n++;
+                }
+                catch (NumberFormatException e) { //Header line
+                }
+            }
+        }
+        if(n < 2)
+            throw new IOException("Spectrum file " + file + " holds fewer than two values");
+        //Sorts the pairs by wavelength
+        Integer[] order = new Integer[n];
+        for(int i=0;i<n;i++){
+            order[i] = i;
+        }
+        final double[] keys = wl;
+        Arrays.sort(order, (a, b) -> Double.compare(keys[a], keys[b]));
+        double[] sortedWl = new double[n];
+        double[] sortedPw = new double[n];
+        for(int i=0;i<n;i++){
+            sortedWl[i] = wl[order[i]];
+            sortedPw[i] = pw[order[i]];
+        }
+        return new SourceSpectrum(file.getFileName().toString(), sortedWl, sortedPw);
+    }
+
+    /**
+     * Returns the relative power at a wavelength.
+     *
+     * @param wavelength - wavelength in nanometers
+     * @return interpolated power, zero outside of the table
+     */
+    public double powerAt(double wavelength){
+        if(wavelength < wavelengths[0] || wavelength > wavelengths[wavelengths.length-1])
+            return 0;
+        int i = Arrays.binarySearch(wavelengths, wavelength);
+        if(i >= 0)
+            return power[i];
+        i = -i-2;
+        double t = (wavelength-wavelengths[i])/(wavelengths[i+1]-wavelengths[i]);
+        return power[i]*(1-t) + power[i+1]*t;
+    }
+
+    /**
+     * @return shortest wavelength of the table in nanometers
+     */
+    public double getMinWavelength(){
+        return wavelengths[0];
+    }
+
+    /**
+     * @return longest wavelength of the table in nanometers
+     */
+    public double getMaxWavelength(){
+        return wavelengths[wavelengths.length-1];
+    }
+
+    /**
+     * @return name of the spectrum
+     */
+    public String getName(){
+        return name;
+    }
+
+    @Override
+    public boolean equals(Object o){
+        if(this == o)
+            return true;
+        if(!(o instanceof SourceSpectrum))
+            return false;
+        SourceSpectrum other = (SourceSpectrum) o;
+        return Arrays.equals(wavelengths, other.wavelengths) && Arrays.equals(power, other.power);
+    }
+
+    @Override
+    public int hashCode(){
+        return 31*Arrays.hashCode(wavelengths) + Arrays.hashCode(power);
+    }
+
+    @Override
+    public String toString(){
+        return name;
+    }
+}
@@ -0,0 +1,166 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Spectral Accumulator Class
+ * <br>
+ * Computes the pattern of a broadband source, such as white light or an LED, as the sum of
+ * monochromatic patterns. The spectrum of the source is cut into evenly spaced wavelength
+ * slices, the pattern of each slice is computed with the IntensityKernel, and it is added
+ * to the X, Y and Z tristimulus values of every sample, weighted by the power of the source
+ * and the CIE color matching functions at that wavelength. The result is the relative
+ * luminance of every sample and its sRGB color.
+ * <br>
+ * The kernel gives every slice a peak of 1, but the light of a wavelength is spread over a
+ * width proportional to it, so each slice is also weighted by the inverse of its wavelength
+ * to keep the power of every slice the same.
+ * <br>
+ * The slices are divided into one contiguous range per worker of the common fork-join pool.
+ * Each range adds its slices into its own X, Y and Z arrays, so no two threads ever write
+ * to the same array, and the ranges are summed once all of them are done. Each thread keeps
+ * its own accumulator whose arrays are reused until the number of samples changes. The
+ * monochromatic parameters of the slices are built once for each set of parameters and kept
+ * with them, so a pattern computed again, such as a frame redrawn at another resolution,
+ * allocates nothing.
+ */
+public final class SpectralAccumulator {
+
+    /**
+     * Number of wavelength slices the visible part of a spectrum is cut into, about 1.6 nm
+     * each, so that the fringes of neighbouring slices still overlap far from the center
+     */
+    public static final int SLICES = 256;
+
+    private static final ThreadLocal<SpectralAccumulator> ACCUMULATORS = ThreadLocal.withInitial(SpectralAccumulator::new);
+
+    private final int chunks = Math.max(1, ForkJoinPool.commonPool().getParallelism());
+    private final DiffractionParameters[] sliceParameters = new DiffractionParameters[SLICES];
+    //Broadband parameters the slice parameters belong to
+    private DiffractionParameters slicesOf;
+    private final double[] sliceX = new double[SLICES], sliceY = new double[SLICES], sliceZ = new double[SLICES];
+
+    //One set of arrays per chunk of slices, each written by a single thread
+    private double[][] partialX, partialY, partialZ, scratch;
+
+    private SpectralAccumulator(){
+    }
+
+    /**
+     * Computes the luminance and color of a broadband pattern. The wavelength of the
+     * parameters is ignored in favour of their source spectrum.
+     *
+     * @param p - diffraction parameters with a source spectrum
+     * @param x - x coordinates on the screen
+     * @param luminance - receives the relative luminance of each sample, the brightest being 1
+     * @param argb - receives the opaque sRGB color of each sample, may be null if only the
+     *             luminance is needed
+     */
+    public static void compute(DiffractionParameters p, double[] x, double[] luminance, int[] argb){
+        ACCUMULATORS.get().accumulate(p, x, luminance, argb);
+    }
+
+    private void accumulate(DiffractionParameters p, double[] x, double[] luminance, int[] argb){
+        SourceSpectrum spectrum = p.getSpectrum();
+        int n = x.length;
+        if(partialX == null || partialX[0].length != n){ //Only reallocated when the number of samples changes
+            partialX = new double[chunks][n];
+            partialY = new double[chunks][n];
+            partialZ = new double[chunks][n];
+            scratch = new double[chunks][n];
+        }
+
+        //Slices cover the part of the spectrum that is visible
+        double min = Math.max(SourceSpectrum.VISIBLE_MIN, spectrum.getMinWavelength());
+        double max = Math.min(SourceSpectrum.VISIBLE_MAX, spectrum.getMaxWavelength());
+        if(max <= min){ //No visible light at all
+            Arrays.fill(luminance, 0, n, 0);
+            if(argb != null)
+                Arrays.fill(argb, 0, n, 0xFF000000);
+            return;
+        }
+        double step = (max-min)/SLICES;
+        if(!p.equals(slicesOf)){
+            DiffractionParameters monochromatic = p.withSpectrum(null);
+            for(int s=0;s<SLICES;s++){
+                double nm = min + (s+0.5)*step;
+                double weight = spectrum.powerAt(nm)*step/nm;
+                sliceParameters[s] = monochromatic.withWavelength(nm*1e-6);
+                sliceX[s] = weight*ColorMatching.xBar(nm);
+                sliceY[s] = weight*ColorMatching.yBar(nm);
+                sliceZ[s] = weight*ColorMatching.zBar(nm);
+            }
+            slicesOf = p;
+        }
+
+        ForkJoinPool.commonPool().invoke(new Chunks(x, 0, chunks));
+
+        //Sums the chunks into the first one
+        double[] sumX = partialX[0], sumY = partialY[0], sumZ = partialZ[0];
+        for(int c=1;c<chunks;c++){
+            for(int i=0;i<n;i++){
+                sumX[i] += partialX[c][i];
+                sumY[i] += partialY[c][i];
+                sumZ[i] += partialZ[c][i];
+            }
+        }
+        double brightest = 0;
+        for(int i=0;i<n;i++){
+            brightest = Math.max(brightest, sumY[i]);
+        }
+        double scale = brightest > 0 ? 1/brightest : 0;
+        for(int i=0;i<n;i++){
+            luminance[i] = sumY[i]*scale;
+            if(argb != null)
+                argb[i] = ColorMatching.toArgb(sumX[i]*scale, sumY[i]*scale, sumZ[i]*scale);
+        }
+    }
+
+    /**
+     * Accumulates the chunks from first (inclusive) to last (exclusive), splitting the
+     * range in two until a single chunk remains.
+     */
+    @SuppressWarnings("serial") //Tasks of a pool are never serialized
+    private final class Chunks extends RecursiveAction {
+
+        private final double[] x;
+        private final int first, last;
+
+        Chunks(double[] x, int first, int last){
+            this.x = x;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute(){
+            if(last-first == 1){
+                accumulateChunk(x, first);
+                return;
+            }
+            int middle = (first+last) >>> 1;
+            invokeAll(new Chunks(x, first, middle), new Chunks(x, middle, last));
+        }
+    }
+
+    private void accumulateChunk(double[] x, int chunk){
+        double[] accX = partialX[chunk], accY = partialY[chunk], accZ = partialZ[chunk];
+        double[] intensity = scratch[chunk];
+        Arrays.fill(accX, 0);
+        Arrays.fill(accY, 0);
+        Arrays.fill(accZ, 0);
+        int from = chunk*SLICES/chunks, to = (chunk+1)*SLICES/chunks;
+        for(int s=from;s<to;s++){
+            if(sliceY[s] == 0 && sliceX[s] == 0 && sliceZ[s] == 0)
+                continue;
+            IntensityKernel.compute(sliceParameters[s], x, intensity);
+            double wx = sliceX[s], wy = sliceY[s], wz = sliceZ[s];
+            for(int i=0;i<x.length;i++){
+                double v = intensity[i];
+                accX[i] += wx*v;
+                accY[i] += wy*v;
+                accZ[i] += wz*v;
+            }
+        }
+    }
+}
@@ -0,0 +1,397 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Streaming Image Writer Class
+ * <br>
+ * Encodes an RGB image of any size to a PNG, TIFF or BMP file while it is being rendered,
+ * band of rows after band of rows, from the top. Nothing but the current band and a small
+ * output buffer is ever held in memory, so images far larger than the heap can be written.
+ * <br>
+ * PNG rows are filtered with the Sub filter and deflated into IDAT chunks as they arrive.
+ * TIFF files hold one uncompressed strip, whose size is known in advance, so the header
+ * is written first; BMP files are written top-down, which the format allows with a
+ * negative height. TIFF and BMP offsets are 32 bits, which limits them to 4 GB of pixels.
+ * Alpha is ignored: every pixel is written as opaque RGB.
+ */
+public abstract class StreamingImageWriter implements Closeable {
+
+    /** Deflate level of PNG files unless another is given */
+    public static final int DEFAULT_COMPRESSION = 6;
+
+    protected final int width, height;
+    protected final OutputStream out;
+    private int rowsWritten;
+
+    private StreamingImageWriter(Path file, int width, int height) throws IOException{
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Image size must be positive: " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+    }
+
+    /**
+     * Creates the file and writes its header, the format being chosen by its extension:
+     * .png, .tif or .tiff, or .bmp.
+     *
+     * @param file - the file to create or replace
+     * @param width - image width in pixels
+     * @param height - image height in pixels
+     * @return the writer, expecting height rows
+     * @throws IOException if the file cannot be written
+     * @throws IllegalArgumentException if the extension is not supported
+     */
+    public static StreamingImageWriter create(Path file, int width, int height) throws IOException{
+        return create(file, width, height, DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates the file and writes its header, like create(file, width, height), with the
+     * given compression level for PNG files.
+     *
+     * @param file - the file to create or replace
+     * @param width - image width in pixels
+     * @param height - image height in pixels
+     * @param compression - deflate level of PNG files, from 0 for none to 9 for the smallest
+     *                    and slowest; 1 is several times faster than the default 6 and
+     *                    compresses smooth patterns nearly as well
+     * @return the writer, expecting height rows
+     * @throws IOException if the file cannot be written
+     * @throws IllegalArgumentException if the extension is not supported
+     */
+    public static StreamingImageWriter create(Path file, int width, int height, int compression) throws IOException{
+        String format = formatOf(file);
+        switch (format) {
+            case "png":
+                return new Png(file, width, height, compression);
+            case "tif": //The sizes are checked before the file is replaced
+                Tiff.checkSize(width, height);
+                return new Tiff(file, width, height);
+            case "bmp":
+                Bmp.checkSize(width, height);
+                return new Bmp(file, width, height);
+            default:
+                throw new IllegalArgumentException("Images can be streamed to .png, .tif or .bmp files, not " + file.getFileName());
+        }
+    }
+
+    /**
+     * @param file - an image file
+     * @return png, tif, bmp or jpg as given by the extension of the file, tiff being tif
+     * and jpeg being jpg, or the extension itself if it is none of them
+     */
+    public static String formatOf(Path file){
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        String extension = name.substring(name.lastIndexOf('.')+1);
+        if(extension.equals("tiff"))
+            return "tif";
+        if(extension.equals("jpeg"))
+            return "jpg";
+        return extension;
+    }
+
+    /**
+     * Writes the next rows of the image.
+     *
+     * @param argb - pixels, row by row, width values per row
+     * @param offset - index of the first pixel of the first row in argb
+     * @param rows - number of rows to write
+     * @throws IOException if the file cannot be written
+     */
+    public void writeRows(int[] argb, int offset, int rows) throws IOException{
+        if(rowsWritten + rows > height)
+            throw new IllegalStateException("More rows than the height of the image");
+        for(int r=0;r<rows;r++){
+            writeRow(argb, offset + r*width);
+        }
+        rowsWritten += rows;
+    }
+
+    protected abstract void writeRow(int[] argb, int offset) throws IOException;
+
+    /**
+     * Finishes the file. Fails if fewer rows than the height were written.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException{
+        try {
+            if(rowsWritten != height)
+                throw new IOException("Image incomplete: " + rowsWritten + " of " + height + " rows written");
+            finish();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    protected void finish() throws IOException{
+    }
+
+    /**
+     * Filters a row of pixels for PNG with the Sub filter: each byte minus the same
+     * channel of the pixel to its left, after the filter type byte.
+     *
+     * @param argb - pixels
+     * @param offset - index of the first pixel of the row in argb
+     * @param width - pixels in the row
+     * @param row - receives the 1 + 3*width bytes of the filtered row
+     */
+    static void filterRow(int[] argb, int offset, int width, byte[] row){
+        row[0] = 1;
+        int previous = 0;
+        for(int i=0;i<width;i++){
+            int pixel = argb[offset+i];
+            row[1+3*i] = (byte) ((pixel >> 16) - (previous >> 16));
+            row[2+3*i] = (byte) ((pixel >> 8) - (previous >> 8));
+            row[3+3*i] = (byte) (pixel - previous);
+            previous = pixel;
+        }
+    }
+
+    /**
+     * Writes a PNG chunk: its length, type, data and CRC.
+     *
+     * @param out - the PNG stream
+     * @param type - four letter chunk type
+     * @param bytes - chunk data
+     * @param offset - index of the first byte of data in bytes
+     * @param length - number of bytes of data
+     * @throws IOException if the stream cannot be written
+     */
+    static void writeChunk(OutputStream out, String type, byte[] bytes, int offset, int length) throws IOException{
+        CRC32 crc = new CRC32();
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        writeIntBE(out, length);
+        out.write(name);
+        out.write(bytes, offset, length);
+        crc.update(name);
+        crc.update(bytes, offset, length);
+        writeIntBE(out, (int) crc.getValue());
+    }
+
+    static void writeIntBE(OutputStream out, int value) throws IOException{
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeIntLE(OutputStream out, int value) throws IOException{
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static void writeShortLE(OutputStream out, int value) throws IOException{
+        out.write(value);
+        out.write(value >>> 8);
+    }
+
+    /**
+     * PNG, 8 bit RGB, rows filtered with Sub and deflated into IDAT chunks.
+     */
+    private static final class Png extends StreamingImageWriter {
+        private final byte[] row;
+        private final Deflater deflater;
+        private final DeflaterOutputStream data;
+
+        Png(Path file, int width, int height, int compression) throws IOException{
+            super(file, width, height);
+            deflater = new Deflater(compression);
+            row = new byte[1 + 3*width];
+            out.write(new byte[]{(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'});
+            byte[] header = new byte[13];
+            header[0] = (byte) (width >>> 24); header[1] = (byte) (width >>> 16); header[2] = (byte) (width >>> 8); header[3] = (byte) width;
+            header[4] = (byte) (height >>> 24); header[5] = (byte) (height >>> 16); header[6] = (byte) (height >>> 8); header[7] = (byte) height;
+            header[8] = 8; //Bits per channel
+            header[9] = 2; //RGB
+            chunk("IHDR", header, 13);
+            data = new DeflaterOutputStream(new IdatStream(), deflater, 1 << 16);
+        }
+
+        @Override
+        protected void writeRow(int[] argb, int offset) throws IOException{
+            filterRow(argb, offset, width, row);
+            data.write(row);
+        }
+
+        @Override
+        protected void finish() throws IOException{
+            data.finish();
+            deflater.end();
+            data.flush();
+            chunk("IEND", new byte[0], 0);
+        }
+
+        private void chunk(String type, byte[] bytes, int length) throws IOException{
+            writeChunk(out, type, bytes, 0, length);
+        }
+
+        /**
+         * Collects deflated bytes and writes them as IDAT chunks of up to 64 kB.
+         */
+        private final class IdatStream extends OutputStream {
+            private final byte[] buffer = new byte[1 << 16];
+            private int size;
+
+            @Override
+            public void write(int b) throws IOException{
+                if(size == buffer.length)
+                    flush();
+                buffer[size++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException{
+                while(len > 0){
+                    if(size == buffer.length)
+                        flush();
+                    int n = Math.min(len, buffer.length-size);
+                    System.arraycopy(b, off, buffer, size, n);
+                    size += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+            @Override
+            public void flush() throws IOException{
+                if(size > 0)
+                    chunk("IDAT", buffer, size);
+                size = 0;
+            }
+        }
+    }
+
+    /**
+     * Baseline TIFF, little endian, uncompressed 8 bit RGB in one strip.
+     */
+    private static final class Tiff extends StreamingImageWriter {
+        private static final int ENTRIES = 12;
+        private static final int IFD_END = 8 + 2 + 12*ENTRIES + 4;
+        private final byte[] row;
+
+        /**
+         * @throws IllegalArgumentException if the pixels do not fit the 32 bit offsets
+         */
+        static void checkSize(int width, int height){
+            if(3L*width*height + IFD_END + 22 > 0xFFFFFFFFL)
+                throw new IllegalArgumentException("A TIFF image cannot be larger than 4 GB");
+        }
+
+        Tiff(Path file, int width, int height) throws IOException{
+            super(file, width, height);
+            long bytes = 3L*width*height;
+            int bitsOffset = IFD_END, xResolution = IFD_END + 6, yResolution = IFD_END + 14, dataOffset = IFD_END + 22;
+            row = new byte[3*width];
+            out.write(new byte[]{'I', 'I', 42, 0});
+            writeIntLE(out, 8);
+            writeShortLE(out, ENTRIES);
+            entry(256, 4, 1, width);              //Image width
+            entry(257, 4, 1, height);             //Image length
+            entry(258, 3, 3, bitsOffset);         //Bits per sample, 8,8,8 stored after the directory
+            entry(259, 3, 1, 1);                  //No compression
+            entry(262, 3, 1, 2);                  //RGB
+            entry(273, 4, 1, dataOffset);         //Offset of the single strip
+            entry(277, 3, 1, 3);                  //Samples per pixel
+            entry(278, 4, 1, height);             //Rows per strip
+            entry(279, 4, 1, (int) bytes);        //Bytes in the strip
+            entry(282, 5, 1, xResolution);        //72 pixels per inch
+            entry(283, 5, 1, yResolution);
+            entry(296, 3, 1, 2);                  //Resolution in inches
+            writeIntLE(out, 0);                   //No further directory
+            writeShortLE(out, 8);
+            writeShortLE(out, 8);
+            writeShortLE(out, 8);
+            writeIntLE(out, 72);
+            writeIntLE(out, 1);
+            writeIntLE(out, 72);
+            writeIntLE(out, 1);
+        }
+
+        private void entry(int tag, int type, int count, int value) throws IOException{
+            writeShortLE(out, tag);
+            writeShortLE(out, type);
+            writeIntLE(out, count);
+            if(type == 3 && count == 1){ //A single short is left aligned in the value field
+                writeShortLE(out, value);
+                writeShortLE(out, 0);
+            }
+            else
+                writeIntLE(out, value);
+        }
+
+        @Override
+        protected void writeRow(int[] argb, int offset) throws IOException{
+            for(int i=0;i<width;i++){
+                int pixel = argb[offset+i];
+                row[3*i] = (byte) (pixel >> 16);
+                row[3*i+1] = (byte) (pixel >> 8);
+                row[3*i+2] = (byte) pixel;
+            }
+            out.write(row);
+        }
+    }
+
+    /**
+     * Windows bitmap, 24 bit, rows stored from the top.
+     */
+    private static final class Bmp extends StreamingImageWriter {
+        private final byte[] row;
+
+        /**
+         * @throws IllegalArgumentException if the pixels do not fit the 32 bit offsets
+         */
+        static void checkSize(int width, int height){
+            if(((3L*width + 3) & ~3L)*height + 54 > 0xFFFFFFFFL) //Rows are padded to 4 bytes
+                throw new IllegalArgumentException("A BMP image cannot be larger than 4 GB");
+        }
+
+        Bmp(Path file, int width, int height) throws IOException{
+            super(file, width, height);
+            int stride = (3*width + 3) & ~3; //Rows are padded to 4 bytes
+            long bytes = (long) stride*height;
+            row = new byte[stride];
+            out.write('B');
+            out.write('M');
+            writeIntLE(out, (int) (bytes + 54));
+            writeIntLE(out, 0);
+            writeIntLE(out, 54);
+            writeIntLE(out, 40);
+            writeIntLE(out, width);
+            writeIntLE(out, -height); //Negative height: top-down rows
+            writeShortLE(out, 1);
+            writeShortLE(out, 24);
+            writeIntLE(out, 0); //No compression
+            writeIntLE(out, (int) bytes);
+            writeIntLE(out, 2835); //72 pixels per inch
+            writeIntLE(out, 2835);
+            writeIntLE(out, 0);
+            writeIntLE(out, 0);
+        }
+
+        @Override
+        protected void writeRow(int[] argb, int offset) throws IOException{
+            for(int i=0;i<width;i++){
+                int pixel = argb[offset+i];
+                row[3*i] = (byte) pixel;
+                row[3*i+1] = (byte) (pixel >> 8);
+                row[3*i+2] = (byte) (pixel >> 16);
+            }
+            out.write(row);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sweep Runner Class
+ * <br>
+ * Computes the diffraction patterns of every combination of a set of parameter ranges
+ * without a user interface, for design studies on headless machines. Run it with
+ * <br>
+ * java SweepRunner sweep.properties [key=value ...]
+ * <br>
+ * where the properties file, and the key=value arguments which override it, describe the
+ * sweep:
+ * <pre>
+ * wavelength = 400:700:10      nanometers
+ * slitWidth  = 0.05:0.2:0.05   millimeters
+ * separation = 0.1,0.2,0.5     millimeters
+ * distance   = 500             millimeters
+ * slits      = 2               1, 2 or more for a grating
+ * mode       = fraunhofer      auto, fraunhofer or fresnel
+ * source     = laser           laser, white, lamp, led or the path of a spectrum CSV file
+ * sourceAngle = 0              angular width of the source in radians, see PatternBlur
+ * pixelWidth = 0               width of a detector pixel in millimeters
+ * bandwidth  = 0               relative spectral width of the laser
+ * samples    = 1501            samples per pattern, the most an adaptive grid may have
+ * sampling   = uniform         uniform, or adaptive to refine the grid around the fringes
+ * tolerance  = 0.001           largest interpolation error of an adaptive grid
+ * halfExtent = 1.501           half the width of the screen in millimeters
+ * output     = sweep           output directory
+ * intensities = true           whether the patterns themselves are written
+ * threads    = 0               worker threads, 0 for one per processor
+ * stats      = false           whether the timings of PerfStats are printed at the end
+ * </pre>
+ * A range is start:end:step with the end included, a comma separated list, or one value.
+ * An adaptive grid differs from pattern to pattern, so it needs intensities = false, as an
+ * archive stores one grid for all its patterns; the CSV then also lists the samples used.
+ * <br>
+ * The combinations are never built as a list: combination i is decoded from its index, and
+ * the index range is cut into contiguous parts that run as tasks of a fork-join pool. Each
+ * part streams its results to its own files as they are computed, part-N.csv with the
+ * parameters and metrics of each combination and, if enabled, part-N.dfp, a PatternArchive
+ * of the intensities as float32. Each worker thread reuses one set of buffers for all its
+ * patterns, so memory does not grow with the size of the sweep and throughput grows with
+ * the number of cores.
+ */
+public class SweepRunner {
+
+    /** Parts per worker thread, so that faster parts can be balanced by work stealing */
+    private static final int PARTS_PER_THREAD = 4;
+
+    private final double[] wavelengths, slitWidths, separations, distances, slits;
+    private final PropagationMode mode;
+    private final String source;
+    private final SourceSpectrum fileSpectrum;
+    private final PatternBlur blur;
+    private final SamplingStrategy sampling;
+    //Null for an adaptive grid, which is sampled for every combination
+    private final double[] grid;
+    private final Path output;
+    private final boolean intensities;
+    private final int threads;
+
+    private final ThreadLocal<Buffers> buffers;
+    private final AtomicLong done = new AtomicLong();
+
+    /**
+     * Creates a sweep from its description.
+     *
+     * @param spec - the sweep properties, see the class description
+     * @throws IOException if a spectrum file cannot be read
+     */
+    public SweepRunner(Properties spec) throws IOException{
+        wavelengths = parseRange(spec.getProperty("wavelength", "500"));
+        slitWidths = parseRange(spec.getProperty("slitWidth", "0.1"));
+        separations = parseRange(spec.getProperty("separation", "0.5"));
+        distances = parseRange(spec.getProperty("distance", "500"));
+        slits = parseRange(spec.getProperty("slits", "1"));
+        mode = PropagationMode.valueOf(spec.getProperty("mode", "fraunhofer").trim().toUpperCase(Locale.ROOT));
+        source = spec.getProperty("source", "laser").trim();
+        fileSpectrum = isFile(source) ? SourceSpectrum.fromCsv(Paths.get(source)) : null;
+        PatternBlur b = new PatternBlur(Double.parseDouble(spec.getProperty("sourceAngle", "0").trim()),
+                Double.parseDouble(spec.getProperty("pixelWidth", "0").trim()),
+                Double.parseDouble(spec.getProperty("bandwidth", "0").trim()));
+        blur = b.isNone() ? null : b;
+        int samples = Integer.parseInt(spec.getProperty("samples", "1501").trim());
+        sampling = SamplingStrategy.named(spec.getProperty("sampling", "uniform"), samples,
+                Double.parseDouble(spec.getProperty("halfExtent", "1.501").trim()),
+                Double.parseDouble(spec.getProperty("tolerance", "0.001").trim()));
+        grid = sampling.isUniform() ? sampling.sample(null) : null;
+        output = Paths.get(spec.getProperty("output", "sweep").trim());
+        intensities = Boolean.parseBoolean(spec.getProperty("intensities", "true").trim());
+        if(grid == null && intensities)
+            throw new IllegalArgumentException("An adaptive grid needs intensities=false, an archive stores one grid");
+        int t = Integer.parseInt(spec.getProperty("threads", "0").trim());
+        threads = (t > 0) ? t : Runtime.getRuntime().availableProcessors();
+        buffers = ThreadLocal.withInitial(() -> new Buffers(samples));
+    }
+
+    /**
+     * Parses start:end:step, a comma separated list or a single value.
+     *
+     * @param text - the range
+     * @return all the values of the range
+     */
+    static double[] parseRange(String text){
+        text = text.trim();
+        if(text.contains(":")){
+            String[] parts = text.split(":");
+            if(parts.length != 3)
+                throw new IllegalArgumentException("A range is start:end:step: " + text);
+            double start = Double.parseDouble(parts[0].trim());
+            double end = Double.parseDouble(parts[1].trim());
+            double step = Double.parseDouble(parts[2].trim());
+            if(!(step > 0) || end < start)
+                throw new IllegalArgumentException("Range needs a positive step and end >= start: " + text);
+            //Tolerates rounding so that the end value is included
+            int count = (int) Math.floor((end-start)/step + 1e-9) + 1;
+            double[] values = new double[count];
+            for(int i=0;i<count;i++){
+                values[i] = start + i*step;
+            }
+            return values;
+        }
+        String[] parts = text.split(",");
+        double[] values = new double[parts.length];
+        for(int i=0;i<parts.length;i++){
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static boolean isFile(String source){
+        switch (source.toLowerCase(Locale.ROOT)) {
+            case "laser": case "white": case "lamp": case "led":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return the number of combinations in the sweep
+     */
+    public long size(){
+        return (long) wavelengths.length*slitWidths.length*separations.length*distances.length*slits.length;
+    }
+
+    /**
+     * Decodes the parameters of a combination from its index, the wavelength varying fastest.
+     *
+     * @param index - index of the combination, from 0 to size()-1
+     * @return the parameters of the combination
+     */
+    public DiffractionParameters parameters(long index){
+        int w = (int) (index % wavelengths.length);
+        index /= wavelengths.length;
+        int a = (int) (index % slitWidths.length);
+        index /= slitWidths.length;
+        int d = (int) (index % separations.length);
+        index /= separations.length;
+        int l = (int) (index % distances.length);
+        index /= distances.length;
+        int n = (int) index;
+        double nm = wavelengths[w];
+        DiffractionParameters p = new DiffractionParameters(slitWidths[a], distances[l], nm/1000000, slits[n], separations[d]).withMode(mode).withBlur(blur);
+        switch (source.toLowerCase(Locale.ROOT)) {
+            case "laser":
+                return p;
+            case "white":
+                return p.withSpectrum(SourceSpectrum.whiteLight());
+            case "lamp":
+                return p.withSpectrum(SourceSpectrum.blackBody(2800));
+            case "led":
+                return p.withSpectrum(SourceSpectrum.led(nm, 30));
+            default:
+                return p.withSpectrum(fileSpectrum);
+        }
+    }
+
+    /**
+     * Runs the whole sweep, writing the results into the output directory.
+     *
+     * @throws IOException if the output directory cannot be written
+     * @throws UncheckedIOException if the files of a part cannot be written
+     */
+    public void run() throws IOException{
+        Files.createDirectories(output);
+        writeManifest();
+        long total = size();
+        int parts = (int) Math.max(1, Math.min(total, (long) threads*PARTS_PER_THREAD));
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for(int i=0;i<parts;i++){
+                tasks.add(pool.submit(new Part(i, total*i/parts, total*(i+1)/parts)));
+            }
+            for(ForkJoinTask<?> task : tasks){
+                task.join();
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Writes the description of the output. The x coordinates of the samples are stored
+     * in the grid of every archive.
+     */
+    private void writeManifest() throws IOException{
+        try(BufferedWriter writer = Files.newBufferedWriter(output.resolve("sweep.txt"))){
+            writer.write("combinations=" + size() + "\n");
+            if(grid != null)
+                writer.write("samples=" + grid.length + "\n");
+            else
+                writer.write("sampling=adaptive\n");
+            writer.write("mode=" + mode + "\n");
+            writer.write("source=" + source + "\n");
+            if(blur != null)
+                writer.write("blur=" + blur + "\n");
+            writer.write("halfExtent=" + sampling.getHalfExtent() + "\n");
+        }
+    }
+
+    /**
+     * Computes the combinations from first (inclusive) to last (exclusive) and streams them
+     * to the files of the part.
+     */
+    @SuppressWarnings("serial") //Tasks of a pool are never serialized
+    private final class Part extends RecursiveAction {
+
+        private final int number;
+        private final long first, last;
+
+        Part(int number, long first, long last){
+            this.number = number;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute(){
+            String name = String.format(Locale.ROOT, "part-%05d", number);
+            Buffers b = buffers.get();
+            try(Writer csv = Files.newBufferedWriter(output.resolve(name + ".csv"));
+                PatternArchive.Writer data = intensities ? PatternArchive.create(output.resolve(name + ".dfp"),
+                        PatternArchive.FLOAT32, grid, PatternArchive.DEFAULT_CHUNK) : null){
+                csv.write("index,wavelength,slitWidth,separation,distance,slits,firstMinimum,measuredMinimum,fresnelNumber"
+                        + (grid == null ? ",samples\n" : "\n"));
+                for(long i=first;i<last;i++){
+                    DiffractionParameters p = parameters(i);
+                    long start = PerfStats.start(), allocated = PerfStats.allocatedBytes();
+                    double[] x = (grid != null) ? grid : sampling.sample(p);
+                    if(p.isPolychromatic())
+                        SpectralAccumulator.compute(p, x, b.intensity, null);
+                    else
+                        IntensityKernel.compute(p, x, b.intensity);
+                    if(blur != null)
+                        blur.apply(p, x, b.intensity, null);
+                    PerfStats.record(PerfStats.Stage.CALCULATE, start, allocated);
+                    csv.write(i + "," + p.getWavelength()*1000000 + "," + p.getSlitWidth() + "," + p.getDistanceBetweenSlits()
+                            + "," + p.getDistanceFromScreen() + "," + (int) p.getNumberSlits()
+                            + "," + p.getFirstDiffractionDistance() + "," + firstMinimum(x, b.intensity)
+                            + "," + p.getFresnelNumber() + (grid == null ? "," + x.length + "\n" : "\n"));
+                    if(data != null)
+                        data.append(p, b.intensity);
+                }
+                done.addAndGet(last-first);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Finds the first local minimum right of the center of the screen.
+     *
+     * @param x - the grid
+     * @param intensity - intensity of every sample of the grid
+     * @return its x coordinate, NaN if there is none on the screen
+     */
+    private static double firstMinimum(double[] x, double[] intensity){
+        int center = Arrays.binarySearch(x, 0);
+        if(center < 0)
+            center = -center-2; //The last sample left of the center
+        for(int i=Math.max(center, 0)+1;i<x.length-1;i++){
+            if(intensity[i] <= intensity[i-1] && intensity[i] < intensity[i+1])
+                return x[i];
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Array a worker thread reuses for all the patterns it computes.
+     */
+    private static final class Buffers {
+        final double[] intensity;
+
+        Buffers(int samples){
+            intensity = new double[samples];
+        }
+    }
+
+    /**
+     * @return the number of combinations finished so far
+     */
+    public long getDone(){
+        return done.get();
+    }
+
+    /**
+     * Reads the sweep description and runs it, printing the throughput.
+     *
+     * @param args - the properties file, followed by any key=value overrides
+     */
+    public static void main(String[] args) throws IOException{
+        if(args.length == 0){
+            System.err.println("Usage: java SweepRunner sweep.properties [key=value ...]");
+            System.exit(2);
+        }
+        Properties spec = new Properties();
+        try(Reader reader = Files.newBufferedReader(Paths.get(args[0]))){
+            spec.load(reader);
+        }
+        for(int i=1;i<args.length;i++){
+            int equals = args[i].indexOf('=');
+            if(equals > 0)
+                spec.setProperty(args[i].substring(0, equals).trim(), args[i].substring(equals+1).trim());
+        }
+        SweepRunner runner = new SweepRunner(spec);
+        System.out.println("Computing " + runner.size() + " patterns on " + runner.threads + " threads into " + runner.output);
+        long start = System.nanoTime();
+        runner.run();
+        double seconds = (System.nanoTime()-start)/1e9;
+        System.out.printf(Locale.ROOT, "Done: %d patterns in %.2f s, %.0f patterns/s%n", runner.getDone(), seconds, runner.getDone()/seconds);
+        if(Boolean.parseBoolean(spec.getProperty("stats", "false").trim()))
+            System.out.print(PerfStats.report());
+    }
+}
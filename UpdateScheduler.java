@@ -0,0 +1,234 @@
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Update Scheduler Class
+ * <br>
+ * Moves expensive work triggered by the user interface off the JavaFX Application Thread.
+ * <br>
+ * Requests submitted from the FX thread are coalesced so that at most one job is started
+ * per pulse, no matter how many slider events arrive in between; only the newest request
+ * of a pulse is kept. Jobs run on a single background thread. Starting a new job cancels
+ * the job that is still queued or running, and a result is only handed to the publisher
+ * (back on the FX thread) if no newer job has been started since, so the screen never
+ * shows a stale pattern and never falls behind the slider.
+ * <br>
+ * A job may also hand intermediate results, such as a coarse preview of the pattern, to
+ * the publisher while it keeps working. They are published under the same rule, so the
+ * previews of a job stop as soon as a newer job starts.
+ * <br>
+ * The pulses default to those of the display and the background thread to one of its own;
+ * both can be given instead, so that InteractionReplayer can drive the program at a pace of
+ * its own without a display.
+ *
+ * @param <P> - type of the request, which must not be modified after it is submitted
+ * @param <R> - type of the computed result
+ */
+public class UpdateScheduler<P, R> {
+
+    private final BiFunction<P, Consumer<R>, R> compute;
+    private final Consumer<R> publisher;
+    private final ExecutorService executor;
+    private final Pulse pulse;
+
+    //The following fields are only accessed on the FX thread
+    private Function<Consumer<R>, R> pending;
+    private Future<?> inFlight;
+    private long generation;
+    private boolean running;
+
+    /**
+     * Creates a scheduler with its own background thread.
+     *
+     * @param compute - work to run on the background thread for a request
+     * @param publisher - receives the latest result on the FX thread
+     */
+    public UpdateScheduler(Function<P, R> compute, Consumer<R> publisher){
+        this("diffraction-update", compute, publisher);
+    }
+
+    /**
+     * Creates a scheduler with its own, named background thread.
+     *
+     * @param name - name of the background thread
+     * @param compute - work to run on the background thread for a request
+     * @param publisher - receives the latest result on the FX thread
+     */
+    public UpdateScheduler(String name, Function<P, R> compute, Consumer<R> publisher){
+        this(name, (request, progress) -> compute.apply(request), publisher);
+    }
+
+    /**
+     * Creates a scheduler with its own, named background thread for work that publishes
+     * intermediate results. The work receives a consumer which hands each intermediate
+     * result to the publisher, and should check the interrupted flag of its thread to stop
+     * early once it has been cancelled.
+     *
+     * @param name - name of the background thread
+     * @param compute - work to run on the background thread for a request, given a
+     *                consumer for intermediate results
+     * @param publisher - receives the latest intermediate and final results on the FX thread
+     */
+    public UpdateScheduler(String name, BiFunction<P, Consumer<R>, R> compute, Consumer<R> publisher){
+        this(compute, publisher, displayPulse(), backgroundThread(name));
+    }
+
+    /**
+     * Creates a scheduler for work that publishes intermediate results, started on the
+     * given pulses and run by the given executor.
+     *
+     * @param compute - work to run on the background thread for a request, given a
+     *                consumer for intermediate results
+     * @param publisher - receives the latest intermediate and final results on the FX thread
+     * @param pulse - pulses on which the pending request is started
+     * @param executor - runs the jobs, one at a time, and is shut down with the scheduler
+     */
+    public UpdateScheduler(BiFunction<P, Consumer<R>, R> compute, Consumer<R> publisher, Pulse pulse, ExecutorService executor){
+        this.compute = compute;
+        this.publisher = publisher;
+        this.pulse = pulse;
+        this.executor = executor;
+    }
+
+    /**
+     * @param name - name of the thread
+     * @return an executor with a single daemon thread, as a scheduler uses by default
+     */
+    public static ExecutorService backgroundThread(String name){
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return pulses of the display, as a scheduler uses by default
+     */
+    public static Pulse displayPulse(){
+        return new Pulse() {
+            private Runnable handler;
+            private final AnimationTimer timer = new AnimationTimer() {
+                @Override
+                public void handle(long now) {
+                    handler.run();
+                }
+            };
+
+            @Override
+            public void start(Runnable handler){
+                this.handler = handler;
+                timer.start();
+            }
+
+            @Override
+            public void stop(){
+                timer.stop();
+            }
+        };
+    }
+
+    /**
+     * Queues a request to be computed on the next pulse, replacing any request that
+     * has not been started yet. Must be called on the FX thread.
+     *
+     * @param request - the parameters to compute
+     */
+    public void submit(P request){
+        submitJob(progress -> compute.apply(request, progress));
+    }
+
+    /**
+     * Queues a job of its own to be run on the next pulse in place of the compute work,
+     * replacing any request that has not been started yet. The job runs on the same
+     * background thread as the requests and its result is published under the same rule,
+     * so it may use whatever the compute work uses and no older job can overwrite it.
+     * Must be called on the FX thread.
+     *
+     * @param job - work to run on the background thread, given a consumer for
+     *            intermediate results
+     */
+    public void submitJob(Function<Consumer<R>, R> job){
+        pending = job;
+        if(!running){
+            running = true;
+            pulse.start(this::startPending);
+        }
+    }
+
+    /**
+     * Starts the newest pending request, cancelling whatever job is still in flight,
+     * and stops listening to pulses once nothing is pending.
+     */
+    private void startPending(){
+        if(pending == null){
+            running = false;
+            pulse.stop();
+            return;
+        }
+        Function<Consumer<R>, R> job = pending;
+        pending = null;
+        long jobGeneration = ++generation;
+        if(inFlight != null)
+            inFlight.cancel(true);
+        Consumer<R> progress = partial -> {
+            if(!Thread.currentThread().isInterrupted())
+                Platform.runLater(() -> publish(jobGeneration, partial));
+        };
+        inFlight = executor.submit(() -> {
+            R result;
+            try{
+                result = job.apply(progress);
+            }catch(RuntimeException ex){ //The future is never read, so report failures here
+                System.out.println(ex);
+                return;
+            }
+            if(!Thread.currentThread().isInterrupted())
+                Platform.runLater(() -> publish(jobGeneration, result));
+        });
+    }
+
+    /**
+     * Hands a result to the publisher if it belongs to the newest job.
+     *
+     * @param jobGeneration - generation of the job that computed the result
+     * @param result - computed result
+     */
+    private void publish(long jobGeneration, R result){
+        if(jobGeneration == generation)
+            publisher.accept(result);
+    }
+
+    /**
+     * Stops the pulse listener and the background thread.
+     */
+    public void shutdown(){
+        pulse.stop();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Source of the pulses on which a scheduler starts its pending request. A scheduler
+     * only listens while a request is pending.
+     */
+    public interface Pulse {
+        /**
+         * Starts calling the handler on the FX thread once per pulse, until stopped.
+         *
+         * @param handler - called on every pulse
+         */
+        void start(Runnable handler);
+
+        /**
+         * Stops calling the handler.
+         */
+        void stop();
+    }
+}
@@ -0,0 +1,354 @@
+import javafx.application.Platform;
+import javafx.scene.image.WritableImage;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks Class
+ * <br>
+ * Measures the throughput and allocation rate of the compute and render paths, so that a
+ * performance change can be checked against a baseline. Every benchmark runs one
+ * operation in a loop: first for the warm up iterations, which let the JIT compile it,
+ * then for the measured iterations, each lasting the given time. The result of each
+ * operation is consumed so the JIT cannot drop the work. Allocation is read from the
+ * per-thread counter of the JVM and reported in bytes per operation; work the operation
+ * hands to other threads, such as the fork-join pool or the FX thread, is timed but its
+ * allocation is not counted.
+ * <br>
+ * Compile it together with the sources and run it with
+ * <br>
+ * java -cp out Benchmarks [filter=regex] [warmup=3] [iterations=5] [time=1] [output=results.csv] [baseline=old.csv]
+ * <br>
+ * The results are printed as a table. With output they are also written as CSV, and with
+ * baseline the change from an earlier CSV is printed next to each benchmark. The same
+ * benchmarks run under JMH through PipelineBenchmark of the benchmarks module, which
+ * sets them up with setUp and also counts the allocation of the other threads.
+ * <br>
+ * The render benchmarks draw with the PatternRenderer of the program into panes of the
+ * size of the window. render.800x300 maps the pattern and draws the graph and intensity
+ * map on the calling thread into panes that are not shown, which records the commands
+ * of the canvas and writes the pixels of the map; render.snapshot.800x340 does the same
+ * on the FX thread and then takes a snapshot of the panes, so the canvas is rasterized
+ * too. They start JavaFX, which needs a display, or the Monocle headless platform on the
+ * class path with -Dglass.platform=Monocle -Dmonocle.platform=Headless -Dprism.order=sw.
+ */
+public class Benchmarks {
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static volatile double sink;
+    private static boolean javaFxStarted;
+
+    private final Map<String, Supplier<Runnable>> benchmarks = new LinkedHashMap<>();
+
+    /**
+     * Lists every benchmark with its set up. The inputs are only created when a benchmark
+     * is set up, so only the operation itself is measured and benchmarks that are not run
+     * cost nothing.
+     */
+    private Benchmarks(){
+        DiffractionParameters single = new DiffractionParameters(0.1, 500, 550e-6, 1, 0);
+        DiffractionParameters twoSlits = new DiffractionParameters(0.1, 500, 550e-6, 2, 0.4);
+        DiffractionParameters grating = new DiffractionParameters(0.02, 500, 550e-6, 8, 0.1);
+        for(int samples : new int[]{1501, 16385, 1 << 20}){
+            add("kernel.single." + samples, () -> kernel(single, samples));
+            add("kernel.double." + samples, () -> kernel(twoSlits, samples));
+        }
+        add("kernel.grating.1501", () -> {
+            double[] x = DiffractionCalculator.DEFAULT_SAMPLING.sample(null);
+            double[] out = new double[x.length];
+            return () -> {
+                IntensityKernel.compute(grating, x, out);
+                sink += out[500];
+            };
+        });
+
+        add("calculate.double.1501", () -> calculate(new DiffractionCalculator(twoSlits)));
+        add("calculate.white.1501", () -> calculate(new DiffractionCalculator(twoSlits.withSpectrum(SourceSpectrum.whiteLight()))));
+        add("calculate.blurred.1501", () -> calculate(new DiffractionCalculator(twoSlits.withBlur(new PatternBlur(1e-3, 0.02, 0.002)))));
+        add("calculate.cached.1501", () -> {
+            DiffractionCalculator cached = new DiffractionCalculator(twoSlits);
+            cached.setCache(new PatternCache(1 << 20));
+            return calculate(cached);
+        });
+
+        add("map.1501", () -> {
+            DiffractionCalculator calculator = calculated(twoSlits);
+            MappedPattern mapped = new MappedPattern();
+            int[] table = MappedPattern.lookupTable(8);
+            return () -> {
+                calculator.MapValues(800, 300, mapped, table);
+                sink += mapped.getY()[500];
+            };
+        });
+
+        add("decimate.10000000", () -> {
+            int large = 10_000_000;
+            double[] x = SamplingStrategy.uniform(large, 1.501).sample(null);
+            double[] values = new double[large];
+            IntensityKernel.compute(twoSlits, x, values);
+            MinMaxPyramid pyramid = new MinMaxPyramid(x, values, null);
+            MappedPattern decimated = new MappedPattern();
+            int[] table = MappedPattern.lookupTable(8);
+            return () -> {
+                pyramid.decimate(-1.501, 1.501, 800, 300, decimated, table);
+                sink += decimated.getY()[100];
+            };
+        });
+
+        add("render.800x300", () -> {
+            startJavaFx();
+            DiffractionCalculator calculator = calculated(twoSlits);
+            Panes panes = new Panes();
+            return () -> {
+                panes.draw(calculator);
+                sink += panes.mapped.getY()[500];
+            };
+        });
+        add("render.snapshot.800x340", () -> {
+            startJavaFx();
+            DiffractionCalculator calculator = calculated(twoSlits);
+            Panes panes = onFxThread(Panes::new);
+            WritableImage image = new WritableImage(800, 340);
+            Semaphore done = new Semaphore(0);
+            Runnable snapshot = () -> {
+                panes.draw(calculator);
+                panes.root.snapshot(null, image);
+                done.release();
+            };
+            return () -> {
+                Platform.runLater(snapshot);
+                done.acquireUninterruptibly();
+                sink += image.getPixelReader().getArgb(400, 150);
+            };
+        });
+    }
+
+    private void add(String name, Supplier<Runnable> setUp){
+        benchmarks.put(name, setUp);
+    }
+
+    private static Runnable kernel(DiffractionParameters p, int samples){
+        double[] x = SamplingStrategy.uniform(samples, 1.501).sample(null);
+        double[] out = new double[samples];
+        return () -> {
+            IntensityKernel.compute(p, x, out);
+            sink += out[samples/3];
+        };
+    }
+
+    private static Runnable calculate(DiffractionCalculator calculator){
+        return () -> {
+            calculator.CalculateOutput();
+            sink += calculator.getOutputValues()[500];
+        };
+    }
+
+    private static DiffractionCalculator calculated(DiffractionParameters p){
+        DiffractionCalculator calculator = new DiffractionCalculator(p);
+        calculator.CalculateOutput();
+        return calculator;
+    }
+
+    /**
+     * The panes of the graph, intensity map and aperture at their size in the window of
+     * the program, with their renderer.
+     */
+    private static final class Panes {
+        final Pane graph = new Pane(), map = new Pane(), aperture = new Pane();
+        final VBox root = new VBox(graph, map); //The part of the window a snapshot shows
+        final PatternRenderer renderer = new PatternRenderer(graph, map, aperture);
+        final MappedPattern mapped = new MappedPattern();
+        final int[] table = MappedPattern.lookupTable(PatternRenderer.channelShift(Color.GREEN));
+
+        Panes(){
+            graph.setPrefSize(800, 300);
+            map.setPrefSize(800, 40);
+            aperture.resize(200, 100);
+            root.resize(800, 340);
+            root.layout();
+        }
+
+        /**
+         * Maps the pattern of a calculator and draws it, like a redraw of the program.
+         */
+        void draw(DiffractionCalculator calculator){
+            calculator.MapValues(800, 300, mapped, table);
+            renderer.drawPattern(mapped, Color.GREEN);
+        }
+    }
+
+    /**
+     * Starts JavaFX once, for the render benchmarks.
+     */
+    private static synchronized void startJavaFx(){
+        if(javaFxStarted)
+            return;
+        CompletableFuture<Void> started = new CompletableFuture<>();
+        Platform.startup(() -> started.complete(null));
+        started.join();
+        Platform.setImplicitExit(false); //No window is ever shown or closed
+        javaFxStarted = true;
+    }
+
+    private static <T> T onFxThread(Supplier<T> work){
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Platform.runLater(() -> {
+            try {
+                result.complete(work.get());
+            } catch (RuntimeException | Error e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result.join();
+    }
+
+    /**
+     * Sets up one benchmark, so that another harness can measure it.
+     *
+     * @param name - name of the benchmark, as listed by names
+     * @return its operation
+     */
+    public static Runnable setUp(String name){
+        Supplier<Runnable> setUp = new Benchmarks().benchmarks.get(name);
+        if(setUp == null)
+            throw new IllegalArgumentException("Unknown benchmark: " + name);
+        return setUp.get();
+    }
+
+    /**
+     * @return names of all benchmarks, in the order they are run
+     */
+    public static List<String> names(){
+        return new ArrayList<>(new Benchmarks().benchmarks.keySet());
+    }
+
+    /**
+     * Stops JavaFX if a render benchmark started it, so that the JVM can exit.
+     */
+    public static synchronized void tearDown(){
+        if(javaFxStarted)
+            Platform.exit();
+    }
+
+    /**
+     * Runs one benchmark.
+     *
+     * @return operations per second of each measured iteration, followed by bytes per operation
+     */
+    private static double[] measure(Runnable operation, int warmup, int iterations, double seconds){
+        long thread = Thread.currentThread().getId();
+        long budget = (long) (seconds*1e9);
+        for(int i=0;i<warmup;i++){
+            long end = System.nanoTime() + budget;
+            while(System.nanoTime() < end)
+                operation.run();
+        }
+        double[] result = new double[iterations+1];
+        long operations = 0, bytes = 0;
+        for(int i=0;i<iterations;i++){
+            long count = 0;
+            long allocated = THREADS.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime(), end = start + budget, now;
+            do {
+                operation.run();
+                count++;
+                now = System.nanoTime();
+            } while(now < end);
+            bytes += THREADS.getThreadAllocatedBytes(thread) - allocated;
+            operations += count;
+            result[i] = count/((now-start)/1e9);
+        }
+        result[iterations] = (double) bytes/operations;
+        return result;
+    }
+
+    /**
+     * Reads the operations per second of each benchmark from an earlier output file.
+     */
+    private static Map<String, Double> readBaseline(String file) throws IOException{
+        Map<String, Double> baseline = new HashMap<>();
+        try(BufferedReader reader = Files.newBufferedReader(Paths.get(file))){
+            String line = reader.readLine(); //Header
+            while((line = reader.readLine()) != null){
+                String[] parts = line.split(",");
+                if(parts.length >= 2)
+                    baseline.put(parts[0], Double.parseDouble(parts[1]));
+            }
+        }
+        return baseline;
+    }
+
+    /**
+     * Runs the benchmarks whose name matches the filter and prints the results.
+     *
+     * @param args - key=value settings, see the class description
+     */
+    public static void main(String[] args) throws IOException{
+        Properties settings = new Properties();
+        for(String arg : args){
+            int equals = arg.indexOf('=');
+            if(equals <= 0){
+                System.err.println("Usage: java Benchmarks [filter=regex] [warmup=3] [iterations=5] [time=1] [output=results.csv] [baseline=old.csv]");
+                System.exit(2);
+            }
+            settings.setProperty(arg.substring(0, equals).trim(), arg.substring(equals+1).trim());
+        }
+        Pattern filter = Pattern.compile(settings.getProperty("filter", ".*"));
+        int warmup = Integer.parseInt(settings.getProperty("warmup", "3"));
+        int iterations = Math.max(1, Integer.parseInt(settings.getProperty("iterations", "5")));
+        double seconds = Double.parseDouble(settings.getProperty("time", "1"));
+        Map<String, Double> baseline = settings.containsKey("baseline") ? readBaseline(settings.getProperty("baseline")) : new HashMap<>();
+
+        System.out.printf(Locale.ROOT, "%-26s %14s %10s %12s %12s %9s%n", "Benchmark", "ops/s", "+-", "ns/op", "B/op", "change");
+        List<String> lines = new ArrayList<>();
+        for(String name : names()){
+            if(!filter.matcher(name).find())
+                continue;
+            double[] result = measure(setUp(name), warmup, iterations, seconds);
+            double mean = 0;
+            for(int i=0;i<iterations;i++){
+                mean += result[i]/iterations;
+            }
+            double variance = 0;
+            for(int i=0;i<iterations;i++){
+                variance += (result[i]-mean)*(result[i]-mean)/Math.max(1, iterations-1);
+            }
+            double error = Math.sqrt(variance);
+            double bytes = result[iterations];
+            Double before = baseline.get(name);
+            String change = (before != null) ? String.format(Locale.ROOT, "%+.1f%%", 100*(mean/before-1)) : "";
+            System.out.printf(Locale.ROOT, "%-26s %14.1f %10.1f %12.1f %12.1f %9s%n", name, mean, error, 1e9/mean, bytes, change);
+            lines.add(String.format(Locale.ROOT, "%s,%.3f,%.3f,%.3f,%.1f", name, mean, error, 1e9/mean, bytes));
+        }
+        if(settings.containsKey("output")){
+            try(BufferedWriter writer = Files.newBufferedWriter(Paths.get(settings.getProperty("output")))){
+                writer.write("benchmark,opsPerSecond,error,nsPerOp,bytesPerOp\n");
+                for(String line : lines){
+                    writer.write(line + "\n");
+                }
+            }
+        }
+        tearDown();
+    }
+}
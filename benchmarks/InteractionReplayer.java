@@ -0,0 +1,427 @@
+import javafx.application.Platform;
+import javafx.fxml.FXMLLoader;
+import javafx.scene.layout.Pane;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Interaction Replayer Class
+ * <br>
+ * Replays a trace recorded by InteractionRecorder at its recorded pace and measures what
+ * the user feels: the latency from every change of a control to the first frame that
+ * shows it, coarse or not, and to the complete frame, and the frames dropped on the way.
+ * A frame shows a change when it shows the parameters the change led to, or those of a
+ * later change. A frame is dropped at every pulse of the display, 60 per second, at which
+ * a change older than one pulse is not shown yet. Run it with
+ * <br>
+ * java -cp out InteractionReplayer trace=trace.tsv [speed=1] [warmup=1] [runs=1]
+ * [output=latency.csv] [maxP99=ms]
+ * <br>
+ * The trace is replayed through the real program, loaded from sample.fxml without a
+ * window: the controls are changed on the FX thread, which calls the real handlers, and
+ * the frames are those the program draws into its panes, which are given the size they
+ * have in the window. Nothing else is laid out, so no fonts are needed. The pulses on which
+ * the program starts a changed pattern are given by the replayer, 60 per second, instead
+ * of the display, so that the pace does not depend on the platform. JavaFX must start, so
+ * it needs a display, or the Monocle headless platform on the class path with
+ * -Dglass.platform=Monocle -Dmonocle.platform=Headless -Dprism.order=sw.
+ * <br>
+ * warmup replays the trace that many times first without measuring, so the JIT has
+ * compiled the pipeline. With output the latencies of every change of the measured runs
+ * are written as CSV. With maxP99 the replayer exits with status 1 if the 99th
+ * percentile of the latency to the complete frame is above that many milliseconds, so
+ * that a build can be failed on it.
+ * <br>
+ * java -cp out InteractionReplayer generate=trace.tsv writes a trace of a typical session
+ * instead: dragging every slider across its range, switching to two slits, white light,
+ * a grating and a blurred camera, at 60 changes per second.
+ */
+public class InteractionReplayer {
+
+    /** Time between two pulses of the display */
+    static final long PULSE = 1_000_000_000L/60;
+    /** Longest wait for a change to be shown completely after the last one was applied */
+    static final long TIMEOUT = 30_000_000_000L;
+
+    private final List<InteractionRecorder.Event> initial = new ArrayList<>(), timed = new ArrayList<>();
+    private final DrivenPulse pulse = new DrivenPulse();
+    private final ExecutorService updateThread = UpdateScheduler.backgroundThread("replay-update");
+    private final AtomicBoolean pulsePending = new AtomicBoolean(); //A pulse is handed to the FX thread and not run yet
+    private Controller controller;
+
+    //Measurement of one run, touched on the FX thread only
+    private DiffractionParameters[] parameters;
+    private long[] applied, firstShown, completeShown;
+    private int lastApplied, oldestUnshown;
+    private long frames, previews, pulses, dropped;
+
+    InteractionReplayer(List<InteractionRecorder.Event> events){
+        for(InteractionRecorder.Event event : events){
+            (event.isInitial() ? initial : timed).add(event);
+        }
+    }
+
+    private void reset(){
+        int n = timed.size();
+        parameters = new DiffractionParameters[n];
+        applied = new long[n];
+        firstShown = new long[n];
+        completeShown = new long[n];
+        Arrays.fill(firstShown, -1);
+        Arrays.fill(completeShown, -1);
+        lastApplied = -1;
+        oldestUnshown = 0;
+        frames = previews = pulses = dropped = 0;
+    }
+
+    /**
+     * Notes that a change was applied and led to the given parameters.
+     *
+     * @param index - index of the change
+     * @param p - parameters the change led to
+     * @param now - value of System.nanoTime at which the change was due
+     */
+    private void applied(int index, DiffractionParameters p, long now){
+        parameters[index] = p;
+        applied[index] = now;
+        lastApplied = index;
+    }
+
+    /**
+     * Notes a frame shown, which shows every change up to the newest one that led to its
+     * parameters.
+     */
+    private void shown(DiffractionParameters p, boolean complete, long now){
+        frames++;
+        if(!complete)
+            previews++;
+        int newest = lastApplied;
+        while(newest >= 0 && !p.equals(parameters[newest]))
+            newest--;
+        for(int k=newest;k >= 0 && (completeShown[k] < 0);k--){
+            if(firstShown[k] < 0)
+                firstShown[k] = now;
+            if(complete)
+                completeShown[k] = now;
+        }
+        while(oldestUnshown <= lastApplied && firstShown[oldestUnshown] >= 0)
+            oldestUnshown++;
+    }
+
+    /**
+     * Notes a pulse of the display, which drops a frame if a change older than a pulse
+     * is not shown yet.
+     */
+    private void pulse(long now){
+        pulses++;
+        if(oldestUnshown <= lastApplied && now - applied[oldestUnshown] > PULSE)
+            dropped++;
+    }
+
+    /**
+     * Replays the trace once through the program, which is loaded on the first call and
+     * kept for the next runs. The calling thread keeps the time: it hands every change to
+     * the FX thread when it is due, and a pulse every PULSE.
+     */
+    void replay(double speed) throws IOException, InterruptedException{
+        if(controller == null)
+            load();
+        reset();
+        //Puts the controls in the recorded initial state and waits for its frame
+        CountDownLatch settled = new CountDownLatch(1);
+        Platform.runLater(() -> {
+            controller.cache.clear(); //Every run starts like a freshly started program, not with the patterns of the last
+            for(InteractionRecorder.Event event : initial){
+                InteractionRecorder.apply(controller, event);
+            }
+            DiffractionParameters target = controller.calculator.getParameters();
+            controller.frameListener = frame -> {
+                if(frame.complete && frame.calculator.getParameters().equals(target))
+                    settled.countDown();
+            };
+            controller.drawGraphs();
+        });
+        long now = System.nanoTime();
+        drivePulses(settled, false, now + PULSE, now + TIMEOUT);
+
+        CountDownLatch finished = new CountDownLatch(timed.isEmpty() ? 0 : 1);
+        Platform.runLater(() -> controller.frameListener = frame -> {
+            shown(frame.calculator.getParameters(), frame.complete, System.nanoTime());
+            if(lastApplied >= 0 && lastApplied == timed.size()-1 && completeShown[lastApplied] >= 0)
+                finished.countDown();
+        });
+        long start = System.nanoTime(), nextPulse = start + PULSE;
+        for(int i=0;i<timed.size();i++){
+            long due = start + (long) (timed.get(i).getTime()*1e6/speed);
+            while(nextPulse <= due){
+                sleepUntil(nextPulse);
+                firePulse(true);
+                nextPulse += PULSE;
+            }
+            sleepUntil(due);
+            int index = i;
+            InteractionRecorder.Event event = timed.get(i);
+            Platform.runLater(() -> { //Latency counts from when the change was due, including the wait for the FX thread
+                InteractionRecorder.apply(controller, event);
+                applied(index, controller.calculator.getParameters(), due);
+            });
+        }
+        drivePulses(finished, true, nextPulse, System.nanoTime() + TIMEOUT);
+        CountDownLatch stopped = new CountDownLatch(1);
+        Platform.runLater(() -> {
+            controller.frameListener = null;
+            stopped.countDown();
+        });
+        stopped.await();
+    }
+
+    /**
+     * Hands a pulse to the FX thread every PULSE until the latch is released or the
+     * deadline is reached.
+     *
+     * @param done - released when the pulses are no longer needed
+     * @param measured - true to note the pulses in the measurement
+     * @param nextPulse - value of System.nanoTime at which the first pulse is due
+     * @param deadline - value of System.nanoTime at which to give up
+     */
+    private void drivePulses(CountDownLatch done, boolean measured, long nextPulse, long deadline) throws InterruptedException{
+        while(!done.await(Math.max(0, nextPulse - System.nanoTime()), TimeUnit.NANOSECONDS) && nextPulse < deadline){
+            firePulse(measured);
+            nextPulse += PULSE;
+        }
+    }
+
+    /**
+     * Hands a pulse to the FX thread, unless the last one has not been run yet, as the
+     * display does not queue pulses while the FX thread is busy.
+     */
+    private void firePulse(boolean measured){
+        if(!pulsePending.compareAndSet(false, true))
+            return;
+        Platform.runLater(() -> {
+            pulsePending.set(false);
+            if(measured)
+                pulse(System.nanoTime());
+            pulse.fire();
+        });
+    }
+
+    private static void sleepUntil(long time) throws InterruptedException{
+        long wait = time - System.nanoTime();
+        if(wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Starts JavaFX and loads the program off screen, with a controller whose patterns are
+     * started on the pulses of the replayer.
+     *
+     * @throws IOException if the program cannot be loaded
+     */
+    private void load() throws IOException, InterruptedException{
+        CompletableFuture<Controller> loaded = new CompletableFuture<>();
+        Platform.startup(() -> {
+            try {
+                FXMLLoader loader = new FXMLLoader(DiffractionApplication.class.getResource("sample.fxml"));
+                loader.setControllerFactory(type -> new Controller(pulse, updateThread));
+                loader.load();
+                Controller program = loader.getController();
+                //Gives the panes drawn into the size they have in the window, without laying out any text
+                for(Pane pane : new Pane[]{program.graph, program.intensityMap, program.apertureGraph}){
+                    pane.resize(pane.getPrefWidth(), pane.getPrefHeight());
+                }
+                loaded.complete(program);
+            } catch (IOException | RuntimeException | Error e) {
+                loaded.completeExceptionally(e);
+            }
+        });
+        try {
+            controller = loaded.get();
+        } catch (ExecutionException e) {
+            Platform.exit();
+            updateThread.shutdownNow();
+            Throwable cause = e.getCause();
+            throw new IOException("The program could not be loaded: " + cause, cause);
+        }
+    }
+
+    /**
+     * Pulses handed to the scheduler of the program by the replayer.
+     */
+    private static final class DrivenPulse implements UpdateScheduler.Pulse {
+        private Runnable handler; //Only used on the FX thread
+
+        @Override
+        public void start(Runnable handler){
+            this.handler = handler;
+        }
+
+        @Override
+        public void stop(){
+            handler = null;
+        }
+
+        void fire(){
+            if(handler != null)
+                handler.run();
+        }
+    }
+
+    /**
+     * Writes a trace of a typical session, see the class description.
+     */
+    static void generate(Path trace) throws IOException{
+        try(BufferedWriter writer = Files.newBufferedWriter(trace)){
+            writer.write(InteractionRecorder.HEADER);
+            writer.newLine();
+            //The state of the controls when the program starts
+            String[][] initial = {
+                    {InteractionRecorder.WAVELENGTH, "400.0"},
+                    {InteractionRecorder.SEPARATION, "0.0"},
+                    {InteractionRecorder.WIDTH, "0.5"},
+                    {InteractionRecorder.DISTANCE, "500.0"},
+                    {InteractionRecorder.SLIT_COUNT, ""},
+                    {InteractionRecorder.SLITS, "single"},
+                    {InteractionRecorder.SOURCE, "Laser"},
+                    {InteractionRecorder.PROPAGATION, PropagationMode.AUTO.name()},
+                    {InteractionRecorder.BLUR, "Ideal"}};
+            for(String[] control : initial){
+                writer.write(new InteractionRecorder.Event(Double.NaN, control[0], control[1]).toString());
+                writer.newLine();
+            }
+            double[] time = {500};
+            drag(writer, time, InteractionRecorder.WAVELENGTH, 400, 700, 3);
+            click(writer, time, InteractionRecorder.SLITS, "double");
+            drag(writer, time, InteractionRecorder.SEPARATION, 0, 5, 2);
+            drag(writer, time, InteractionRecorder.WIDTH, 0.5, 3, 2);
+            drag(writer, time, InteractionRecorder.DISTANCE, 500, 1000, 2);
+            click(writer, time, InteractionRecorder.SOURCE, "White light");
+            drag(writer, time, InteractionRecorder.WAVELENGTH, 700, 400, 2);
+            click(writer, time, InteractionRecorder.SLIT_COUNT, "10");
+            click(writer, time, InteractionRecorder.SLITS, "grating");
+            click(writer, time, InteractionRecorder.SOURCE, "Laser");
+            click(writer, time, InteractionRecorder.BLUR, "Camera");
+            drag(writer, time, InteractionRecorder.SEPARATION, 5, 0.5, 2);
+        }
+    }
+
+    private static void drag(BufferedWriter writer, double[] time, String control, double from, double to, double seconds) throws IOException{
+        int steps = (int) Math.round(seconds*60);
+        for(int s=1;s<=steps;s++){
+            time[0] += 1000/60.0;
+            writer.write(new InteractionRecorder.Event(time[0], control, Double.toString(from + (to-from)*s/steps)).toString());
+            writer.newLine();
+        }
+        time[0] += 500;
+    }
+
+    private static void click(BufferedWriter writer, double[] time, String control, String value) throws IOException{
+        writer.write(new InteractionRecorder.Event(time[0], control, value).toString());
+        writer.newLine();
+        time[0] += 500;
+    }
+
+    /**
+     * Replays a trace and prints the latencies, see the class description.
+     *
+     * @param args - key=value settings
+     */
+    public static void main(String[] args) throws IOException, InterruptedException{
+        Properties settings = new Properties();
+        for(String arg : args){
+            int equals = arg.indexOf('=');
+            if(equals <= 0){
+                System.err.println("Usage: java InteractionReplayer trace=trace.tsv [speed=1] [warmup=1] [runs=1] [output=latency.csv] [maxP99=ms]"
+                        + "\n       java InteractionReplayer generate=trace.tsv");
+                System.exit(2);
+            }
+            settings.setProperty(arg.substring(0, equals).trim(), arg.substring(equals+1).trim());
+        }
+        if(settings.containsKey("generate")){
+            generate(Paths.get(settings.getProperty("generate")));
+            return;
+        }
+        if(!settings.containsKey("trace")){
+            System.err.println("No trace=... given");
+            System.exit(2);
+        }
+        InteractionReplayer replayer = new InteractionReplayer(InteractionRecorder.read(Paths.get(settings.getProperty("trace"))));
+        double speed = Double.parseDouble(settings.getProperty("speed", "1"));
+        int warmup = Integer.parseInt(settings.getProperty("warmup", "1"));
+        int runs = Math.max(1, Integer.parseInt(settings.getProperty("runs", "1")));
+
+        for(int r=0;r<warmup;r++){
+            replayer.replay(speed);
+        }
+        PerfStats.reset();
+        LatencyHistogram first = new LatencyHistogram(), complete = new LatencyHistogram();
+        long frames = 0, previews = 0, pulses = 0, dropped = 0, unshown = 0;
+        List<String> lines = new ArrayList<>();
+        for(int r=0;r<runs;r++){
+            replayer.replay(speed);
+            for(int i=0;i<replayer.timed.size();i++){
+                InteractionRecorder.Event event = replayer.timed.get(i);
+                long firstNanos = replayer.firstShown[i] - replayer.applied[i];
+                long completeNanos = replayer.completeShown[i] - replayer.applied[i];
+                if(replayer.firstShown[i] >= 0)
+                    first.record(firstNanos);
+                if(replayer.completeShown[i] >= 0)
+                    complete.record(completeNanos);
+                else
+                    unshown++;
+                lines.add(String.format(Locale.ROOT, "%d,%.3f,%s,%s,%.3f,%.3f", r, event.getTime(), event.getControl(), event.getValue(),
+                        replayer.firstShown[i] >= 0 ? firstNanos/1e6 : Double.NaN, replayer.completeShown[i] >= 0 ? completeNanos/1e6 : Double.NaN));
+            }
+            frames += replayer.frames;
+            previews += replayer.previews;
+            pulses += replayer.pulses;
+            dropped += replayer.dropped;
+        }
+
+        System.out.printf(Locale.ROOT, "%d changes replayed, %d frames shown (%d coarse), %d of %d frames dropped (%.1f%%), %d changes never shown completely%n",
+                first.getCount() + unshown, frames, previews, dropped, pulses,
+                100.0*dropped/Math.max(1, pulses), unshown);
+        System.out.printf(Locale.ROOT, "change to first frame ms:    p50 %7.2f  p90 %7.2f  p99 %7.2f  max %7.2f%n",
+                first.getValueAtQuantile(0.5)/1e6, first.getValueAtQuantile(0.9)/1e6, first.getValueAtQuantile(0.99)/1e6, first.getMax()/1e6);
+        System.out.printf(Locale.ROOT, "change to complete frame ms: p50 %7.2f  p90 %7.2f  p99 %7.2f  max %7.2f%n",
+                complete.getValueAtQuantile(0.5)/1e6, complete.getValueAtQuantile(0.9)/1e6, complete.getValueAtQuantile(0.99)/1e6, complete.getMax()/1e6);
+        System.out.print(PerfStats.report());
+        if(settings.containsKey("output")){
+            try(BufferedWriter writer = Files.newBufferedWriter(Paths.get(settings.getProperty("output")))){
+                writer.write("run,time,control,value,firstFrameMs,completeFrameMs\n");
+                for(String line : lines){
+                    writer.write(line + "\n");
+                }
+            }
+        }
+        int status = 0;
+        if(settings.containsKey("maxP99")){
+            double limit = Double.parseDouble(settings.getProperty("maxP99"));
+            double p99 = complete.getValueAtQuantile(0.99)/1e6;
+            if(p99 > limit || unshown > 0){
+                System.out.printf(Locale.ROOT, "FAILED: p99 %.2f ms above %.2f ms, or changes never shown%n", p99, limit);
+                status = 1;
+            }
+            else
+                System.out.printf(Locale.ROOT, "PASSED: p99 %.2f ms within %.2f ms%n", p99, limit);
+        }
+        replayer.updateThread.shutdownNow();
+        Platform.exit();
+        System.exit(status);
+    }
+}
@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load Test Class
+ * <br>
+ * Sends requests for patterns to a ComputeServer from many clients at once and reports
+ * the throughput and the latency percentiles. Run it with
+ * <br>
+ * java -cp out LoadTest [url=http://127.0.0.1:8642] [clients=32] [requests=5000] [warmup=500]
+ * [distinct=16] [samples=1501] [format=binary]
+ * <br>
+ * Without url a server is started in the same JVM on a free port, and its counters are
+ * printed at the end. Every client sends its requests one after the other, each as soon as
+ * the previous one is answered; the requests cycle through distinct parameter sets, each
+ * with another wavelength, so that fewer distinct sets exercise the cache and the
+ * coalescing of identical requests, and more exercise the computation. The warm up
+ * requests are sent the same way but not measured.
+ */
+public class LoadTest {
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5)).build();
+    private final String url, format;
+    private final int clients, distinct, samples;
+    private final AtomicLong next = new AtomicLong();
+    private final LongAdder bytes = new LongAdder(), errors = new LongAdder();
+
+    LoadTest(String url, int clients, int distinct, int samples, String format){
+        this.url = url;
+        this.clients = clients;
+        this.distinct = distinct;
+        this.samples = samples;
+        this.format = format;
+    }
+
+    /**
+     * Sends requests from all clients until count have been sent.
+     *
+     * @param count - requests to send in total
+     * @param latency - receives the latency of every answered request, or null
+     * @return the seconds taken
+     */
+    double run(long count, LatencyHistogram latency) throws InterruptedException{
+        next.set(0);
+        CountDownLatch finished = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for(int c=0;c<clients;c++){
+            Thread thread = new Thread(() -> {
+                try {
+                    for(long i=next.getAndIncrement();i<count;i=next.getAndIncrement()){
+                        send(i, latency);
+                    }
+                }
+                finally {
+                    finished.countDown();
+                }
+            }, "load-client-" + c);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        finished.await();
+        return (System.nanoTime()-start)/1e9;
+    }
+
+    private void send(long i, LatencyHistogram latency){
+        double wavelength = 400 + 300.0*(i % distinct)/distinct;
+        HttpRequest request = HttpRequest.newBuilder(URI.create(String.format(Locale.ROOT,
+                "%s/pattern?wavelength=%.3f&slitWidth=0.1&slits=2&separation=0.4&samples=%d&format=%s",
+                url, wavelength, samples, format))).timeout(Duration.ofSeconds(30)).build();
+        long start = System.nanoTime();
+        try {
+            HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            if(response.statusCode() != 200){
+                errors.increment();
+                return;
+            }
+            bytes.add(response.body().length);
+            if(latency != null)
+                latency.record(System.nanoTime()-start);
+        } catch (IOException e) {
+            errors.increment();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errors.increment();
+        }
+    }
+
+    /**
+     * Runs the load test and prints the results.
+     *
+     * @param args - key=value settings, see the class description
+     */
+    public static void main(String[] args) throws IOException, InterruptedException{
+        Properties settings = new Properties();
+        for(String arg : args){
+            int equals = arg.indexOf('=');
+            if(equals <= 0){
+                System.err.println("Usage: java LoadTest [url=http://127.0.0.1:8642] [clients=32] [requests=5000] [warmup=500] [distinct=16] [samples=1501] [format=binary]");
+                System.exit(2);
+            }
+            settings.setProperty(arg.substring(0, equals).trim(), arg.substring(equals+1).trim());
+        }
+        ComputeServer server = null;
+        String url = settings.getProperty("url");
+        if(url == null){
+            server = new ComputeServer(0, 64L << 20);
+            server.start();
+            url = "http://127.0.0.1:" + server.getPort();
+        }
+        int clients = Integer.parseInt(settings.getProperty("clients", "32"));
+        long requests = Long.parseLong(settings.getProperty("requests", "5000"));
+        long warmup = Long.parseLong(settings.getProperty("warmup", "500"));
+        LoadTest test = new LoadTest(url, clients, Math.max(1, Integer.parseInt(settings.getProperty("distinct", "16"))),
+                Integer.parseInt(settings.getProperty("samples", "1501")), settings.getProperty("format", "binary"));
+        System.out.println("Sending " + requests + " requests from " + clients + " clients to " + url
+                + (server != null ? (server.isVirtual() ? " (in process, virtual threads)" : " (in process, platform threads)") : ""));
+
+        test.run(warmup, null);
+        long[] before = (server != null) ? server.getCounters() : null;
+        test.bytes.reset();
+        test.errors.reset();
+        LatencyHistogram latency = new LatencyHistogram();
+        double seconds = test.run(requests, latency);
+
+        long answered = latency.getCount();
+        System.out.printf(Locale.ROOT, "%d answered, %d errors in %.2f s: %.0f requests/s, %.1f MB/s%n", answered,
+                test.errors.sum(), seconds, answered/seconds, test.bytes.sum()/seconds/1e6);
+        System.out.printf(Locale.ROOT, "latency ms: mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                latency.getMean()/1e6, latency.getValueAtQuantile(0.5)/1e6, latency.getValueAtQuantile(0.9)/1e6,
+                latency.getValueAtQuantile(0.99)/1e6, latency.getValueAtQuantile(0.999)/1e6, latency.getMax()/1e6);
+        if(server != null){
+            long[] after = server.getCounters();
+            System.out.printf(Locale.ROOT, "server: %d computed, %d coalesced, %d failed%n",
+                    after[1]-before[1], after[2]-before[2], after[3]-before[3]);
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pipeline Benchmark Class
+ * <br>
+ * Runs the benchmarks of the Benchmarks class under JMH, each in a JVM of its own, so that
+ * the profilers of JMH can be used on them, e.g. the allocation of all threads per
+ * operation with
+ * <br>
+ * java -jar target/benchmarks.jar -prof gc
+ * <br>
+ * and a single benchmark with -p benchmark=render.800x300. JMH only runs benchmarks of a
+ * named package, which cannot use the classes of the program in the unnamed package, so
+ * the operations are set up with Benchmarks.setUp, found by name. The list of benchmarks
+ * below is that of Benchmarks.names. JavaFX runs on the Monocle headless platform with the
+ * software pipeline, so the render benchmarks need no display.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dglass.platform=Monocle", "-Dmonocle.platform=Headless", "-Dprism.order=sw"})
+public class PipelineBenchmark {
+
+    @Param({"kernel.single.1501", "kernel.double.1501", "kernel.single.16385", "kernel.double.16385",
+            "kernel.single.1048576", "kernel.double.1048576", "kernel.grating.1501",
+            "calculate.double.1501", "calculate.white.1501", "calculate.blurred.1501", "calculate.cached.1501",
+            "map.1501", "decimate.10000000", "render.800x300", "render.snapshot.800x340"})
+    public String benchmark;
+
+    private Runnable operation;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException{
+        operation = (Runnable) Class.forName("Benchmarks").getMethod("setUp", String.class).invoke(null, benchmark);
+    }
+
+    @TearDown
+    public void tearDown() throws ReflectiveOperationException{
+        Class.forName("Benchmarks").getMethod("tearDown").invoke(null);
+    }
+
+    @Benchmark
+    public void run(){
+        operation.run();
+    }
+}
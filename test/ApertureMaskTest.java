@@ -0,0 +1,102 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Aperture Mask Test Class
+ * <br>
+ * Checks the extent, smallest feature and rasterization of masks made of openings and of
+ * sampled transmission profiles, and that the far field of a sampled slit is the pattern of
+ * the slit.
+ */
+class ApertureMaskTest {
+
+    private static final double WAVELENGTH = 632.8/1000000, DISTANCE = 500;
+
+    @Test
+    void openingsDescribeTheirGeometry(){
+        ApertureMask mask = ApertureMask.openings(new double[]{0.3, -0.2}, new double[]{0.1, 0.04});
+        assertEquals(0.3+0.05 - (-0.2-0.02), mask.getExtent(), 1e-12);
+        assertEquals(0.04, mask.getSmallestFeature(), 1e-12);
+        ApertureMask close = ApertureMask.openings(new double[]{0, 0.03}, new double[]{0.02, 0.02});
+        assertEquals(0.02, close.getSmallestFeature(), 1e-12);
+        assertEquals(ApertureMask.grating(2, 0.1, 0.4), ApertureMask.openings(new double[]{-0.2, 0.2}, new double[]{0.1, 0.1}));
+    }
+
+    @Test
+    void openingsAreAreaSampled(){
+        //An opening from -0.125 to 0.375 at a pitch of 0.1, sample j covering (j-5.5)*0.1 to (j-4.5)*0.1
+        ApertureMask mask = ApertureMask.openings(new double[]{0.125}, new double[]{0.5});
+        double[] out = new double[11];
+        mask.rasterize(out, out.length, 0.1);
+        double[] expected = {0, 0, 0, 0, 0.75, 1, 1, 1, 1, 0.25, 0};
+        for(int j=0;j<out.length;j++){
+            assertEquals(expected[j], out[j], 1e-12, "sample " + j);
+        }
+        double sum = 0;
+        for(double value : out){
+            sum += value;
+        }
+        assertEquals(0.5/0.1, sum, 1e-12);
+    }
+
+    @Test
+    void overlappingOpeningsStayTransparent(){
+        ApertureMask mask = ApertureMask.openings(new double[]{0, 0.05}, new double[]{0.2, 0.2});
+        double[] out = new double[64];
+        mask.rasterize(out, out.length, 0.01);
+        for(double value : out){
+            assertEquals(Math.min(1, value), value);
+        }
+    }
+
+    @Test
+    void sampledProfileIsReproducedAndInterpolated(){
+        double[] transmission = {0.2, 0.5, 1, 0.5, 0.2};
+        ApertureMask mask = ApertureMask.sampled(transmission, 0.01);
+        assertEquals(0.05, mask.getExtent(), 1e-12);
+        assertEquals(0.01, mask.getSmallestFeature(), 1e-12);
+
+        double[] same = new double[9];
+        mask.rasterize(same, same.length, 0.01);
+        double[] expected = {0, 0, 0.2, 0.5, 1, 0.5, 0.2, 0, 0};
+        for(int j=0;j<same.length;j++){
+            assertEquals(expected[j], same[j], 1e-12, "sample " + j);
+        }
+
+        double[] half = new double[9];
+        mask.rasterize(half, half.length, 0.005);
+        double[] halfway = {0.2, 0.35, 0.5, 0.75, 1, 0.75, 0.5, 0.35, 0.2};
+        for(int j=0;j<half.length;j++){
+            assertEquals(halfway[j], half[j], 1e-12, "sample " + j);
+        }
+    }
+
+    @Test
+    void sampledSlitDiffractsLikeSlit(){
+        double width = 0.1;
+        double[] transmission = new double[201];
+        transmission[100] = 1;
+        for(int j=1;j<=100;j++){
+            transmission[100-j] = transmission[100+j] = (j*0.001 < width/2) ? 1 : 0;
+        }
+        double[] x = FraunhoferEngineTest.grid(1001, 2);
+        double[] out = new double[x.length];
+        FraunhoferEngine.compute(ApertureMask.sampled(transmission, 0.001), WAVELENGTH, DISTANCE, x, out);
+        //The samples cover a slit of 99 to 101 pitches, depending on the interpolation
+        for(int i=0;i<x.length;i++){
+            double b = Math.PI*x[i]*width/(WAVELENGTH*DISTANCE);
+            double sinc = (b == 0) ? 1 : Math.sin(b)/b;
+            assertEquals(sinc*sinc, out[i], 0.02, "x = " + x[i]);
+        }
+    }
+
+    @Test
+    void invalidMasksAreRejected(){
+        assertThrows(IllegalArgumentException.class, () -> ApertureMask.openings(new double[0], new double[0]));
+        assertThrows(IllegalArgumentException.class, () -> ApertureMask.openings(new double[]{0}, new double[]{1, 2}));
+        assertThrows(IllegalArgumentException.class, () -> ApertureMask.sampled(new double[0], 0.1));
+        assertThrows(IllegalArgumentException.class, () -> ApertureMask.sampled(new double[]{1}, 0));
+    }
+}
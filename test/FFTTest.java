@@ -0,0 +1,104 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * FFT Test Class
+ * <br>
+ * Checks the transforms of FFT against a direct discrete Fourier transform, for powers of
+ * two, which use the radix-2 transform, and for other lengths, which go through Bluestein's
+ * algorithm, and checks that the inverse undoes the forward transform.
+ */
+class FFTTest {
+
+    /** Lengths of both kinds, including prime and odd ones */
+    private static final int[] LENGTHS = {1, 2, 3, 5, 8, 12, 17, 64, 100, 127, 1000, 1023, 1024};
+
+    @Test
+    void forwardMatchesDirectTransform(){
+        Random random = new Random(3);
+        for(int n : LENGTHS){
+            double[] re = new double[n], im = new double[n];
+            for(int i=0;i<n;i++){
+                re[i] = random.nextDouble()*2-1;
+                im[i] = random.nextDouble()*2-1;
+            }
+            double[][] expected = direct(re, im);
+            new FFT(n).forward(re, im);
+            //Rounding grows with the length and with log n for each value
+            double bound = 1e-12*n*(1 + Math.log(n));
+            for(int k=0;k<n;k++){
+                assertEquals(expected[0][k], re[k], bound, "real part of bin " + k + " for length " + n);
+                assertEquals(expected[1][k], im[k], bound, "imaginary part of bin " + k + " for length " + n);
+            }
+        }
+    }
+
+    @Test
+    void inverseUndoesForward(){
+        Random random = new Random(5);
+        for(int n : LENGTHS){
+            double[] re = new double[n], im = new double[n];
+            for(int i=0;i<n;i++){
+                re[i] = random.nextGaussian();
+                im[i] = random.nextGaussian();
+            }
+            double[] re0 = re.clone(), im0 = im.clone();
+            FFT plan = new FFT(n);
+            plan.forward(re, im);
+            plan.inverse(re, im);
+            for(int i=0;i<n;i++){
+                assertEquals(re0[i], re[i], 1e-11, "real part of value " + i + " for length " + n);
+                assertEquals(im0[i], im[i], 1e-11, "imaginary part of value " + i + " for length " + n);
+            }
+        }
+    }
+
+    @Test
+    void planIsReusable(){
+        FFT plan = new FFT(100);
+        double[] re = new double[100], im = new double[100];
+        for(int run=0;run<3;run++){
+            Arrays.fill(re, 0);
+            Arrays.fill(im, 0);
+            re[0] = 1;
+            plan.forward(re, im);
+            for(int k=0;k<100;k++){
+                assertEquals(1, re[k], 1e-12);
+                assertEquals(0, im[k], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    void nextPowerOfTwo(){
+        assertEquals(1, FFT.nextPowerOfTwo(1));
+        assertEquals(64, FFT.nextPowerOfTwo(33));
+        assertEquals(1024, FFT.nextPowerOfTwo(1024));
+        assertEquals(2048, FFT.nextPowerOfTwo(1025));
+    }
+
+    /**
+     * @return the real and imaginary parts of X[k] = sum x[j]*exp(-2*pi*i*j*k/n)
+     */
+    private static double[][] direct(double[] re, double[] im){
+        int n = re.length;
+        double[][] out = new double[2][n];
+        for(int k=0;k<n;k++){
+            double sumRe = 0, sumIm = 0;
+            for(int j=0;j<n;j++){
+                //j*k is reduced first so the angle is exact for large n
+                double angle = -2*Math.PI*(((long) j*k) % n)/n;
+                double c = Math.cos(angle), s = Math.sin(angle);
+                sumRe += re[j]*c - im[j]*s;
+                sumIm += re[j]*s + im[j]*c;
+            }
+            out[0][k] = sumRe;
+            out[1][k] = sumIm;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,79 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Fraunhofer Engine Test Class
+ * <br>
+ * Checks the patterns FraunhoferEngine computes from the FFT of a sampled mask against the
+ * closed form far field: a grating of N slits of width a and separation d gives
+ * (sin(b)/b)^2*(sin(N*g)/(N*sin(g)))^2 with b = pi*x*a/(wavelength*distance) and
+ * g = pi*x*d/(wavelength*distance), and any set of openings gives the squared sum of the
+ * transforms of its slits.
+ */
+class FraunhoferEngineTest {
+
+    private static final double WAVELENGTH = 632.8/1000000, DISTANCE = 500;
+    /** Interpolation between the bins of the transform limits the agreement to about 6e-4 */
+    private static final double TOLERANCE = 1e-3;
+
+    @Test
+    void gratingMatchesClosedForm(){
+        int[] slits = {1, 2, 3, 5, 10, 40};
+        for(int n : slits){
+            double width = 0.05, separation = 0.2;
+            double[] x = grid(3001, 1.501);
+            double[] out = new double[x.length];
+            FraunhoferEngine.compute(ApertureMask.grating(n, width, separation), WAVELENGTH, DISTANCE, x, out);
+            for(int i=0;i<x.length;i++){
+                double b = Math.PI*x[i]*width/(WAVELENGTH*DISTANCE);
+                double g = Math.PI*x[i]*separation/(WAVELENGTH*DISTANCE);
+                double sinc = (b == 0) ? 1 : Math.sin(b)/b;
+                double array = (Math.abs(Math.sin(g)) < 1e-12) ? 1 : Math.sin(n*g)/(n*Math.sin(g));
+                assertEquals(sinc*sinc*array*array, out[i], TOLERANCE, n + " slits at x = " + x[i]);
+            }
+        }
+    }
+
+    @Test
+    void unequalOpeningsMatchSumOfSlits(){
+        double[] centers = {-0.3, 0.05, 0.4}, widths = {0.04, 0.1, 0.07};
+        double[] x = grid(1501, 2);
+        double[] out = new double[x.length];
+        FraunhoferEngine.compute(ApertureMask.openings(centers, widths), WAVELENGTH, DISTANCE, x, out);
+        double total = widths[0] + widths[1] + widths[2];
+        for(int i=0;i<x.length;i++){
+            double u = x[i]/(WAVELENGTH*DISTANCE);
+            double re = 0, im = 0;
+            for(int s=0;s<centers.length;s++){
+                double b = Math.PI*u*widths[s];
+                double amplitude = widths[s]*((b == 0) ? 1 : Math.sin(b)/b);
+                re += amplitude*Math.cos(2*Math.PI*u*centers[s]);
+                im -= amplitude*Math.sin(2*Math.PI*u*centers[s]);
+            }
+            assertEquals((re*re + im*im)/(total*total), out[i], TOLERANCE, "x = " + x[i]);
+        }
+    }
+
+    @Test
+    void opaqueMaskGivesNoLight(){
+        double[] x = grid(11, 1);
+        double[] out = new double[x.length];
+        FraunhoferEngine.compute(ApertureMask.sampled(new double[5], 0.01), WAVELENGTH, DISTANCE, x, out);
+        for(double value : out){
+            assertEquals(0, value);
+        }
+    }
+
+    /**
+     * @return n evenly spaced coordinates from -halfExtent to halfExtent
+     */
+    static double[] grid(int n, double halfExtent){
+        double[] x = new double[n];
+        for(int i=0;i<n;i++){
+            x[i] = -halfExtent + i*(2*halfExtent/(n-1));
+        }
+        x[n/2] = 0;
+        return x;
+    }
+}
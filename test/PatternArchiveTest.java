@@ -0,0 +1,129 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Pattern Archive Test Class
+ * <br>
+ * Writes archives and reads them back: the samples of several patterns, in full and
+ * strided, on a grid of its own and on an even grid, the parameters of every pattern and
+ * the smallest and largest value of every chunk in the index.
+ */
+class PatternArchiveTest {
+
+    /** Not a divisor of the samples, so the last chunk of every pattern is partial */
+    private static final int CHUNK = 64;
+    private static final int SAMPLES = 1001;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void patternsRoundTrip() throws IOException{
+        double[] grid = new double[SAMPLES];
+        for(int i=0;i<SAMPLES;i++){
+            grid[i] = -1.5 + 3*Math.pow(i/(SAMPLES-1.0), 2); //Uneven, so every x is stored
+        }
+        DiffractionParameters[] parameters = {
+                new DiffractionParameters(0.1, 500, 632.8/1000000, 1, 0),
+                new DiffractionParameters(0.05, 300, 450.0/1000000, 2, 0.4).withMode(PropagationMode.FRESNEL),
+                new DiffractionParameters(0.02, 800, 700.0/1000000, 7, 0.1).withMode(PropagationMode.AUTO)};
+        double[][] patterns = new double[parameters.length][];
+        Path file = folder.resolve("patterns.dfp");
+        try(PatternArchive.Writer writer = PatternArchive.create(file, PatternArchive.FLOAT64, grid, CHUNK)){
+            for(int k=0;k<parameters.length;k++){
+                patterns[k] = new double[SAMPLES];
+                IntensityKernel.compute(parameters[k].withMode(PropagationMode.FRAUNHOFER), grid, patterns[k]);
+                //Written in uneven pieces, which do not line up with the chunks
+                writer.beginPattern(parameters[k]);
+                for(int from=0;from<SAMPLES;from+=97){
+                    writer.write(patterns[k], from, Math.min(SAMPLES, from+97));
+                }
+                writer.endPattern();
+            }
+        }
+
+        try(PatternArchive archive = PatternArchive.open(file)){
+            assertEquals(parameters.length, archive.getPatternCount());
+            assertEquals(SAMPLES, archive.getSamplesPerPattern());
+            assertEquals(PatternArchive.FLOAT64, archive.getDataType());
+            assertEquals(CHUNK, archive.getChunkSamples());
+            assertEquals((SAMPLES+CHUNK-1)/CHUNK, archive.chunksPerPattern());
+            for(int i=0;i<SAMPLES;i++){
+                assertEquals(grid[i], archive.getX(i));
+            }
+            for(int k=0;k<parameters.length;k++){
+                assertEquals(parameters[k], archive.getParameters(k));
+
+                double[] all = new double[SAMPLES];
+                archive.read(k, 0, all, 0, SAMPLES);
+                for(int i=0;i<SAMPLES;i++){
+                    assertEquals(patterns[k][i], all[i], "sample " + i + " of pattern " + k);
+                }
+
+                double[] strided = new double[12];
+                archive.read(k, 5, 83, strided, 2, 10);
+                for(int i=0;i<10;i++){
+                    assertEquals(patterns[k][5 + 83*i], strided[2+i], "strided sample " + i + " of pattern " + k);
+                }
+
+                for(int c=0;c<archive.chunksPerPattern();c++){
+                    float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                    for(int i=c*CHUNK;i<Math.min(SAMPLES, (c+1)*CHUNK);i++){
+                        min = Math.min(min, (float) patterns[k][i]);
+                        max = Math.max(max, (float) patterns[k][i]);
+                    }
+                    assertEquals(min, archive.getChunkMin(k, c), "minimum of chunk " + c + " of pattern " + k);
+                    assertEquals(max, archive.getChunkMax(k, c), "maximum of chunk " + c + " of pattern " + k);
+                }
+            }
+            assertThrows(IndexOutOfBoundsException.class, () -> archive.read(0, SAMPLES-5, 3, new double[3], 0, 3));
+            assertThrows(IndexOutOfBoundsException.class, () -> archive.read(parameters.length, 0, new double[1], 0, 1));
+        }
+    }
+
+    @Test
+    void exportedPatternIsOnEvenGrid() throws IOException{
+        DiffractionParameters p = new DiffractionParameters(0.1, 500, 632.8/1000000, 2, 0.4);
+        long samples = 3*PatternArchive.DEFAULT_CHUNK + 11;
+        Path file = folder.resolve("export.dfp");
+        PatternArchive.export(file, p, samples, 1.5);
+        try(PatternArchive archive = PatternArchive.open(file)){
+            assertEquals(1, archive.getPatternCount());
+            assertEquals(samples, archive.getSamplesPerPattern());
+            assertEquals(PatternArchive.FLOAT32, archive.getDataType());
+            assertEquals(-1.5, archive.getX(0), 1e-12);
+            assertEquals(1.5, archive.getX(samples-1), 1e-12);
+            assertEquals(0, archive.getX(samples/2), 1e-12);
+            double[] values = new double[9];
+            long stride = (samples-1)/8;
+            archive.read(0, 0, stride, values, 0, values.length);
+            for(int i=0;i<values.length;i++){
+                double expected = IntensityKernel.intensity(p, archive.getX(i*stride));
+                assertEquals((float) expected, (float) values[i], "sample " + i*stride);
+            }
+            assertEquals(1, archive.getChunkMax(0, (int) (samples/2/PatternArchive.DEFAULT_CHUNK)), 1e-6); //The central maximum
+        }
+    }
+
+    @Test
+    void unfinishedArchiveIsRejected() throws IOException{
+        Path file = folder.resolve("unfinished.dfp");
+        PatternArchive.Writer writer = PatternArchive.create(file, PatternArchive.FLOAT32, new double[]{0, 1}, CHUNK);
+        writer.append(new DiffractionParameters(0.1, 500, 632.8/1000000, 1, 0), new double[]{1, 0.5});
+        //Not closed, so the header is still zero
+        assertThrows(IOException.class, () -> PatternArchive.open(file));
+        writer.close();
+        try(PatternArchive archive = PatternArchive.open(file)){
+            assertEquals(1, archive.getPatternCount());
+        }
+        Files.write(file, new byte[PatternArchive.HEADER_SIZE]);
+        assertThrows(IOException.class, () -> PatternArchive.open(file));
+    }
+}
@@ -0,0 +1,132 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Pattern Cache Test Class
+ * <br>
+ * Checks that a pattern stretched from the pattern of another wavelength or distance is
+ * the pattern of the new parameters, that stretching is refused when it would need samples
+ * outside the cached screen or the cached pattern is too coarse, that the least recently
+ * used patterns are evicted to stay within the byte budget, and the counters of each case.
+ */
+class PatternCacheTest {
+
+    private static final double[] SCREEN = grid(1501, 1.501);
+
+    @Test
+    void scaledHitIsPatternOfNewParameters(){
+        PatternCache cache = new PatternCache(1 << 20);
+        DiffractionParameters[] shapes = {
+                new DiffractionParameters(0.1, 500, 632.8/1000000, 1, 0),
+                new DiffractionParameters(0.1, 500, 632.8/1000000, 2, 0.4)};
+        for(DiffractionParameters p : shapes){
+            cache.put(p, SCREEN, pattern(p, SCREEN), null);
+            //1% longer wavelength, and 1% longer distance, both read from the cached pattern
+            DiffractionParameters[] scaled = {p.withWavelength(p.getWavelength()*1.01), p.withDistanceFromScreen(p.getDistanceFromScreen()*1.01)};
+            for(DiffractionParameters q : scaled){
+                double[] out = new double[SCREEN.length];
+                assertTrue(cache.get(q, SCREEN, out, null));
+                double[] expected = pattern(q, SCREEN);
+                double error = 0;
+                for(int i=0;i<SCREEN.length;i++){
+                    error = Math.max(error, Math.abs(out[i] - expected[i]));
+                }
+                assertTrue(error < 1e-4, "stretched pattern off by " + error + " for " + q);
+            }
+        }
+        assertEquals(4, cache.getScaledHits());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    void scalingIsRefusedOutsideCachedScreenOrBelowResolution(){
+        PatternCache cache = new PatternCache(1 << 20);
+        DiffractionParameters p = new DiffractionParameters(0.1, 500, 632.8/1000000, 1, 0);
+        cache.put(p, SCREEN, pattern(p, SCREEN), null);
+        double[] out = new double[SCREEN.length];
+        //A shorter wavelength would need the cached pattern beyond the edges of its screen
+        assertFalse(cache.get(p.withWavelength(p.getWavelength()*0.99), SCREEN, out, null));
+
+        //Seven slits over 2.4 mm leave fewer than MIN_SAMPLES_PER_FRINGE samples per fringe
+        double[] coarse = grid(301, 1.501);
+        DiffractionParameters grating = new DiffractionParameters(0.1, 500, 632.8/1000000, 7, 0.4);
+        cache.put(grating, coarse, pattern(grating, coarse), null);
+        assertFalse(cache.get(grating.withWavelength(grating.getWavelength()*1.01), coarse, new double[coarse.length], null));
+        assertTrue(cache.get(grating, coarse, new double[coarse.length], null));
+
+        //Broadband patterns and requests for colors are never stretched
+        DiffractionParameters white = p.withSpectrum(SourceSpectrum.whiteLight());
+        cache.put(white, SCREEN, pattern(p, SCREEN), new int[SCREEN.length]);
+        assertFalse(cache.get(white.withDistanceFromScreen(600), SCREEN, out, new int[SCREEN.length]));
+        assertEquals(1, cache.getHits());
+        assertEquals(0, cache.getScaledHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    void leastRecentlyUsedPatternsAreEvictedWithinBudget(){
+        double[] x = grid(101, 1.501);
+        DiffractionParameters[] p = new DiffractionParameters[5];
+        for(int k=0;k<p.length;k++){ //Slit widths of different shapes, so none is stretched from another
+            p[k] = new DiffractionParameters(0.05 + 0.01*k, 500, 632.8/1000000, 1, 0);
+        }
+        PatternCache cache = new PatternCache(1);
+        cache.put(p[0], x, pattern(p[0], x), null);
+        assertEquals(0, cache.size(), "a pattern larger than the whole budget is not kept");
+        assertEquals(0, cache.getBytes());
+
+        //Measures the size of one entry, then fits exactly three
+        PatternCache probe = new PatternCache(Long.MAX_VALUE);
+        probe.put(p[0], x, pattern(p[0], x), null);
+        long entry = probe.getBytes();
+        cache = new PatternCache(3*entry);
+        double[] out = new double[x.length];
+        for(int k=0;k<3;k++){
+            cache.put(p[k], x, pattern(p[k], x), null);
+        }
+        assertEquals(3, cache.size());
+        assertEquals(3*entry, cache.getBytes());
+        assertTrue(cache.get(p[0], x, out, null)); //p[1] is now the least recently used
+        cache.put(p[3], x, pattern(p[3], x), null);
+        assertEquals(1, cache.getEvictions());
+        assertFalse(cache.get(p[1], x, out, null));
+        assertTrue(cache.get(p[2], x, out, null)); //p[0] is now the least recently used
+        cache.put(p[4], x, pattern(p[4], x), null);
+        assertEquals(2, cache.getEvictions());
+        assertFalse(cache.get(p[0], x, out, null));
+        for(int k=2;k<5;k++){
+            assertTrue(cache.get(p[k], x, out, null));
+            double[] expected = pattern(p[k], x);
+            for(int i=0;i<x.length;i++){
+                assertEquals(expected[i], out[i]);
+            }
+        }
+        //A pattern put again replaces its entry instead of adding one
+        cache.put(p[4], x, pattern(p[4], x), null);
+        assertEquals(3, cache.size());
+        assertEquals(3*entry, cache.getBytes());
+        assertEquals(2, cache.getEvictions());
+        assertEquals(5, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getScaledHits());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        assertEquals(5, cache.getHits(), "clearing keeps the counters");
+    }
+
+    private static double[] pattern(DiffractionParameters p, double[] x){
+        double[] values = new double[x.length];
+        IntensityKernel.compute(p, x, values);
+        return values;
+    }
+
+    private static double[] grid(int n, double halfExtent){
+        return SamplingStrategy.uniform(n, halfExtent).sample(null);
+    }
+}
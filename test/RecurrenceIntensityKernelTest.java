@@ -0,0 +1,141 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recurrence Intensity Kernel Test Class
+ * <br>
+ * Checks the error bounds of RecurrenceIntensityKernel against the direct formula of
+ * IntensityKernel. The sine and cosine advanced by the recurrence are recovered from the
+ * intensities it writes: with one slit the output is (sin(b)/b)^2, and with two slits too
+ * narrow for the recurrence of b to be used it is the direct sinc squared times cos(g)^2.
+ * Every run covers several whole reseed intervals and a part of one, so every position
+ * between two seeds is checked.
+ */
+class RecurrenceIntensityKernelTest {
+
+    private static final int SAMPLES = 10*RecurrenceIntensityKernel.RESEED_INTERVAL + 7;
+    /** Rounding of the square root and product used to recover the sine or cosine */
+    private static final double RECOVERY = 4*Math.ulp(1.0);
+
+    /** Phase steps per sample, from barely moving to several radians */
+    private static final double[] PHASE_STEPS = {1e-5, 1e-3, 0.05, 0.7, 3.1, 5.9};
+
+    @Test
+    void sineStaysWithinTrigBoundAcrossReseedIntervals(){
+        for(double step : PHASE_STEPS){
+            //Starts past SMALL_PHASE so that every sample goes through the recurrence
+            DiffractionParameters p = new DiffractionParameters(0.1, 500, 632.8/1000000, 1, 0);
+            double betaScale = betaScale(p);
+            double dx = step/betaScale, x0 = 2*RecurrenceIntensityKernel.SMALL_PHASE/betaScale;
+            double[] out = new double[SAMPLES];
+            RecurrenceIntensityKernel.computeUniform(p, x0, dx, out, 0, SAMPLES);
+            for(int i=0;i<SAMPLES;i++){
+                double beta = (x0 + i*dx)*betaScale; //The same arithmetic as computeUniform
+                double recovered = Math.sqrt(out[i])*Math.abs(beta);
+                double error = Math.abs(recovered - Math.abs(Math.sin(beta)));
+                assertWithin(error, RecurrenceIntensityKernel.TRIG_ERROR_BOUND + phaseRounding(beta)
+                        + RECOVERY*Math.max(1, Math.abs(beta)), "sine", step, i);
+            }
+        }
+    }
+
+    @Test
+    void cosineStaysWithinTrigBoundAcrossReseedIntervals(){
+        for(double step : PHASE_STEPS){
+            //Slits so narrow that b stays below SMALL_PHASE and the sinc is direct
+            DiffractionParameters p = new DiffractionParameters(1e-9, 500, 632.8/1000000, 2, 0.4);
+            double betaScale = betaScale(p), gammaScale = gammaScale(p);
+            double dx = step/gammaScale, x0 = -3.3*dx;
+            double[] out = new double[SAMPLES];
+            RecurrenceIntensityKernel.computeUniform(p, x0, dx, out, 0, SAMPLES);
+            for(int i=0;i<SAMPLES;i++){
+                double x = x0 + i*dx;
+                double sinc = IntensityKernel.intensity(x*betaScale, x*gammaScale, false);
+                double recovered = Math.sqrt(out[i]/sinc);
+                double error = Math.abs(recovered - Math.abs(Math.cos(x*gammaScale)));
+                assertWithin(error, RecurrenceIntensityKernel.TRIG_ERROR_BOUND + phaseRounding(x*gammaScale) + RECOVERY,
+                        "cosine", step, i);
+            }
+        }
+    }
+
+    @Test
+    void intensityStaysWithinBoundAcrossReseedIntervals(){
+        double[] widths = {0.01, 0.1, 1};
+        for(double width : widths){
+            for(int slits=1;slits<=2;slits++){
+                DiffractionParameters p = new DiffractionParameters(width, 500, 532.0/1000000, slits, 0.7);
+                for(double step : PHASE_STEPS){
+                    double dx = step/betaScale(p);
+                    assertIntensityWithinBound(p, -SAMPLES/2*dx - 0.25*dx, dx);
+                }
+            }
+        }
+    }
+
+    @Test
+    void verySmallPhasesStayWithinBound(){
+        //Phases around zero, from far below SMALL_PHASE to just past it, and exactly zero
+        DiffractionParameters p = new DiffractionParameters(0.1, 500, 632.8/1000000, 2, 0.4);
+        double betaScale = betaScale(p);
+        for(double phase : new double[]{1e-12, 1e-8, 1e-5, RecurrenceIntensityKernel.SMALL_PHASE/8}){
+            double dx = phase/betaScale;
+            assertIntensityWithinBound(p, -(SAMPLES/2)*dx, dx);
+            assertIntensityWithinBound(p, -(SAMPLES/2)*dx + dx/3, dx);
+        }
+        double[] out = new double[1];
+        RecurrenceIntensityKernel.computeUniform(p, 0, 1e-9, out, 0, 1);
+        assertEquals(1, out[0], 0, "Intensity at the center");
+    }
+
+    @Test
+    void mixedGridMatchesDirectFormula(){
+        //Uniform runs of different spacing and isolated points, as an adaptive grid has
+        double[] x = new double[3*SAMPLES];
+        for(int i=0;i<x.length;i++){
+            double t = i - x.length/2.0;
+            x[i] = (i < SAMPLES) ? t*0.003 : (i < 2*SAMPLES) ? t*0.0007 + (i % 5 == 0 ? 1e-5 : 0) : t*0.004;
+        }
+        java.util.Arrays.sort(x);
+        DiffractionParameters p = new DiffractionParameters(0.2, 500, 450.0/1000000, 2, 0.5);
+        double[] expected = new double[x.length], actual = new double[x.length];
+        IntensityKernel.computeScalar(p, x, expected, 0, x.length);
+        RecurrenceIntensityKernel.compute(p, x, actual, 0, x.length);
+        for(int i=0;i<x.length;i++){
+            assertWithin(Math.abs(actual[i] - expected[i]), RecurrenceIntensityKernel.INTENSITY_ERROR_BOUND, "intensity", 0, i);
+        }
+    }
+
+    private static void assertIntensityWithinBound(DiffractionParameters p, double x0, double dx){
+        double[] x = new double[SAMPLES];
+        for(int i=0;i<SAMPLES;i++){
+            x[i] = x0 + i*dx; //The same arithmetic as computeUniform
+        }
+        double[] expected = new double[SAMPLES], actual = new double[SAMPLES];
+        IntensityKernel.computeScalar(p, x, expected, 0, SAMPLES);
+        RecurrenceIntensityKernel.computeUniform(p, x0, dx, actual, 0, SAMPLES);
+        for(int i=0;i<SAMPLES;i++){
+            assertWithin(Math.abs(actual[i] - expected[i]), RecurrenceIntensityKernel.INTENSITY_ERROR_BOUND, "intensity", dx, i);
+        }
+    }
+
+    /** Rounding of the phase itself, which the direct formula shares */
+    private static double phaseRounding(double phase){
+        return 2*Math.ulp(phase);
+    }
+
+    private static void assertWithin(double error, double bound, String what, double step, int i){
+        assertTrue(error <= bound, () -> what + " error " + error + " above " + bound + " at sample " + i
+                + " (" + (i % RecurrenceIntensityKernel.RESEED_INTERVAL) + " after a seed), step " + step);
+    }
+
+    private static double betaScale(DiffractionParameters p){
+        return p.getSlitWidth()*(Math.PI/(p.getWavelength()*p.getDistanceFromScreen())); //As the kernels round it
+    }
+
+    private static double gammaScale(DiffractionParameters p){
+        return p.getDistanceBetweenSlits()*(Math.PI/(p.getWavelength()*p.getDistanceFromScreen()));
+    }
+}
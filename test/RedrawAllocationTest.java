@@ -0,0 +1,172 @@
+import com.sun.javafx.sg.prism.GrowableDataBuffer;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.VBox;
+import javafx.scene.paint.Color;
+import javafx.stage.Stage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Redraw Allocation Test Class
+ * <br>
+ * Checks that once the buffers have their size, mapping a pattern into a MappedPattern and
+ * drawing it with the PatternRenderer allocates nothing, and neither does the bookkeeping
+ * of PerfStats around every redraw of the program while no Flight Recorder recording is
+ * running, as counted for the FX thread by com.sun.management.ThreadMXBean. Every byte of
+ * every measured redraw counts. JavaFX runs on the headless Monocle platform with the
+ * software pipeline, so no display is needed; the panes are shown without any text, which
+ * would need the native font libraries.
+ */
+class RedrawAllocationTest {
+
+    private static final int WARMUP = 20000, MEASURED = 600;
+    /**
+     * Redraws before measuring, during which the canvas takes over the commands left by the
+     * warm up and the code run on the pulses is compiled
+     */
+    private static final int SETTLE = 60;
+    /**
+     * Command buffers of the canvases. JavaFX keeps the buffers a canvas hands back in a pool
+     * it only references weakly, so after a garbage collection the next redraw allocates a new
+     * one; holding them here keeps that allocation of the toolkit out of the measurement.
+     */
+    private static final List<GrowableDataBuffer> CANVAS_BUFFERS = new ArrayList<>();
+
+    private static com.sun.management.ThreadMXBean threads;
+
+    @BeforeAll
+    static void startToolkit() throws Exception{
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean, "No allocation counter");
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled(), "No allocation counter");
+        System.setProperty("glass.platform", "Monocle");
+        System.setProperty("monocle.platform", "Headless");
+        System.setProperty("prism.order", "sw");
+        CompletableFuture<Void> started = new CompletableFuture<>();
+        try {
+            Platform.startup(() -> started.complete(null));
+        } catch (IllegalStateException e) {
+            started.complete(null); //Already started by another test
+        }
+        started.get(30, TimeUnit.SECONDS);
+        Platform.setImplicitExit(false); //Keeps the toolkit running between the tests
+    }
+
+    @Test
+    void mapValuesAndDrawAllocateNothing() throws Exception{
+        DiffractionCalculator calculator = new DiffractionCalculator(0.1, 500, 632.8/1000000, 2, 0.4);
+        calculator.CalculateOutput();
+        assertEquals(0, onFxThread(renderer -> {
+            MappedPattern mapped = new MappedPattern();
+            int[] table = MappedPattern.lookupTable(PatternRenderer.channelShift(Color.RED));
+            return () -> {
+                calculator.MapValues(800, 300, mapped, table);
+                renderer.drawPattern(mapped, Color.RED);
+            };
+        }), "Bytes allocated by " + MEASURED + " maps and draws");
+    }
+
+    @Test
+    void decimateAndDrawAllocateNothing() throws Exception{
+        DiffractionCalculator calculator = new DiffractionCalculator(0.1, 500, 632.8/1000000, 2, 0.4);
+        calculator.CalculateOutput();
+        MinMaxPyramid pyramid = new MinMaxPyramid(calculator.getInputValues(), calculator.getOutputValues(), calculator.getColorValues());
+        assertEquals(0, onFxThread(renderer -> {
+            MappedPattern mapped = new MappedPattern();
+            int[] table = MappedPattern.lookupTable(PatternRenderer.channelShift(Color.GREEN));
+            return () -> {
+                pyramid.decimate(-0.4, 0.7, 800, 300, mapped, table);
+                renderer.drawPattern(mapped, Color.GREEN);
+            };
+        }), "Bytes allocated by " + MEASURED + " decimations and draws");
+    }
+
+    @Test
+    void redrawStatisticsAllocateNothing() throws Exception{
+        DiffractionParameters p = new DiffractionParameters(0.1, 500, 632.8/1000000, 2, 0.4);
+        //The statistics Controller.showPattern keeps around every redraw
+        assertEquals(0, onFxThread(renderer -> () -> {
+            PerfStats.RedrawEvent event = PerfStats.beginRedraw();
+            long start = PerfStats.start(), allocated = PerfStats.allocatedBytes();
+            PerfStats.record(PerfStats.Stage.IMAGES, PerfStats.start());
+            PerfStats.record(PerfStats.Stage.REDRAW, start, allocated);
+            PerfStats.frame();
+            if(event != null)
+                event.finish(4001, true, p);
+        }), "Bytes allocated by the statistics of " + MEASURED + " redraws");
+    }
+
+    /**
+     * Shows a renderer on panes of a fixed size and measures redraws on the FX thread, one
+     * per pulse, so that the canvas hands its commands over to the renderer between
+     * redraws as it does in the program. The redraws are run WARMUP times before, without
+     * pulses, so that they are compiled, and SETTLE times with pulses before measuring.
+     *
+     * @param setup - given the renderer, returns one redraw
+     * @return bytes allocated by the MEASURED redraws, less the cost of reading the counter
+     */
+    private static long onFxThread(Function<PatternRenderer, Runnable> setup) throws Exception{
+        CompletableFuture<Long> bytes = new CompletableFuture<>();
+        Platform.runLater(() -> {
+            try {
+                Pane graph = new Pane(), map = new Pane(), aperture = new Pane();
+                graph.setPrefSize(800, 300);
+                map.setPrefSize(800, 40);
+                aperture.setPrefSize(200, 100);
+                VBox root = new VBox(graph, map, aperture);
+                Stage stage = new Stage();
+                stage.setScene(new Scene(root));
+                stage.show();
+                root.layout(); //Gives the panes their size, so the color map is created before measuring
+                Runnable redraw = setup.apply(new PatternRenderer(graph, map, aperture));
+                if(CANVAS_BUFFERS.isEmpty()){
+                    for(int i=0;i<8;i++){ //Large enough that the graph never grows them
+                        CANVAS_BUFFERS.add(GrowableDataBuffer.getBuffer(1 << 16, 1 << 10));
+                    }
+                    CANVAS_BUFFERS.forEach(GrowableDataBuffer::returnBuffer);
+                }
+                for(int i=0;i<WARMUP;i++){
+                    redraw.run();
+                }
+                long id = Thread.currentThread().getId();
+                long before = threads.getThreadAllocatedBytes(id);
+                long overhead = threads.getThreadAllocatedBytes(id) - before;
+                new AnimationTimer() {
+                    private int frames;
+                    private long allocated;
+
+                    @Override
+                    public void handle(long now){
+                        long start = threads.getThreadAllocatedBytes(id);
+                        redraw.run();
+                        long used = threads.getThreadAllocatedBytes(id) - start - overhead;
+                        if(frames++ < SETTLE)
+                            return;
+                        allocated += used;
+                        if(frames == SETTLE + MEASURED){
+                            stop();
+                            stage.close();
+                            bytes.complete(allocated);
+                        }
+                    }
+                }.start();
+            } catch (Throwable t) {
+                bytes.completeExceptionally(t);
+            }
+        });
+        return bytes.get(5, TimeUnit.MINUTES);
+    }
+}
@@ -0,0 +1,77 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Sampling Strategy Test Class
+ * <br>
+ * Checks that an adaptive grid meets its tolerance: the pattern interpolated linearly
+ * between the samples of the grid is compared with the pattern evaluated on a dense
+ * uniform grid, for single slits, double slits and gratings of random sizes.
+ */
+class SamplingStrategyTest {
+
+    private static final double HALF_EXTENT = 1.501;
+    /** Samples of the dense reference grid */
+    private static final int DENSE = 200001;
+    private static final double[] TOLERANCES = {1e-2, 1e-3, 1e-4};
+
+    @Test
+    void adaptiveGridMeetsToleranceAgainstDensePattern(){
+        Random random = new Random(7);
+        for(int run=0;run<60;run++){
+            DiffractionParameters p = new DiffractionParameters(0.02 + 0.3*random.nextDouble(), 100 + 900*random.nextDouble(),
+                    (400 + 300*random.nextDouble())/1000000, 1 + random.nextInt(6), 0.1 + random.nextDouble());
+            for(double tolerance : TOLERANCES){
+                double[] grid = SamplingStrategy.adaptive(HALF_EXTENT, tolerance, 1 << 20).sample(p);
+                assertEquals(-HALF_EXTENT, grid[0]);
+                assertEquals(HALF_EXTENT, grid[grid.length-1]);
+                double error = interpolationError(p, grid);
+                assertTrue(error <= tolerance, "error " + error + " above tolerance " + tolerance + " for " + p);
+            }
+        }
+    }
+
+    @Test
+    void adaptiveGridIsSparserThanUniformGridOfSameError(){
+        DiffractionParameters p = new DiffractionParameters(0.1, 500, 632.8/1000000, 2, 0.4);
+        double[] adaptive = SamplingStrategy.adaptive(HALF_EXTENT, 1e-3, 1 << 20).sample(p);
+        double[] uniform = SamplingStrategy.uniform(adaptive.length, HALF_EXTENT).sample(p);
+        assertTrue(interpolationError(p, uniform) > interpolationError(p, adaptive));
+    }
+
+    @Test
+    void namedStrategies(){
+        assertTrue(SamplingStrategy.named("uniform", 11, HALF_EXTENT, 1e-3).isUniform());
+        assertTrue(!SamplingStrategy.named(" Adaptive ", 11, HALF_EXTENT, 1e-3).isUniform());
+        assertThrows(IllegalArgumentException.class, () -> SamplingStrategy.named("random", 11, HALF_EXTENT, 1e-3));
+        assertThrows(IllegalArgumentException.class, () -> SamplingStrategy.named("adaptive", 2, HALF_EXTENT, 1e-3));
+    }
+
+    /**
+     * @return the largest difference between the pattern interpolated from the grid and
+     * the pattern itself on the dense grid
+     */
+    private static double interpolationError(DiffractionParameters p, double[] grid){
+        double[] values = new double[grid.length];
+        for(int i=0;i<grid.length;i++){
+            values[i] = IntensityKernel.intensity(p, grid[i]);
+        }
+        double max = 0;
+        int j = 0;
+        for(int k=0;k<DENSE;k++){
+            double x = -HALF_EXTENT + k*(2*HALF_EXTENT/(DENSE-1));
+            while(j < grid.length-2 && grid[j+1] < x){
+                j++;
+            }
+            double t = (x - grid[j])/(grid[j+1] - grid[j]);
+            double interpolated = values[j] + t*(values[j+1] - values[j]);
+            max = Math.max(max, Math.abs(interpolated - IntensityKernel.intensity(p, x)));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,58 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Vector Intensity Kernel Test Class
+ * <br>
+ * Checks that the Vector API kernel stays within VectorIntensityKernel.ULP_TOLERANCE ulps
+ * of the scalar kernel, over whole screens of one and two slits, with ranges that start
+ * and end off the vector lanes so that the scalar tail is covered too.
+ */
+class VectorIntensityKernelTest {
+
+    private static final double[] WAVELENGTHS = {400, 532, 632.8, 700};
+    private static final double[] SLIT_WIDTHS = {0.02, 0.1, 0.5};
+
+    @Test
+    void matchesScalarKernelWithinTolerance(){
+        assumeTrue(VectorIntensityKernel.isSupported(), "Only one double lane on this platform");
+        double[] x = SamplingStrategy.uniform(20001, 5).sample(null);
+        double[] scalar = new double[x.length], vector = new double[x.length];
+        for(double nm : WAVELENGTHS){
+            for(double width : SLIT_WIDTHS){
+                for(int slits=1;slits<=2;slits++){
+                    DiffractionParameters p = new DiffractionParameters(width, 500, nm/1000000, slits, 0.4);
+                    IntensityKernel.computeScalar(p, x, scalar, 0, x.length);
+                    VectorIntensityKernel.compute(p, x, vector, 0, x.length);
+                    assertWithinTolerance(p, x, scalar, vector, 0, x.length);
+                    //Ranges that do not start or end on a whole vector
+                    VectorIntensityKernel.compute(p, x, vector, 3, x.length-5);
+                    assertWithinTolerance(p, x, scalar, vector, 3, x.length-5);
+                }
+            }
+        }
+    }
+
+    @Test
+    void centerOfThePatternIsOne(){
+        assumeTrue(VectorIntensityKernel.isSupported(), "Only one double lane on this platform");
+        double[] x = new double[64];
+        double[] out = new double[x.length];
+        VectorIntensityKernel.compute(new DiffractionParameters(0.1, 500, 632.8/1000000, 2, 0.4), x, out, 0, x.length);
+        for(double value : out){
+            assertTrue(value == 1, "Intensity at x = 0 is " + value);
+        }
+    }
+
+    private static void assertWithinTolerance(DiffractionParameters p, double[] x, double[] scalar, double[] vector, int from, int to){
+        for(int i=from;i<to;i++){
+            double allowed = VectorIntensityKernel.ULP_TOLERANCE*Math.ulp(scalar[i]);
+            double difference = Math.abs(vector[i] - scalar[i]);
+            int k = i;
+            assertTrue(difference <= allowed, () -> p + " at x = " + x[k] + ": vector " + vector[k] + ", scalar " + scalar[k]
+                    + ", " + difference/Math.ulp(scalar[k]) + " ulps apart");
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector Intensity Kernel Class
+ * <br>
+ * SIMD version of the IntensityKernel built on the incubating JDK Vector API. Whole lanes
+ * of x coordinates are evaluated at once: the sinc squared term and, for two slits, the
+ * cos squared term are computed with lane-wise SIN and COS operations. The x = 0 singularity
+ * is handled with a mask, lanes where the phase is exactly zero get a sinc of 1 instead of
+ * relying on 0/0 producing NaN.
+ * <br>
+ * The lane-wise SIN and COS operations are within 1 ulp of the exact result, as are
+ * Math.sin and Math.cos, and the remaining arithmetic is identical to the scalar kernel. The
+ * results therefore match the scalar kernel to within {@link #ULP_TOLERANCE} ulps of the
+ * scalar value.
+ * <br>
+ * This class needs the jdk.incubator.vector module (--add-modules jdk.incubator.vector)
+ * to compile and run, so it is kept apart from the other sources and compiled after them
+ * into the same output. IntensityKernel looks it up by name and only uses it when the
+ * diffraction.kernel system property is set to vector and the module is present,
+ * otherwise it falls back to its scalar loop. VectorIntensityKernelTest checks the
+ * tolerance below.
+ */
+final class VectorIntensityKernel {
+
+    /**
+     * Largest difference, in ulps of the scalar result, between this kernel and the
+     * scalar IntensityKernel for the same input
+     */
+    static final int ULP_TOLERANCE = 8;
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorIntensityKernel(){
+    }
+
+    /**
+     * Tells whether the platform offers more than one double lane, otherwise the
+     * scalar kernel is just as fast.
+     *
+     * @return true if vectorized evaluation is worthwhile
+     */
+    static boolean isSupported(){
+        return SPECIES.length() > 1;
+    }
+
+    /**
+     * Computes the relative intensity for the x coordinates from index from (inclusive)
+     * to index to (exclusive), writing the result at the same indices of out. The tail
+     * that does not fill a whole vector is computed with the scalar formula.
+     *
+     * @param p - diffraction parameters
+     * @param x - x coordinates on the screen
+     * @param out - receives the intensity for each x coordinate
+     * @param from - first index to compute
+     * @param to - index after the last one to compute
+     */
+    static void compute(DiffractionParameters p, double[] x, double[] out, int from, int to){
+        double scale = Math.PI/(p.getWavelength()*p.getDistanceFromScreen());
+        double betaScale = p.getSlitWidth()*scale;
+        double gammaScale = p.getDistanceBetweenSlits()*scale;
+        boolean twoSlits = p.getNumberSlits()==2;
+
+        int i = from;
+        int upper = from + SPECIES.loopBound(to-from);
+        for(;i<upper;i+=SPECIES.length()){
+            DoubleVector xv = DoubleVector.fromArray(SPECIES, x, i);
+            DoubleVector beta = xv.mul(betaScale);
+            VectorMask<Double> zero = beta.compare(VectorOperators.EQ, 0.0);
+            DoubleVector safeBeta = beta.blend(1.0, zero); //Keeps the division below finite
+            DoubleVector sinc = safeBeta.lanewise(VectorOperators.SIN).div(safeBeta).blend(1.0, zero);
+            DoubleVector val = sinc.mul(sinc);
+            if(twoSlits){
+                DoubleVector twoSlitVal = xv.mul(gammaScale).lanewise(VectorOperators.COS);
+                val = val.mul(twoSlitVal.mul(twoSlitVal));
+            }
+            val.intoArray(out, i);
+        }
+        for(;i<to;i++){
+            out[i] = IntensityKernel.intensity(x[i]*betaScale, x[i]*gammaScale, twoSlits);
+        }
+    }
+}